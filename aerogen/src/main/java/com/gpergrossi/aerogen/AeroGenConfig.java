@@ -0,0 +1,126 @@
+package com.gpergrossi.aerogen;
+
+import net.minecraftforge.common.config.Config;
+
+/**
+ * Mod-wide settings that are not part of a world's generator settings. Unlike
+ * {@link AeroGeneratorSettings}, none of these values affect what a world looks like,
+ * only how (and how quickly) it is generated.
+ */
+@Config(modid = AeroGenMod.MODID)
+public class AeroGenConfig {
+
+	@Config.Comment({
+		"Generate biomes and terrain blocks for primer chunks on a pool of worker threads.",
+		"Population is always performed in order on the world generation thread."
+	})
+	@Config.RequiresWorldRestart
+	public static boolean parallelGeneration = true;
+
+	@Config.Comment("Number of worker threads used for parallel generation. 0 uses one less than the number of available processors.")
+	@Config.RangeInt(min = 0, max = 64)
+	@Config.RequiresWorldRestart
+	public static int generatorThreads = 0;
+
+	@Config.Comment({
+		"Number of low priority threads used for speculative generation and pre-generation ahead of players.",
+		"0 disables both."
+	})
+	@Config.RangeInt(min = 0, max = 16)
+	@Config.RequiresWorldRestart
+	public static int backgroundThreads = 1;
+
+	@Config.Comment({
+		"Radius in chunks around each freshly generated chunk for which terrain is generated speculatively.",
+		"0 disables speculative generation."
+	})
+	@Config.RangeInt(min = 0, max = 8)
+	public static int speculativeRadius = 2;
+
+	@Config.Comment("Pre-generate primer chunks in a cone ahead of each moving player.")
+	public static boolean pregenEnabled = true;
+
+	@Config.Comment("How far ahead of a player, in chunks, primer chunks are pre-generated.")
+	@Config.RangeInt(min = 1, max = 32)
+	public static int pregenLookAhead = 12;
+
+	@Config.Comment("Half-angle in degrees of the cone ahead of a player in which chunks are pre-generated.")
+	@Config.RangeInt(min = 5, max = 180)
+	public static int pregenConeHalfAngle = 45;
+
+	@Config.Comment("Maximum number of chunks waiting for background terrain generation at any time.")
+	@Config.RangeInt(min = 1, max = 1024)
+	public static int pregenQueueDepth = 64;
+
+	@Config.Comment("Number of ticks between scans of player positions.")
+	@Config.RangeInt(min = 1, max = 200)
+	public static int pregenScanInterval = 10;
+
+	@Config.Comment({
+		"Milliseconds per tick that may be spent pre-populating chunks whose terrain is ready.",
+		"Pre-populating happens on the server thread. 0 disables it."
+	})
+	@Config.RangeInt(min = 0, max = 50)
+	public static int pregenPopulateMillis = 2;
+
+	@Config.Comment("Maximum number of primer chunks kept in memory. Idle chunks beyond this are saved and evicted.")
+	@Config.RangeInt(min = 64, max = 1000000)
+	public static int primerCacheMaxChunks = 2048;
+
+	@Config.Comment("Approximate maximum amount of memory in megabytes used by primer chunks.")
+	@Config.RangeInt(min = 16, max = 65536)
+	public static int primerCacheMaxMegabytes = 256;
+
+	@Config.Comment({
+		"Approximate maximum amount of memory in megabytes used by generated regions and their islands.",
+		"Regions beyond this are dropped, least recently used first, and built again from their seed when needed."
+	})
+	@Config.RangeInt(min = 16, max = 65536)
+	public static int regionCacheMaxMegabytes = 256;
+
+	@Config.Comment({
+		"Number of 64x64 block tiles of biomes kept for answering biome lookups, such as spawn searches,",
+		"village checks and maps. Each tile takes 4 KB."
+	})
+	@Config.RangeInt(min = 0, max = 65536)
+	@Config.RequiresWorldRestart
+	public static int biomeQueryCacheTiles = 1024;
+
+	@Config.Comment("Number of ticks a primer chunk must go unused before it can be evicted.")
+	@Config.RangeInt(min = 1, max = 72000)
+	public static int primerEvictIdleTicks = 200;
+
+	@Config.Comment("Maximum number of milliseconds per tick spent queueing idle dirty primer chunks for saving.")
+	@Config.RangeInt(min = 1, max = 50)
+	public static int saveTickMillis = 2;
+
+	@Config.Comment("Maximum number of idle dirty primer chunks queued for saving per tick.")
+	@Config.RangeInt(min = 1, max = 4096)
+	public static int saveTickMaxChunks = 32;
+
+	@Config.Comment("Number of threads that serialize, compress and write primer chunks in the background.")
+	@Config.RangeInt(min = 1, max = 16)
+	@Config.RequiresWorldRestart
+	public static int saveThreads = 2;
+
+	@Config.Comment({
+		"Number of primer chunks that may be waiting to be written before a thread requesting more saves",
+		"has to help write them."
+	})
+	@Config.RangeInt(min = 16, max = 65536)
+	public static int saveQueueLimit = 512;
+
+	@Config.Comment({
+		"Milliseconds per second spent moving saved primer chunks toward the front of the AerogenPrimerChunks file",
+		"and truncating the free space left at its end. 0 disables compaction."
+	})
+	@Config.RangeInt(min = 0, max = 500)
+	@Config.RequiresWorldRestart
+	public static int compactionStepMillis = 5;
+
+	public static int getGeneratorThreadCount() {
+		if (generatorThreads > 0) return generatorThreads;
+		return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+}
@@ -3,6 +3,7 @@ package com.gpergrossi.aerogen;
 import org.apache.logging.log4j.Logger;
 
 import com.gpergrossi.aerogen.commands.CommandAeroMap;
+import com.gpergrossi.aerogen.commands.CommandAeroStats;
 import com.gpergrossi.aerogen.commands.CommandTest;
 
 import net.minecraft.entity.EnumCreatureType;
@@ -11,8 +12,11 @@ import net.minecraft.world.World;
 import net.minecraft.world.WorldProviderSurface;
 import net.minecraft.world.WorldType;
 import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.common.config.Config;
+import net.minecraftforge.common.config.ConfigManager;
 import net.minecraftforge.event.entity.EntityJoinWorldEvent;
 import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.client.event.ConfigChangedEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.Mod.EventHandler;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
@@ -69,6 +73,7 @@ public class AeroGenMod {
 	public void serverStart(FMLServerStartingEvent event) {
 		event.registerServerCommand(new CommandTest());
 		event.registerServerCommand(new CommandAeroMap());
+		event.registerServerCommand(new CommandAeroStats());
 	}
 
 	@EventHandler
@@ -78,6 +83,12 @@ public class AeroGenMod {
 		}
 	}
 	
+    @SubscribeEvent
+    public static void onConfigChanged(ConfigChangedEvent.OnConfigChangedEvent event) {
+    	if (!event.getModID().equals(MODID)) return;
+    	ConfigManager.sync(MODID, Config.Type.INSTANCE);
+    }
+    
     @SubscribeEvent
 	public static void onEntitySpawn(EntityJoinWorldEvent event) {
 		if (event.getWorld().getWorldType() != WORLD_TYPE_SKY) return;
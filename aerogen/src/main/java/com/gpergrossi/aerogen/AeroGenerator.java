@@ -8,10 +8,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import com.gpergrossi.aerogen.generator.BiomeQueryEngine;
 import com.gpergrossi.aerogen.generator.IslandProvider;
 import com.gpergrossi.aerogen.generator.decorate.PopulatePhase;
 import com.gpergrossi.aerogen.generator.islands.Island;
-import com.gpergrossi.aerogen.generator.islands.IslandCell;
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt;
+import com.gpergrossi.aerogen.primer.PrimerSkylight;
 import com.gpergrossi.aerogen.primer.WorldPrimer;
 import com.gpergrossi.aerogen.primer.WorldPrimerChunk;
 import com.gpergrossi.aerogen.save.WorldSettingsHistory;
@@ -28,12 +30,12 @@ import net.minecraft.world.World;
 import net.minecraft.world.WorldEntitySpawner;
 import net.minecraft.world.biome.Biome;
 import net.minecraft.world.chunk.Chunk;
-import net.minecraft.world.chunk.ChunkPrimer;
 import net.minecraftforge.common.DimensionManager;
 import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.event.world.WorldEvent.CreateSpawnPosition;
 import net.minecraftforge.event.world.WorldEvent.Save;
 import net.minecraftforge.event.world.WorldEvent.Unload;
+import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
 import net.minecraftforge.fml.common.gameevent.TickEvent.WorldTickEvent;
 
 public class AeroGenerator {
@@ -118,6 +120,7 @@ public class AeroGenerator {
 	
 	private WorldPrimer worldPrimer;
 	private IslandProvider islandProvider;
+	private BiomeQueryEngine biomeQueries;
 	
 	private AeroGenerator(World world) {
 		this.world = world;
@@ -138,6 +141,7 @@ public class AeroGenerator {
 
 		this.worldPrimer = new WorldPrimer(this);
 		this.islandProvider = new IslandProvider.Simple(settings);
+		this.biomeQueries = new BiomeQueryEngine(islandProvider, AeroGenConfig.biomeQueryCacheTiles);
 		
 		this.initialized = true;
 	}
@@ -150,8 +154,17 @@ public class AeroGenerator {
 		return islandProvider;
 	}
 	
+	public BiomeQueryEngine getBiomeQueries() {
+		return biomeQueries;
+	}
+	
+	/**
+	 * Fills the biome IDs for the given range without generating any chunks. Blocks take the biomes that
+	 * generateBiomes() gives their chunk, which are taken from (+8, +8) blocks away.
+	 */
 	public void getBiomeInts(Int2DRange.Integers returnIntsRange) {
-		this.worldPrimer.getBiomeInts(returnIntsRange);		
+		Int2DRange offset = new Int2DRange(returnIntsRange).offset(8, 8);
+		biomeQueries.getBiomeIds(offset.createIntegers(returnIntsRange.data));
 	}
 
 	public WorldPrimer getWorldPrimer() {
@@ -188,37 +201,15 @@ public class AeroGenerator {
         int chunkMinZ = (chunkZ << 4) + 8;
         Int2DRange chunkBounds = new Int2DRange(chunkMinX, chunkMinZ, chunkMinX+15, chunkMinZ+15);
         
-		List<Island> islands = new ArrayList<>();
-		islandProvider.getIslands(islands, chunkBounds);
-
-		final byte defaultBiome= (byte) Biome.getIdForBiome(Biomes.OCEAN);
-		
-		// Fill void biomes
-		for (Int2D.Mutable block : chunkBounds.getAllMutable()) {
-			int index = chunkBounds.indexFor(block);
-			biomes[index] = defaultBiome;
-			
-			for (Island island : islands) {
-				for (IslandCell cell : island.getCells()) {
-					if (!cell.getPolygon().contains(block.x(), block.y())) continue;
-					if (!island.isInitialized()) island.initialize();
-					biomes[index] = (byte) Biome.getIdForBiome(island.getBiome().getMinecraftBiomeForSurroundingAir());
-				}
-			}
-		}
-		
-		// Fill island biomes
-		for (Island island : islands) {
-			island.provideBiomes(biomes, chunkBounds);
-		}
+		biomeQueries.fill(biomes, chunkBounds);
 	}
 	
 	/**
-	 * Generates the terrain blocks for the given chunk into the provided ChunkPrimer.
+	 * Generates the terrain blocks for the given chunk into the provided ChunkPrimerExt.
 	 * The terrain blocks should contain the bulk of the island, with caves carved out,
 	 * as well as rivers and most bodies of water carved and filled with water.
 	 */
-	public void generateTerrain(ChunkPrimer primer, int chunkX, int chunkZ) {		
+	public void generateTerrain(ChunkPrimerExt primer, int chunkX, int chunkZ) {		
         int chunkMinX = (chunkX << 4);
         int chunkMinZ = (chunkZ << 4);
         Int2DRange chunkBounds = new Int2DRange(chunkMinX, chunkMinZ, chunkMinX+15, chunkMinZ+15);
@@ -301,25 +292,28 @@ public class AeroGenerator {
 	}
 
 	/**
-	 * Produces the actual Chunk object. This method combines the Biome[] array and ChunkPrimer
-	 * created by the WorldPrimer into a Minecraft Chunk object, calls generateSkylightMap(), and 
+	 * Produces the actual Chunk object. This method combines the Biome[] array and block data
+	 * created by the WorldPrimer into a Minecraft Chunk object, lights it with PrimerSkylight, and 
 	 * returns the Chunk object. The actual biome and block generation is carried out by
 	 * generateBiomes(), generateTerrain(), and prePopulate(). postPopulate() will be called
 	 * by Minecraft after the chunk has been transferred to the Minecraft World.
 	 */
 	public Chunk generateChunk(int chunkX, int chunkZ) {		
 		WorldPrimerChunk chunk = worldPrimer.getOrCreatePrimerChunk(chunkX, chunkZ);
-		Tuple2<ChunkPrimer, byte[]> chunkData = chunk.getCompleted();
-		ChunkPrimer primer = chunkData.first;
+		Tuple2<ChunkPrimerExt, byte[]> chunkData = chunk.getCompleted();
+		ChunkPrimerExt blocks = chunkData.first;
 		byte[] biomes = chunkData.second;
 		
-		Chunk mcChunk = new Chunk(world, primer, chunkX, chunkZ);
+		Chunk mcChunk = new Chunk(world, blocks.toChunkPrimer(), chunkX, chunkZ);
 
 		// Biomes
 		System.arraycopy(biomes, 0, mcChunk.getBiomeArray(), 0, 256);
 
-		// Lighting
-		mcChunk.generateSkylightMap();
+		// Lighting, computed from the primer blocks rather than the Minecraft chunk
+		PrimerSkylight.generateSkylightMap(mcChunk, blocks);
+		
+		// Minecraft tends to request chunks next to the ones it just generated
+		worldPrimer.getScheduler().prepareSpeculatively(chunkX, chunkZ, AeroGenConfig.speculativeRadius);
 		
 		return mcChunk;
 	}
@@ -374,6 +368,10 @@ public class AeroGenerator {
 	 */
 	public void onWorldTick(WorldTickEvent event) {
 		this.worldPrimer.doSaveTick();
+		if (event.phase == Phase.END) {
+			this.worldPrimer.doPregenTick(world.playerEntities);
+			this.worldPrimer.doEvictionTick();
+		}
 	}
 
 	/**
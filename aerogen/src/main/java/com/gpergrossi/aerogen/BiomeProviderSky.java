@@ -59,9 +59,9 @@ public class BiomeProviderSky extends BiomeProvider {
 		public int[] getInts(int areaX, int areaY, int areaWidth, int areaHeight) {
 			int[] biomeIDs = IntCache.getIntCache(areaWidth * areaHeight);
 			Int2DRange range = new Int2DRange(areaX, areaY, areaX+areaWidth-1, areaY+areaHeight-1);
-			Int2DRange.Integers integers = range.createIntegers();
 			
-			if (generator != null) generator.getBiomeInts(integers);
+			// Answered from island geometry, so no primer chunks are created
+			if (generator != null) generator.getBiomeInts(range.createIntegers(biomeIDs));
 			return biomeIDs;
 		}
 		
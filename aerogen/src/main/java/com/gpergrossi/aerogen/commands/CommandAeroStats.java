@@ -0,0 +1,86 @@
+package com.gpergrossi.aerogen.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gpergrossi.aerogen.AeroGenerator;
+import com.gpergrossi.aerogen.primer.WorldPrimer;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommand;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentString;
+
+public class CommandAeroStats implements ICommand {
+
+	@Override
+	public int compareTo(ICommand arg0) {
+		return 0;
+	}
+
+	@Override
+	public String getName() {
+		return "aerostats";
+	}
+
+	@Override
+	public String getUsage(ICommandSender sender) {
+		return "/aerostats [dimension]";
+	}
+
+	@Override
+	public List<String> getAliases() {
+		List<String> aliases = new ArrayList<>();
+		aliases.add("aerostats");
+		return aliases;
+	}
+
+	@Override
+	public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+		if (args.length > 1) throw new CommandException("Invalid arguments");
+		
+		Integer dimension = null;
+		if (args.length == 1) {
+			try {
+				dimension = Integer.parseInt(args[0]);
+			} catch (NumberFormatException e) {
+				throw new CommandException(args[0]+" is not a dimension id");
+			}
+		}
+		
+		List<String> lines = new ArrayList<>();
+		for (AeroGenerator generator : AeroGenerator.getGenerators()) {
+			final int generatorDimension = generator.getWorld().provider.getDimension();
+			if (dimension != null && dimension != generatorDimension) continue;
+			
+			WorldPrimer primer = generator.getWorldPrimer();
+			if (primer == null) continue;
+			
+			lines.add("AeroGen dimension "+generatorDimension+":");
+			primer.appendStatistics(lines);
+		}
+		
+		if (lines.isEmpty()) lines.add("No AeroGen worlds are loaded");
+		for (String line : lines) {
+			sender.sendMessage(new TextComponentString(line));
+		}
+	}
+
+	@Override
+	public boolean checkPermission(MinecraftServer server, ICommandSender sender) {
+		return true;
+	}
+
+	@Override
+	public List<String> getTabCompletions(MinecraftServer server, ICommandSender sender, String[] args, BlockPos targetPos) {
+		return new ArrayList<>();
+	}
+
+	@Override
+	public boolean isUsernameIndex(String[] args, int index) {
+		return false;
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.gpergrossi.aerogen.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.gpergrossi.aerogen.generator.islands.Island;
+import com.gpergrossi.aerogen.generator.islands.IslandCell;
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.ranges.Int2DSpans;
+
+import net.minecraft.init.Biomes;
+import net.minecraft.world.biome.Biome;
+
+/**
+ * <p>Computes biomes for any range of blocks straight from the islands of an {@link IslandProvider}. Blocks
+ * covered by an island's shape take the island's biome, blocks over the rest of an island's cells take the
+ * island's biome for surrounding air, and everything else is ocean. Chunk generation and vanilla biome
+ * queries both use it, so they always agree.</p>
+ *
+ * <p>Biomes depend only on the world seed, so area queries are answered from a cache of 64x64 tiles, least
+ * recently used tiles being dropped first. Nothing else is kept between queries.</p>
+ */
+public class BiomeQueryEngine {
+
+	public static final int TILE_BITS = 6;
+	public static final int TILE_SIZE = 1 << TILE_BITS;
+	public static final int TILE_MASK = TILE_SIZE - 1;
+
+	private final IslandProvider provider;
+	private final int maxTiles;
+
+	/** Biome IDs of cached tiles, by tile coordinate, least recently used first */
+	private final LinkedHashMap<Long, byte[]> tiles;
+
+	private long tileHits;
+	private long tileMisses;
+
+	public BiomeQueryEngine(IslandProvider provider, int maxTiles) {
+		this.provider = provider;
+		this.maxTiles = maxTiles;
+		this.tiles = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > BiomeQueryEngine.this.maxTiles;
+			}
+		};
+	}
+
+	/**
+	 * Fills the biome ID of every block in the range into an array indexed by range.indexFor(x, z).
+	 * Nothing is cached.
+	 */
+	public void fill(byte[] biomes, Int2DRange range) {
+		List<Island> islands = new ArrayList<>();
+		provider.getIslands(islands, range);
+
+		final byte defaultBiome = (byte) Biome.getIdForBiome(Biomes.OCEAN);
+		Arrays.fill(biomes, 0, range.size(), defaultBiome);
+
+		// Fill void biomes from the rasterized cells of the islands near the range. Cells come in island
+		// order, so where islands' cells touch the last island's biome wins.
+		List<IslandCell> cells = new ArrayList<>();
+		provider.getIslandCells(cells, range);
+		Island previous = null;
+		for (IslandCell cell : cells) {
+			Island island = cell.getIsland();
+			if (island == previous) continue;
+			previous = island;
+
+			Int2DSpans spans = island.getCellSpans();
+			if (!spans.intersects(range)) continue;
+			if (!island.isInitialized()) island.initialize();
+			spans.fill(biomes, range, (byte) Biome.getIdForBiome(island.getBiome().getMinecraftBiomeForSurroundingAir()));
+		}
+
+		// Fill island biomes
+		for (Island island : islands) {
+			island.provideBiomes(biomes, range);
+		}
+	}
+
+	/**
+	 * Writes the biome ID of every block in the output's range into its data array, through the tile cache.
+	 */
+	public void getBiomeIds(Int2DRange.Integers output) {
+		final int[] data = output.data;
+		for (int tileZ = output.minY >> TILE_BITS; tileZ <= output.maxY >> TILE_BITS; tileZ++) {
+			for (int tileX = output.minX >> TILE_BITS; tileX <= output.maxX >> TILE_BITS; tileX++) {
+				final byte[] tile = getTile(tileX, tileZ);
+				final int tileMinX = tileX << TILE_BITS, tileMinZ = tileZ << TILE_BITS;
+				final int minX = Math.max(output.minX, tileMinX), maxX = Math.min(output.maxX, tileMinX + TILE_MASK);
+				final int minZ = Math.max(output.minY, tileMinZ), maxZ = Math.min(output.maxY, tileMinZ + TILE_MASK);
+
+				for (int z = minZ; z <= maxZ; z++) {
+					int index = output.indexFor(minX, z);
+					int tileIndex = (z - tileMinZ) << TILE_BITS | (minX - tileMinX);
+					for (int x = minX; x <= maxX; x++) {
+						data[index++] = tile[tileIndex++] & 0xFF;
+					}
+				}
+			}
+		}
+	}
+
+	private byte[] getTile(int tileX, int tileZ) {
+		final Long key = ((long) tileX << 32) | (tileZ & 0xFFFFFFFFL);
+		synchronized (tiles) {
+			final byte[] tile = tiles.get(key);
+			if (tile != null) {
+				tileHits++;
+				return tile;
+			}
+			tileMisses++;
+		}
+
+		// Computed without the lock. Two threads may both compute a tile, with the same result.
+		final byte[] tile = new byte[TILE_SIZE * TILE_SIZE];
+		final int minX = tileX << TILE_BITS, minZ = tileZ << TILE_BITS;
+		fill(tile, new Int2DRange(minX, minZ, minX + TILE_MASK, minZ + TILE_MASK));
+
+		if (maxTiles > 0) {
+			synchronized (tiles) {
+				tiles.put(key, tile);
+			}
+		}
+		return tile;
+	}
+
+	public void appendStatistics(List<String> output) {
+		synchronized (tiles) {
+			final long lookups = tileHits + tileMisses;
+			output.add(String.format(Locale.ROOT, "Biome query tiles: %d cached (%d KB), %d hits, %d misses (%.1f%% hit rate)",
+					tiles.size(), tiles.size() * TILE_SIZE * TILE_SIZE / 1024, tileHits, tileMisses,
+					lookups == 0 ? 0.0 : tileHits * 100.0 / lookups));
+		}
+	}
+
+}
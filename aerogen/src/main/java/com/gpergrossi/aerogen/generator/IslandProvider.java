@@ -1,11 +1,14 @@
 package com.gpergrossi.aerogen.generator;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
 
 import com.gpergrossi.aerogen.AeroGeneratorSettings;
 import com.gpergrossi.aerogen.generator.islands.Island;
@@ -14,7 +17,6 @@ import com.gpergrossi.aerogen.generator.regions.Region;
 import com.gpergrossi.aerogen.generator.regions.RegionManager;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
 import com.gpergrossi.util.geom.shapes.IShape;
-import com.gpergrossi.util.geom.vectors.Double2D;
 import com.gpergrossi.util.geom.vectors.Int2D;
 
 public abstract class IslandProvider {
@@ -62,17 +64,43 @@ public abstract class IslandProvider {
 	protected abstract boolean hasIsland(Island island);
 
 	public void getIslands(List<Island> output, IShape bounds) {
-		List<Island> islands = new ArrayList<>();
+		List<IslandCell> cells = new ArrayList<>();
 		Int2DRange range = Int2DRange.fromRect(bounds.getBounds());
-		getIslands(islands, range);
+		getIslandCells(cells, range);
 		
-		for (Island island : islands) {
-			for (IslandCell cell : island.getCells()) {
-				if (cell.getPolygon().intersects(bounds)) {
-					output.add(island);
-					break;
-				}
+		Set<Island> added = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (IslandCell cell : cells) {
+			Island island = cell.getIsland();
+			if (added.contains(island)) continue;
+			if (!cell.getPolygon().intersects(bounds)) continue;
+			added.add(island);
+			output.add(island);
+		}
+	}
+	
+	/**
+	 * Add the cells of allowed islands that may overlap the given block range to the output list. Only cells
+	 * near the range are looked at, but they are not checked against it exactly, so a cell's polygon may turn
+	 * out not to overlap the range. Cells are added in order of region, then island.
+	 * @param output
+	 * @param minecraftBlockRangeXZ
+	 */
+	public void getIslandCells(List<IslandCell> output, Int2DRange minecraftBlockRangeXZ) {
+		List<Region> regions = new ArrayList<>();
+		getRegions(regions, minecraftBlockRangeXZ);
+		
+		for (Region region : regions) {
+			if (region.getProvider() != this) continue;
+			final int start = output.size();
+			region.getCells(output, minecraftBlockRangeXZ);
+			
+			// Drop the cells of islands this provider does not allow
+			int kept = start;
+			for (int i = start; i < output.size(); i++) {
+				final IslandCell cell = output.get(i);
+				if (hasIsland(cell.getIsland())) output.set(kept++, cell);
 			}
+			output.subList(kept, output.size()).clear();
 		}
 	}
 	
@@ -90,14 +118,9 @@ public abstract class IslandProvider {
         List<Region> regions = new ArrayList<>();
 		getRegions(regions, searchBounds);
 		
-		Double2D checkPos = new Double2D(minecraftBlockXZ.x(), minecraftBlockXZ.y());
 		for (Region region : regions) {
-			for (Island island : region.getIslands()) {
-				if (!hasIsland(island)) continue;
-				for (IslandCell cell : island.getCells()) {
-					if (cell.getPolygon().contains(checkPos)) return Optional.of(cell.getIsland());
-				}
-			}
+			IslandCell cell = region.getCellAt(minecraftBlockXZ.x(), minecraftBlockXZ.y());
+			if (cell != null && hasIsland(cell.getIsland())) return Optional.of(cell.getIsland());
 		}
 
 		return Optional.empty();
@@ -105,6 +128,22 @@ public abstract class IslandProvider {
 
 	public abstract Island getSpawnIsland();
 	
+	/**
+	 * Add all regions in the given block range to the output list and keep them loaded
+	 * until they are passed to unpinRegions()
+	 * @param output
+	 * @param minecraftBlockRangeXZ
+	 */
+	public abstract void pinRegions(List<Region> output, Int2DRange minecraftBlockRangeXZ);
+	
+	/**
+	 * Release regions pinned by pinRegions()
+	 * @param regions
+	 */
+	public abstract void unpinRegions(List<Region> regions);
+	
+	public abstract void appendStatistics(List<String> output);
+	
 	/**
 	 * Get a list of all loaded regions
 	 * @param regions
@@ -134,6 +173,21 @@ public abstract class IslandProvider {
 			regionManager.getAll(output, minecraftBlockRangeXZ);
 		}
 		
+		@Override
+		public void pinRegions(List<Region> output, Int2DRange minecraftBlockRangeXZ) {
+			regionManager.pinAll(output, minecraftBlockRangeXZ);
+		}
+		
+		@Override
+		public void unpinRegions(List<Region> regions) {
+			regionManager.unpinAll(regions);
+		}
+		
+		@Override
+		public void appendStatistics(List<String> output) {
+			regionManager.appendStatistics(output);
+		}
+		
 		@Override
 		public void debugGetLoadedRegions(List<Region> output) {
 			try {
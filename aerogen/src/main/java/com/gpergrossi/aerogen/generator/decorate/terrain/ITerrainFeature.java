@@ -3,10 +3,10 @@ package com.gpergrossi.aerogen.generator.decorate.terrain;
 import java.util.Random;
 
 import com.gpergrossi.aerogen.generator.decorate.PopulatePhase;
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
 
 import net.minecraft.world.World;
-import net.minecraft.world.chunk.ChunkPrimer;
 
 public interface ITerrainFeature {
 
@@ -21,7 +21,7 @@ public interface ITerrainFeature {
 	 * @param chunkRange
 	 * @param random
 	 */
-	public void provideChunk(ChunkPrimer primer, Int2DRange chunkRange, Random random);
+	public void provideChunk(ChunkPrimerExt primer, Int2DRange chunkRange, Random random);
 	
 	/**
 	 * Place all blocks appropriate for this terrain feature for the provided populate phase.
@@ -6,6 +6,7 @@ import com.gpergrossi.aerogen.definitions.biomes.IslandBiome;
 import com.gpergrossi.aerogen.generator.decorate.PopulatePhase;
 import com.gpergrossi.aerogen.generator.islands.Island;
 import com.gpergrossi.aerogen.generator.regions.features.river.RiverWaterfall;
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
 import com.gpergrossi.util.geom.shapes.Ray;
 import com.gpergrossi.util.geom.vectors.Int2D;
@@ -13,7 +14,6 @@ import com.gpergrossi.util.geom.vectors.Int2D;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.init.Blocks;
 import net.minecraft.world.World;
-import net.minecraft.world.chunk.ChunkPrimer;
 
 public class TerrainFeatureBasin implements ITerrainFeature {
 
@@ -21,12 +21,12 @@ public class TerrainFeatureBasin implements ITerrainFeature {
 	protected static final IBlockState STONE = Blocks.STONE.getDefaultState();
 	protected static final IBlockState GOLD = Blocks.GOLD_BLOCK.getDefaultState();
 
-	protected static void setBlockSafe(ChunkPrimer primer, int x, int y, int z, IBlockState blockstate) {
+	protected static void setBlockSafe(ChunkPrimerExt primer, int x, int y, int z, IBlockState blockstate) {
 		if (x < 0 || x > 15 || y < 0 || y > 255 || z < 0 || z > 15) return;
 		primer.setBlockState(x, y, z, blockstate);
 	}
 	
-	protected static IBlockState getBlockSafe(ChunkPrimer primer, int x, int y, int z) {
+	protected static IBlockState getBlockSafe(ChunkPrimerExt primer, int x, int y, int z) {
 		if (x < 0 || x > 15 || y < 0 || y > 255 || z < 0 || z > 15) return AIR;
 		return primer.getBlockState(x, y, z);
 	}
@@ -86,7 +86,7 @@ public class TerrainFeatureBasin implements ITerrainFeature {
 	}
 
 	@Override
-	public void provideChunk(ChunkPrimer primer, Int2DRange chunkRange, Random random) {
+	public void provideChunk(ChunkPrimerExt primer, Int2DRange chunkRange, Random random) {
 		Int2DRange overlap = chunkRange.intersect(this.rangeXZ);
 		if (overlap.isEmpty()) return;
 
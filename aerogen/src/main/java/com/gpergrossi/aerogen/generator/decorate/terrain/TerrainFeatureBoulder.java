@@ -3,16 +3,16 @@ package com.gpergrossi.aerogen.generator.decorate.terrain;
 import java.util.Random;
 
 import com.gpergrossi.aerogen.generator.decorate.PopulatePhase;
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
 import com.gpergrossi.util.geom.vectors.Int2D;
 
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.world.World;
-import net.minecraft.world.chunk.ChunkPrimer;
 
 public class TerrainFeatureBoulder implements ITerrainFeature {
 
-	protected static void setBlockSafe(ChunkPrimer primer, int x, int y, int z, IBlockState blockstate) {
+	protected static void setBlockSafe(ChunkPrimerExt primer, int x, int y, int z, IBlockState blockstate) {
 		if (x < 0 || x > 15 || y < 0 || y > 255 || z < 0 || z > 15) return;
 		primer.setBlockState(x, y, z, blockstate);
 	}
@@ -65,7 +65,7 @@ public class TerrainFeatureBoulder implements ITerrainFeature {
 	}
 
 	@Override
-	public void provideChunk(ChunkPrimer primer, Int2DRange chunkRange, Random random) {
+	public void provideChunk(ChunkPrimerExt primer, Int2DRange chunkRange, Random random) {
 		Int2DRange overlap = chunkRange.intersect(this.rangeXZ);
 		if (overlap.isEmpty()) return;
 		
@@ -8,6 +8,7 @@ import com.gpergrossi.aerogen.definitions.biomes.IslandBiome;
 import com.gpergrossi.aerogen.generator.decorate.PopulatePhase;
 import com.gpergrossi.aerogen.generator.islands.Island;
 import com.gpergrossi.aerogen.generator.regions.features.river.RiverWaterfall;
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
 import com.gpergrossi.util.geom.shapes.Ray;
 import com.gpergrossi.util.geom.vectors.Double2D;
@@ -17,14 +18,13 @@ import net.minecraft.block.state.IBlockState;
 import net.minecraft.init.Blocks;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
-import net.minecraft.world.chunk.ChunkPrimer;
 
 public class TerrainFeatureWaterfall implements ITerrainFeature {
 
 	protected static final IBlockState AIR = Blocks.AIR.getDefaultState();
 	protected static final IBlockState STONE = Blocks.STONE.getDefaultState();
 
-	protected static void setBlockSafe(ChunkPrimer primer, int x, int y, int z, IBlockState blockstate) {
+	protected static void setBlockSafe(ChunkPrimerExt primer, int x, int y, int z, IBlockState blockstate) {
 		if (x < 0 || x > 15 || y < 0 || y > 255 || z < 0 || z > 15) return;
 		primer.setBlockState(x, y, z, blockstate);
 	}
@@ -116,7 +116,7 @@ public class TerrainFeatureWaterfall implements ITerrainFeature {
 	}
 
 	@Override
-	public void provideChunk(ChunkPrimer primer, Int2DRange chunkRange, Random random) {
+	public void provideChunk(ChunkPrimerExt primer, Int2DRange chunkRange, Random random) {
 		Int2DRange overlap = chunkRange.intersect(this.rangeXZ);
 		if (overlap.isEmpty()) return;
 
@@ -19,7 +19,9 @@ import com.gpergrossi.aerogen.generator.islands.contour.IslandShape;
 import com.gpergrossi.aerogen.generator.islands.extrude.IslandHeightmap;
 import com.gpergrossi.aerogen.generator.regions.Region;
 import com.gpergrossi.aerogen.generator.regions.features.river.RiverWaterfall;
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.ranges.Int2DSpans;
 import com.gpergrossi.util.geom.shapes.Rect;
 import com.gpergrossi.util.geom.vectors.Int2D;
 import com.gpergrossi.viewframe.IslandDebugRender;
@@ -29,7 +31,6 @@ import net.minecraft.init.Blocks;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
 import net.minecraft.world.biome.Biome;
-import net.minecraft.world.chunk.ChunkPrimer;
 
 public class Island {
 
@@ -46,8 +47,8 @@ public class Island {
 	private Map<String, Object> extensions;
 	
 	boolean grantFinished = false;	// finishGrant() has been called
-	boolean initialized = false;	// Island shape creation
-	boolean generated = false;		// Island heightmap and feature placement
+	volatile boolean initialized = false;	// Island shape creation
+	volatile boolean generated = false;		// Island heightmap and feature placement
 
 	IslandBiome biome;
 	IslandShape shape;
@@ -55,6 +56,10 @@ public class Island {
 	IslandHeightmap heightmap;
 	List<ITerrainFeature> terrainFeatures;
 	
+	/** The tiles of this island's cell polygons and of its eroded shape, rasterized on first use */
+	private volatile Int2DSpans cellSpans;
+	private volatile Int2DSpans shapeSpans;
+	
 	public Island(Region region, int regionIsleIndex, long seed) {
 		this.region = region;
 		this.regionIndex = regionIsleIndex;
@@ -90,6 +95,7 @@ public class Island {
 		this.biome.generateShape(shape, random);
 		
 		this.initialized = true;
+		region.addMemoryUsage(estimateShapeMemoryUsage());
 	}
 	
 	public synchronized void generate() {
@@ -109,6 +115,30 @@ public class Island {
 		while (this.caves.generate(random));
 		
 		this.generated = true;
+		region.addMemoryUsage(estimateHeightmapMemoryUsage());
+	}
+	
+	/**
+	 * Returns a rough estimate of the number of bytes of heap used by this island. The shape's edge distances
+	 * take a float per block of its range, and the heightmap two bytes and a bit per block. Growth is also
+	 * reported to the region as it happens, so that the region manager can keep a running total.
+	 */
+	public long estimateMemoryUsage() {
+		long bytes = 256;
+		if (initialized) bytes += estimateShapeMemoryUsage();
+		if (generated) bytes += estimateHeightmapMemoryUsage();
+		final Int2DSpans cellSpans = this.cellSpans, shapeSpans = this.shapeSpans;
+		if (cellSpans != null) bytes += cellSpans.estimateMemoryUsage();
+		if (shapeSpans != null) bytes += shapeSpans.estimateMemoryUsage();
+		return bytes;
+	}
+	
+	private long estimateShapeMemoryUsage() {
+		return shape.range.size() * 4L;
+	}
+	
+	private long estimateHeightmapMemoryUsage() {
+		return shape.range.size() * 17L / 8L;
 	}
 	
 	public boolean hasWaterfall() {
@@ -122,15 +152,42 @@ public class Island {
 		if (!initialized) this.initialize();
 		
 		final byte biomeByte = (byte) Biome.getIdForBiome(this.biome.getMinecraftBiome());
-		
-		for (Int2D tile : overlap.getAllMutable()) {
-			if (!shape.contains(tile)) continue;
-			int index = chunkBounds.indexFor(tile);
-			outputBiomes[index] = biomeByte;
+		getShapeSpans().fill(outputBiomes, chunkBounds, biomeByte);
+	}
+	
+	/**
+	 * Returns the tiles covered by this island's cells, the tiles for which some cell's
+	 * polygon.contains(x, z) is true.
+	 */
+	public Int2DSpans getCellSpans() {
+		Int2DSpans spans = cellSpans;
+		if (spans == null) {
+			List<Int2DSpans> parts = new ArrayList<>(cells.size());
+			for (IslandCell cell : cells) {
+				parts.add(Int2DSpans.fromConvex(cell.getPolygon()));
+			}
+			spans = Int2DSpans.union(parts);
+			cellSpans = spans;
+			region.addMemoryUsage(spans.estimateMemoryUsage());
 		}
-	}	
+		return spans;
+	}
+	
+	/**
+	 * Returns the tiles for which shape.contains(x, z) is true. Only available after initialization.
+	 */
+	public Int2DSpans getShapeSpans() {
+		if (!this.initialized) throw new IllegalStateException("Cannot return island shape spans until it has been initialized");
+		Int2DSpans spans = shapeSpans;
+		if (spans == null) {
+			spans = Int2DSpans.fromFloats(shape.edgeDistance, 0);
+			shapeSpans = spans;
+			region.addMemoryUsage(spans.estimateMemoryUsage());
+		}
+		return spans;
+	}
 	
-	public boolean provideChunk(ChunkPrimer primer, Int2DRange chunkBounds) {
+	public boolean provideChunk(ChunkPrimerExt primer, Int2DRange chunkBounds) {
 		Int2DRange overlap = chunkBounds.intersect(this.shape.range);
 		
 		if (overlap.isEmpty() && !this.hasWaterfall()) return false;
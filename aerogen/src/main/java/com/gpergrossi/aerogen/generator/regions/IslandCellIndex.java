@@ -0,0 +1,128 @@
+package com.gpergrossi.aerogen.generator.regions;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.gpergrossi.aerogen.generator.islands.IslandCell;
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+
+/**
+ * <p>A uniform grid over a region's island cells, with one grid square per Minecraft chunk. Each square lists
+ * the cells whose bounding boxes overlap it, so a point or chunk query only has to look at the cells near it
+ * instead of every cell in the region.</p>
+ *
+ * <p>Cells are identified by their position in the region's cell list, and queries return them in that order.
+ * The region's cells are listed island by island, so this is also the order of the region's islands.</p>
+ */
+class IslandCellIndex {
+
+	private static final int[] NONE = new int[0];
+
+	private final List<IslandCell> cells;
+	private final int minChunkX, minChunkZ;
+	private final int width, height;
+	private final int[][] cellsByChunk;
+
+	IslandCellIndex(List<IslandCell> cells) {
+		this.cells = cells;
+
+		int minChunkX = Integer.MAX_VALUE, minChunkZ = Integer.MAX_VALUE;
+		int maxChunkX = Integer.MIN_VALUE, maxChunkZ = Integer.MIN_VALUE;
+		final Int2DRange[] bounds = new Int2DRange[cells.size()];
+		for (int i = 0; i < cells.size(); i++) {
+			bounds[i] = Int2DRange.fromRect(cells.get(i).getPolygon().getBounds());
+			minChunkX = Math.min(minChunkX, bounds[i].minX >> 4);
+			minChunkZ = Math.min(minChunkZ, bounds[i].minY >> 4);
+			maxChunkX = Math.max(maxChunkX, bounds[i].maxX >> 4);
+			maxChunkZ = Math.max(maxChunkZ, bounds[i].maxY >> 4);
+		}
+		if (cells.isEmpty()) {
+			minChunkX = minChunkZ = 0;
+			maxChunkX = maxChunkZ = -1;
+		}
+
+		this.minChunkX = minChunkX;
+		this.minChunkZ = minChunkZ;
+		this.width = maxChunkX - minChunkX + 1;
+		this.height = maxChunkZ - minChunkZ + 1;
+
+		final List<List<Integer>> lists = new ArrayList<>(width * height);
+		for (int i = 0; i < width * height; i++) lists.add(null);
+		for (int i = 0; i < cells.size(); i++) {
+			for (int chunkZ = bounds[i].minY >> 4; chunkZ <= bounds[i].maxY >> 4; chunkZ++) {
+				for (int chunkX = bounds[i].minX >> 4; chunkX <= bounds[i].maxX >> 4; chunkX++) {
+					final int index = (chunkZ - minChunkZ) * width + (chunkX - minChunkX);
+					if (lists.get(index) == null) lists.set(index, new ArrayList<>(4));
+					lists.get(index).add(i);
+				}
+			}
+		}
+
+		this.cellsByChunk = new int[width * height][];
+		for (int i = 0; i < cellsByChunk.length; i++) {
+			final List<Integer> list = lists.get(i);
+			if (list == null) {
+				cellsByChunk[i] = NONE;
+				continue;
+			}
+			cellsByChunk[i] = list.stream().mapToInt(Integer::intValue).toArray();
+		}
+	}
+
+	/**
+	 * Returns the indices of the cells whose bounding boxes overlap the given chunk, in ascending order.
+	 * The returned array must not be modified.
+	 */
+	int[] getCellsInChunk(int chunkX, int chunkZ) {
+		final int x = chunkX - minChunkX, z = chunkZ - minChunkZ;
+		if (x < 0 || z < 0 || x >= width || z >= height) return NONE;
+		return cellsByChunk[z * width + x];
+	}
+
+	/**
+	 * Adds every cell whose bounding box overlaps a chunk that overlaps the given block range to the output list,
+	 * once each and in the region's order.
+	 */
+	void getCells(List<IslandCell> output, Int2DRange blockRange) {
+		if (blockRange.isEmpty()) return;
+		final int minX = Math.max(blockRange.minX >> 4, minChunkX), maxX = Math.min(blockRange.maxX >> 4, minChunkX + width - 1);
+		final int minZ = Math.max(blockRange.minY >> 4, minChunkZ), maxZ = Math.min(blockRange.maxY >> 4, minChunkZ + height - 1);
+		if (minX > maxX || minZ > maxZ) return;
+
+		if (minX == maxX && minZ == maxZ) {
+			for (int i : getCellsInChunk(minX, minZ)) output.add(cells.get(i));
+			return;
+		}
+
+		final BitSet found = new BitSet(cells.size());
+		for (int chunkZ = minZ; chunkZ <= maxZ; chunkZ++) {
+			for (int chunkX = minX; chunkX <= maxX; chunkX++) {
+				for (int i : getCellsInChunk(chunkX, chunkZ)) found.set(i);
+			}
+		}
+		for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i+1)) {
+			output.add(cells.get(i));
+		}
+	}
+
+	/**
+	 * Returns the first cell whose polygon contains the given block, or null.
+	 */
+	IslandCell getCellAt(int x, int z) {
+		for (int i : getCellsInChunk(x >> 4, z >> 4)) {
+			final IslandCell cell = cells.get(i);
+			if (cell.getPolygon().contains(x, z)) return cell;
+		}
+		return null;
+	}
+
+	long estimateMemoryUsage() {
+		long bytes = 64 + cellsByChunk.length * 4L;
+		for (int[] indices : cellsByChunk) {
+			if (indices != NONE) bytes += 16 + indices.length * 4L;
+		}
+		return bytes;
+	}
+
+}
@@ -5,6 +5,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 import com.gpergrossi.aerogen.definitions.biomes.IslandBiome;
 import com.gpergrossi.aerogen.definitions.regions.RegionBiome;
 import com.gpergrossi.aerogen.definitions.regions.RegionBiomes;
@@ -14,6 +15,7 @@ import com.gpergrossi.aerogen.generator.islands.IslandCell;
 import com.gpergrossi.aerogen.generator.regions.features.IRegionFeature;
 import com.gpergrossi.constraints.integer.IntegerConstraint;
 import com.gpergrossi.constraints.matrix.ConstraintMatrix;
+import com.gpergrossi.util.geom.ranges.Int2DRange;
 import com.gpergrossi.util.geom.shapes.Convex;
 import com.gpergrossi.util.geom.vectors.Int2D;
 import com.gpergrossi.voronoi.Edge;
@@ -27,6 +29,7 @@ public class Region {
 	// Region details
 	private final RegionManager manager;
 	private final InfiniteCell regionCell;
+	private InfiniteCell[] nearbyCells;
 	private final IslandProvider provider;
 	
 	private Random random;
@@ -34,6 +37,7 @@ public class Region {
 
 	List<Island> islands;
 	List<IslandCell> islandCells;
+	IslandCellIndex islandCellIndex;
 	double averageCellRadius;
 	
 	ConstraintMatrix<IntegerConstraint> islandAltitudeConstraints;
@@ -42,6 +46,13 @@ public class Region {
 	private int minIslandAltitude = 32;
 	private int maxIslandAltitude = 128;
 	
+	/** Number of pins keeping this region loaded, guarded by the manager */
+	int pinCount;
+	
+	/** Bytes of this region counted in the manager's running total, negative while it is not counted */
+	private static final long NOT_COUNTED = Long.MIN_VALUE / 2;
+	private final AtomicLong countedBytes = new AtomicLong(NOT_COUNTED);
+	
 	public Region(RegionManager manager, InfiniteCell boundaryCell) {
 		this.manager = manager;
 		this.provider = manager.getProvider();
@@ -49,6 +60,7 @@ public class Region {
 		this.regionCell = boundaryCell;
 		if (boundaryCell != null) {
 			boundaryCell.reserve();	
+			this.nearbyCells = manager.reserveNearbyCells(boundaryCell);
 			this.random = new Random(boundaryCell.getSeed());
 			init();
 		}
@@ -56,6 +68,10 @@ public class Region {
 
 	public void release() {
 		regionCell.release();
+		if (nearbyCells != null) {
+			for (InfiniteCell cell : nearbyCells) cell.release();
+			nearbyCells = null;
+		}
 	}
 	
 	public void init() {		
@@ -73,6 +89,7 @@ public class Region {
 		this.islandCells = createIslands(subCells);
 		this.islandCells = Collections.unmodifiableList(islandCells);
 		this.islands = Collections.unmodifiableList(islands);
+		this.islandCellIndex = new IslandCellIndex(islandCells);
 
 		initIslandAltitudeConstraints();
 		createFeatures();
@@ -288,6 +305,42 @@ public class Region {
 		return sharedPerimeter;
 	}
 	
+	/**
+	 * Returns a rough estimate of the number of bytes of heap used by this region and its islands.
+	 */
+	public long estimateMemoryUsage() {
+		long bytes = 1024 + islandCells.size() * 512L + islandCellIndex.estimateMemoryUsage();
+		for (Island island : islands) {
+			bytes += island.estimateMemoryUsage();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Starts counting this region in the manager's running total. Returns the bytes counted.
+	 */
+	long startCounting() {
+		final long bytes = estimateMemoryUsage();
+		countedBytes.set(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Stops counting this region in the manager's running total. Returns the bytes that were counted,
+	 * including any growth that was reported concurrently.
+	 */
+	long stopCounting() {
+		return countedBytes.getAndSet(NOT_COUNTED);
+	}
+	
+	/**
+	 * Reports that one of this region's islands has grown by the given number of bytes. Growth of a region
+	 * that has been evicted is not counted.
+	 */
+	public void addMemoryUsage(long bytes) {
+		if (countedBytes.getAndAdd(bytes) >= 0) manager.addMemoryUsage(bytes);
+	}
+	
 	public RegionBiome getBiome() {
 		return biome;
 	}
@@ -296,6 +349,21 @@ public class Region {
 		return this.islandCells;
 	}
 
+	/**
+	 * Adds the island cells whose bounding boxes overlap the chunks overlapping the given block range to the
+	 * output list, in the same order as {@link #getCells()}. Cells are not checked against the range itself.
+	 */
+	public void getCells(List<IslandCell> output, Int2DRange minecraftBlockRangeXZ) {
+		islandCellIndex.getCells(output, minecraftBlockRangeXZ);
+	}
+	
+	/**
+	 * Returns the island cell containing the given block, or null if there is none in this region.
+	 */
+	public IslandCell getCellAt(int x, int z) {
+		return islandCellIndex.getCellAt(x, z);
+	}
+
 	public IslandCell getRandomCell(Random rand) {
 		return islandCells.get(rand.nextInt(islandCells.size()));
 	}
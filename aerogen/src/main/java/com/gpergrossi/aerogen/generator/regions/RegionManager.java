@@ -1,78 +1,210 @@
 package com.gpergrossi.aerogen.generator.regions;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.gpergrossi.aerogen.AeroGenConfig;
 import com.gpergrossi.aerogen.generator.IslandProvider;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.vectors.Int2D;
 import com.gpergrossi.voronoi.infinite.InfiniteCell;
 import com.gpergrossi.voronoi.infinite.InfiniteVoronoi;
 
+/**
+ * <p>Builds and caches the regions of an {@link IslandProvider}. A region is built entirely from its cell's seed,
+ * so a region that is dropped can be built again, identical, when it is needed.</p>
+ *
+ * <p>Loaded regions are kept in least recently used order. Once their estimated memory exceeds
+ * {@link AeroGenConfig#regionCacheMaxMegabytes}, the least recently used regions are evicted, except those
+ * that are pinned. Regions are pinned by {@link #pinAll} while something is generating from their islands,
+ * since an island that was evicted and rebuilt would have to be generated again. The spawn region is always
+ * pinned, because finding a spawn can add a platform to its spawn island that a rebuild would not have.</p>
+ *
+ * <p>The estimate is kept as a running total. A region's estimate is added when it is built and subtracted when
+ * it is evicted, and its islands add their growth as they initialize, generate and rasterize, so lookups never
+ * walk the loaded regions unless the total is over budget.</p>
+ */
 public class RegionManager extends InfiniteVoronoi {
-	
+
+	/**
+	 * Cells in each direction around a region's cell that the region keeps reserved. A lookup looks at the cells
+	 * up to two past its range, and the cell containing a point is within two of that point, so a lookup that
+	 * finds a loaded region only looks at cells that stay initialized and never has to build a diagram.
+	 */
+	private static final int NEARBY_CELL_RADIUS = 4;
+
 	IslandProvider provider;
-	LinkedList<Region> loadedRegions;
-	
+
+	/** Loaded regions by cell coordinate, least recently used first */
+	LinkedHashMap<Int2D, Region> loadedRegions;
+
+	/** Cell coordinates of evicted regions that have not been built again */
+	private HashSet<Int2D> evictedRegions;
+
+	/** Estimated bytes of heap used by the loaded regions and their islands */
+	private final AtomicLong loadedBytes = new AtomicLong();
+
+	private Region spawnRegion;
+
+	private long regionsLoaded;
+	private long regionsRebuilt;
+	private long regionsEvicted;
+
 	public RegionManager(IslandProvider provider) {
 		super(provider.getSettings().regionGridSize, provider.getSettings().seed);
 		this.provider = provider;
-		this.loadedRegions = new LinkedList<>();
+		this.loadedRegions = new LinkedHashMap<>(16, 0.75f, true);
+		this.evictedRegions = new HashSet<>();
 	}
 
 	public synchronized void getAll(List<Region> output, Int2DRange minecraftBlockRangeXZ) {
+		collectRegions(output, minecraftBlockRangeXZ);
+		evictRegions();
+	}
+
+	/**
+	 * Adds the regions in the given block range to the output list, like {@link #getAll}, and pins each region
+	 * it adds so that it is not evicted until it is passed to {@link #unpinAll}.
+	 */
+	public synchronized void pinAll(List<Region> output, Int2DRange minecraftBlockRangeXZ) {
+		final int start = output.size();
+		collectRegions(output, minecraftBlockRangeXZ);
+		for (int i = start; i < output.size(); i++) {
+			output.get(i).pinCount++;
+		}
+		evictRegions();
+	}
+
+	private void collectRegions(List<Region> output, Int2DRange minecraftBlockRangeXZ) {
 		List<InfiniteCell> cells = new ArrayList<>();
 		getCells(minecraftBlockRangeXZ, cells);
-		
+
+		final Set<Region> added = Collections.newSetFromMap(new IdentityHashMap<>());
+		added.addAll(output);
 		for (InfiniteCell cell : cells) {
 			Region region = getRegionForCell(cell);
-			if (output.contains(region)) continue;
-			output.add(region);
 			cell.release();
+			if (!added.add(region)) continue;
+			output.add(region);
 		}
 	}
 
-	public synchronized void getLoadedRegions(List<Region> outputList) {
-		for (Region r : getLoadedRegions()) {
-			outputList.add(r);
+	/**
+	 * Releases the pins taken by {@link #pinAll}. Evicts regions if the loaded regions are over budget.
+	 */
+	public synchronized void unpinAll(List<Region> regions) {
+		for (Region region : regions) {
+			if (region.pinCount <= 0) throw new IllegalStateException(region+" is not pinned");
+			region.pinCount--;
 		}
+		evictRegions();
 	}
-	
-	public Iterable<Region> getLoadedRegions() {
-		return new Iterable<Region>() {
-			@Override
-			public Iterator<Region> iterator() {
-				return loadedRegions.iterator();
-			}
-		};
+
+	public synchronized void getLoadedRegions(List<Region> outputList) {
+		outputList.addAll(loadedRegions.values());
 	}
-	
-	private void promoteRegionToHeadOfLoadedList(Region promotedRegion) {
-		loadedRegions.remove(promotedRegion);
-		loadedRegions.addFirst(promotedRegion);
+
+	public Iterable<Region> getLoadedRegions() {
+		return loadedRegions.values();
 	}
-	
+
 	private Region getRegionForCell(InfiniteCell regionCell) {
-		Region r = (Region) regionCell.data;
+		final Int2D coord = regionCell.getCoord();
+		Region r = loadedRegions.get(coord);
 		if (r == null) {
 			r = new Region(this, regionCell);
-			regionCell.data = r;
+			loadedRegions.put(coord, r);
+			loadedBytes.addAndGet(r.startCounting());
+			regionsLoaded++;
+			if (evictedRegions.remove(coord)) regionsRebuilt++;
 		}
-		promoteRegionToHeadOfLoadedList(r);
 		return r;
 	}
-	
-	public Region getSpawnRegion() {
-		return getRegion(0, 0);
+
+	/**
+	 * Reserves the cells around the given region cell. The returned cells must each be released.
+	 */
+	InfiniteCell[] reserveNearbyCells(InfiniteCell regionCell) {
+		final int size = NEARBY_CELL_RADIUS*2+1;
+		final InfiniteCell[] cells = new InfiniteCell[size*size];
+		for (int j = 0; j < size; j++) {
+			for (int i = 0; i < size; i++) {
+				final InfiniteCell cell = peakCell(regionCell.cellX-NEARBY_CELL_RADIUS+i, regionCell.cellY-NEARBY_CELL_RADIUS+j);
+				cell.reserve();
+				cells[j*size+i] = cell;
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Called by loaded regions when their islands grow.
+	 */
+	void addMemoryUsage(long bytes) {
+		loadedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Drops the least recently used regions that are not pinned until the estimated memory of the
+	 * remaining ones is within budget.
+	 */
+	private void evictRegions() {
+		final long budget = AeroGenConfig.regionCacheMaxMegabytes * 1024L * 1024L;
+		if (loadedBytes.get() <= budget) return;
+
+		final Iterator<Region> iterator = loadedRegions.values().iterator();
+		while (loadedBytes.get() > budget && iterator.hasNext()) {
+			final Region region = iterator.next();
+			if (region.pinCount > 0) continue;
+
+			iterator.remove();
+			loadedBytes.addAndGet(-region.stopCounting());
+			evictedRegions.add(region.getCoord());
+			region.release();
+			regionsEvicted++;
+		}
+	}
+
+	/**
+	 * Returns the estimated number of bytes of heap used by the loaded regions, as counted so far.
+	 */
+	public long estimateMemoryUsage() {
+		return loadedBytes.get();
+	}
+
+	public synchronized Region getSpawnRegion() {
+		if (spawnRegion == null) {
+			final InfiniteCell cell = getCell(0, 0);
+			spawnRegion = getRegionForCell(cell);
+			spawnRegion.pinCount++;
+			cell.release();
+		}
+		return spawnRegion;
 	}
 
 	public synchronized Region getRegion(int x, int y) {
-		return getRegionForCell(getCell(x, y));
+		final InfiniteCell cell = getCell(x, y);
+		final Region region = getRegionForCell(cell);
+		cell.release();
+		evictRegions();
+		return region;
 	}
 
 	public IslandProvider getProvider() {
 		return provider;
 	}
-	
+
+	public synchronized void appendStatistics(List<String> output) {
+		output.add(String.format(Locale.ROOT, "Loaded regions: %d (~%.1f MB), loaded: %d, rebuilt: %d, evicted: %d",
+				loadedRegions.size(), estimateMemoryUsage() / (1024.0 * 1024.0), regionsLoaded, regionsRebuilt, regionsEvicted));
+	}
+
 }
@@ -9,75 +9,164 @@ import net.minecraft.world.chunk.ChunkPrimer;
 import net.minecraft.world.chunk.NibbleArray;
 import net.minecraftforge.fml.relauncher.ReflectionHelper;
 
-public class ChunkPrimerExt extends ChunkPrimer {
-	
+/**
+ * <p>Block storage for a primer chunk. Unlike a vanilla ChunkPrimer, which always holds a 65,536 entry array,
+ * blocks are stored in 16x16x16 sections that are only allocated once a non-air block is placed in them.
+ * Each section keeps a palette of the block states it contains and a bit-packed array of palette indices,
+ * using as few bits per block as the palette size allows. Floating island chunks are mostly air, so most
+ * sections are never allocated and the rest typically need 2 or 4 bits per block.</p>
+ *
+ * <p>Each section also keeps a bitmask per column of the y levels that are not air, which allows the highest
+ * or lowest block in a column to be found by inspecting at most 16 masks instead of scanning blocks.</p>
+ *
+ * <p>A vanilla ChunkPrimer is only created by {@link #toChunkPrimer()}, when the chunk is handed to Minecraft.</p>
+ */
+public class ChunkPrimerExt {
+
 	protected static final IBlockState DEFAULT_STATE = Blocks.AIR.getDefaultState();
-	
+
 	@SuppressWarnings("deprecation")
 	protected static final char DEFAULT_STATE_CHAR = (char) Block.BLOCK_STATE_IDS.get(Blocks.AIR.getDefaultState());
-	
-	protected final char[] data;
-	protected int lowestY = 255;
-	protected int highestY = 0;
-	
+
+	protected final Section[] sections;
+
 	public ChunkPrimerExt() {
-		super();
-		this.data = ReflectionHelper.getPrivateValue(ChunkPrimer.class, this, 1);
+		this.sections = new Section[16];
+	}
+
+	private static int sectionIndex(int x, int y, int z) {
+		return x << 8 | z << 4 | (y & 15);
+	}
+
+	private static int columnIndex(int x, int z) {
+		return x << 4 | z;
 	}
 
-	@Override
-    @SuppressWarnings("deprecation")
 	public IBlockState getBlockState(int x, int y, int z) {
-    	final int index = x << 12 | z << 8 | y;
-        final IBlockState iblockstate = Block.BLOCK_STATE_IDS.getByValue(this.data[index]);
-        return iblockstate == null ? DEFAULT_STATE : iblockstate;
-    }
+		if (y < 0 || y > 255) return DEFAULT_STATE;
+		final Section section = sections[y >> 4];
+		if (section == null) return DEFAULT_STATE;
+		return section.palette[section.get(sectionIndex(x, y, z))];
+	}
 
-	@Override
-    @SuppressWarnings("deprecation")
 	public void setBlockState(int x, int y, int z, IBlockState state) {
-    	final int index = x << 12 | z << 8 | y;
-        this.data[index] = (char) Block.BLOCK_STATE_IDS.get(state);
-        
-        if (state != DEFAULT_STATE) {
-        	lowestY = Math.min(lowestY, y);
-        	highestY = Math.max(highestY, y);
-        }
-    }
-
-	@Override
+		if (y < 0 || y > 255) return;
+		if (state == null) state = DEFAULT_STATE;
+
+		Section section = sections[y >> 4];
+		if (section == null) {
+			if (state == DEFAULT_STATE) return;
+			section = new Section();
+			sections[y >> 4] = section;
+		}
+		section.set(sectionIndex(x, y, z), section.indexOf(state));
+
+		final int column = columnIndex(x, z);
+		if (state != DEFAULT_STATE) {
+			section.columnMasks[column] |= (1 << (y & 15));
+		} else {
+			section.columnMasks[column] &= ~(1 << (y & 15));
+		}
+	}
+
+	/**
+	 * Returns a deep copy of this primer.
+	 */
+	public ChunkPrimerExt copy() {
+		final ChunkPrimerExt copy = new ChunkPrimerExt();
+		for (int i = 0; i < 16; i++) {
+			if (sections[i] != null) copy.sections[i] = sections[i].copy();
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns a rough estimate of the number of bytes of heap used by this primer.
+	 */
+	public long estimateMemoryUsage() {
+		long bytes = 32 + 16 + sections.length * 4;
+		for (Section section : sections) {
+			if (section == null) continue;
+			bytes += section.estimateMemoryUsage();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Creates a vanilla ChunkPrimer containing the same blocks as this primer.
+	 */
+	@SuppressWarnings("deprecation")
+	public ChunkPrimer toChunkPrimer() {
+		final ChunkPrimer primer = new ChunkPrimer();
+		final char[] data = ReflectionHelper.getPrivateValue(ChunkPrimer.class, primer, 1);
+
+		for (int sectionY = 0; sectionY < 16; sectionY++) {
+			final Section section = sections[sectionY];
+			if (section == null) continue;
+
+			final char[] paletteChars = new char[section.paletteSize];
+			for (int i = 0; i < section.paletteSize; i++) {
+				paletteChars[i] = (char) Block.BLOCK_STATE_IDS.get(section.palette[i]);
+			}
+
+			final int minY = sectionY << 4;
+			int index = 0;
+			for (int x = 0; x < 16; x++) {
+				for (int z = 0; z < 16; z++) {
+					final int xz = x << 12 | z << 8 | minY;
+					for (int y = 0; y < 16; y++) {
+						final int paletteIndex = section.get(index++);
+						if (paletteIndex != 0) data[xz | y] = paletteChars[paletteIndex];
+					}
+				}
+			}
+		}
+
+		return primer;
+	}
+
 	public int findGroundBlockIdx(int x, int z) {
         return findFirstBlockBelow(x, 255, z);
 	}
-	
+
+	/**
+	 * Returns the y level of the highest non-air block at or below y in the given column, or 0 if there is none.
+	 */
 	public int findFirstBlockBelow(int x, int y, int z) {
-		if (y < lowestY) return 0;
-		if (y > highestY) y = highestY;
-		
-        int xz = (x << 12 | z << 8);
-        for (int yi = y; yi >= lowestY; yi--) {
-            char block = this.data[xz | yi];
-            if (block != 0 && block != DEFAULT_STATE_CHAR) {
-                return yi;
-            }
-        }
-        return 0;
+		if (y < 0) return 0;
+		if (y > 255) y = 255;
+
+		final int column = columnIndex(x, z);
+		for (int sectionY = y >> 4; sectionY >= 0; sectionY--) {
+			final Section section = sections[sectionY];
+			if (section == null) continue;
+
+			int mask = section.columnMasks[column];
+			if (sectionY == (y >> 4)) mask &= (2 << (y & 15)) - 1;
+			if (mask != 0) return sectionY << 4 | (31 - Integer.numberOfLeadingZeros(mask));
+		}
+		return 0;
 	}
-	
+
+	/**
+	 * Returns the y level of the lowest non-air block at or above y in the given column, or 255 if there is none.
+	 */
 	public int findFirstBlockAbove(int x, int y, int z) {
-		if (y > highestY) return 255;
-		if (y < lowestY) y = lowestY;
-		
-        int xz = (x << 12 | z << 8);
-        for (int yi = y; yi <= highestY; yi++) {
-            char block = this.data[xz | yi];
-            if (block != 0 && block != DEFAULT_STATE_CHAR) {
-                return yi;
-            }
-        }
-        return 255;
+		if (y > 255) return 255;
+		if (y < 0) y = 0;
+
+		final int column = columnIndex(x, z);
+		for (int sectionY = y >> 4; sectionY < 16; sectionY++) {
+			final Section section = sections[sectionY];
+			if (section == null) continue;
+
+			int mask = section.columnMasks[column];
+			if (sectionY == (y >> 4)) mask &= ~((1 << (y & 15)) - 1);
+			if (mask != 0) return sectionY << 4 | Integer.numberOfTrailingZeros(mask);
+		}
+		return 255;
 	}
-	
+
 	public static enum DataResult {
 		NONE, NORMAL, HIGH_IDS;
 		public boolean hasBlocks() {
@@ -87,108 +176,103 @@ public class ChunkPrimerExt extends ChunkPrimer {
 			return this == HIGH_IDS;
 		}
 	}
-	
+
+	@SuppressWarnings("deprecation")
 	public DataResult getSectionData(int sectionIndexY, byte[] blockIDs, NibbleArray blockIDsHigh, NibbleArray blockData) {
-		final int minY = sectionIndexY << 4;
-		final int maxY = minY + 16;
-		if (maxY < lowestY || minY > highestY) return DataResult.NONE;
-		
+		final Section section = sections[sectionIndexY];
+		if (section == null) return DataResult.NONE;
+
+		final char[] paletteChars = new char[section.paletteSize];
+		for (int i = 0; i < section.paletteSize; i++) {
+			paletteChars[i] = (char) Block.BLOCK_STATE_IDS.get(section.palette[i]);
+		}
+
 		boolean anyBlocks = false;
 		boolean anyHighIDs = false;
-		
-		for (int x = 0; x < 16; x++) {
-			final int xi = (x << 12);
-			
-			for (int z = 0; z < 16; z++) {
-				final int zi = xi | (z << 8) | minY;
-				
-				for (int y = 0; y < 16; y++) {
-					final char block = this.data[zi + y];
-		            if (block == 0 || block == DEFAULT_STATE_CHAR) continue;
-
-					anyBlocks = true;
-					
-		            final int index = ((x << 8) | (z << 4) | y); 
-		            blockIDs[index] = (byte) ((block >> 4) & 0xFF);
-		            blockData.setIndex(index, block & 0x0F);
-		            
-		            final byte blockIDHigh = (byte) ((block >> 12) & 0x0F);
-		            if (blockIDHigh != 0) {
-			            anyHighIDs = true;
-			            blockIDsHigh.setIndex(index, blockIDHigh);
-		            }
-				}
-			}
+
+		// Section indices are ordered x, z, y, which is the order used by the saved section data
+		for (int index = 0; index < 4096; index++) {
+			final int paletteIndex = section.get(index);
+			if (paletteIndex == 0) continue;
+
+			final char block = paletteChars[paletteIndex];
+            if (block == 0 || block == DEFAULT_STATE_CHAR) continue;
+
+			anyBlocks = true;
+
+            blockIDs[index] = (byte) ((block >> 4) & 0xFF);
+            blockData.setIndex(index, block & 0x0F);
+
+            final byte blockIDHigh = (byte) ((block >> 12) & 0x0F);
+            if (blockIDHigh != 0) {
+	            anyHighIDs = true;
+	            blockIDsHigh.setIndex(index, blockIDHigh);
+            }
 		}
-		
+
 		if (anyHighIDs) return DataResult.HIGH_IDS;
 		if (anyBlocks) return DataResult.NORMAL;
-		return DataResult.NONE;		
+		return DataResult.NONE;
 	}
 
+	@SuppressWarnings("deprecation")
 	private void putSection(int sectionY, byte[] idsLow, NibbleArray data, NibbleArray idsHigh) {
 		final int minY = sectionY << 4; // * 16
-		int sectionIndex = 0;
-		
-		for (int x = 0; x < 16; x++) {
-			final int xi = (x << 12);
-			
-			for (int z = 0; z < 16; z++) {
-				final int zi = xi | (z << 8) | minY;
-				
-				for (int y = 0; y < 16; y++) {
-		            final int blockID = idsLow[sectionIndex];
-		            final int dataNibble = data.getFromIndex(sectionIndex);
-		            final int blockIDExt = (idsHigh == null ? 0 : idsHigh.getFromIndex(sectionIndex));
-		            final char block = (char) (blockIDExt << 12 | (blockID & 255) << 4 | dataNibble);
-					
-					this.data[zi + y] = block;
-					sectionIndex++;
-				}
-			}
+
+		for (int index = 0; index < 4096; index++) {
+            final int blockID = idsLow[index];
+            final int dataNibble = data.getFromIndex(index);
+            final int blockIDExt = (idsHigh == null ? 0 : idsHigh.getFromIndex(index));
+            final char block = (char) (blockIDExt << 12 | (blockID & 255) << 4 | dataNibble);
+            if (block == 0 || block == DEFAULT_STATE_CHAR) continue;
+
+            final IBlockState state = Block.BLOCK_STATE_IDS.getByValue(block);
+            if (state == null) continue;
+
+            this.setBlockState(index >> 8, minY | (index & 15), (index >> 4) & 15, state);
 		}
 	}
-	
+
 	// Save block data in up to 16 sections of 16x16x16 blocks
 	public NBTTagList getSectionsNBT() {
 		NBTTagList sectionListTag = new NBTTagList();
-		
+
 		byte[] idsLow = new byte[4096];
 		NibbleArray idsHigh = new NibbleArray();
 		NibbleArray dataValues = new NibbleArray();
-		
+
 		for (int sectionIndex = 0; sectionIndex < 16; sectionIndex++) {
 			DataResult result = this.getSectionData(sectionIndex, idsLow, idsHigh, dataValues);
 			if (result.hasBlocks()) {
 				NBTTagCompound section = new NBTTagCompound();
 				sectionListTag.appendTag(section);
-				
+
 				section.setInteger("Y", sectionIndex);
 				section.setByteArray("Blocks", idsLow);
 				section.setByteArray("Data", dataValues.getData());
 				idsLow = new byte[4096];
 				dataValues = new NibbleArray();
-				
+
 				if (result.hasHighIDs()) {
 					section.setByteArray("Add", idsHigh.getData());
 					idsHigh = new NibbleArray();
 				}
 			}
 		}
-		
+
 		return sectionListTag;
 	}
 
 	public static ChunkPrimerExt fromNBT(final NBTTagList tagList) {
 		final ChunkPrimerExt result = new ChunkPrimerExt();
-		
+
 		for (int i = 0; i < tagList.tagCount(); i++) {
 			final NBTTagCompound sectionNBT = tagList.getCompoundTagAt(i);
-			
+
 			final int sectionY = sectionNBT.getInteger("Y");
 			final byte[] idsLow = sectionNBT.getByteArray("Blocks");
 			final NibbleArray data = new NibbleArray(sectionNBT.getByteArray("Data"));
-			
+
 			final NibbleArray idsHigh;
 			final byte[] idsHighBytes = sectionNBT.getByteArray("Add");
 			if (idsHighBytes.length == 2048) {
@@ -196,11 +280,110 @@ public class ChunkPrimerExt extends ChunkPrimer {
 			} else {
 				idsHigh = null;
 			}
-			
+
 			result.putSection(sectionY, idsLow, data, idsHigh);
 		}
-		
+
 		return result;
 	}
-	
+
+
+
+	/**
+	 * A 16x16x16 section of blocks, stored as a palette of block states and a bit-packed array of palette
+	 * indices. Entries are 1, 2, 4, 8 or 16 bits wide so that they never straddle two longs. Palette index 0
+	 * is always air, which is also the value of every entry in a freshly allocated section.
+	 * Column masks are indexed x << 4 | z and have bit y set if the block at y is not air.
+	 */
+	protected static final class Section {
+
+		IBlockState[] palette;
+		int paletteSize;
+
+		/** log2 of the number of bits per entry */
+		int entryShift;
+		long[] entries;
+
+		final char[] columnMasks;
+
+		Section() {
+			this.palette = new IBlockState[2];
+			this.palette[0] = DEFAULT_STATE;
+			this.paletteSize = 1;
+			this.entryShift = 0;
+			this.entries = new long[4096 >> 6];
+			this.columnMasks = new char[256];
+		}
+
+		private Section(Section other) {
+			this.palette = other.palette.clone();
+			this.paletteSize = other.paletteSize;
+			this.entryShift = other.entryShift;
+			this.entries = other.entries.clone();
+			this.columnMasks = other.columnMasks.clone();
+		}
+
+		Section copy() {
+			return new Section(this);
+		}
+
+		int get(int index) {
+			final int shift = entryShift;
+			final long word = entries[index >>> (6 - shift)];
+			final int offset = (index & ((1 << (6 - shift)) - 1)) << shift;
+			return (int) (word >>> offset) & ((1 << (1 << shift)) - 1);
+		}
+
+		void set(int index, int value) {
+			final int shift = entryShift;
+			final int wordIndex = index >>> (6 - shift);
+			final int offset = (index & ((1 << (6 - shift)) - 1)) << shift;
+			final long mask = ((1L << (1 << shift)) - 1) << offset;
+			entries[wordIndex] = (entries[wordIndex] & ~mask) | (((long) value << offset) & mask);
+		}
+
+		/**
+		 * Returns the palette index of the given state, adding it to the palette if necessary.
+		 */
+		int indexOf(IBlockState state) {
+			for (int i = 0; i < paletteSize; i++) {
+				if (palette[i] == state) return i;
+			}
+
+			if (paletteSize == (1 << (1 << entryShift))) widen();
+			if (paletteSize == palette.length) {
+				final IBlockState[] newPalette = new IBlockState[palette.length * 2];
+				System.arraycopy(palette, 0, newPalette, 0, paletteSize);
+				palette = newPalette;
+			}
+
+			palette[paletteSize] = state;
+			return paletteSize++;
+		}
+
+		/**
+		 * Doubles the number of bits per entry.
+		 */
+		private void widen() {
+			final int oldShift = entryShift;
+			final long[] oldEntries = entries;
+
+			entryShift = oldShift + 1;
+			entries = new long[4096 >> (6 - entryShift)];
+
+			final int oldOffsetMask = (1 << (6 - oldShift)) - 1;
+			final int oldValueMask = (1 << (1 << oldShift)) - 1;
+			for (int index = 0; index < 4096; index++) {
+				final long word = oldEntries[index >>> (6 - oldShift)];
+				final int value = (int) (word >>> ((index & oldOffsetMask) << oldShift)) & oldValueMask;
+				if (value != 0) set(index, value);
+			}
+		}
+
+		long estimateMemoryUsage() {
+			return 32 + 16 + palette.length * 4 + 16 + entries.length * 8 + 16 + columnMasks.length * 2;
+		}
+
+	}
+
 }
@@ -1,7 +1,5 @@
 package com.gpergrossi.aerogen.primer;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -13,6 +11,10 @@ import com.gpergrossi.util.io.IStreamHandler;
 import net.minecraft.nbt.CompressedStreamTools;
 import net.minecraft.nbt.NBTTagCompound;
 
+/**
+ * Reads and writes uncompressed NBT. The streams are not buffered, because NamedDataMapFile only
+ * passes in-memory streams: the file's compression happens on the bytes written here.
+ */
 public class NBTStreamHandler implements IStreamHandler<NBTTagCompound> {
 
 	public static NBTStreamHandler INSTANCE = new NBTStreamHandler();
@@ -22,19 +24,17 @@ public class NBTStreamHandler implements IStreamHandler<NBTTagCompound> {
 	Writer<NBTTagCompound> WRITER = new Writer<NBTTagCompound>() {
 		@Override
 		public void write(OutputStream os, NBTTagCompound nbt) throws IOException {
-			BufferedOutputStream bufferedStream = new BufferedOutputStream(os);
-			DataOutputStream dataStream = new DataOutputStream(bufferedStream);
+			DataOutputStream dataStream = new DataOutputStream(os);
 			
 			CompressedStreamTools.write(nbt, dataStream);
-			dataStream.close();
+			dataStream.flush();
 		}
 	};
 	
 	Reader<NBTTagCompound> READER = new Reader<NBTTagCompound>() {
 		@Override
 		public NBTTagCompound read(InputStream is) throws IOException {
-			BufferedInputStream bufferedStream = new BufferedInputStream(is);
-			DataInputStream dataStream = new DataInputStream(bufferedStream);
+			DataInputStream dataStream = new DataInputStream(is);
 			
 			NBTTagCompound nbt = CompressedStreamTools.read(dataStream);
 			return nbt;
@@ -0,0 +1,92 @@
+package com.gpergrossi.aerogen.primer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.gpergrossi.util.io.ndmf.CompressionMethod;
+import com.gpergrossi.util.io.ndmf.CompressionPolicy;
+import com.gpergrossi.util.io.ndmf.DictionaryDeflateCompression;
+
+/**
+ * <p>Compression for the AerogenPrimerChunks file. Primer chunks are saved as uncompressed NBT
+ * ({@link NBTStreamHandler} writes with CompressedStreamTools.write, not writeCompressed), so the file's
+ * compression is the only compression they get.</p>
+ *
+ * <p>{@link #DICTIONARY} is deflate with a preset dictionary holding the NBT structure every primer chunk shares:
+ * the tags written by {@link WorldPrimerChunkSnapshot#writeToNBT} and {@link ChunkPrimerExt#getSectionsNBT}. The
+ * dictionary is part of the file format. Chunks written with it can only be read with the same dictionary, so any
+ * change to it must come with a new ID.</p>
+ */
+public class PrimerCompression {
+
+	public static final byte DICTIONARY_ID = 3;
+
+	public static final DictionaryDeflateCompression DICTIONARY = new DictionaryDeflateCompression(DICTIONARY_ID, buildDictionary());
+
+	static {
+		CompressionMethod.register(DICTIONARY);
+	}
+
+	/**
+	 * Completed chunks are saved as an empty compound of a few bytes, which no method makes smaller.
+	 */
+	public static final CompressionPolicy POLICY = CompressionPolicy.bySize(64, CompressionMethod.STORED, DICTIONARY);
+
+	private static final byte TAG_END = 0, TAG_BYTE = 1, TAG_INT = 3, TAG_BYTE_ARRAY = 7, TAG_LIST = 9, TAG_COMPOUND = 10, TAG_INT_ARRAY = 11;
+
+	/**
+	 * The NBT skeleton of a generated primer chunk with one section, in the order CompressedStreamTools writes it.
+	 * The most common strings go last, where back references to them are shortest.
+	 */
+	private static byte[] buildDictionary() {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream dos = new DataOutputStream(bytes);
+
+			dos.writeByte(TAG_COMPOUND);
+			dos.writeUTF("");
+			tag(dos, TAG_INT, "DataVersion");
+			dos.writeInt(1);
+			tag(dos, TAG_COMPOUND, "Level");
+			tag(dos, TAG_INT, "xPos");
+			dos.writeInt(0);
+			tag(dos, TAG_INT, "zPos");
+			dos.writeInt(0);
+			tag(dos, TAG_BYTE, "TerrainPopulated");
+			dos.writeByte(0);
+			tag(dos, TAG_BYTE_ARRAY, "Biomes");
+			dos.writeInt(256);
+			tag(dos, TAG_INT_ARRAY, "HeightMap");
+			dos.writeInt(256);
+			tag(dos, TAG_LIST, "Sections");
+			dos.writeByte(TAG_COMPOUND);
+			dos.writeInt(1);
+
+			// Section compounds, one after another
+			for (int i = 0; i < 2; i++) {
+				tag(dos, TAG_INT, "Y");
+				dos.writeInt(i);
+				tag(dos, TAG_BYTE_ARRAY, "Add");
+				dos.writeInt(2048);
+				tag(dos, TAG_BYTE_ARRAY, "Data");
+				dos.writeInt(2048);
+				tag(dos, TAG_BYTE_ARRAY, "Blocks");
+				dos.writeInt(4096);
+				dos.write(new byte[32]);
+				dos.writeByte(TAG_END);
+			}
+
+			dos.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void tag(DataOutputStream dos, byte type, String name) throws IOException {
+		dos.writeByte(type);
+		dos.writeUTF(name);
+	}
+
+}
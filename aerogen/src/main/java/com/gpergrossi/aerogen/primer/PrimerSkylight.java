@@ -0,0 +1,164 @@
+package com.gpergrossi.aerogen.primer;
+
+import java.lang.reflect.Field;
+
+import com.gpergrossi.aerogen.AeroGenMod;
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt.Section;
+
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraftforge.fml.relauncher.ReflectionHelper;
+import net.minecraftforge.fml.relauncher.ReflectionHelper.UnableToFindFieldException;
+
+/**
+ * <p>Computes the initial height map and sky light of a freshly built Minecraft chunk from the
+ * {@link ChunkPrimerExt} it was built from. The result is identical to {@link Chunk#generateSkylightMap()}.</p>
+ *
+ * <p>Vanilla walks every column from the top filled section down, looking up each block and its light opacity.
+ * Floating island chunks are mostly air with a lot of empty space below the islands, so most of that work is
+ * spent on air. Here, light opacity is looked up once per palette entry, the primer's column masks are used to
+ * skip straight to the blocks that are not air, and sections that are above every opaque block in the chunk are
+ * filled with full sky light in one go instead of block by block.</p>
+ */
+public class PrimerSkylight {
+
+	private static final Field HEIGHT_MAP_MINIMUM = findHeightMapMinimumField();
+
+	private static Field findHeightMapMinimumField() {
+		try {
+			return ReflectionHelper.findField(Chunk.class, "heightMapMinimum", "field_82912_p");
+		} catch (UnableToFindFieldException e) {
+			AeroGenMod.log.error("Could not find Chunk.heightMapMinimum, primer chunks will be lit by Minecraft instead");
+			return null;
+		}
+	}
+
+	/**
+	 * Generates the height map and sky light for the given chunk, which must have just been
+	 * constructed from {@code blocks.toChunkPrimer()}. Falls back to {@link Chunk#generateSkylightMap()}
+	 * if the chunk's world has no sky light.
+	 */
+	public static void generateSkylightMap(Chunk chunk, ChunkPrimerExt blocks) {
+		if (HEIGHT_MAP_MINIMUM == null || !chunk.getWorld().provider.hasSkyLight()) {
+			chunk.generateSkylightMap();
+			return;
+		}
+
+		final ExtendedBlockStorage[] storage = chunk.getBlockStorageArray();
+		final int[] heightMap = chunk.getHeightMap();
+		final int topY = chunk.getTopFilledSegment() + 15;
+
+		// Light opacity of each palette entry of each section
+		final int[][] opacities = new int[16][];
+		for (int sectionY = 0; sectionY < 16; sectionY++) {
+			final Section section = blocks.sections[sectionY];
+			if (section == null) continue;
+			final int[] opacity = new int[section.paletteSize];
+			for (int i = 0; i < section.paletteSize; i++) {
+				opacity[i] = section.palette[i].getLightOpacity();
+			}
+			opacities[sectionY] = opacity;
+		}
+
+		// Height map: one above the highest block with a non-zero light opacity in each column
+		int heightMapMinimum = Integer.MAX_VALUE;
+		int heightMapMaximum = 0;
+		for (int z = 0; z < 16; z++) {
+			for (int x = 0; x < 16; x++) {
+				final int height = findOpaqueBlockBelow(blocks, opacities, x, topY, z) + 1;
+				if (height == 0) continue;
+				heightMap[z << 4 | x] = height;
+				heightMapMinimum = Math.min(heightMapMinimum, height);
+				heightMapMaximum = Math.max(heightMapMaximum, height);
+			}
+		}
+
+		// Sections entirely above the height map are in full sky light. Section 0 is left out
+		// because Minecraft never lights y = 0 when generating the sky light map.
+		final boolean[] fullSky = new boolean[16];
+		for (int sectionY = 1; sectionY < 16; sectionY++) {
+			if (storage[sectionY] == Chunk.NULL_BLOCK_STORAGE) continue;
+			if (sectionY << 4 < heightMapMaximum) continue;
+			final byte[] skyLight = storage[sectionY].getSkyLight().getData();
+			for (int i = 0; i < skyLight.length; i++) skyLight[i] = (byte) 0xFF;
+			fullSky[sectionY] = true;
+		}
+
+		for (int z = 0; z < 16; z++) {
+			for (int x = 0; x < 16; x++) {
+				lightColumn(blocks, opacities, storage, fullSky, x, z, topY, heightMap[z << 4 | x] - 1);
+			}
+		}
+
+		try {
+			HEIGHT_MAP_MINIMUM.setInt(chunk, heightMapMinimum);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		chunk.markDirty();
+	}
+
+	/**
+	 * Returns the y level of the highest block at or below y with a non-zero light opacity, or -1 if there is none.
+	 */
+	private static int findOpaqueBlockBelow(ChunkPrimerExt blocks, int[][] opacities, int x, int y, int z) {
+		final int column = x << 4 | z;
+		for (int sectionY = y >> 4; sectionY >= 0; sectionY--) {
+			final Section section = blocks.sections[sectionY];
+			if (section == null) continue;
+
+			int mask = section.columnMasks[column];
+			if (sectionY == (y >> 4)) mask &= (2 << (y & 15)) - 1;
+			while (mask != 0) {
+				final int localY = 31 - Integer.numberOfLeadingZeros(mask);
+				if (opacities[sectionY][section.get(column << 4 | localY)] != 0) return sectionY << 4 | localY;
+				mask &= ~(1 << localY);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Lights one column the same way as {@link Chunk#generateSkylightMap()}: full light down to the highest opaque
+	 * block, then attenuated by each block's opacity (at least 1 per block) until it runs out or y = 1 is reached.
+	 */
+	private static void lightColumn(ChunkPrimerExt blocks, int[][] opacities, ExtendedBlockStorage[] storage, boolean[] fullSky, int x, int z, int topY, int opaqueY) {
+		int y = topY;
+
+		// Open sky above the highest opaque block
+		final int skyBottom = Math.max(opaqueY + 1, 1);
+		while (y >= skyBottom) {
+			final int sectionY = y >> 4;
+			if (storage[sectionY] == Chunk.NULL_BLOCK_STORAGE || fullSky[sectionY]) {
+				y = (sectionY << 4) - 1;
+				continue;
+			}
+			final int sectionBottom = Math.max(sectionY << 4, skyBottom);
+			final NibbleArray skyLight = storage[sectionY].getSkyLight();
+			for (; y >= sectionBottom; y--) {
+				skyLight.set(x, y & 15, z, 15);
+			}
+		}
+		if (opaqueY < 1) return;
+
+		// Attenuation below it
+		int light = 15;
+		for (y = opaqueY; y > 0; y--) {
+			int opacity = getOpacity(blocks, opacities, x, y, z);
+			if (opacity == 0 && light != 15) opacity = 1;
+			light -= opacity;
+			if (light <= 0) return;
+
+			final ExtendedBlockStorage section = storage[y >> 4];
+			if (section != Chunk.NULL_BLOCK_STORAGE) section.setSkyLight(x, y & 15, z, light);
+		}
+	}
+
+	private static int getOpacity(ChunkPrimerExt blocks, int[][] opacities, int x, int y, int z) {
+		final Section section = blocks.sections[y >> 4];
+		if (section == null) return 0;
+		return opacities[y >> 4][section.get(x << 8 | z << 4 | (y & 15))];
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.gpergrossi.aerogen.primer;
+
+import com.gpergrossi.util.geom.ranges.Int3DRange;
+
+import net.minecraft.block.state.IBlockState;
+
+/**
+ * <p>A bulk read/write session over a range of blocks in a {@link WorldPrimer}. Opening a session resolves all
+ * primer chunks overlapping the range once and takes their data locks in a fixed order (by chunk x, then chunk z),
+ * so that two sessions can never deadlock each other. While the session is open, block reads and writes inside the
+ * range go straight to the chunks' block storage without any per-access locking or chunk lookups.</p>
+ *
+ * <p>A session belongs to the thread that opened it. While it is open, {@link WorldPrimer#getBlockState} and
+ * {@link WorldPrimer#setBlockState} on that thread are routed through the session for positions inside its range,
+ * so world generation features use it without knowing about it. Chunks in the range that do not exist, have no
+ * terrain yet, or have already been completed are not part of the session; accesses to them take the normal path.</p>
+ *
+ * <p>Sessions must be closed by the thread that opened them, preferably with try-with-resources.</p>
+ */
+public class PrimerWriteSession implements AutoCloseable {
+
+	private final WorldPrimer world;
+	private final Int3DRange range;
+	private final PrimerWriteSession previous;
+
+	private final int minChunkX, minChunkZ;
+	private final int chunksWide, chunksDeep;
+
+	/** Chunks in the session indexed by (chunkX - minChunkX) * chunksDeep + (chunkZ - minChunkZ), null if not part of it */
+	private final WorldPrimerChunk[] chunks;
+
+	/** Whether each chunk in the session was modified */
+	private final boolean[] modified;
+
+	private boolean closed;
+
+	PrimerWriteSession(WorldPrimer world, Int3DRange range, PrimerWriteSession previous) {
+		this.world = world;
+		this.range = range;
+		this.previous = previous;
+
+		this.minChunkX = range.minX >> 4;
+		this.minChunkZ = range.minZ >> 4;
+		this.chunksWide = (range.maxX >> 4) - minChunkX + 1;
+		this.chunksDeep = (range.maxZ >> 4) - minChunkZ + 1;
+
+		this.chunks = new WorldPrimerChunk[chunksWide * chunksDeep];
+		this.modified = new boolean[chunks.length];
+
+		// Chunks are visited in ascending (chunkX, chunkZ) order, which is the global lock order
+		int locked = 0;
+		try {
+			for (int i = 0; i < chunks.length; i++) {
+				WorldPrimerChunk chunk = world.getPrimerChunk(minChunkX + i / chunksDeep, minChunkZ + i % chunksDeep);
+				if (chunk == null || chunk.isCompleted()) continue;
+
+				// The chunk may have been evicted since it was looked up, in which case its replacement is locked
+				chunk = chunk.lockData();
+				locked = i+1;
+				if (!chunk.isGenerated() || chunk.isCompleted()) {
+					chunk.unlockData();
+					continue;
+				}
+				chunks[i] = chunk;
+			}
+		} catch (RuntimeException e) {
+			for (int i = 0; i < locked; i++) {
+				if (chunks[i] != null) chunks[i].unlockData();
+			}
+			throw e;
+		}
+	}
+
+	public Int3DRange getRange() {
+		return range;
+	}
+
+	private int slotFor(int x, int z) {
+		return ((x >> 4) - minChunkX) * chunksDeep + ((z >> 4) - minChunkZ);
+	}
+
+	/**
+	 * Returns true if the given block is inside this session's range and its chunk is part of the session.
+	 */
+	public boolean contains(int x, int y, int z) {
+		if (closed || !range.contains(x, y, z)) return false;
+		return chunks[slotFor(x, z)] != null;
+	}
+
+	public IBlockState getBlockState(int x, int y, int z) {
+		if (!contains(x, y, z)) throw new IndexOutOfBoundsException("Position ("+x+","+y+","+z+") is not part of this write session");
+		return chunks[slotFor(x, z)].getBlockStateUnlocked(x & 15, y, z & 15);
+	}
+
+	public void setBlockState(int x, int y, int z, IBlockState state) {
+		if (!contains(x, y, z)) throw new IndexOutOfBoundsException("Position ("+x+","+y+","+z+") is not part of this write session");
+		final int slot = slotFor(x, z);
+		chunks[slot].setBlockStateUnlocked(x & 15, y, z & 15, state);
+		modified[slot] = true;
+	}
+
+	/**
+	 * Marks modified chunks dirty and releases all chunk locks. Calling close more than once has no effect.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+
+		try {
+			for (int i = 0; i < chunks.length; i++) {
+				if (modified[i]) chunks[i].markDirty(true);
+			}
+		} finally {
+			for (int i = chunks.length-1; i >= 0; i--) {
+				if (chunks[i] != null) chunks[i].unlockData();
+			}
+			world.endWriteSession(this, previous);
+		}
+	}
+
+}
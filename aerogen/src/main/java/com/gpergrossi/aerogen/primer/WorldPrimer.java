@@ -1,16 +1,22 @@
 package com.gpergrossi.aerogen.primer;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.gpergrossi.aerogen.AeroGenConfig;
 import com.gpergrossi.aerogen.AeroGenerator;
-import com.gpergrossi.util.data.Tuple2;
-import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.ranges.Int3DRange;
 import com.gpergrossi.util.geom.vectors.Int2D;
-import com.gpergrossi.util.spacial.Large2DArray;
 
 import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.DimensionType;
 import net.minecraft.world.World;
@@ -36,27 +42,48 @@ public class WorldPrimer extends World {
 	 */
 	private static final long MIN_SAVE_AGE = 10000;
 	
+	/**
+	 * Number of ticks between checks of the primer chunk memory budget
+	 */
+	private static final int EVICTION_CHECK_INTERVAL = 20;
+	
 	protected final AeroGenerator generator;
-	protected final Large2DArray<WorldPrimerChunk> chunks;
-	protected Queue<Tuple2<Long, WorldPrimerChunk>> saveQueue;
+	protected final WorldPrimerChunkMap chunks;
+	
+	/** 
+	 * Every dirty chunk, oldest first. Each chunk is in the queue at most once (see {@link WorldPrimerChunk#inSaveQueue}).
+	 * It may still be in the queue after it has been saved some other way, in which case it is dropped when reached.
+	 */
+	protected final Queue<WorldPrimerChunk> saveQueue;
 	protected final WorldPrimerChunkLoader chunkStore;
+	protected final WorldPrimerScheduler scheduler;
+	protected final WorldPrimerPregenerator pregenerator;
+	
+	/** Incremented once per world tick, used to track when chunks were last accessed */
+	private volatile int currentTick;
+	private final AtomicLong chunksEvicted = new AtomicLong();
+	private final AtomicLong chunksLoaded = new AtomicLong();
+	
+	/** The innermost write session opened by each thread, if any */
+	private final ThreadLocal<PrimerWriteSession> writeSession = new ThreadLocal<>();
 	
 	public WorldPrimer(AeroGenerator generator) {
 		super(null, null, NULL_WORLD_PROVIDER, null, false);
 		this.generator = generator;
-		this.chunks = new Large2DArray<>();
-		this.saveQueue = new PriorityQueue<>((a, b) -> Long.compare(a.first, b.first)); // Lowest value (earliest) timestamp first
+		this.chunks = new WorldPrimerChunkMap();
+		this.saveQueue = new ConcurrentLinkedQueue<>();
 		
 		this.chunkStore = new WorldPrimerChunkLoader(this);
+		this.scheduler = new WorldPrimerScheduler(this);
+		this.pregenerator = new WorldPrimerPregenerator(this);
 	}
 	
 	private WorldPrimerChunk getPrimerChunkInternal(int chunkX, int chunkZ, boolean canLoad, boolean allowProxy) {
-		WorldPrimerChunk chunk = chunks.get(chunkX, chunkZ);
+		WorldPrimerChunk chunk;
+		if (canLoad) chunk = chunks.getOrLoad(chunkX, chunkZ, this::loadPrimerChunk);
+		else chunk = chunks.get(chunkX, chunkZ);
 		
-		if (chunk == null && canLoad && chunkStore.hasChunk(chunkX, chunkZ)) {
-			chunk = chunkStore.loadChunk(chunkX, chunkZ);
-			chunks.set(chunkX, chunkZ, chunk);
-		}
+		if (chunk != null) chunk.touch(currentTick);
 				
 		if (chunk == null && allowProxy && generator.getWorld().isChunkGeneratedAt(chunkX, chunkZ)) {
 			WorldPrimerChunk proxy = WorldPrimerChunk.createProxy(this, chunkX, chunkZ);
@@ -65,39 +92,158 @@ public class WorldPrimer extends World {
 		
 		return chunk;
 	}
+	
+	private WorldPrimerChunk loadPrimerChunk(int chunkX, int chunkZ) {
+		if (!chunkStore.hasChunk(chunkX, chunkZ)) return null;
+		final WorldPrimerChunk chunk = chunkStore.loadChunk(chunkX, chunkZ);
+		if (chunk != null) chunksLoaded.incrementAndGet();
+		return chunk;
+	}
 
+	/**
+	 * Loads the saved chunks in the given range (inclusive) that are not resident, with one batched read of the
+	 * chunk file instead of a read per chunk. Chunks that are already being loaded by other threads are skipped.
+	 */
+	public void prefetchPrimerChunks(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+		List<Int2D> missing = null;
+		for (int x = minChunkX; x <= maxChunkX; x++) {
+			for (int z = minChunkZ; z <= maxChunkZ; z++) {
+				if (chunks.get(x, z) != null) continue;
+				if (missing == null) missing = new ArrayList<>();
+				missing.add(new Int2D(x, z));
+			}
+		}
+		
+		// A single chunk is loaded just as well when it is asked for
+		if (missing == null || missing.size() < 2) return;
+		chunks.loadAll(missing, this::loadPrimerChunks);
+	}
+	
+	private Map<Int2D, WorldPrimerChunk> loadPrimerChunks(List<Int2D> positions) {
+		final Map<Int2D, WorldPrimerChunk> loaded = chunkStore.loadChunks(positions);
+		for (WorldPrimerChunk chunk : loaded.values()) chunk.touch(currentTick);
+		chunksLoaded.addAndGet(loaded.size());
+		return loaded;
+	}
+
+	/**
+	 * Saves dirty chunks that have not been modified for at least {@link #MIN_SAVE_AGE}, oldest first,
+	 * until either {@link AeroGenConfig#saveTickMaxChunks} chunks have been saved or
+	 * {@link AeroGenConfig#saveTickMillis} milliseconds have passed.
+	 */
 	public void doSaveTick() {
 		if (saveQueue.isEmpty()) return;
 		
-		final long now = System.currentTimeMillis();		
-		final Tuple2<Long, WorldPrimerChunk> saveEntry = saveQueue.peek();
-		final long timestamp = saveEntry.first;
+		final long start = System.nanoTime();
+		final long budgetNanos = AeroGenConfig.saveTickMillis * 1000000L;
+		final int maxChunks = AeroGenConfig.saveTickMaxChunks;
+		final long now = System.currentTimeMillis();
 		
-		if (now - timestamp < MIN_SAVE_AGE) return;
+		// Only the server thread removes chunks from the queue, so peek() and poll() agree
+		int saved = 0;
+		while (saved < maxChunks && System.nanoTime() - start < budgetNanos) {
+			final WorldPrimerChunk chunk = saveQueue.peek();
+			if (chunk == null) break;
+			
+			synchronized (chunk) {
+				if (chunk.needsSave() && now - chunk.timestamp < MIN_SAVE_AGE) {
+					// Every chunk behind this one was queued later, so none of them are old enough either.
+					if (chunk.timestamp == chunk.queuedTimestamp) break;
+					
+					// Unless this chunk was saved some other way and then modified again since it was queued.
+					saveQueue.poll();
+					chunk.queuedTimestamp = chunk.timestamp;
+					saveQueue.offer(chunk);
+					continue;
+				}
+				saveQueue.poll();
+				chunk.inSaveQueue = false;
+			}
+			
+			if (chunk.needsSave()) {
+				save(chunk);
+				saved++;
+			}
+		}
+	}
+	
+	public void doPregenTick(List<EntityPlayer> players) {
+		pregenerator.tick(players);
+	}
+	
+	/**
+	 * Keeps the resident primer chunks within the configured memory budget. When the budget is exceeded,
+	 * chunks that have not been accessed for a while are evicted in least recently used order until usage
+	 * is back under 90% of the budget. Idle dirty chunks are saved before they are evicted. Evicted chunks
+	 * are loaded again from the save file when they are next requested.
+	 */
+	public void doEvictionTick() {
+		final int tick = ++currentTick;
+		if (tick % EVICTION_CHECK_INTERVAL != 0) return;
 		
-		saveQueue.poll(); // Remove save entry
-		final WorldPrimerChunk chunk = saveEntry.second;
+		final int maxChunks = AeroGenConfig.primerCacheMaxChunks;
+		final long maxBytes = AeroGenConfig.primerCacheMaxMegabytes * 1024L * 1024L;
+		final int idleSince = tick - AeroGenConfig.primerEvictIdleTicks;
 		
-		if (chunk.needsSave()) {
-			if (now - chunk.timestamp < MIN_SAVE_AGE) {
-				saveQueue.offer(new Tuple2<>(chunk.timestamp, chunk));
-				return;
-			}
-			save(chunk);
+		int residentChunks = 0;
+		long residentBytes = 0;
+		final List<WorldPrimerChunk> candidates = new ArrayList<>();
+		for (WorldPrimerChunk chunk : chunks) {
+			residentChunks++;
+			residentBytes += chunk.estimateMemoryUsage();
+			if (chunk.lastAccessTick - idleSince <= 0 && !scheduler.isQueued(chunk)) candidates.add(chunk);
+		}
+		
+		if (residentChunks <= maxChunks && residentBytes <= maxBytes) return;
+		
+		final int targetChunks = maxChunks / 10 * 9;
+		final long targetBytes = maxBytes / 10 * 9;
+		
+		candidates.sort(Comparator.comparingInt(chunk -> chunk.lastAccessTick));
+		for (WorldPrimerChunk chunk : candidates) {
+			if (residentChunks <= targetChunks && residentBytes <= targetBytes) break;
+			
+			final long bytes = chunk.estimateMemoryUsage();
+			if (chunk.needsSave()) save(chunk);
+			if (!chunk.tryEvict()) continue;
+			
+			residentChunks--;
+			residentBytes -= bytes;
+			chunksEvicted.incrementAndGet();
+		}
+	}
+	
+	public long estimateMemoryUsage() {
+		long bytes = 0;
+		for (WorldPrimerChunk chunk : chunks) {
+			bytes += chunk.estimateMemoryUsage();
 		}
-		chunk.inSaveQueue = false;
+		return bytes;
+	}
+	
+	public void appendStatistics(List<String> output) {
+		output.add(String.format(Locale.ROOT, "Resident primer chunks: %d (~%.1f MB), evicted: %d, loaded from disk: %d", 
+				chunks.size(), estimateMemoryUsage() / (1024.0 * 1024.0), chunksEvicted.get(), chunksLoaded.get()));
+		scheduler.appendStatistics(output);
+		pregenerator.appendStatistics(output);
+		chunkStore.appendStatistics(output);
+		generator.getIslandProvider().appendStatistics(output);
+		generator.getBiomeQueries().appendStatistics(output);
 	}
 	
 	public void save(WorldPrimerChunk chunk) {
 		chunkStore.saveChunk(chunk);
-		chunk.markDirty(false);
 	}
 	
+	/**
+	 * Saves every dirty chunk, completed chunks first. Only the save queue is visited, since every dirty
+	 * chunk is in it; saved chunks are left in the queue and dropped by {@link #doSaveTick()}.
+	 */
 	public void saveAll() {
-		for (WorldPrimerChunk chunk : chunks) {
+		for (WorldPrimerChunk chunk : saveQueue) {
 			if (chunk.needsSave() && chunk.isCompleted()) save(chunk);
 		}
-		for (WorldPrimerChunk chunk : chunks) {
+		for (WorldPrimerChunk chunk : saveQueue) {
 			if (chunk.needsSave() && !chunk.isCompleted()) save(chunk);
 		}
 	}
@@ -107,30 +253,51 @@ public class WorldPrimer extends World {
 	}
 
 	public void close() {
+		scheduler.shutdown();
 		chunkStore.close();
 	}
 	
+	/**
+	 * Opens a write session over the given range of blocks for the calling thread. Until the session is closed,
+	 * block access by this thread within the range bypasses per-block chunk lookups and locking. Sessions may
+	 * be nested; closing a session restores the one that was open before it. See {@link PrimerWriteSession}.
+	 */
+	public PrimerWriteSession openWriteSession(Int3DRange range) {
+		final PrimerWriteSession session = new PrimerWriteSession(this, range, writeSession.get());
+		writeSession.set(session);
+		return session;
+	}
+	
+	void endWriteSession(PrimerWriteSession session, PrimerWriteSession previous) {
+		if (writeSession.get() != session) throw new IllegalStateException("Write sessions must be closed in the reverse order they were opened");
+		if (previous == null) writeSession.remove();
+		else writeSession.set(previous);
+	}
+	
+	/**
+	 * Returns the calling thread's write session if it covers the given block, otherwise null.
+	 */
+	private PrimerWriteSession getWriteSession(int x, int y, int z) {
+		final PrimerWriteSession session = writeSession.get();
+		if (session == null || !session.contains(x, y, z)) return null;
+		return session;
+	}
+	
 	public WorldPrimerChunk peakPrimerChunk(int chunkX, int chunkZ) {
-		synchronized (chunks) {
-			return getPrimerChunkInternal(chunkX, chunkZ, false, false);
-		}
+		return getPrimerChunkInternal(chunkX, chunkZ, false, false);
 	}
 	
 	public WorldPrimerChunk getPrimerChunk(int chunkX, int chunkZ) {
-		synchronized (chunks) {
-			return getPrimerChunkInternal(chunkX, chunkZ, true, true);
-		}
+		return getPrimerChunkInternal(chunkX, chunkZ, true, true);
 	}
 	
 	public WorldPrimerChunk getOrCreatePrimerChunk(int chunkX, int chunkZ) {
-		synchronized (chunks) {
-			WorldPrimerChunk chunk = getPrimerChunkInternal(chunkX, chunkZ, true, true);
-			if (chunk == null) {
-				chunk = new WorldPrimerChunk(this, chunkX, chunkZ);
-				chunks.set(chunkX, chunkZ, chunk);
-			}
-			return chunk;
+		WorldPrimerChunk chunk = getPrimerChunkInternal(chunkX, chunkZ, true, true);
+		if (chunk == null) {
+			chunk = chunks.putIfAbsent(new WorldPrimerChunk(this, chunkX, chunkZ));
+			chunk.touch(currentTick);
 		}
+		return chunk;
 	}
 	
 	public WorldPrimerChunk getOrCreatePrimerChunkForBlockPos(BlockPos pos) {
@@ -143,6 +310,10 @@ public class WorldPrimer extends World {
 		return generator;
 	}
 
+	public WorldPrimerScheduler getScheduler() {
+		return scheduler;
+	}
+
 	public World getMinecraftWorld() {
 		return generator.getWorld();
 	}
@@ -151,36 +322,6 @@ public class WorldPrimer extends World {
 		return chunks.iterator();
 	}
 	
-	public void getBiomeInts(Int2DRange.Integers returnIntsRange) {		
-		int minChunkX = (returnIntsRange.minX >> 4);
-		int minChunkZ = (returnIntsRange.minY >> 4);
-		int maxChunkX = (returnIntsRange.maxX >> 4);
-		int maxChunkZ = (returnIntsRange.maxY >> 4);
-		
-		int[] data = returnIntsRange.data;
-		
-		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
-			int chunkMinX = (chunkX << 4);
-			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
-				int chunkMinZ = (chunkZ << 4);
-				WorldPrimerChunk chunk = getOrCreatePrimerChunk(chunkX, chunkZ);
-				
-				Int2DRange chunkRange = new Int2DRange(chunkMinX, chunkMinZ, chunkMinX+15, chunkMinZ+15);
-				Int2DRange overlap = chunkRange.intersect(returnIntsRange);
-				
-				byte[] chunkBiomes = chunk.getBiomes();
-				for (Int2D.Mutable tile : overlap.getAllMutable()) {
-					data[returnIntsRange.indexFor(tile)] = chunkBiomes[tile.x() & 15 | ((tile.y() & 15) << 4)];
-				}
-			}
-		}
-	}
-	
-	
-	
-	
-	
-	
 	@Override
 	protected IChunkProvider createChunkProvider() {
 		return null;
@@ -188,9 +329,7 @@ public class WorldPrimer extends World {
 
 	@Override
 	protected boolean isChunkLoaded(int chunkX, int chunkZ, boolean allowEmpty) {
-		synchronized (chunks) {
-			return getPrimerChunkInternal(chunkX, chunkZ, false, true) != null;
-		}
+		return getPrimerChunkInternal(chunkX, chunkZ, false, true) != null;
 	}
 	
 	@Override
@@ -200,6 +339,9 @@ public class WorldPrimer extends World {
 	
 	@Override
 	public IBlockState getBlockState(BlockPos pos) {
+		final PrimerWriteSession session = getWriteSession(pos.getX(), pos.getY(), pos.getZ());
+		if (session != null) return session.getBlockState(pos.getX(), pos.getY(), pos.getZ());
+		
 		WorldPrimerChunk chunk = getPrimerChunk(pos.getX() >> 4, pos.getZ() >> 4);
 		if (chunk == null) {
 			throw new IndexOutOfBoundsException("Trying to getBlockState in a WorldPrimerChunk that has not yet been created");
@@ -210,6 +352,12 @@ public class WorldPrimer extends World {
 	
 	@Override
 	public boolean setBlockState(BlockPos pos, IBlockState newState, int flags) {
+		final PrimerWriteSession session = getWriteSession(pos.getX(), pos.getY(), pos.getZ());
+		if (session != null) {
+			session.setBlockState(pos.getX(), pos.getY(), pos.getZ(), newState);
+			return true;
+		}
+		
 		WorldPrimerChunk chunk = getPrimerChunk(pos.getX() >> 4, pos.getZ() >> 4);
 		if (chunk == null) {
 			throw new IndexOutOfBoundsException("Trying to setBlockState in a WorldPrimerChunk that has not yet been created");
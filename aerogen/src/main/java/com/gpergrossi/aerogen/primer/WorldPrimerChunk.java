@@ -1,18 +1,22 @@
 package com.gpergrossi.aerogen.primer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.gpergrossi.aerogen.AeroGenMod;
 import com.gpergrossi.aerogen.AeroGenerator;
+import com.gpergrossi.aerogen.generator.regions.Region;
 import com.gpergrossi.util.data.Tuple2;
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.ranges.Int3DRange;
 
-import net.minecraft.block.material.Material;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.init.Blocks;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.chunk.Chunk;
-import net.minecraft.world.chunk.ChunkPrimer;
 
 public class WorldPrimerChunk {
 	
@@ -25,32 +29,44 @@ public class WorldPrimerChunk {
 	private int loadedStatus = NOT_LOADED;
 	
 	/** This chunk has been has been saved more recently than it has been modified. */
-	private boolean isDirty = false;
+	private volatile boolean isDirty = false;
 	
 	/** 
 	 * This chunk is currently in the save queue. 
 	 * It may still be there even if it has already been saved (isDirty == false). 
 	 */
-	boolean inSaveQueue = false;
+	volatile boolean inSaveQueue = false;
 	
-	/** Last time this chunk was modified */
+	/** Time at which this chunk last became dirty */
 	long timestamp;
 	
+	/** Value of timestamp when this chunk was put in the save queue */
+	long queuedTimestamp;
+	
+	/** World primer tick during which this chunk was last accessed, used for LRU eviction */
+	volatile int lastAccessTick;
+	
 	/** The biomes for this chunk have been generated */
-	private boolean hasBiomes;
+	private volatile boolean hasBiomes;
 	
 	/** The terrain blocks for this chunk have been generated */
-	private boolean isGenerated; 
+	private volatile boolean isGenerated;
 	
 	/** The region this chunk populates (+8, +8, +23, +23) has been populated */
-	private boolean isPopulated;
+	private volatile boolean isPopulated;
 	
 	/** 
 	 * This chunk and it's negative neighbors, (-1, -1), (-1, 0), (0, -1), and (0, 0) have 
 	 * been populated and this chunk has been transferred to the Minecraft world 
 	 */
-	private boolean isCompleted;
+	private volatile boolean isCompleted;
 	
+	/** 
+	 * This chunk has been evicted from the world primer. Set under dataLock, so a thread holding the data lock
+	 * and seeing it unset can safely modify this chunk. Writes that arrive through a stale reference after
+	 * eviction are redirected to the chunk that replaced this one.
+	 */
+	private volatile boolean isEvicted;
 
 	
 	private ReentrantLock dataLock;		// Makes sure all modifications to the variables in this class are thread safe
@@ -64,17 +80,77 @@ public class WorldPrimerChunk {
 	
 	private int[] heightmap;
 	
+	/** Bit set of heightmap columns, indexed z << 4 | x, that may be out of date and must be recomputed before being read */
+	private final long[] staleHeights = new long[4];
+	
+	/** 
+	 * Regions this chunk generates from, kept loaded from this chunk's first generation step until it is 
+	 * completed or evicted. Guarded by dataLock.
+	 */
+	private List<Region> pinnedRegions;
+	
 	public WorldPrimerChunk(WorldPrimer world, int chunkX, int chunkZ) {
 		this.world = world;
 		this.chunkX = chunkX;
 		this.chunkZ = chunkZ;
 		
-		this.dataLock = new ReentrantLock(true);
-		this.completeLock = new ReentrantLock(true);
+		this.dataLock = new ReentrantLock();
+		this.completeLock = new ReentrantLock();
 		
 		this.debugPrintChunkLog("constructed");
 	}
 
+	void touch(int tick) {
+		if (lastAccessTick != tick) lastAccessTick = tick;
+	}
+	
+	/**
+	 * Returns a rough estimate of the number of bytes of heap used by this chunk.
+	 */
+	public long estimateMemoryUsage() {
+		long bytes = 128;
+		final byte[] biomes = this.biomes;
+		final ChunkPrimerExt blocks = this.blocks;
+		final int[] heightmap = this.heightmap;
+		if (biomes != null) bytes += 16 + biomes.length;
+		if (blocks != null) bytes += blocks.estimateMemoryUsage();
+		if (heightmap != null) bytes += 16 + heightmap.length * 4;
+		return bytes;
+	}
+	
+	/**
+	 * Removes this chunk from the world primer if it is not dirty and nobody is currently using it.
+	 * Never blocks. The chunk will be loaded again from the save file if it is needed later.
+	 * @return true if the chunk was evicted
+	 */
+	boolean tryEvict() {
+		if (!completeLock.tryLock()) return false;
+		try {
+			if (!dataLock.tryLock()) return false;
+			try {
+				synchronized (this) {
+					if (isDirty) return false;
+					if (!world.chunks.remove(this)) return false;
+					isEvicted = true;
+				}
+				unpinRegions();
+				return true;
+			} finally {
+				dataLock.unlock();
+			}
+		} finally {
+			completeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the chunk that replaced this one in the world primer after it was evicted, loading it if needed.
+	 * The evicted chunk was clean, so the replacement starts out with everything it had.
+	 */
+	private WorldPrimerChunk replacement() {
+		return world.getOrCreatePrimerChunk(chunkX, chunkZ);
+	}
+
 	public static WorldPrimerChunk createProxy(WorldPrimer world, int chunkX, int chunkZ) {
 		WorldPrimerChunk proxy = new WorldPrimerChunk(world, chunkX, chunkZ);
 		proxy.hasBiomes = true;
@@ -102,6 +178,9 @@ public class WorldPrimerChunk {
 			return mcChunk.getBiomeArray();
 		}
 		generateBiomes();
+		
+		// An evicted chunk generates its biomes into the chunk that replaced it
+		if (!hasBiomes) return replacement().getBiomes();
 		return biomes;
 	}
 
@@ -113,7 +192,17 @@ public class WorldPrimerChunk {
 		}
 		
 		if (!this.isGenerated) throw new RuntimeException("Cannot retrieve height data before chunk is generated!");
-		return heightmap[z << 4 | x] + 1;
+		
+		final int index = z << 4 | x;
+		if ((staleHeights[index >> 6] & (1L << index)) != 0) {
+			dataLock.lock();
+			try {
+				updateHeight(index);
+			} finally {
+				dataLock.unlock();
+			}
+		}
+		return heightmap[index] + 1;
 	}	
 
 	public IBlockState getBlockState(int x, int y, int z) {
@@ -127,10 +216,9 @@ public class WorldPrimerChunk {
 		if (x < 0 || x > 15 || z < 0 || z > 15) throw new IndexOutOfBoundsException("Invalid coordinates ("+x+","+y+","+z+")");
 		if (y < 0 || y > world.getHeight()) return Blocks.AIR.getDefaultState();
 
-		if (dataLock.isLocked() && !dataLock.isHeldByCurrentThread()) AeroGenMod.log.info("!!!!!!!!!!!!!!");
 		dataLock.lock();
 		try {
-			return blocks.getBlockState(x, y, z);
+			return getBlockStateUnlocked(x, y, z);
 		} finally {
 			dataLock.unlock();
 		}
@@ -149,39 +237,107 @@ public class WorldPrimerChunk {
 		
 		if (!isGenerated) throw new RuntimeException("Not generated but setBlockState was called");
 
-		if (dataLock.isLocked() && !dataLock.isHeldByCurrentThread()) AeroGenMod.log.info("!!!!!!!!!!!!!!");
 		dataLock.lock();
 		try {
-			blocks.setBlockState(x, y, z, state);
-	
-			int index = z << 4 | x;
-
-			// Update heightmap
-			if (y >= heightmap[index]) {
-				if (state.getMaterial() != Material.AIR) {
-					heightmap[index] = y;
-				} else if (y == heightmap[index]) {
-					heightmap[index] = blocks.findFirstBlockBelow(x, y, z);
-				}
+			if (!isEvicted) {
+				setBlockStateUnlocked(x, y, z, state);
+				markDirty(true);
+				return;
 			}
-
-			markDirty(true);
 		} finally {
 			dataLock.unlock();
 		}
+		replacement().setBlockState(x, y, z, state);
+	}
+
+	/**
+	 * Locks this chunk's data, or that of the chunk that replaced it if it has been evicted, and returns the
+	 * chunk that was locked. Used by {@link PrimerWriteSession} to hold the lock for the whole session.
+	 */
+	WorldPrimerChunk lockData() {
+		WorldPrimerChunk chunk = this;
+		chunk.dataLock.lock();
+		while (chunk.isEvicted) {
+			chunk.dataLock.unlock();
+			chunk = chunk.replacement();
+			chunk.dataLock.lock();
+		}
+		return chunk;
+	}
+	
+	void unlockData() {
+		dataLock.unlock();
+	}
+
+	/**
+	 * Reads a block without locking. The caller must hold the data lock and the chunk must be generated and not completed.
+	 */
+	IBlockState getBlockStateUnlocked(int x, int y, int z) {
+		return blocks.getBlockState(x, y, z);
+	}
+
+	/**
+	 * Writes a block without locking or marking the chunk dirty. The caller must hold the data lock and the
+	 * chunk must be generated and not completed. Writes that may change the top of their column only mark
+	 * the column's heightmap entry as stale; it is recomputed the next time it is read.
+	 */
+	void setBlockStateUnlocked(int x, int y, int z, IBlockState state) {
+		blocks.setBlockState(x, y, z, state);
+
+		final int index = z << 4 | x;
+		if (y >= heightmap[index]) staleHeights[index >> 6] |= (1L << index);
+	}
+
+	/**
+	 * Recomputes the heightmap entry of a stale column from the block sections' column masks.
+	 * The caller must hold the data lock.
+	 */
+	private void updateHeight(int index) {
+		final long bit = 1L << index;
+		if ((staleHeights[index >> 6] & bit) == 0) return;
+		heightmap[index] = blocks.findFirstBlockBelow(index & 15, 255, index >> 4);
+		staleHeights[index >> 6] &= ~bit;
+	}
+
+	/**
+	 * Recomputes all stale heightmap entries. The caller must hold the data lock.
+	 */
+	private void updateHeights() {
+		for (int word = 0; word < 4; word++) {
+			long stale = staleHeights[word];
+			while (stale != 0) {
+				final int index = word << 6 | Long.numberOfTrailingZeros(stale);
+				heightmap[index] = blocks.findFirstBlockBelow(index & 15, 255, index >> 4);
+				stale &= stale - 1;
+			}
+			staleHeights[word] = 0;
+		}
 	}
 
+	/**
+	 * Generates this chunk's biomes array and terrain blocks if they have not already been generated.
+	 * Neither depends on any other chunk, so this can be called from any thread. Thread safe.
+	 */
+	void generateTerrain() {
+		generateBiomes();
+		generateBlocks();
+	}
+	
 	/**
 	 * Generates this chunk's biomes array if it has not already been generated. Thread safe.
 	 */
 	private void generateBiomes() {
 		debugPrintChunkLog("generateBiomes");
 		
-		if (dataLock.isLocked() && !dataLock.isHeldByCurrentThread()) AeroGenMod.log.info("!!!!!!!!!!!!!!");
 		dataLock.lock();
 		try {
 			if (hasBiomes) return;
+			if (isEvicted) {
+				replacement().generateBiomes();
+				return;
+			}
 			
+			pinRegions();
 			this.biomes = new byte[256];
 			world.getGenerator().generateBiomes(biomes, chunkX, chunkZ);
 			
@@ -198,22 +354,22 @@ public class WorldPrimerChunk {
 	private void generateBlocks() {
 		debugPrintChunkLog("generateBlocks");
 		
-		if (dataLock.isLocked() && !dataLock.isHeldByCurrentThread()) AeroGenMod.log.info("!!!!!!!!!!!!!!");
 		dataLock.lock();
 		try {
 			if (isGenerated) return;
+			if (isEvicted) {
+				replacement().generateBlocks();
+				return;
+			}
 			
 			// Generate terrain blocks
+			pinRegions();
 			this.blocks = new ChunkPrimerExt();
 			world.getGenerator().generateTerrain(blocks, chunkX, chunkZ);
 			
-			// Create the initial heightmap for the terrain tiles
+			// The heightmap is computed column by column as it is read
 			heightmap = new int[256];
-			for (int x = 0; x < 16; x++) {
-				for (int z = 0; z < 16; z++) {
-					heightmap[z << 4 | x] = blocks.findFirstBlockBelow(x, 255, z);
-				}	
-			}
+			Arrays.fill(staleHeights, -1L);
 			
 			isGenerated = true;
 			markDirty(true);
@@ -227,13 +383,20 @@ public class WorldPrimerChunk {
 	 * Population of this chunks populate region requires generation of this chunk's terrain blocks and those of
 	 * it positive 3-neighbors (+0, +1), (+1, +0), and (+1, +1).
 	 */
-	private void populate() {
+	void populate() {
 		debugPrintChunkLog("populate");
 		
-		if (dataLock.isLocked() && !dataLock.isHeldByCurrentThread()) AeroGenMod.log.info("!!!!!!!!!!!!!!");
 		dataLock.lock();
 		try {
 			if (isPopulated) return;
+			if (isEvicted) {
+				replacement().populate();
+				return;
+			}
+			pinRegions();
+			
+			// Read whichever of them are saved with one batched read
+			world.prefetchPrimerChunks(chunkX, chunkZ, chunkX+1, chunkZ+1);
 			
 			// Make sure the positive neighbors are generated. This provides a buffer of readable/writeable blocks
 			// around the chunk being populated, allowing features to spill beyond this chunk's bounds.
@@ -245,7 +408,11 @@ public class WorldPrimerChunk {
 			// The populate region is offset by (+8, +8). This means features will be able to
 			// place blocks overhanging their spawn location by up to (+7, +7) and down to (-8, -8)
 			// This is an idea borrowed from Minecraft's populate functionality.
-			world.getGenerator().prePopulate(world, chunkX, chunkZ);
+			// All of the region's writes go through one write session over this chunk and its positive neighbors.
+			final int minX = chunkX << 4, minZ = chunkZ << 4;
+			try (PrimerWriteSession session = world.openWriteSession(new Int3DRange(minX, 0, minZ, minX+31, 255, minZ+31))) {
+				world.getGenerator().prePopulate(world, chunkX, chunkZ);
+			}
 			
 			isPopulated = true;
 			markDirty(true);
@@ -254,24 +421,63 @@ public class WorldPrimerChunk {
 		}
 	}
 
+	/**
+	 * Pins the regions overlapping everything this chunk generates: its own blocks and biomes, and its
+	 * populate region (+8, +8, +23, +23). Must be called with dataLock held.
+	 */
+	private void pinRegions() {
+		if (pinnedRegions != null) return;
+		final int minX = chunkX << 4, minZ = chunkZ << 4;
+		pinnedRegions = new ArrayList<>();
+		world.getGenerator().getIslandProvider().pinRegions(pinnedRegions, new Int2DRange(minX, minZ, minX+23, minZ+23));
+	}
+	
+	/**
+	 * Releases the regions pinned by {@link #pinRegions()}. Must be called with dataLock held.
+	 */
+	private void unpinRegions() {
+		if (pinnedRegions == null) return;
+		world.getGenerator().getIslandProvider().unpinRegions(pinnedRegions);
+		pinnedRegions = null;
+	}
+
+	/**
+	 * Returns true if this chunk still needs to be populated and populating it would not have to generate 
+	 * anything: this chunk and its positive 3-neighbors are resident, generated, and not yet completed.
+	 * Never loads or creates chunks.
+	 */
+	boolean canPopulateWithoutGenerating() {
+		if (isPopulated || isCompleted || !isGenerated) return false;
+		for (int i = 1; i < 4; i++) {
+			WorldPrimerChunk neighbor = peakNeighbor(i & 1, i >> 1);
+			if (neighbor == null || neighbor.isCompleted() || !neighbor.isGenerated()) return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Completes this chunk and provides it to the MinecraftWorld. This method should only ever be called once.
 	 * Since it is called only by the Minecraft thread dealing with world generation, it is not thread safe.<br /><br />
 	 * 
-	 * After the ChunkPrimer and Biome[] array have been returned, all internal data for this chunk is set to null
+	 * After the block data and Biome[] array have been returned, all internal data for this chunk is set to null
 	 * and thus freed to the garbage collector. Because of this, an exception will be thrown if this method is 
 	 * called more than once.
 	 * 
 	 * @return
 	 */
-	public Tuple2<ChunkPrimer, byte[]> getCompleted() {
+	public Tuple2<ChunkPrimerExt, byte[]> getCompleted() {
 		debugPrintChunkLog("getCompleted");
 		
-		if (completeLock.isLocked() && !completeLock.isHeldByCurrentThread()) AeroGenMod.log.info("!!!!!!!!!!!!!!");
 		completeLock.lock();
 		try {
 			if (isCompleted) throw new RuntimeException("This chunk's data has already been completed and dumped!");
+			if (isEvicted) return replacement().getCompleted();
+
+			// Everything below needs the 3x3 neighborhood. Saved neighbors are read with one batched read.
+			world.prefetchPrimerChunks(chunkX-1, chunkZ-1, chunkX+1, chunkZ+1);
 
+			// Generate biomes and terrain for the whole 3x3 neighborhood up front, in parallel when enabled.
+			world.getScheduler().prepareForCompletion(this);
 			this.generateBiomes();
 			
 			// Populate all chunks that would affect blocks in this chunk's range.
@@ -282,11 +488,18 @@ public class WorldPrimerChunk {
 			this.getNeighbor(-1, 0).populate();
 			this.getNeighbor(-1, -1).populate();
 
-			Tuple2<ChunkPrimer, byte[]> result = new Tuple2<>(blocks, biomes);
+			Tuple2<ChunkPrimerExt, byte[]> result = new Tuple2<>(blocks, biomes);
 			
 			this.isCompleted = true;
 			this.biomes = null;
 			this.blocks = null;
+			
+			dataLock.lock();
+			try {
+				unpinRegions();
+			} finally {
+				dataLock.unlock();
+			}
 
 			world.save(this);
 			
@@ -298,7 +511,8 @@ public class WorldPrimerChunk {
 	
 	
 	
-	public void markDirty(boolean dirty) {
+	public synchronized void markDirty(boolean dirty) {
+		if (dirty && isEvicted) throw new IllegalStateException("Chunk [x="+chunkX+", z="+chunkZ+"] was modified after it was evicted");
 		if (!dirty) {
 			this.isDirty = false;
 		} else {
@@ -306,7 +520,8 @@ public class WorldPrimerChunk {
 				isDirty = true;
 				timestamp = System.currentTimeMillis();
 				if (!inSaveQueue) {
-					world.saveQueue.offer(new Tuple2<>(timestamp, this));
+					queuedTimestamp = timestamp;
+					world.saveQueue.offer(this);
 					inSaveQueue = true;
 				}
 			}
@@ -401,28 +616,44 @@ public class WorldPrimerChunk {
 	private static final int NBT_TAG_LIST = 9;
 	private static final int NBT_TAG_COMPOUND = 10;
 	
-	public NBTTagCompound writeToNBT() {		
-		if (this.isCompleted()) {
-			return new NBTTagCompound();
+	public NBTTagCompound writeToNBT() {
+		return createSnapshot().writeToNBT();
+	}
+	
+	/**
+	 * Takes a snapshot of this chunk for saving and marks it as saved. Both happen under the data lock,
+	 * so a modification made by another thread cannot fall between them and be lost.
+	 */
+	WorldPrimerChunkSnapshot snapshotForSave() {
+		dataLock.lock();
+		try {
+			final WorldPrimerChunkSnapshot snapshot = createSnapshot();
+			markDirty(false);
+			return snapshot;
+		} finally {
+			dataLock.unlock();
 		}
-		
-		final NBTTagCompound chunkCompoundTag = new NBTTagCompound();
-		chunkCompoundTag.setInteger("DataVersion", 1);
-		
-		final NBTTagCompound levelCompoundTag = new NBTTagCompound();
-		chunkCompoundTag.setTag("Level", levelCompoundTag);
-		
-		levelCompoundTag.setInteger("xPos", this.chunkX);
-		levelCompoundTag.setInteger("zPos", this.chunkZ);
-		levelCompoundTag.setBoolean("TerrainPopulated", this.isPopulated);
-		if (this.hasBiomes) levelCompoundTag.setByteArray("Biomes", this.biomes);
-		
-		if (this.isGenerated) {
-			levelCompoundTag.setIntArray("HeightMap", this.heightmap);
-			levelCompoundTag.setTag("Sections", this.blocks.getSectionsNBT());
+	}
+	
+	private WorldPrimerChunkSnapshot createSnapshot() {
+		dataLock.lock();
+		try {
+			// Read before isCompleted, because getCompleted() releases them after setting it
+			final byte[] biomes = this.biomes;
+			final ChunkPrimerExt blocks = this.blocks;
+			
+			if (this.isCompleted) {
+				return new WorldPrimerChunkSnapshot(chunkX, chunkZ);
+			}
+			
+			if (this.isGenerated) updateHeights();
+			return new WorldPrimerChunkSnapshot(chunkX, chunkZ, isPopulated, 
+					hasBiomes ? biomes.clone() : null, 
+					isGenerated ? heightmap.clone() : null, 
+					isGenerated ? blocks.copy() : null);
+		} finally {
+			dataLock.unlock();
 		}
-		
-		return chunkCompoundTag;
 	}
 	
 	public static WorldPrimerChunk readFromNBT(WorldPrimer world, NBTTagCompound nbt) {
@@ -435,14 +666,15 @@ public class WorldPrimerChunk {
 		WorldPrimerChunk chunk = new WorldPrimerChunk(world, chunkX, chunkZ);
 				
 		if (levelNBT.hasKey("Biomes", NBT_TAG_BYTE_ARRAY)) {
-			chunk.biomes = levelNBT.getByteArray("Biomes");
+			// Copies, because the compound's arrays may belong to a snapshot that is still waiting to be saved
+			chunk.biomes = levelNBT.getByteArray("Biomes").clone();
 			chunk.hasBiomes = true;
 			chunk.loadedStatus |= LOAD_STATUS_BIOMES;
 		}
 		
 		if (levelNBT.hasKey("Sections", NBT_TAG_LIST)) {
 			chunk.blocks = ChunkPrimerExt.fromNBT(levelNBT.getTagList("Sections", NBT_TAG_COMPOUND));
-			chunk.heightmap = levelNBT.getIntArray("HeightMap");
+			chunk.heightmap = levelNBT.getIntArray("HeightMap").clone();
 			chunk.isGenerated = true;
 			chunk.loadedStatus |= LOAD_STATUS_GENERATED;
 		} else {
@@ -2,52 +2,116 @@ package com.gpergrossi.aerogen.primer;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.google.common.collect.Maps;
+import com.gpergrossi.aerogen.AeroGenConfig;
 import com.gpergrossi.aerogen.AeroGenMod;
 import com.gpergrossi.util.geom.vectors.Int2D;
+import com.gpergrossi.util.io.ndmf.NDMFCompactor;
 import com.gpergrossi.util.io.ndmf.NamedDataMapFile;
+import com.gpergrossi.util.io.ndmf.SegmentCache;
 
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.world.MinecraftException;
-import net.minecraft.world.storage.IThreadedFileIO;
-import net.minecraft.world.storage.ThreadedFileIOBase;
 
-public class WorldPrimerChunkLoader implements IThreadedFileIO {
-		
-    private final Map<Int2D, NBTTagCompound> chunksToSave = Maps.newConcurrentMap();
-    private final Set<Int2D> currentlySaving = Collections.newSetFromMap(Maps.newConcurrentMap());
+/**
+ * <p>Loads and saves primer chunks in the world's AerogenPrimerChunks file.</p>
+ *
+ * <p>Saving is write-behind. {@link #saveChunk} only takes a {@link WorldPrimerChunkSnapshot} of the chunk on the
+ * calling thread. Building the NBT, compressing it and writing it to the file happen on a pool of saver threads.
+ * Each chunk has at most one pending save: saving a chunk again before its previous save has been written replaces
+ * the pending snapshot, so only the newest one is written. Pending snapshots are also used to answer loads, so a
+ * chunk can be evicted and loaded again before it reaches the file.</p>
+ *
+ * <p>If more than {@link AeroGenConfig#saveQueueLimit} saves are pending, the thread requesting another save
+ * writes queued saves itself until the queue is short enough again.</p>
+ *
+ * <p>The file is journaled. Written saves are made durable by group commits to the file's journal, so a crash
+ * loses at most the last commit window of writes without forcing the file on every write.</p>
+ *
+ * <p>Chunks are rewritten at new sizes all the time, so an {@link NDMFCompactor} spends up to
+ * {@link AeroGenConfig#compactionStepMillis} milliseconds a second moving them into free space nearer the front
+ * of the file and truncating what is freed at the end.</p>
+ */
+public class WorldPrimerChunkLoader {
 
 	private final WorldPrimer world;
 	private final NamedDataMapFile<Int2D, NBTTagCompound> saveFile;
-	
+	private final NDMFCompactor<Int2D, NBTTagCompound> compactor;
+
+	private final ConcurrentMap<Int2D, PendingSave> pendingSaves = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor saveExecutor;
+
+	/** Notified whenever a pending save is finished */
+	private final Object saveFinished = new Object();
+
+	private final AtomicLong savesRequested = new AtomicLong();
+	private final AtomicLong savesCoalesced = new AtomicLong();
+	private final AtomicLong savesWritten = new AtomicLong();
+	private final AtomicLong backpressureStalls = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+	private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
 	public WorldPrimerChunkLoader(WorldPrimer world) {
 		this.world = world;
-		
+
 		File worldDir = world.getMinecraftWorld().getSaveHandler().getWorldDirectory();
 		File primerSave = new File(worldDir, "AerogenPrimerChunks");
-		
+
 		this.saveFile = new NamedDataMapFile<>(Int2DStreamHandler.INSTANCE, NBTStreamHandler.INSTANCE, 4096);
+		this.saveFile.synchronousWrites = false; // Synced by flush() instead
+		this.saveFile.journaled = true;
+		
+		// Loaded chunks are kept by the WorldPrimer, so cached NBT only helps chunks that are loaded again soon after being evicted
+		this.saveFile.cachePolicy = SegmentCache.Policy.TINY_LFU;
+		this.saveFile.cacheCapacity = 1L << 20;
+		this.saveFile.compression = PrimerCompression.POLICY;
+		this.saveFile.hashIndex = true;
 		try {
 			this.saveFile.open(primerSave);
 			System.out.println("AerogenPrimerChunks contains "+this.saveFile.debugGetStoredNames().size()+" saved chunks");
 		} catch (IOException e) {
 			AeroGenMod.log.error("Could not open AerogenPrimerChunks file for world \""+world.getMinecraftWorld().getWorldInfo().getWorldName()+"\"");
 		}
+
+		this.compactor = new NDMFCompactor<>(saveFile);
+		if (AeroGenConfig.compactionStepMillis > 0 && saveFile.isOpen()) {
+			compactor.start(primerSave.getName(), AeroGenConfig.compactionStepMillis, 1000);
+		}
+
+		final int threads = AeroGenConfig.saveThreads;
+		this.saveExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new SaverThreadFactory());
+		this.saveExecutor.allowCoreThreadTimeOut(true);
 	}
-	
+
 	public boolean hasChunk(int chunkX, int chunkZ) {
 		if (!saveFile.isOpen()) throw new RuntimeException("Could not request chunk because AerogenPrimerChunks file is not open!");
-		return saveFile.has(new Int2D(chunkX, chunkZ));
+		final Int2D chunkPos = new Int2D(chunkX, chunkZ);
+
+		// Evicted chunks may not have been written to the file yet
+		final PendingSave pending = pendingSaves.get(chunkPos);
+		if (pending != null) return !pending.snapshot.isCompleted;
+
+		return saveFile.has(chunkPos);
 	}
-	
+
 	public WorldPrimerChunk loadChunk(int chunkX, int chunkZ) {
 		try {
 			world.getMinecraftWorld().checkSessionLock();
-			
+
 			Int2D chunkPos = new Int2D(chunkX, chunkZ);
 			NBTTagCompound chunkCompoundTag = readChunkData(chunkPos);
 			return WorldPrimerChunk.readFromNBT(world, chunkCompoundTag);
@@ -57,75 +121,236 @@ public class WorldPrimerChunkLoader implements IThreadedFileIO {
 		return null;
 	}
 
-	public void saveChunk(WorldPrimerChunk chunk) {
+	/**
+	 * Loads several chunks with one batched read of the file. Chunks that were never saved, or were completed,
+	 * are left out of the result.
+	 */
+	public Map<Int2D, WorldPrimerChunk> loadChunks(List<Int2D> chunkPositions) {
+		final Map<Int2D, WorldPrimerChunk> chunks = new HashMap<>();
 		try {
 			world.getMinecraftWorld().checkSessionLock();
+		} catch (MinecraftException exception) {
+			AeroGenMod.log.error("Failed to load primer chunks", exception);
+			return chunks;
+		}
+		if (!saveFile.isOpen()) throw new RuntimeException("Could not load chunks because AerogenPrimerChunks file is not open!");
 
-			Int2D pos = new Int2D(chunk.chunkX, chunk.chunkZ);
-			
-			NBTTagCompound chunkCompoundTag = chunk.writeToNBT();
-			this.addChunkToPending(pos, chunkCompoundTag);
-			
-		} catch (Exception exception) {
-			AeroGenMod.log.error("Failed to save primer chunk", exception);
+		// Evicted chunks may not have been written to the file yet
+		final Map<Int2D, NBTTagCompound> nbt = new HashMap<>();
+		final List<Int2D> saved = new ArrayList<>(chunkPositions.size());
+		for (Int2D chunkPos : chunkPositions) {
+			final PendingSave pending = pendingSaves.get(chunkPos);
+			if (pending == null) {
+				saved.add(chunkPos);
+				continue;
+			}
+			final WorldPrimerChunkSnapshot snapshot = pending.snapshot;
+			if (!snapshot.isCompleted) nbt.put(chunkPos, snapshot.writeToNBT());
 		}
+		nbt.putAll(saveFile.getAll(saved));
+
+		for (Map.Entry<Int2D, NBTTagCompound> entry : nbt.entrySet()) {
+			chunks.put(entry.getKey(), WorldPrimerChunk.readFromNBT(world, entry.getValue()));
+		}
+		return chunks;
 	}
-	
-	private void addChunkToPending(Int2D chunkPos, NBTTagCompound chunkCompoundTag) {
-		if (!this.currentlySaving.contains(chunkPos)) {
-			this.chunksToSave.put(chunkPos, chunkCompoundTag);
+
+	/**
+	 * Queues the chunk to be saved and marks it as saved. Returns once a snapshot of the chunk has been taken,
+	 * unless the save queue is over its limit, in which case some queued saves are written first.
+	 */
+	public void saveChunk(WorldPrimerChunk chunk) {
+		try {
+			world.getMinecraftWorld().checkSessionLock();
+		} catch (MinecraftException exception) {
+			AeroGenMod.log.error("Failed to save primer chunk", exception);
+			return;
+		}
+
+		final WorldPrimerChunkSnapshot snapshot = chunk.snapshotForSave();
+		final Int2D chunkPos = new Int2D(chunk.chunkX, chunk.chunkZ);
+		savesRequested.incrementAndGet();
+
+		final PendingSave[] created = new PendingSave[1];
+		pendingSaves.compute(chunkPos, (pos, pending) -> {
+			if (pending == null) {
+				created[0] = new PendingSave(pos, snapshot);
+				return created[0];
+			}
+			pending.snapshot = snapshot;
+			savesCoalesced.incrementAndGet();
+			return pending;
+		});
+		if (created[0] != null) saveExecutor.execute(created[0]);
+
+		final int depth = pendingSaves.size();
+		peakQueueDepth.accumulateAndGet(depth, Math::max);
+		if (depth > AeroGenConfig.saveQueueLimit) {
+			backpressureStalls.incrementAndGet();
+			writeQueuedSaves(AeroGenConfig.saveQueueLimit);
 		}
-		ThreadedFileIOBase.getThreadedIOInstance().queueIO(this);
 	}
 
-	@Override
 	/**
-	 * Save one chunk in the saving queue.
-	 * Return true if there are more chunks to save.
+	 * Writes queued saves on the calling thread, or waits for the saver threads to write
+	 * them, until no more than maxPending saves are pending.
 	 */
-	public boolean writeNextIO() {
-        if (this.chunksToSave.isEmpty()) return false;
-        
-        final Int2D chunkPos = this.chunksToSave.keySet().iterator().next();
+	private void writeQueuedSaves(int maxPending) {
+		while (pendingSaves.size() > maxPending) {
+			final Runnable task = saveExecutor.getQueue().poll();
+			if (task != null) {
+				task.run();
+				continue;
+			}
 
+			synchronized (saveFinished) {
+				if (pendingSaves.size() <= maxPending) break;
+				try {
+					saveFinished.wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the newest snapshot of a pending save. If the chunk was saved again while writing,
+	 * the pending save is resubmitted so that the newer snapshot is written too.
+	 */
+	private void write(PendingSave pending) {
+		final WorldPrimerChunkSnapshot snapshot = pending.snapshot;
 		try {
-			this.currentlySaving.add(chunkPos);
-			final NBTTagCompound nbtTagCompound = this.chunksToSave.remove(chunkPos);
-			this.writeChunkData(chunkPos, nbtTagCompound);
-		} finally {
-			this.currentlySaving.remove(chunkPos);
+			if (snapshot.isCompleted) {
+				writeChunkData(pending.chunkPos, null);
+			} else {
+				writeChunkData(pending.chunkPos, saveFile.encode(snapshot.writeToNBT()));
+			}
+			savesWritten.incrementAndGet();
+		} catch (Exception exception) {
+			AeroGenMod.log.error("Failed to save primer chunk", exception);
+		}
+
+		// Atomic with respect to saveChunk replacing the snapshot, so there is never more than one write in flight per chunk
+		final boolean[] finished = new boolean[1];
+		pendingSaves.compute(pending.chunkPos, (pos, current) -> {
+			if (current != pending || pending.snapshot != snapshot) return current;
+			finished[0] = true;
+			return null;
+		});
+		if (!finished[0]) {
+			saveExecutor.execute(pending);
+			return;
+		}
+
+		final long latency = System.nanoTime() - pending.queuedNanos;
+		totalLatencyNanos.addAndGet(latency);
+		maxLatencyNanos.accumulateAndGet(latency, Math::max);
+		synchronized (saveFinished) {
+			saveFinished.notifyAll();
 		}
+	}
 
-        return true;
+	/**
+	 * Writes all pending saves and forces them to disk. The calling thread helps write them.
+	 */
+	public void flush() {
+		writeQueuedSaves(0);
+		try {
+			if (saveFile.isOpen()) saveFile.sync();
+		} catch (IOException e) {
+			AeroGenMod.log.error("Failed to sync AerogenPrimerChunks file", e);
+		}
 	}
 
-    public void flush() {
-        while (this.writeNextIO());
-    }
-	
-	private void writeChunkData(Int2D chunkPos, NBTTagCompound nbtTagCompound) {
+	private void writeChunkData(Int2D chunkPos, byte[] encoded) {
 		if (!saveFile.isOpen()) throw new RuntimeException("Could not save chunk because AerogenPrimerChunks file is not open!");
-		if (nbtTagCompound.hasNoTags()) {
+		if (encoded == null) {
 			saveFile.set(chunkPos, null);
-			world.chunks.set(chunkPos.x(), chunkPos.y(), null);
+			final WorldPrimerChunk resident = world.chunks.get(chunkPos.x(), chunkPos.y());
+			if (resident != null && resident.isCompleted()) world.chunks.remove(resident);
 		} else {
-			saveFile.set(chunkPos, nbtTagCompound);
+			saveFile.setEncoded(chunkPos, encoded);
 		}
 	}
-	
+
 	private NBTTagCompound readChunkData(Int2D chunkPos) {
 		if (!saveFile.isOpen()) throw new RuntimeException("Could not load chunk because AerogenPrimerChunks file is not open!");
+
+		final PendingSave pending = pendingSaves.get(chunkPos);
+		if (pending != null) {
+			final WorldPrimerChunkSnapshot snapshot = pending.snapshot;
+			return snapshot.isCompleted ? null : snapshot.writeToNBT();
+		}
+
 		final NBTTagCompound nbt = saveFile.get(chunkPos);
 		return nbt;
 	}
 
+	public void appendStatistics(List<String> output) {
+		final long written = savesWritten.get();
+		output.add(String.format(Locale.ROOT, "Primer saves queued: %d (peak %d), requested: %d, coalesced: %d, written: %d, backpressure stalls: %d",
+				pendingSaves.size(), peakQueueDepth.get(), savesRequested.get(), savesCoalesced.get(), written, backpressureStalls.get()));
+		if (written > 0) {
+			output.add(String.format(Locale.ROOT, "  save latency: %.1f ms average, %.1f ms max",
+					totalLatencyNanos.get() / 1000000.0 / written, maxLatencyNanos.get() / 1000000.0));
+		}
+		saveFile.appendJournalStatistics(output);
+		saveFile.appendCacheStatistics(output);
+		compactor.appendStatistics(output);
+	}
+
 	public void close() {
+		compactor.stop();
 		this.flush();
+		saveExecutor.shutdown();
+		try {
+			if (!saveExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+				AeroGenMod.log.warn("Primer chunk savers did not stop in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		try {
 			saveFile.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-	
+
+	private class PendingSave implements Runnable {
+		final Int2D chunkPos;
+		final long queuedNanos;
+
+		/** Newest snapshot of the chunk, replaced when the chunk is saved again before being written */
+		volatile WorldPrimerChunkSnapshot snapshot;
+
+		PendingSave(Int2D chunkPos, WorldPrimerChunkSnapshot snapshot) {
+			this.chunkPos = chunkPos;
+			this.snapshot = snapshot;
+			this.queuedNanos = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			write(this);
+		}
+	}
+
+	private static class SaverThreadFactory implements ThreadFactory {
+		private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		private final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "AeroGen Primer Saver-"+threadNumber.getAndIncrement());
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			thread.setDaemon(true);
+			thread.setContextClassLoader(contextClassLoader);
+			return thread;
+		}
+	}
+
 }
@@ -0,0 +1,187 @@
+package com.gpergrossi.aerogen.primer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * <p>A concurrent index of the primer chunks that are resident in memory.</p>
+ *
+ * <p>Lookups of chunks that are already resident never block. When a chunk is missing and
+ * has to be read from disk, the load is performed outside of any shared lock. The first
+ * thread to ask for a missing chunk registers a future for that chunk position and performs
+ * the load, every other thread asking for the same position waits on that future and shares
+ * the result. Loads of different chunks proceed independently.</p>
+ */
+public class WorldPrimerChunkMap implements Iterable<WorldPrimerChunk> {
+
+	@FunctionalInterface
+	public static interface Loader {
+		/**
+		 * Loads the chunk at the given position, or returns null if there is nothing to load.
+		 */
+		public WorldPrimerChunk load(int chunkX, int chunkZ);
+	}
+
+	@FunctionalInterface
+	public static interface BatchLoader {
+		/**
+		 * Loads the chunks at the given positions. Positions with nothing to load are left out of the result.
+		 */
+		public Map<Int2D, WorldPrimerChunk> load(List<Int2D> positions);
+	}
+
+	private final ConcurrentHashMap<Long, WorldPrimerChunk> chunks;
+	private final ConcurrentHashMap<Long, CompletableFuture<WorldPrimerChunk>> pendingLoads;
+
+	public WorldPrimerChunkMap() {
+		this.chunks = new ConcurrentHashMap<>();
+		this.pendingLoads = new ConcurrentHashMap<>();
+	}
+
+	private static Long key(int chunkX, int chunkZ) {
+		return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the resident chunk at the given position, or null. Never blocks.
+	 */
+	public WorldPrimerChunk get(int chunkX, int chunkZ) {
+		return chunks.get(key(chunkX, chunkZ));
+	}
+
+	/**
+	 * Returns the resident chunk at the given position. If there is none, the loader is used to
+	 * load it. If another thread is already loading the same chunk, this method waits for that
+	 * load to finish and returns its result instead of loading the chunk a second time.
+	 * @return the chunk, or null if it is not resident and the loader returned null
+	 */
+	public WorldPrimerChunk getOrLoad(int chunkX, int chunkZ, Loader loader) {
+		final Long key = key(chunkX, chunkZ);
+
+		WorldPrimerChunk chunk = chunks.get(key);
+		if (chunk != null) return chunk;
+
+		final CompletableFuture<WorldPrimerChunk> ownLoad = new CompletableFuture<>();
+		final CompletableFuture<WorldPrimerChunk> sharedLoad = pendingLoads.putIfAbsent(key, ownLoad);
+
+		// Somebody else is already loading this chunk
+		if (sharedLoad != null) {
+			try {
+				return sharedLoad.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw e;
+			}
+		}
+
+		// This thread owns the load
+		try {
+			// The chunk may have been published between the first check and registering the load
+			chunk = chunks.get(key);
+			if (chunk == null) {
+				chunk = loader.load(chunkX, chunkZ);
+				if (chunk != null) {
+					final WorldPrimerChunk existing = chunks.putIfAbsent(key, chunk);
+					if (existing != null) chunk = existing;
+				}
+			}
+			ownLoad.complete(chunk);
+			return chunk;
+		} catch (RuntimeException e) {
+			ownLoad.completeExceptionally(e);
+			throw e;
+		} finally {
+			pendingLoads.remove(key, ownLoad);
+		}
+	}
+
+	/**
+	 * Loads every chunk at the given positions that is neither resident nor being loaded by another thread, with
+	 * a single call to the loader. Loads of the same chunks by other threads wait for this one, as in
+	 * {@link #getOrLoad}. Does not wait for chunks that other threads are already loading.
+	 */
+	public void loadAll(Collection<Int2D> positions, BatchLoader loader) {
+		final List<Int2D> owned = new ArrayList<>(positions.size());
+		final List<CompletableFuture<WorldPrimerChunk>> ownLoads = new ArrayList<>(positions.size());
+		for (Int2D pos : positions) {
+			final Long key = key(pos.x(), pos.y());
+			if (chunks.containsKey(key)) continue;
+
+			final CompletableFuture<WorldPrimerChunk> ownLoad = new CompletableFuture<>();
+			if (pendingLoads.putIfAbsent(key, ownLoad) != null) continue;
+
+			// The chunk may have been published between the first check and registering the load
+			if (chunks.containsKey(key)) {
+				ownLoad.complete(chunks.get(key));
+				pendingLoads.remove(key, ownLoad);
+				continue;
+			}
+			owned.add(pos);
+			ownLoads.add(ownLoad);
+		}
+		if (owned.isEmpty()) return;
+
+		try {
+			final Map<Int2D, WorldPrimerChunk> loaded = loader.load(owned);
+			for (int i = 0; i < owned.size(); i++) {
+				WorldPrimerChunk chunk = loaded.get(owned.get(i));
+				if (chunk != null) chunk = putIfAbsent(chunk);
+				ownLoads.get(i).complete(chunk);
+			}
+		} catch (RuntimeException e) {
+			for (CompletableFuture<WorldPrimerChunk> ownLoad : ownLoads) ownLoad.completeExceptionally(e);
+			throw e;
+		} finally {
+			for (int i = 0; i < owned.size(); i++) {
+				pendingLoads.remove(key(owned.get(i).x(), owned.get(i).y()), ownLoads.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Adds the given chunk to the map if there is no chunk at its position yet.
+	 * @return the chunk that is resident at the position after this call
+	 */
+	public WorldPrimerChunk putIfAbsent(WorldPrimerChunk chunk) {
+		final WorldPrimerChunk existing = chunks.putIfAbsent(key(chunk.chunkX, chunk.chunkZ), chunk);
+		return (existing != null) ? existing : chunk;
+	}
+
+	/**
+	 * Removes the given chunk from the map. Nothing is removed if a different
+	 * chunk object has taken its place in the meantime.
+	 * @return true if the chunk was removed
+	 */
+	public boolean remove(WorldPrimerChunk chunk) {
+		return chunks.remove(key(chunk.chunkX, chunk.chunkZ), chunk);
+	}
+
+	/**
+	 * Removes whatever chunk is resident at the given position.
+	 */
+	public WorldPrimerChunk remove(int chunkX, int chunkZ) {
+		return chunks.remove(key(chunkX, chunkZ));
+	}
+
+	public int size() {
+		return chunks.size();
+	}
+
+	/**
+	 * The returned iterator is weakly consistent. It never throws a ConcurrentModificationException
+	 * and may or may not reflect chunks that are added or removed while iterating.
+	 */
+	@Override
+	public Iterator<WorldPrimerChunk> iterator() {
+		return chunks.values().iterator();
+	}
+
+}
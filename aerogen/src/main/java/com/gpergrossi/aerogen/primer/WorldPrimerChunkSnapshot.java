@@ -0,0 +1,78 @@
+package com.gpergrossi.aerogen.primer;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * <p>A copy of everything about a {@link WorldPrimerChunk} that is saved. Taking a snapshot only copies
+ * arrays, which is much cheaper than building the chunk's NBT. Snapshots are never modified after they are
+ * created, so the NBT can then be built on any thread, any number of times.</p>
+ *
+ * <p>A snapshot of a completed chunk has no data. Saving it removes the chunk from the save file.</p>
+ */
+class WorldPrimerChunkSnapshot {
+
+	final int chunkX, chunkZ;
+	final boolean isCompleted;
+	final boolean isPopulated;
+
+	/** null if the chunk had no biomes */
+	private final byte[] biomes;
+
+	/** Both null if the chunk had not been generated */
+	private final int[] heightmap;
+	private final ChunkPrimerExt blocks;
+
+	/**
+	 * Creates a snapshot of a completed chunk
+	 */
+	WorldPrimerChunkSnapshot(int chunkX, int chunkZ) {
+		this.chunkX = chunkX;
+		this.chunkZ = chunkZ;
+		this.isCompleted = true;
+		this.isPopulated = true;
+		this.biomes = null;
+		this.heightmap = null;
+		this.blocks = null;
+	}
+
+	/**
+	 * Creates a snapshot of an incomplete chunk. The arrays and primer must be copies that are not used by anything else.
+	 */
+	WorldPrimerChunkSnapshot(int chunkX, int chunkZ, boolean isPopulated, byte[] biomes, int[] heightmap, ChunkPrimerExt blocks) {
+		this.chunkX = chunkX;
+		this.chunkZ = chunkZ;
+		this.isCompleted = false;
+		this.isPopulated = isPopulated;
+		this.biomes = biomes;
+		this.heightmap = heightmap;
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Returns the NBT for this snapshot, or an empty compound if it is a snapshot of a completed chunk.
+	 */
+	NBTTagCompound writeToNBT() {
+		if (isCompleted) {
+			return new NBTTagCompound();
+		}
+
+		final NBTTagCompound chunkCompoundTag = new NBTTagCompound();
+		chunkCompoundTag.setInteger("DataVersion", 1);
+
+		final NBTTagCompound levelCompoundTag = new NBTTagCompound();
+		chunkCompoundTag.setTag("Level", levelCompoundTag);
+
+		levelCompoundTag.setInteger("xPos", chunkX);
+		levelCompoundTag.setInteger("zPos", chunkZ);
+		levelCompoundTag.setBoolean("TerrainPopulated", isPopulated);
+		if (biomes != null) levelCompoundTag.setByteArray("Biomes", biomes);
+
+		if (blocks != null) {
+			levelCompoundTag.setIntArray("HeightMap", heightmap);
+			levelCompoundTag.setTag("Sections", blocks.getSectionsNBT());
+		}
+
+		return chunkCompoundTag;
+	}
+
+}
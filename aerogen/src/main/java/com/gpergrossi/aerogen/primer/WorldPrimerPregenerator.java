@@ -0,0 +1,166 @@
+package com.gpergrossi.aerogen.primer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.gpergrossi.aerogen.AeroGenConfig;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.World;
+
+/**
+ * <p>Prepares primer chunks ahead of players so that the world generation thread finds them ready.</p>
+ *
+ * <p>Every few ticks the position of each player is compared to where it was at the previous scan. Chunks in a cone
+ * along the resulting heading (or along the player's look direction, if the player is not moving) are queued for
+ * terrain generation on the background pool of the {@link WorldPrimerScheduler}, nearest chunks first. Chunks whose
+ * terrain is ready are then pre-populated on the server thread within a small per-tick time budget.</p>
+ *
+ * <p>All methods must be called from the server thread.</p>
+ */
+public class WorldPrimerPregenerator {
+
+	/** Squared chunks per tick under which a player is considered to be standing still */
+	private static final double MIN_SPEED_SQUARED = 0.01 * 0.01;
+
+	private final WorldPrimer world;
+	private final Map<EntityPlayer, Vec3d> lastPositions;
+	private final Deque<WorldPrimerChunk> populateQueue;
+	private int ticksUntilScan;
+
+	private long scans;
+	private long chunksQueued;
+	private long chunksPrePopulated;
+
+	public WorldPrimerPregenerator(WorldPrimer world) {
+		this.world = world;
+		this.lastPositions = new WeakHashMap<>();
+		this.populateQueue = new ArrayDeque<>();
+	}
+
+	public void tick(List<EntityPlayer> players) {
+		if (!AeroGenConfig.pregenEnabled) return;
+		if (!world.getScheduler().hasBackgroundPool()) return;
+
+		if (--ticksUntilScan <= 0) {
+			ticksUntilScan = AeroGenConfig.pregenScanInterval;
+			scan(players, AeroGenConfig.pregenScanInterval);
+		}
+
+		prePopulate(AeroGenConfig.pregenPopulateMillis * 1000000L);
+	}
+
+	private void scan(List<EntityPlayer> players, int ticksSinceLastScan) {
+		scans++;
+		populateQueue.clear();
+
+		final List<long[]> candidates = new ArrayList<>();
+		for (EntityPlayer player : players) {
+			if (player.isSpectator()) continue;
+
+			final Vec3d position = new Vec3d(player.posX, player.posY, player.posZ);
+			final Vec3d lastPosition = lastPositions.put(player, position);
+
+			double headingX, headingZ;
+			if (lastPosition != null) {
+				headingX = (position.x - lastPosition.x) / 16.0 / ticksSinceLastScan;
+				headingZ = (position.z - lastPosition.z) / 16.0 / ticksSinceLastScan;
+			} else {
+				headingX = headingZ = 0;
+			}
+			if (headingX*headingX + headingZ*headingZ < MIN_SPEED_SQUARED) {
+				final Vec3d look = player.getLookVec();
+				headingX = look.x;
+				headingZ = look.z;
+			}
+
+			addCone(candidates, player.posX / 16.0, player.posZ / 16.0, headingX, headingZ);
+		}
+
+		// Nearest chunks first, over all players
+		candidates.sort((a, b) -> Long.compare(a[0], b[0]));
+
+		final WorldPrimerScheduler scheduler = world.getScheduler();
+		final World minecraftWorld = world.getMinecraftWorld();
+		final int queueDepth = AeroGenConfig.pregenQueueDepth;
+
+		for (long[] candidate : candidates) {
+			if (scheduler.getQueuedCount() >= queueDepth) break;
+
+			final int chunkX = (int) candidate[1];
+			final int chunkZ = (int) candidate[2];
+			if (minecraftWorld.isChunkGeneratedAt(chunkX, chunkZ)) continue;
+
+			final WorldPrimerChunk chunk = world.getOrCreatePrimerChunk(chunkX, chunkZ);
+			if (chunk.isCompleted()) continue;
+
+			if (scheduler.submitTerrain(chunk)) chunksQueued++;
+			if (!chunk.isPopulated() && populateQueue.size() < queueDepth) populateQueue.add(chunk);
+		}
+	}
+
+	/**
+	 * Adds every chunk whose center lies within the configured cone to the candidate list.
+	 * Candidates are {squared distance in hundredths of chunks, chunkX, chunkZ}.
+	 */
+	private static void addCone(List<long[]> candidates, double originX, double originZ, double headingX, double headingZ) {
+		final double headingLength = Math.sqrt(headingX*headingX + headingZ*headingZ);
+		if (headingLength == 0) return;
+		headingX /= headingLength;
+		headingZ /= headingLength;
+
+		final int radius = AeroGenConfig.pregenLookAhead;
+		final double minCos = Math.cos(Math.toRadians(AeroGenConfig.pregenConeHalfAngle));
+		final int originChunkX = (int) Math.floor(originX);
+		final int originChunkZ = (int) Math.floor(originZ);
+
+		for (int chunkX = originChunkX-radius; chunkX <= originChunkX+radius; chunkX++) {
+			for (int chunkZ = originChunkZ-radius; chunkZ <= originChunkZ+radius; chunkZ++) {
+				final double dx = chunkX + 0.5 - originX;
+				final double dz = chunkZ + 0.5 - originZ;
+				final double distSquared = dx*dx + dz*dz;
+				if (distSquared > radius*radius) continue;
+
+				final double dist = Math.sqrt(distSquared);
+				if (dist > 1.0 && (dx*headingX + dz*headingZ) < minCos * dist) continue;
+
+				candidates.add(new long[] { (long) (distSquared * 100), chunkX, chunkZ });
+			}
+		}
+	}
+
+	/**
+	 * Populates queued chunks whose terrain, and that of their positive neighbors, is already generated.
+	 * Stops once the time budget is used up. Chunks that are not ready yet stay queued until the next scan.
+	 */
+	private void prePopulate(long budgetNanos) {
+		if (budgetNanos <= 0) return;
+
+		final long start = System.nanoTime();
+		for (int remaining = populateQueue.size(); remaining > 0; remaining--) {
+			if (System.nanoTime() - start >= budgetNanos) break;
+
+			final WorldPrimerChunk chunk = populateQueue.poll();
+			if (chunk.isPopulated() || chunk.isCompleted()) continue;
+			if (world.peakPrimerChunk(chunk.chunkX, chunk.chunkZ) != chunk) continue; // Evicted since the scan
+
+			if (!chunk.canPopulateWithoutGenerating()) {
+				populateQueue.add(chunk);
+				continue;
+			}
+
+			chunk.populate();
+			chunksPrePopulated++;
+		}
+	}
+
+	public void appendStatistics(List<String> output) {
+		output.add("Pre-generation scans: "+scans+", chunks queued: "+chunksQueued+", chunks pre-populated: "+chunksPrePopulated);
+	}
+
+}
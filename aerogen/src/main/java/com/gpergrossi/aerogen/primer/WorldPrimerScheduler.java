@@ -0,0 +1,243 @@
+package com.gpergrossi.aerogen.primer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gpergrossi.aerogen.AeroGenConfig;
+import com.gpergrossi.aerogen.AeroGenMod;
+
+/**
+ * <p>Schedules the independent stages of the primer chunk pipeline on a work-stealing pool.</p>
+ *
+ * <p>Completing a primer chunk (see {@link WorldPrimerChunk#getCompleted()}) depends on the following graph:<br />
+ * - complete(0,0) requires populate on (0,0), (0,-1), (-1,0) and (-1,-1)<br />
+ * - populate(x,z) requires generateBlocks on (x,z), (x,z+1), (x+1,z) and (x+1,z+1)<br />
+ * - generateBiomes and generateBlocks have no dependencies on other chunks</p>
+ *
+ * <p>The leaves of this graph, biomes and terrain blocks for the 3x3 neighborhood of the chunk, are pure
+ * functions of the world seed and the chunk coordinates. They are generated in parallel. Populate writes into
+ * neighboring chunks and its results depend on the order in which overlapping chunks are populated, so it is
+ * left on the calling thread and performed in the original order. This keeps generated worlds identical to
+ * those produced by the single threaded pipeline.</p>
+ *
+ * <p>Neighbor chunks are always resolved on the calling thread, because doing so may query the Minecraft world.
+ * Worker threads only ever touch primer chunks that have already been resolved.</p>
+ *
+ * <p>Work that nobody is waiting for (speculative and pre-generation work) runs on a separate pool of low
+ * priority threads, so that it can never delay the completion of a chunk Minecraft is waiting for.</p>
+ */
+public class WorldPrimerScheduler {
+
+	private final WorldPrimer world;
+	private final ForkJoinPool pool;
+	private final ForkJoinPool backgroundPool;
+
+	/** Chunks with background work already queued, so they are not queued twice */
+	private final Set<WorldPrimerChunk> queued;
+
+	private final AtomicLong completions = new AtomicLong();
+	private final AtomicLong preparedCompletions = new AtomicLong();
+	private final AtomicLong partiallyPreparedCompletions = new AtomicLong();
+	private final AtomicLong populatedCompletions = new AtomicLong();
+	private final AtomicLong backgroundGenerated = new AtomicLong();
+
+	public WorldPrimerScheduler(WorldPrimer world) {
+		this.world = world;
+		this.queued = ConcurrentHashMap.newKeySet();
+
+		if (AeroGenConfig.parallelGeneration) {
+			final int threads = AeroGenConfig.getGeneratorThreadCount();
+			this.pool = new ForkJoinPool(threads, new WorkerThreadFactory("Worker", Thread.NORM_PRIORITY), null, false);
+			AeroGenMod.log.info("Parallel primer generation enabled with "+threads+" worker threads");
+		} else {
+			this.pool = null;
+		}
+
+		if (AeroGenConfig.backgroundThreads > 0) {
+			final int threads = AeroGenConfig.backgroundThreads;
+			this.backgroundPool = new ForkJoinPool(threads, new WorkerThreadFactory("Background", Thread.MIN_PRIORITY), null, true);
+		} else {
+			this.backgroundPool = null;
+		}
+	}
+
+	public boolean isParallel() {
+		return pool != null;
+	}
+
+	/**
+	 * Makes sure biomes and terrain blocks exist for the given chunk and its eight neighbors, which is everything
+	 * the populate stage of {@link WorldPrimerChunk#getCompleted()} depends on. Blocks until all of them are done.
+	 * Must be called from the thread that owns the chunk's completion.
+	 */
+	public void prepareForCompletion(WorldPrimerChunk chunk) {
+		final List<WorldPrimerChunk> neighborhood = new ArrayList<>(9);
+		for (int offsetX = -1; offsetX <= 1; offsetX++) {
+			for (int offsetZ = -1; offsetZ <= 1; offsetZ++) {
+				WorldPrimerChunk neighbor = (offsetX == 0 && offsetZ == 0) ? chunk : chunk.getNeighbor(offsetX, offsetZ);
+				if (needsTerrain(neighbor)) neighborhood.add(neighbor);
+			}
+		}
+		
+		completions.incrementAndGet();
+		if (chunk.isPopulated()) populatedCompletions.incrementAndGet();
+		if (neighborhood.isEmpty()) {
+			preparedCompletions.incrementAndGet();
+			return;
+		}
+		if (neighborhood.size() < 9) partiallyPreparedCompletions.incrementAndGet();
+
+		if (pool == null || neighborhood.size() == 1) {
+			for (WorldPrimerChunk neighbor : neighborhood) neighbor.generateTerrain();
+			return;
+		}
+
+		pool.invoke(new PrepareTerrain(neighborhood));
+	}
+
+	/**
+	 * Queues biome and terrain generation for all chunks within the given radius of a chunk, without waiting
+	 * for any of it to finish. Must be called from the world generation thread.
+	 */
+	public void prepareSpeculatively(int chunkX, int chunkZ, int radius) {
+		if (backgroundPool == null || radius <= 0) return;
+
+		for (int x = chunkX-radius; x <= chunkX+radius; x++) {
+			for (int z = chunkZ-radius; z <= chunkZ+radius; z++) {
+				submitTerrain(world.getOrCreatePrimerChunk(x, z));
+			}
+		}
+	}
+
+	/**
+	 * Queues biome and terrain generation for the given chunk on the background pool.
+	 * @return true if work was queued, false if the chunk needs no work, is already queued, 
+	 * or there is no background pool
+	 */
+	public boolean submitTerrain(final WorldPrimerChunk chunk) {
+		if (backgroundPool == null) return false;
+		if (!needsTerrain(chunk)) return false;
+		if (!queued.add(chunk)) return false;
+
+		backgroundPool.execute(() -> {
+			try {
+				if (needsTerrain(chunk)) {
+					chunk.generateTerrain();
+					backgroundGenerated.incrementAndGet();
+				}
+			} catch (RuntimeException e) {
+				AeroGenMod.log.error("Background generation of chunk "+chunk.chunkX+", "+chunk.chunkZ+" failed", e);
+			} finally {
+				queued.remove(chunk);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Returns the number of chunks currently queued or running on the background pool.
+	 */
+	public int getQueuedCount() {
+		return queued.size();
+	}
+
+	public boolean isQueued(WorldPrimerChunk chunk) {
+		return queued.contains(chunk);
+	}
+
+	public boolean hasBackgroundPool() {
+		return backgroundPool != null;
+	}
+
+	public void appendStatistics(List<String> output) {
+		final long total = completions.get();
+		final long prepared = preparedCompletions.get();
+		final long partial = partiallyPreparedCompletions.get();
+		output.add("Completed chunks: "+total);
+		if (total > 0) {
+			output.add(String.format(Locale.ROOT, "  fully prepared: %d (%.1f%%), partially prepared: %d (%.1f%%), cold: %d", 
+					prepared, 100.0 * prepared / total, partial, 100.0 * partial / total, total - prepared - partial));
+			output.add(String.format(Locale.ROOT, "  already populated: %d (%.1f%%)", 
+					populatedCompletions.get(), 100.0 * populatedCompletions.get() / total));
+		}
+		output.add("Background generated chunks: "+backgroundGenerated.get()+", queued: "+getQueuedCount());
+	}
+
+	public void shutdown() {
+		shutdown(pool);
+		shutdown(backgroundPool);
+		queued.clear();
+	}
+
+	private static void shutdown(ForkJoinPool pool) {
+		if (pool == null) return;
+		pool.shutdownNow();
+		try {
+			if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+				AeroGenMod.log.warn("Primer generation workers did not stop in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static boolean needsTerrain(WorldPrimerChunk chunk) {
+		return !chunk.isCompleted() && !(chunk.hasBiomes() && chunk.isGenerated());
+	}
+
+
+
+	private static class PrepareTerrain extends RecursiveAction {
+		private static final long serialVersionUID = -2393412541546178474L;
+
+		private final List<WorldPrimerChunk> chunks;
+
+		public PrepareTerrain(List<WorldPrimerChunk> chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		protected void compute() {
+			final List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks.size());
+			for (WorldPrimerChunk chunk : chunks) {
+				tasks.add(ForkJoinTask.adapt(chunk::generateTerrain));
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	private static class WorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		private final String name;
+		private final int priority;
+		private final ClassLoader contextClassLoader;
+
+		public WorkerThreadFactory(String name, int priority) {
+			this.name = name;
+			this.priority = priority;
+			this.contextClassLoader = Thread.currentThread().getContextClassLoader();
+		}
+
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {};
+			thread.setName("AeroGen Primer "+name+"-"+threadNumber.getAndIncrement());
+			thread.setPriority(priority);
+			thread.setDaemon(true);
+			thread.setContextClassLoader(contextClassLoader);
+			return thread;
+		}
+	}
+
+}
@@ -5,14 +5,24 @@ import org.junit.rules.ExpectedException;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Rule;
 
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.ranges.Int2DSpans;
 import com.gpergrossi.util.geom.shapes.Circle;
 import com.gpergrossi.util.geom.shapes.Concave;
 import com.gpergrossi.util.geom.shapes.Convex;
 import com.gpergrossi.util.geom.shapes.LineSeg;
 import com.gpergrossi.util.geom.shapes.Polygon;
+import com.gpergrossi.util.geom.shapes.Rect;
 import com.gpergrossi.util.geom.vectors.Double2D;
+import com.gpergrossi.voronoi.Site;
+import com.gpergrossi.voronoi.Voronoi;
+import com.gpergrossi.voronoi.VoronoiBuilder;
 
 public class GeometryTest {
 
@@ -140,4 +150,43 @@ public class GeometryTest {
 		assertEquals(3, poly.getNumSides());
 	}
 	
+	@Test
+	public void spansTest() {
+		System.out.println("Spans test");
+		Random random = new Random(5);
+		VoronoiBuilder builder = new VoronoiBuilder();
+		Rect bounds = new Rect(-300.5, -200.25, 600, 500);
+		builder.setBounds(bounds);
+		for (int i = 0; i < 60; i++) builder.addSiteSafe(bounds.getRandomPoint(random), 1);
+		Voronoi voronoi = builder.build();
+		
+		// Rasterized polygons contain exactly the tiles that Convex.contains does
+		List<Int2DSpans> parts = new ArrayList<>();
+		for (Site site : voronoi.getSites()) {
+			Convex polygon = site.getPolygon();
+			Int2DSpans spans = Int2DSpans.fromConvex(polygon);
+			parts.add(spans);
+			Int2DRange range = Int2DRange.fromRect(polygon.getBounds()).grow(2);
+			for (int y = range.minY; y <= range.maxY; y++) {
+				for (int x = range.minX; x <= range.maxX; x++) {
+					assertEquals(polygon.contains(x, y), spans.contains(x, y));
+				}
+			}
+		}
+		
+		Int2DSpans union = Int2DSpans.union(parts);
+		Int2DRange chunk = new Int2DRange(-40, -40, -25, -25);
+		byte[] filled = new byte[256];
+		union.fill(filled, chunk, (byte) 1);
+		for (int y = chunk.minY; y <= chunk.maxY; y++) {
+			for (int x = chunk.minX; x <= chunk.maxX; x++) {
+				boolean inAny = false;
+				for (Int2DSpans part : parts) inAny |= part.contains(x, y);
+				assertEquals(inAny, union.contains(x, y));
+				assertEquals(inAny ? 1 : 0, filled[chunk.indexFor(x, y)]);
+			}
+		}
+		assertTrue(union.intersects(chunk));
+	}
+	
 }
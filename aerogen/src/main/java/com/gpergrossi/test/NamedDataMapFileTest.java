@@ -18,9 +18,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -35,7 +38,16 @@ import org.junit.Test;
 import com.gpergrossi.util.io.IStreamHandler;
 import com.gpergrossi.util.io.IStreamHandlerFixedSize;
 import com.gpergrossi.util.io.MD5Hash;
+import com.gpergrossi.util.io.ndmf.CompressionMethod;
+import com.gpergrossi.util.io.ndmf.CompressionPolicy;
+import com.gpergrossi.util.io.ndmf.DictionaryDeflateCompression;
+import com.gpergrossi.util.io.ndmf.FreeExtentMap;
+import com.gpergrossi.util.io.ndmf.NDMFCompactor;
+import com.gpergrossi.util.io.ndmf.NDMFJournal;
+import com.gpergrossi.util.io.ndmf.NDMFStorage;
+import com.gpergrossi.util.io.ndmf.NDMFVerifier;
 import com.gpergrossi.util.io.ndmf.NamedDataMapFile;
+import com.gpergrossi.util.io.ndmf.SegmentCache;
 
 public class NamedDataMapFileTest {
 	
@@ -184,6 +196,708 @@ public class NamedDataMapFileTest {
 		ndmf.close();
 	}
 	
+	@Test
+	public void testEncodedWriteCloseRead() throws IOException {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		ndmf.synchronousWrites = false;
+		File file = new File("NDMFEncodedTest");
+		if (file.exists()) file.delete();
+
+		Random random = new Random(SEED);
+		BufferedImage[] images = new BufferedImage[8];
+		byte[][] encoded = new byte[images.length][];
+
+		ndmf.open(file);
+		for (int i = 0; i < images.length; i++) {
+			images[i] = new BufferedImage(8 + i, 8, BufferedImage.TYPE_INT_ARGB);
+			for (int x = 0; x < images[i].getWidth(); x++) {
+				images[i].setRGB(x, random.nextInt(8), random.nextInt());
+			}
+			encoded[i] = ndmf.encode(images[i]);
+			ndmf.setEncoded(":"+i, encoded[i]);
+		}
+
+		// Overwrite with data of a different size
+		images[0] = images[images.length-1];
+		encoded[0] = encoded[images.length-1];
+		ndmf.setEncoded(":0", encoded[0]);
+
+		ndmf.sync();
+		ndmf.close();
+
+		ndmf.open(file);
+		for (int i = 0; i < images.length; i++) {
+			assertTrue(Arrays.equals(encoded[i], ndmf.encode(ndmf.get(":"+i))));
+		}
+		ndmf.close();
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testMappedOverwriteClearCloseRead() throws IOException {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		ndmf.storageBackend = NDMFStorage.Backend.MEMORY_MAPPED;
+		ndmf.debugVerifyOnLoad = true;
+		File file = new File("NDMFMappedTest");
+		if (file.exists()) file.delete();
+
+		Random random = new Random(SEED);
+		Map<String, BufferedImage> expected = new HashMap<>();
+
+		ndmf.open(file);
+		for (int i = 0; i < 200; i++) {
+			final String name = ":"+random.nextInt(24);
+			if (random.nextInt(4) == 0) {
+				ndmf.set(name, null);
+				expected.remove(name);
+			} else {
+				final BufferedImage image = createImage(random.nextInt(24)+4, random.nextInt(24)+4, random.nextLong());
+				ndmf.set(name, image);
+				expected.put(name, image);
+			}
+		}
+		ndmf.close();
+
+		// Verified on load, then read back through the RandomAccessFile backend as well
+		for (NDMFStorage.Backend backend : NDMFStorage.Backend.values()) {
+			ndmf.storageBackend = backend;
+			ndmf.open(file);
+			assertEquals(expected.keySet(), ndmf.debugGetStoredNames().keySet());
+			for (Entry<String, BufferedImage> entry : expected.entrySet()) {
+				assertTrue(imageEqual(entry.getValue(), ndmf.get(entry.getKey())));
+			}
+			ndmf.close();
+		}
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testJournalReplay() throws IOException {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		ndmf.debugVerifyOnLoad = true;
+		File file = new File("NDMFJournalTest");
+		File journalFile = new File("NDMFJournalTest.journal");
+		if (file.exists()) file.delete();
+		if (journalFile.exists()) journalFile.delete();
+
+		Random random = new Random(SEED);
+		BufferedImage[] images = new BufferedImage[6];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = createImage(random.nextInt(24)+4, random.nextInt(24)+4, random.nextLong());
+		}
+
+		// Journaled writes are applied by the time the file is closed
+		ndmf.journaled = true;
+		ndmf.open(file);
+		ndmf.set(":0", images[0]);
+		ndmf.set(":1", images[1]);
+		ndmf.set(":2", images[2]);
+		ndmf.sync();
+		ndmf.set(":2", null);
+		ndmf.close();
+		assertTrue(!journalFile.exists());
+
+		ndmf.journaled = false;
+		ndmf.open(file);
+		assertTrue(imageEqual(images[0], ndmf.get(":0")));
+		assertTrue(imageEqual(images[1], ndmf.get(":1")));
+		assertEquals(null, ndmf.get(":2"));
+		byte[] encoded3 = ndmf.encode(images[3]);
+		byte[] encoded4 = ndmf.encode(images[4]);
+		ndmf.close();
+
+		// Simulate a crash: one committed group that was never applied, and a second group torn while being written
+		NDMFJournal<String> journal = new NDMFJournal<>(journalFile);
+		journal.append(new NDMFJournal.Record<>(":3", nameBytes(":3"), encoded3));
+		journal.append(new NDMFJournal.Record<>(":0", nameBytes(":0"), null));
+		journal.commitNext(0);
+		long committedLength = journal.length();
+		journal.append(new NDMFJournal.Record<>(":4", nameBytes(":4"), encoded4));
+		journal.commitNext(0);
+		journal.close();
+		try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+			raf.setLength(committedLength + 5);
+		}
+
+		ndmf.open(file);
+		assertTrue(!journalFile.exists());
+		assertEquals(null, ndmf.get(":0"));
+		assertTrue(imageEqual(images[1], ndmf.get(":1")));
+		assertTrue(imageEqual(images[3], ndmf.get(":3")));
+		assertEquals(null, ndmf.get(":4"));
+		ndmf.close();
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testJournaledPutReturnsPredecessor() throws Exception {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		ndmf.journaled = true;
+		ndmf.synchronousWrites = false;
+		File file = new File("NDMFJournalPutTest");
+		if (file.exists()) file.delete();
+
+		Random random = new Random(SEED);
+		final BufferedImage[][] images = new BufferedImage[4][50];
+		for (BufferedImage[] thread : images) {
+			for (int i = 0; i < thread.length; i++) {
+				thread[i] = createImage(random.nextInt(12)+4, random.nextInt(12)+4, random.nextLong());
+			}
+		}
+
+		// Several threads replace one name, while the committer applies their earlier puts to the file
+		ndmf.open(file);
+		final List<BufferedImage> replaced = Collections.synchronizedList(new ArrayList<>());
+		final Thread[] threads = new Thread[images.length];
+		for (int t = 0; t < threads.length; t++) {
+			final BufferedImage[] puts = images[t];
+			threads[t] = new Thread(() -> {
+				for (BufferedImage image : puts) replaced.add(ndmf.put(":0", image));
+			});
+		}
+		for (Thread thread : threads) thread.start();
+		for (Thread thread : threads) thread.join();
+
+		// Every put but the last replaced exactly one earlier put, and only the first replaced nothing
+		final List<BufferedImage> written = new ArrayList<>();
+		for (BufferedImage[] thread : images) written.addAll(Arrays.asList(thread));
+		final BufferedImage last = ndmf.get(":0");
+		int nulls = 0;
+		final boolean[] seen = new boolean[written.size()];
+		for (BufferedImage old : replaced) {
+			if (old == null) {
+				nulls++;
+				continue;
+			}
+			assertTrue(!imageEqual(last, old));
+			int match = -1;
+			for (int i = 0; i < written.size(); i++) {
+				if (!seen[i] && imageEqual(written.get(i), old)) match = i;
+			}
+			assertTrue(match >= 0);
+			seen[match] = true;
+		}
+		assertEquals(1, nulls);
+		ndmf.close();
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testFreeSpaceSidecar() throws IOException {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		File file = new File("NDMFFreeSpaceTest");
+		File sidecar = new File("NDMFFreeSpaceTest.free");
+		if (file.exists()) file.delete();
+		if (sidecar.exists()) sidecar.delete();
+
+		Random random = new Random(SEED);
+		Map<String, BufferedImage> expected = new HashMap<>();
+
+		// Pass 0 creates the file, pass 1 opens it with the saved free space map, pass 2 scans it again
+		for (int pass = 0; pass < 3; pass++) {
+			if (pass == 2) sidecar.delete();
+			ndmf.open(file);
+			assertTrue(!sidecar.exists());
+			assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+
+			for (int i = 0; i < 150; i++) {
+				final String name = ":"+random.nextInt(32);
+				if (random.nextInt(3) == 0) {
+					ndmf.set(name, null);
+					expected.remove(name);
+				} else {
+					final BufferedImage image = createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+					ndmf.set(name, image);
+					expected.put(name, image);
+				}
+			}
+			assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+			for (Entry<String, BufferedImage> entry : expected.entrySet()) {
+				assertTrue(imageEqual(entry.getValue(), ndmf.get(entry.getKey())));
+			}
+			ndmf.close();
+			assertTrue(sidecar.exists());
+		}
+		sidecar.delete();
+		file.delete();
+	}
+
+	@Test
+	public void testHashIndex() throws IOException {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		ndmf.hashIndex = true;
+		ndmf.indexCacheBuckets = 4;
+		ndmf.debugVerifyOnLoad = true;
+		File file = new File("NDMFHashIndexTest");
+		if (file.exists()) file.delete();
+
+		Random random = new Random(SEED);
+		Map<String, BufferedImage> expected = new HashMap<>();
+
+		// Small buckets, so the directory doubles several times
+		for (int pass = 0; pass < 2; pass++) {
+			ndmf.open(file);
+			for (int i = 0; i < 400; i++) {
+				final String name = ":"+random.nextInt(300);
+				if (random.nextInt(4) == 0) {
+					ndmf.set(name, null);
+					expected.remove(name);
+				} else {
+					final BufferedImage image = createImage(random.nextInt(8)+2, random.nextInt(8)+2, random.nextLong());
+					ndmf.set(name, image);
+					expected.put(name, image);
+				}
+			}
+			assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+			ndmf.close();
+
+			ndmf.open(file);
+			assertEquals(expected.size(), ndmf.debugGetStoredNames().size());
+			assertEquals(expected.keySet(), ndmf.debugGetStoredNames().keySet());
+			for (Entry<String, BufferedImage> entry : expected.entrySet()) {
+				assertTrue(imageEqual(entry.getValue(), ndmf.get(entry.getKey())));
+			}
+			assertEquals(null, ndmf.get(":300"));
+			ndmf.close();
+		}
+
+		// Files keep the index they were created with
+		ndmf.hashIndex = false;
+		ndmf.open(file);
+		assertTrue(imageEqual(expected.values().iterator().next(), ndmf.get(expected.keySet().iterator().next())));
+		ndmf.close();
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		for (boolean hashIndex : new boolean[] { false, true }) {
+			NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+			ndmf.hashIndex = hashIndex;
+			File file = new File("NDMFCompactionTest");
+			if (file.exists()) file.delete();
+
+			Random random = new Random(SEED);
+			Map<String, BufferedImage> expected = new HashMap<>();
+
+			ndmf.open(file);
+			for (int i = 0; i < 300; i++) {
+				final String name = ":"+random.nextInt(64);
+				if (random.nextInt(3) == 0) {
+					ndmf.set(name, null);
+					expected.remove(name);
+				} else {
+					final BufferedImage image = createImage(random.nextInt(24)+4, random.nextInt(24)+4, random.nextLong());
+					ndmf.set(name, image);
+					expected.put(name, image);
+				}
+			}
+
+			// Compacted in small steps by a background thread while the file is being read and written
+			NDMFCompactor<String, BufferedImage> compactor = new NDMFCompactor<>(ndmf);
+			final double fragmentation = compactor.getFragmentation();
+			compactor.minFragmentation = 0;
+			compactor.start(file.getName(), 1, 1);
+			for (int i = 0; i < 200; i++) {
+				final String name = ":"+random.nextInt(64);
+				if (random.nextInt(4) == 0) {
+					ndmf.set(name, null);
+					expected.remove(name);
+				} else {
+					final BufferedImage image = createImage(random.nextInt(24)+4, random.nextInt(24)+4, random.nextLong());
+					ndmf.set(name, image);
+					expected.put(name, image);
+				}
+				final String read = ":"+random.nextInt(64);
+				if (expected.containsKey(read)) assertTrue(imageEqual(expected.get(read), ndmf.get(read)));
+				else assertEquals(null, ndmf.get(read));
+			}
+			compactor.stop();
+			assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+
+			compactor.compact();
+			System.out.println("Fragmentation "+fragmentation+" -> "+compactor.getFragmentation()+", reclaimed "+compactor.getBytesReclaimed()+" bytes");
+			assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+			assertTrue(compactor.getFragmentation() < fragmentation);
+			assertTrue(compactor.getBytesReclaimed() > 0);
+			ndmf.close();
+
+			ndmf.open(file);
+			assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+			assertEquals(expected.keySet(), ndmf.debugGetStoredNames().keySet());
+			for (Entry<String, BufferedImage> entry : expected.entrySet()) {
+				assertTrue(imageEqual(entry.getValue(), ndmf.get(entry.getKey())));
+			}
+			ndmf.close();
+			file.delete();
+			new File(file.getPath()+".free").delete();
+		}
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		for (NDMFStorage.Backend backend : NDMFStorage.Backend.values()) {
+			for (boolean hashIndex : new boolean[] { false, true }) {
+				NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+				ndmf.storageBackend = backend;
+				ndmf.synchronousWrites = false;
+				ndmf.cacheCapacity = 256; // Almost every read goes to the file
+				ndmf.hashIndex = hashIndex;
+				ndmf.indexCacheBuckets = 1; // And most hash index lookups read a bucket
+				File file = new File("NDMFConcurrentTest");
+				if (file.exists()) file.delete();
+
+				// Every version of every name, so a reader can tell that what it read was written at some point
+				final int names = 32;
+				Random random = new Random(SEED);
+				BufferedImage[][] versions = new BufferedImage[names][8];
+				for (int i = 0; i < names; i++) {
+					for (int v = 0; v < versions[i].length; v++) {
+						versions[i][v] = createImage(random.nextInt(24)+4, random.nextInt(24)+4, random.nextLong());
+					}
+				}
+
+				ndmf.open(file);
+				for (int i = 0; i < names; i++) {
+					ndmf.set(":"+i, versions[i][0]);
+				}
+
+				final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+				final Thread writer = new Thread(() -> {
+					Random writes = new Random(SEED + 1);
+					for (int i = 0; i < 400; i++) {
+						final int name = writes.nextInt(names);
+						ndmf.set(":"+name, versions[name][writes.nextInt(versions[name].length)]);
+
+						// New names, so the index grows and hash index buckets split while they are read
+						if (i % 4 == 0) ndmf.set(":"+(names+i), versions[0][0]);
+					}
+				});
+				final Thread[] readers = new Thread[4];
+				for (int r = 0; r < readers.length; r++) {
+					final long readerSeed = random.nextLong();
+					readers[r] = new Thread(() -> {
+						try {
+							Random reads = new Random(readerSeed);
+							while (writer.isAlive()) {
+								final int name = reads.nextInt(names);
+								final BufferedImage read = ndmf.get(":"+name);
+								boolean found = false;
+								for (BufferedImage version : versions[name]) {
+									if (imageEqual(version, read)) found = true;
+								}
+								if (!found) throw new AssertionError("Read an image never written to :"+name);
+							}
+						} catch (Throwable t) {
+							failures.add(t);
+						}
+					});
+				}
+				writer.start();
+				for (Thread reader : readers) reader.start();
+				writer.join();
+				for (Thread reader : readers) reader.join();
+				assertTrue(failures.toString(), failures.isEmpty());
+
+				assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+				ndmf.close();
+				file.delete();
+				new File(file.getPath()+".free").delete();
+			}
+		}
+	}
+
+	@Test
+	public void testSegmentCache() {
+		for (SegmentCache.Policy policy : SegmentCache.Policy.values()) {
+			SegmentCache<Integer, String> cache = policy.create(10000);
+			Random random = new Random(SEED);
+			Map<Integer, String> values = new HashMap<>();
+
+			for (int i = 0; i < 20000; i++) {
+				// Skewed keys, so that some are hot
+				final int key = (int) Math.abs(random.nextGaussian() * 50);
+				final int op = random.nextInt(10);
+				if (op == 0) {
+					cache.remove(key);
+					values.remove(key);
+				} else if (op < 4) {
+					final String value = key+"#"+i;
+					cache.put(key, value, random.nextInt(400)+1);
+					values.put(key, value);
+				} else {
+					final String cached = cache.get(key);
+					if (cached != null) assertEquals(values.get(key), cached);
+				}
+				assertTrue(cache.getWeight() <= cache.getCapacity());
+			}
+
+			// Values heavier than the whole cache are never kept
+			cache.put(-1, "huge", 20000);
+			assertEquals(null, cache.peek(-1));
+			assertTrue(cache.getWeight() <= cache.getCapacity());
+		}
+	}
+
+	@Test
+	public void testFreeExtentFirstFit() {
+		FreeExtentMap map = new FreeExtentMap();
+		Random random = new Random(SEED);
+		boolean[] free = new boolean[2000];
+
+		for (int i = 0; i < 20000; i++) {
+			final int length = random.nextInt(12)+1;
+			if (random.nextInt(3) == 0) {
+				// Free a run of used blocks
+				final int start = random.nextInt(free.length - length);
+				boolean used = true;
+				for (int b = start; b < start+length; b++) used &= !free[b];
+				if (!used) continue;
+				map.free(start, length);
+				for (int b = start; b < start+length; b++) free[b] = true;
+			} else {
+				// The lowest run of free blocks long enough, ending before the limit
+				final int before = random.nextInt(free.length)+1;
+				final int expected = lowestFit(free, length, before);
+				assertEquals(expected, map.allocateFirstFit(length, before));
+				if (expected >= 0) {
+					for (int b = expected; b < expected+length; b++) free[b] = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The start of the lowest maximal run of free blocks that holds the given length entirely before the limit.
+	 */
+	private static int lowestFit(boolean[] free, int length, int before) {
+		int b = 0;
+		while (b < free.length) {
+			if (!free[b]) {
+				b++;
+				continue;
+			}
+			final int start = b;
+			while (b < free.length && free[b]) b++;
+			if (b - start < length) continue;
+			return (start + length <= before) ? start : -1;
+		}
+		return -1;
+	}
+
+	@Test
+	public void testBoundedCacheReads() throws IOException {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		File file = new File("NDMFCacheTest");
+		if (file.exists()) file.delete();
+
+		Random random = new Random(SEED);
+		BufferedImage[] images = new BufferedImage[40];
+		ndmf.open(file);
+		for (int i = 0; i < images.length; i++) {
+			images[i] = createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+			ndmf.set(":"+i, images[i]);
+		}
+		ndmf.close();
+
+		for (SegmentCache.Policy policy : SegmentCache.Policy.values()) {
+			ndmf.cachePolicy = policy;
+			ndmf.cacheCapacity = 4096;
+			ndmf.open(file);
+			final int reads = 400;
+			for (int i = 0; i < reads; i++) {
+				final int index = random.nextInt(images.length);
+				assertTrue(imageEqual(images[index], ndmf.get(":"+index)));
+
+				// Writes replace cached values
+				if (random.nextInt(8) == 0) {
+					images[index] = createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+					ndmf.set(":"+index, images[index]);
+				}
+				assertTrue(policy+" cache holds "+ndmf.getCacheWeight()+" bytes", ndmf.getCacheWeight() <= ndmf.cacheCapacity);
+			}
+			List<String> statistics = new ArrayList<>();
+			ndmf.appendCacheStatistics(statistics);
+			System.out.println(policy+" "+statistics);
+			
+			// Every read is a hit or a miss, and 40 images do not fit in 4 KB
+			assertEquals(policy.toString(), reads, ndmf.getCacheHits() + ndmf.getCacheMisses());
+			assertTrue(policy.toString(), ndmf.getCacheMisses() > 0);
+			ndmf.close();
+		}
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testCompressionMethods() throws IOException {
+		Random random = new Random(SEED);
+		List<CompressionMethod> methods = new ArrayList<>(Arrays.asList(CompressionMethod.STORED, CompressionMethod.ZLIB, CompressionMethod.LZ4));
+		List<byte[]> samples = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			samples.add(("name=sample"+i+";value="+random.nextInt(100)+";padding=0000000000000000;").getBytes("UTF-8"));
+		}
+		methods.add(new DictionaryDeflateCompression((byte) 100, DictionaryDeflateCompression.train(samples, 1024)));
+
+		for (CompressionMethod method : methods) {
+			for (int length : new int[] { 0, 1, 4, 5, 12, 13, 15, 16, 19, 270, 4096, 70000, 300000 }) {
+				byte[] randomBytes = new byte[length];
+				random.nextBytes(randomBytes);
+				byte[] repetitive = new byte[length];
+				for (int i = 0; i < length; i++) {
+					repetitive[i] = (byte) ((i % 300 < 200) ? 0 : random.nextInt(4));
+				}
+
+				for (byte[] bytes : new byte[][] { randomBytes, repetitive }) {
+					ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+					method.compress(bytes, 0, length, compressed);
+					byte[] compressedBytes = compressed.toByteArray();
+					assertTrue(method+" length "+length, Arrays.equals(bytes, method.decompress(compressedBytes, 0, compressedBytes.length)));
+				}
+			}
+		}
+
+		// A file can mix methods, and records are read with the method they were written with
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		File file = new File("NDMFCompressionTest");
+		if (file.exists()) file.delete();
+
+		BufferedImage[] images = new BufferedImage[40];
+		ndmf.open(file);
+		for (int i = 0; i < images.length; i++) {
+			images[i] = createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+			ndmf.compression = CompressionPolicy.always(methods.get(i % 3));
+			ndmf.set(":"+i, images[i]);
+		}
+		ndmf.close();
+
+		ndmf.compression = CompressionPolicy.bySize(1000, CompressionMethod.STORED, CompressionMethod.LZ4);
+		ndmf.open(file);
+		for (int i = 0; i < images.length; i++) {
+			assertTrue(imageEqual(images[i], ndmf.get(":"+i)));
+		}
+		ndmf.close();
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testBatchGetPut() throws IOException {
+		NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NAME_HANDLER, DATA_HANDLER, 64);
+		ndmf.debugVerifyOnLoad = true;
+		File file = new File("NDMFBatchTest");
+		if (file.exists()) file.delete();
+
+		Random random = new Random(SEED);
+		BufferedImage[] images = new BufferedImage[30];
+		for (boolean journaled : new boolean[] { false, true }) {
+			ndmf.journaled = journaled;
+			ndmf.open(file);
+			Map<String, BufferedImage> batch = new HashMap<>();
+			for (int i = 0; i < images.length; i++) {
+				images[i] = createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+				batch.put(":"+i, images[i]);
+			}
+			ndmf.putAll(batch);
+
+			// Removals and overwrites in one batch
+			batch.clear();
+			for (int i = 0; i < images.length; i += 3) {
+				images[i] = (i % 2 == 0) ? null : createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+				batch.put(":"+i, images[i]);
+			}
+			ndmf.putAll(batch);
+			ndmf.close();
+
+			ndmf.open(file);
+			ndmf.get(":1"); // Some results come from the cache
+			List<String> names = new ArrayList<>();
+			for (int i = 0; i < images.length; i++) names.add(":"+i);
+			names.add(":missing");
+			Map<String, BufferedImage> results = ndmf.getAll(names);
+			for (int i = 0; i < images.length; i++) {
+				if (images[i] == null) assertTrue(!results.containsKey(":"+i));
+				else assertTrue(imageEqual(images[i], results.get(":"+i)));
+			}
+			assertTrue(!results.containsKey(":missing"));
+			ndmf.close();
+		}
+		file.delete();
+		new File(file.getPath()+".free").delete();
+	}
+
+	@Test
+	public void testBatchPutFailure() throws IOException {
+		for (boolean hashIndex : new boolean[] { false, true }) {
+			// Fails the data write that brings the count of writes left below zero
+			final int[] writesLeft = { Integer.MAX_VALUE };
+			NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<String, BufferedImage>(NAME_HANDLER, DATA_HANDLER, 64) {
+				@Override
+				public void writeDataArray(byte[] bytes, int length) throws IOException {
+					if (--writesLeft[0] < 0) throw new IOException("Injected write failure");
+					super.writeDataArray(bytes, length);
+				}
+			};
+			ndmf.hashIndex = hashIndex;
+			File file = new File("NDMFBatchFailureTest");
+			File sidecar = new File("NDMFBatchFailureTest.free");
+			if (file.exists()) file.delete();
+			if (sidecar.exists()) sidecar.delete();
+
+			Random random = new Random(SEED);
+			BufferedImage[] images = new BufferedImage[6];
+			ndmf.open(file);
+			Map<String, BufferedImage> batch = new LinkedHashMap<>();
+			for (int i = 0; i < images.length; i++) {
+				images[i] = createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+				batch.put(":"+i, images[i]);
+			}
+			ndmf.putAll(batch);
+
+			// The fourth write fails, after the first three segments of the batch are written
+			batch.clear();
+			BufferedImage[] overwrites = new BufferedImage[images.length];
+			for (int i = 0; i < images.length; i++) {
+				overwrites[i] = createImage(random.nextInt(28)+4, random.nextInt(28)+4, random.nextLong());
+				batch.put(":"+i, overwrites[i]);
+			}
+			writesLeft[0] = 3;
+			boolean failed = false;
+			try {
+				ndmf.putAll(batch);
+			} catch (RuntimeException e) {
+				failed = true;
+			}
+			assertTrue(failed);
+			writesLeft[0] = Integer.MAX_VALUE;
+
+			// Segments written before the failure replaced their old ones, the rest of the claim was freed
+			for (int pass = 0; pass < 2; pass++) {
+				assertTrue(NDMFVerifier.verifyFormat(ndmf, false));
+				for (int i = 0; i < images.length; i++) {
+					assertTrue(imageEqual(i <= 2 ? overwrites[i] : images[i], ndmf.get(":"+i)));
+				}
+				ndmf.close();
+				assertTrue(sidecar.exists());
+				ndmf.open(file);
+			}
+			ndmf.close();
+			sidecar.delete();
+			file.delete();
+		}
+	}
+
+	private static byte[] nameBytes(String name) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		NAME_HANDLER.getWriter().write(baos, name);
+		return baos.toByteArray();
+	}
+
 	public static final long SEED = 1057403912L;
 	public static final int BLOCK_SIZE = 4096;
 
@@ -0,0 +1,110 @@
+package com.gpergrossi.test.experiment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.gpergrossi.aerogen.AeroGeneratorSettings;
+import com.gpergrossi.aerogen.generator.IslandProvider;
+import com.gpergrossi.aerogen.generator.islands.Island;
+import com.gpergrossi.aerogen.generator.islands.IslandCell;
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * <p>Compares the ways of finding the island over each block of a chunk that biome generation has used. Brute force
+ * tests every block against every cell of every island in the overlapping regions. Indexed asks the regions' cell
+ * indices for the cells near the chunk and tests each only over its bounding box. Spans fills each nearby island's
+ * cached, rasterized cells into the array a row at a time.</p>
+ *
+ * <p>All of them fill an array with the region index of the island over each block, and the results are compared,
+ * so the benchmark also checks that they find the same islands.</p>
+ */
+public class BiomeLookupBenchmark {
+
+	private static final long SEED = 1057403912L;
+	private static final int CHUNKS = 2000;
+	private static final int EXTENT_CHUNKS = 64;
+
+	private interface Lookup {
+		void fill(byte[] owners, Int2DRange chunkBounds);
+	}
+
+	public static void main(String[] args) {
+		final IslandProvider provider = new IslandProvider.Simple(new AeroGeneratorSettings());
+
+		final Lookup bruteForce = (owners, chunkBounds) -> {
+			final List<Island> islands = new ArrayList<>();
+			provider.getIslands(islands, chunkBounds);
+			for (Int2D.Mutable block : chunkBounds.getAllMutable()) {
+				final int index = chunkBounds.indexFor(block);
+				owners[index] = -1;
+				for (Island island : islands) {
+					for (IslandCell cell : island.getCells()) {
+						if (cell.getPolygon().contains(block.x(), block.y())) owners[index] = (byte) island.getRegionIndex();
+					}
+				}
+			}
+		};
+
+		final Lookup indexed = (owners, chunkBounds) -> {
+			final List<IslandCell> cells = new ArrayList<>();
+			provider.getIslandCells(cells, chunkBounds);
+			for (int i = 0; i < chunkBounds.size(); i++) owners[i] = -1;
+			for (IslandCell cell : cells) {
+				final Int2DRange overlap = chunkBounds.intersect(Int2DRange.fromRect(cell.getPolygon().getBounds()));
+				for (Int2D.Mutable block : overlap.getAllMutable()) {
+					if (cell.getPolygon().contains(block.x(), block.y())) owners[chunkBounds.indexFor(block)] = (byte) cell.getIsland().getRegionIndex();
+				}
+			}
+		};
+
+		final Lookup spans = (owners, chunkBounds) -> {
+			final List<IslandCell> cells = new ArrayList<>();
+			provider.getIslandCells(cells, chunkBounds);
+			Arrays.fill(owners, (byte) -1);
+			Island previous = null;
+			for (IslandCell cell : cells) {
+				if (cell.getIsland() == previous) continue;
+				previous = cell.getIsland();
+				previous.getCellSpans().fill(owners, chunkBounds, (byte) previous.getRegionIndex());
+			}
+		};
+
+		final byte[] expected = new byte[256];
+		final byte[] actual = new byte[256];
+		final Random random = new Random(SEED);
+		for (int i = 0; i < CHUNKS; i++) {
+			final Int2DRange chunkBounds = randomChunk(random);
+			bruteForce.fill(expected, chunkBounds);
+			for (Lookup lookup : new Lookup[] { indexed, spans }) {
+				lookup.fill(actual, chunkBounds);
+				if (!Arrays.equals(expected, actual)) throw new AssertionError("Lookups disagree in "+chunkBounds);
+			}
+		}
+
+		measure("brute force", bruteForce);
+		measure("indexed", indexed);
+		measure("spans", spans);
+	}
+
+	private static Int2DRange randomChunk(Random random) {
+		final int chunkMinX = ((random.nextInt(EXTENT_CHUNKS) - EXTENT_CHUNKS / 2) << 4) + 8;
+		final int chunkMinZ = ((random.nextInt(EXTENT_CHUNKS) - EXTENT_CHUNKS / 2) << 4) + 8;
+		return new Int2DRange(chunkMinX, chunkMinZ, chunkMinX+15, chunkMinZ+15);
+	}
+
+	private static void measure(String name, Lookup lookup) {
+		final byte[] owners = new byte[256];
+		final Random random = new Random(SEED);
+		for (int i = 0; i < CHUNKS; i++) lookup.fill(owners, randomChunk(random)); // Warm up
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < CHUNKS; i++) lookup.fill(owners, randomChunk(random));
+		final long time = System.nanoTime() - start;
+
+		System.out.printf("  %-12s %8.2f us/chunk%n", name, time / 1000.0 / CHUNKS);
+	}
+
+}
@@ -0,0 +1,98 @@
+package com.gpergrossi.test.experiment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.gpergrossi.aerogen.AeroGeneratorSettings;
+import com.gpergrossi.aerogen.generator.BiomeQueryEngine;
+import com.gpergrossi.aerogen.generator.IslandProvider;
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+
+/**
+ * <p>Measures the cost of answering a vanilla sized biome query (256x256 blocks, as asked for by structure and spawn
+ * searches) with a {@link BiomeQueryEngine}. Chunks fills the query one chunk at a time without caching, the way
+ * chunk generation computes biomes. Cold and warm answer it through the tile cache, first with every tile missing
+ * and then with every tile cached.</p>
+ *
+ * <p>None of these generate primer chunks. Before measuring, every query's result is compared against the chunk
+ * by chunk fill, so the benchmark also checks that the cache agrees with chunk generation.</p>
+ */
+public class BiomeQueryBenchmark {
+
+	private static final long SEED = 1057403912L;
+	private static final int QUERIES = 50;
+	private static final int QUERY_SIZE = 256;
+	private static final int EXTENT_BLOCKS = 8192;
+
+	public static void main(String[] args) {
+		final IslandProvider provider = new IslandProvider.Simple(new AeroGeneratorSettings());
+		final int tilesPerQuery = (QUERY_SIZE / BiomeQueryEngine.TILE_SIZE + 1) * (QUERY_SIZE / BiomeQueryEngine.TILE_SIZE + 1);
+
+		final BiomeQueryEngine uncached = new BiomeQueryEngine(provider, 0);
+		final BiomeQueryEngine verified = new BiomeQueryEngine(provider, tilesPerQuery * QUERIES);
+		final int[] expected = new int[QUERY_SIZE * QUERY_SIZE];
+		final int[] actual = new int[QUERY_SIZE * QUERY_SIZE];
+		Random random = new Random(SEED);
+		for (int i = 0; i < QUERIES; i++) {
+			final Int2DRange query = randomQuery(random);
+			fillByChunk(uncached, query.createIntegers(expected));
+			verified.getBiomeIds(query.createIntegers(actual));
+			for (int j = 0; j < expected.length; j++) {
+				if (expected[j] != actual[j]) throw new AssertionError("Biome queries disagree in "+query);
+			}
+		}
+
+		// Chunks: no cache at all
+		random = new Random(SEED+1);
+		long start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) fillByChunk(uncached, randomQuery(random).createIntegers(actual));
+		report("chunks", System.nanoTime() - start);
+
+		// Cold: a fresh cache, large enough to keep every tile for the warm pass
+		final BiomeQueryEngine cached = new BiomeQueryEngine(provider, tilesPerQuery * QUERIES);
+		random = new Random(SEED+2);
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) cached.getBiomeIds(randomQuery(random).createIntegers(actual));
+		report("cold", System.nanoTime() - start);
+
+		// Warm: the same queries again
+		random = new Random(SEED+2);
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) cached.getBiomeIds(randomQuery(random).createIntegers(actual));
+		report("warm", System.nanoTime() - start);
+
+		final List<String> statistics = new ArrayList<>();
+		cached.appendStatistics(statistics);
+		for (String line : statistics) System.out.println("  "+line);
+	}
+
+	private static Int2DRange randomQuery(Random random) {
+		final int minX = random.nextInt(EXTENT_BLOCKS) - EXTENT_BLOCKS / 2;
+		final int minZ = random.nextInt(EXTENT_BLOCKS) - EXTENT_BLOCKS / 2;
+		return new Int2DRange(minX, minZ, minX + QUERY_SIZE - 1, minZ + QUERY_SIZE - 1);
+	}
+
+	/**
+	 * Answers a query one 16x16 block at a time with {@link BiomeQueryEngine#fill(byte[], Int2DRange)}.
+	 */
+	private static void fillByChunk(BiomeQueryEngine engine, Int2DRange.Integers output) {
+		final byte[] chunk = new byte[256];
+		for (int z = output.minY; z <= output.maxY; z += 16) {
+			for (int x = output.minX; x <= output.maxX; x += 16) {
+				final Int2DRange chunkBounds = new Int2DRange(x, z, Math.min(x+15, output.maxX), Math.min(z+15, output.maxY));
+				engine.fill(chunk, chunkBounds);
+				for (int j = chunkBounds.minY; j <= chunkBounds.maxY; j++) {
+					for (int i = chunkBounds.minX; i <= chunkBounds.maxX; i++) {
+						output.data[output.indexFor(i, j)] = chunk[chunkBounds.indexFor(i, j)] & 0xFF;
+					}
+				}
+			}
+		}
+	}
+
+	private static void report(String name, long time) {
+		System.out.printf("  %-12s %8.2f ms/query%n", name, time / 1e6 / QUERIES);
+	}
+
+}
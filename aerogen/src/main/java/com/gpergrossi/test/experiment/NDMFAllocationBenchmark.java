@@ -0,0 +1,115 @@
+package com.gpergrossi.test.experiment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.gpergrossi.test.NamedDataMapFileTest;
+import com.gpergrossi.util.io.IStreamHandler;
+import com.gpergrossi.util.io.ndmf.NDMFStorage;
+import com.gpergrossi.util.io.ndmf.NamedDataMapFile;
+
+/**
+ * <p>Measures the bytes allocated per operation on a NamedDataMapFile's read and write paths, using the
+ * allocation counter of HotSpot's ThreadMXBean.</p>
+ *
+ * <p>The data handler allocates nothing itself: records are a 4 KB pattern identified by a small Integer, so
+ * whatever is allocated is allocated by the file. The cache is disabled, so every get reads and decodes the
+ * record from the file.</p>
+ */
+public class NDMFAllocationBenchmark {
+
+	private static final long SEED = 1057403912L;
+	private static final int NUM_NAMES = 64;
+	private static final int OPERATIONS = 20000;
+	private static final int RECORD_SIZE = 4096;
+
+	private static final byte[] PATTERN = new byte[RECORD_SIZE];
+	static {
+		final Random random = new Random(SEED);
+		for (int i = 0; i < PATTERN.length; i++) {
+			PATTERN[i] = (byte) ((i % 64 < 48) ? 0 : random.nextInt(8));
+		}
+	}
+
+	private static final IStreamHandler<Integer> DATA_HANDLER = new IStreamHandler<Integer>() {
+		private final Writer<Integer> writer = (OutputStream os, Integer value) -> {
+			os.write(value);
+			os.write(PATTERN, 1, PATTERN.length - 1);
+		};
+
+		private final Reader<Integer> reader = (InputStream is) -> {
+			final int value = is.read();
+			long skipped = 0;
+			while (skipped < RECORD_SIZE - 1) {
+				final long count = is.skip(RECORD_SIZE - 1 - skipped);
+				if (count <= 0) break;
+				skipped += count;
+			}
+			return value;
+		};
+
+		@Override
+		public Writer<Integer> getWriter() {
+			return writer;
+		}
+
+		@Override
+		public Reader<Integer> getReader() {
+			return reader;
+		}
+	};
+
+	private interface Operation {
+		void run(int i) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		for (NDMFStorage.Backend backend : NDMFStorage.Backend.values()) {
+			final NamedDataMapFile<String, Integer> ndmf = new NamedDataMapFile<>(NamedDataMapFileTest.NAME_HANDLER, DATA_HANDLER, 4096);
+			ndmf.storageBackend = backend;
+			ndmf.synchronousWrites = false;
+			ndmf.cacheCapacity = 0;
+
+			final File file = File.createTempFile("NDMFAllocationBenchmark", null);
+			file.delete();
+			ndmf.open(file);
+
+			final String[] names = new String[NUM_NAMES];
+			for (int i = 0; i < NUM_NAMES; i++) {
+				names[i] = ":"+i;
+				ndmf.set(names[i], i);
+			}
+			final byte[] encoded = ndmf.encode(7);
+
+			System.out.println(backend);
+			measure("encode", i -> ndmf.encode(i & 127));
+			measure("decode", i -> ndmf.decode(encoded));
+			measure("set", i -> ndmf.set(names[i % NUM_NAMES], i & 127));
+			measure("get", i -> ndmf.get(names[i % NUM_NAMES]));
+
+			ndmf.close();
+			file.delete();
+			new File(file.getPath()+".free").delete();
+		}
+	}
+
+	private static void measure(String name, Operation operation) throws IOException {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+
+		for (int i = 0; i < OPERATIONS; i++) operation.run(i); // Warm up
+
+		final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+		final long start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) operation.run(i);
+		final long time = System.nanoTime() - start;
+		final long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+		System.out.printf("  %-8s %8.1f bytes/op %8.2f us/op%n", name, (double) allocated / OPERATIONS, time / 1000.0 / OPERATIONS);
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.gpergrossi.test.experiment;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.gpergrossi.test.NamedDataMapFileTest;
+import com.gpergrossi.util.io.ndmf.NDMFStorage;
+import com.gpergrossi.util.io.ndmf.NamedDataMapFile;
+
+/**
+ * Compares the NamedDataMapFile storage backends on the write, overwrite and clear workload
+ * of NamedDataMapFileTest, with and without synchronous writes. Durable writes from several
+ * threads are also compared against the same writes journaled with group commits.
+ */
+public class NDMFStorageBenchmark {
+
+	private static final long SEED = 1057403912L;
+	private static final int NUM_NAMES = 256;
+	private static final int NUM_OPERATIONS = 20000;
+	private static final int ROUNDS = 5;
+	private static final int THREADS = 8;
+
+	public static void main(String[] args) throws IOException {
+		final Random random = new Random(SEED);
+		final BufferedImage[] images = new BufferedImage[40];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = new BufferedImage(random.nextInt(21)+20, random.nextInt(21)+20, BufferedImage.TYPE_INT_ARGB);
+			for (int y = 0; y < images[i].getHeight(); y++) {
+				for (int x = 0; x < images[i].getWidth(); x++) {
+					if (random.nextInt(4) == 0) images[i].setRGB(x, y, random.nextInt());
+				}
+			}
+		}
+
+		for (boolean synchronous : new boolean[] { false, true }) {
+			for (NDMFStorage.Backend backend : NDMFStorage.Backend.values()) {
+				final int operations = synchronous ? NUM_OPERATIONS / 10 : NUM_OPERATIONS;
+				run(backend, synchronous, images, operations); // Warm up
+				long best = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					best = Math.min(best, run(backend, synchronous, images, operations));
+				}
+				System.out.printf("%-18s synchronous=%-5b %8.2f us/op%n", backend, synchronous, best / 1000.0 / operations);
+			}
+		}
+
+		for (boolean journaled : new boolean[] { false, true }) {
+			final int operations = NUM_OPERATIONS / 10;
+			run(NDMFStorage.Backend.RANDOM_ACCESS_FILE, true, journaled, THREADS, images, operations); // Warm up
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				best = Math.min(best, run(NDMFStorage.Backend.RANDOM_ACCESS_FILE, true, journaled, THREADS, images, operations));
+			}
+			System.out.printf("%d threads, synchronous, journaled=%-5b %8.2f us/op%n", THREADS, journaled, best / 1000.0 / operations);
+		}
+	}
+
+	private static long run(NDMFStorage.Backend backend, boolean synchronous, BufferedImage[] images, int operations) throws IOException {
+		return run(backend, synchronous, false, 1, images, operations);
+	}
+
+	private static long run(NDMFStorage.Backend backend, boolean synchronous, boolean journaled, int threads, BufferedImage[] images, int operations) throws IOException {
+		final NamedDataMapFile<String, BufferedImage> ndmf = new NamedDataMapFile<>(NamedDataMapFileTest.NAME_HANDLER, NamedDataMapFileTest.DATA_HANDLER, 4096);
+		ndmf.storageBackend = backend;
+		ndmf.synchronousWrites = synchronous;
+		ndmf.journaled = journaled;
+		ndmf.groupCommitMillis = 2;
+
+		final File file = File.createTempFile("NDMFStorageBenchmark", null);
+		file.delete();
+
+		final long start = System.nanoTime();
+		ndmf.open(file);
+		final Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(SEED + t);
+			workers[t] = new Thread(() -> {
+				for (int i = 0; i < operations / threads; i++) {
+					final String name = ":"+random.nextInt(NUM_NAMES);
+					final int op = random.nextInt(105);
+					if (op < 35) {
+						ndmf.set(name, null);
+					} else if (op < 70) {
+						ndmf.set(name, images[random.nextInt(images.length)]);
+					} else {
+						ndmf.get(name);
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		ndmf.sync();
+		ndmf.close();
+		final long time = System.nanoTime() - start;
+
+		file.delete();
+		return time;
+	}
+
+}
@@ -0,0 +1,227 @@
+package com.gpergrossi.test.experiment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.gpergrossi.aerogen.primer.Int2DStreamHandler;
+import com.gpergrossi.aerogen.primer.PrimerCompression;
+import com.gpergrossi.util.geom.vectors.Int2D;
+import com.gpergrossi.util.io.IStreamHandler;
+import com.gpergrossi.util.io.ndmf.CompressionMethod;
+import com.gpergrossi.util.io.ndmf.DictionaryDeflateCompression;
+import com.gpergrossi.util.io.ndmf.NamedDataMapFile;
+
+/**
+ * <p>Compares the compression methods available to the AerogenPrimerChunks file: compression ratio and encode
+ * and decode speed (in MB/s of uncompressed data) over a set of primer chunk payloads, the uncompressed NBT that
+ * NBTStreamHandler writes.</p>
+ *
+ * <p>Given the path of an AerogenPrimerChunks file, the payloads are the chunks saved in it. Otherwise they are
+ * synthesized: NBT of the same structure as WorldPrimerChunkSnapshot.writeToNBT, for chunks of void, island
+ * edges and island interiors. Also compares the built-in dictionary with one trained on half of the payloads
+ * (and measured on the other half).</p>
+ */
+public class PrimerCompressionBenchmark {
+
+	private static final long SEED = 739162044L;
+	private static final int NUM_SYNTHETIC_CHUNKS = 1000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		final List<byte[]> payloads = (args.length > 0) ? readPayloads(new File(args[0])) : synthesizePayloads();
+		long total = 0;
+		for (byte[] payload : payloads) total += payload.length;
+		System.out.printf("%d payloads, %.1f KB average%n", payloads.size(), total / 1024.0 / payloads.size());
+
+		final List<byte[]> training = new ArrayList<>(), testing = new ArrayList<>();
+		for (int i = 0; i < payloads.size(); i++) {
+			((i % 2 == 0) ? training : testing).add(payloads.get(i));
+		}
+		final DictionaryDeflateCompression trained = new DictionaryDeflateCompression((byte) 100,
+				DictionaryDeflateCompression.train(training, 4096));
+
+		run("stored", CompressionMethod.STORED, testing);
+		run("zlib", CompressionMethod.ZLIB, testing);
+		run("lz4", CompressionMethod.LZ4, testing);
+		run("zlib, built-in dictionary", PrimerCompression.DICTIONARY, testing);
+		run("zlib, trained dictionary", trained, testing);
+	}
+
+	private static void run(String name, CompressionMethod method, List<byte[]> payloads) throws IOException {
+		long raw = 0, compressedTotal = 0;
+		final List<byte[]> compressed = new ArrayList<>();
+		for (byte[] payload : payloads) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			method.compress(payload, 0, payload.length, out);
+			compressed.add(out.toByteArray());
+			raw += payload.length;
+			compressedTotal += out.size();
+		}
+
+		long bestEncode = Long.MAX_VALUE, bestDecode = Long.MAX_VALUE;
+		for (int round = 0; round <= ROUNDS; round++) { // Round 0 warms up
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+			long start = System.nanoTime();
+			for (byte[] payload : payloads) {
+				out.reset();
+				method.compress(payload, 0, payload.length, out);
+			}
+			if (round > 0) bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < payloads.size(); i++) {
+				final byte[] bytes = compressed.get(i);
+				final byte[] decompressed = method.decompress(bytes, 0, bytes.length);
+				if (decompressed.length != payloads.get(i).length) throw new IllegalStateException(name+" did not round trip");
+			}
+			if (round > 0) bestDecode = Math.min(bestDecode, System.nanoTime() - start);
+		}
+
+		System.out.printf("%-26s ratio %6.2f  encode %8.1f MB/s  decode %8.1f MB/s%n", name, (double) raw / compressedTotal,
+				raw / 1048576.0 / (bestEncode / 1e9), raw / 1048576.0 / (bestDecode / 1e9));
+	}
+
+	private static List<byte[]> readPayloads(File file) throws IOException {
+		final IStreamHandler<byte[]> passthrough = new IStreamHandler<byte[]>() {
+			@Override
+			public Writer<byte[]> getWriter() {
+				return (os, bytes) -> os.write(bytes);
+			}
+
+			@Override
+			public Reader<byte[]> getReader() {
+				return (InputStream is) -> {
+					final ByteArrayOutputStream out = new ByteArrayOutputStream();
+					final byte[] buffer = new byte[8192];
+					int read;
+					while ((read = is.read(buffer)) >= 0) {
+						out.write(buffer, 0, read);
+					}
+					return out.toByteArray();
+				};
+			}
+		};
+
+		// Makes sure the primer dictionary is registered before any chunks are read
+		PrimerCompression.DICTIONARY.getCompressionID();
+
+		final NamedDataMapFile<Int2D, byte[]> ndmf = new NamedDataMapFile<>(Int2DStreamHandler.INSTANCE, passthrough, 4096);
+		ndmf.open(file);
+		final List<byte[]> payloads = new ArrayList<>();
+		for (Int2D name : new ArrayList<>(ndmf.debugGetStoredNames().keySet())) {
+			payloads.add(ndmf.get(name));
+		}
+		ndmf.close();
+		return payloads;
+	}
+
+	private static List<byte[]> synthesizePayloads() throws IOException {
+		final Random random = new Random(SEED);
+		final List<byte[]> payloads = new ArrayList<>();
+		for (int i = 0; i < NUM_SYNTHETIC_CHUNKS; i++) {
+			final int kind = random.nextInt(10);
+			if (kind == 0) {
+				payloads.add(completedChunk());
+			} else {
+				// Island coverage: none, partial (island edges) or full (island interiors)
+				final double coverage = (kind < 3) ? 0.0 : (kind < 7) ? random.nextDouble() : 1.0;
+				payloads.add(islandChunk(random, i % 64, i / 64, coverage));
+			}
+		}
+		return payloads;
+	}
+
+	private static byte[] completedChunk() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream dos = new DataOutputStream(bytes);
+		dos.writeByte(10);
+		dos.writeUTF("");
+		dos.writeByte(0);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] islandChunk(Random random, int chunkX, int chunkZ, double coverage) throws IOException {
+		final int[] top = new int[256], bottom = new int[256];
+		final double edgeAngle = random.nextDouble() * Math.PI * 2;
+		final int islandTop = 64 + random.nextInt(64);
+		for (int i = 0; i < 256; i++) {
+			final int x = i & 15, z = i >> 4;
+			final double along = ((x - 7.5) * Math.cos(edgeAngle) + (z - 7.5) * Math.sin(edgeAngle)) / 16.0 + 0.5;
+			if (along > coverage) continue;
+			top[i] = islandTop + random.nextInt(3);
+			bottom[i] = top[i] - 4 - (int) ((coverage - along) * 40) - random.nextInt(3);
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream dos = new DataOutputStream(bytes);
+		dos.writeByte(10);
+		dos.writeUTF("");
+		tag(dos, 3, "DataVersion");
+		dos.writeInt(1);
+		tag(dos, 10, "Level");
+		tag(dos, 3, "xPos");
+		dos.writeInt(chunkX);
+		tag(dos, 3, "zPos");
+		dos.writeInt(chunkZ);
+		tag(dos, 1, "TerrainPopulated");
+		dos.writeByte(random.nextBoolean() ? 1 : 0);
+		tag(dos, 7, "Biomes");
+		dos.writeInt(256);
+		final int biome = random.nextInt(40);
+		for (int i = 0; i < 256; i++) dos.writeByte(top[i] > 0 ? biome : 127);
+		tag(dos, 11, "HeightMap");
+		dos.writeInt(256);
+		for (int i = 0; i < 256; i++) dos.writeInt(top[i] > 0 ? top[i] + 1 : 0);
+
+		final List<Integer> sections = new ArrayList<>();
+		for (int y = 0; y < 16; y++) {
+			for (int i = 0; i < 256; i++) {
+				if (top[i] > 0 && bottom[i] < y * 16 + 16 && top[i] >= y * 16) {
+					sections.add(y);
+					break;
+				}
+			}
+		}
+		tag(dos, 9, "Sections");
+		dos.writeByte(10);
+		dos.writeInt(sections.size());
+		for (int sectionY : sections) {
+			final byte[] blocks = new byte[4096];
+			final byte[] data = new byte[2048];
+			for (int index = 0; index < 4096; index++) {
+				final int y = sectionY * 16 + (index >> 8), column = index & 255;
+				if (top[column] == 0 || y < bottom[column] || y > top[column]) continue;
+				if (y == top[column]) blocks[index] = 2; // Grass
+				else if (y > top[column] - 3) blocks[index] = 3; // Dirt
+				else if (random.nextInt(100) == 0) blocks[index] = (byte) (14 + random.nextInt(3)); // Ores
+				else blocks[index] = 1; // Stone
+				if (blocks[index] == 1 && random.nextInt(8) == 0) data[index >> 1] |= (index & 1) == 0 ? 5 : 5 << 4; // Andesite
+			}
+			tag(dos, 3, "Y");
+			dos.writeInt(sectionY);
+			tag(dos, 7, "Data");
+			dos.writeInt(2048);
+			dos.write(data);
+			tag(dos, 7, "Blocks");
+			dos.writeInt(4096);
+			dos.write(blocks);
+			dos.writeByte(0);
+		}
+		dos.writeByte(0); // End of Level
+		dos.writeByte(0); // End of root
+		dos.close();
+		return bytes.toByteArray();
+	}
+
+	private static void tag(DataOutputStream dos, int type, String name) throws IOException {
+		dos.writeByte(type);
+		dos.writeUTF(name);
+	}
+
+}
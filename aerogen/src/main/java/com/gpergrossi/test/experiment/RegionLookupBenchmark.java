@@ -0,0 +1,63 @@
+package com.gpergrossi.test.experiment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.gpergrossi.aerogen.AeroGenConfig;
+import com.gpergrossi.aerogen.AeroGeneratorSettings;
+import com.gpergrossi.aerogen.generator.IslandProvider;
+import com.gpergrossi.aerogen.generator.islands.Island;
+import com.gpergrossi.aerogen.generator.regions.Region;
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+
+/**
+ * <p>Measures the throughput of {@link IslandProvider#getIslands(List, Int2DRange)} for chunk sized ranges as the
+ * number of loaded regions grows. Every chunk generation step makes this call at least once, under the region
+ * manager's lock, so its cost should not depend on how many regions are loaded.</p>
+ *
+ * <p>Regions are loaded in a square around the origin before each measurement, and the queries are spread over
+ * the same square. The cache budget is raised so that nothing is evicted.</p>
+ */
+public class RegionLookupBenchmark {
+
+	private static final long SEED = 1057403912L;
+	private static final int QUERIES = 20000;
+
+	public static void main(String[] args) {
+		AeroGenConfig.regionCacheMaxMegabytes = 65536;
+		final AeroGeneratorSettings settings = new AeroGeneratorSettings();
+		final IslandProvider provider = new IslandProvider.Simple(settings);
+		final int regionSize = (int) settings.regionGridSize;
+
+		final List<Island> islands = new ArrayList<>();
+		final List<Region> loaded = new ArrayList<>();
+		for (int width = 1; width <= 16; width *= 2) {
+			final int extent = width * regionSize / 2;
+			provider.getIslands(islands, new Int2DRange(-extent, -extent, extent-1, extent-1));
+
+			loaded.clear();
+			provider.debugGetLoadedRegions(loaded);
+
+			final Random random = new Random(SEED);
+			for (int i = 0; i < QUERIES; i++) query(provider, islands, random, extent); // Warm up
+
+			final long start = System.nanoTime();
+			long found = 0;
+			for (int i = 0; i < QUERIES; i++) found += query(provider, islands, random, extent);
+			final long time = System.nanoTime() - start;
+
+			System.out.printf("%5d regions: %8.2f us/query %10.0f queries/s (%.1f islands/query)%n", loaded.size(),
+					time / 1000.0 / QUERIES, QUERIES * 1e9 / time, (double) found / QUERIES);
+		}
+	}
+
+	private static int query(IslandProvider provider, List<Island> islands, Random random, int extent) {
+		final int minX = (random.nextInt(extent / 8) - extent / 16) << 4;
+		final int minZ = (random.nextInt(extent / 8) - extent / 16) << 4;
+		islands.clear();
+		provider.getIslands(islands, new Int2DRange(minX, minZ, minX+15, minZ+15));
+		return islands.size();
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.gpergrossi.test.experiment;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.gpergrossi.aerogen.primer.ChunkPrimerExt;
+import com.gpergrossi.aerogen.primer.PrimerSkylight;
+
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.world.DimensionType;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldProvider;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.IChunkProvider;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/**
+ * Compares the time it takes to complete a chunk (build the Minecraft chunk from the primer
+ * and light it) using Chunk.generateSkylightMap() versus PrimerSkylight. Every result is also
+ * checked against Minecraft's, so this doubles as a test of PrimerSkylight's correctness.
+ *
+ * Must be run from the development environment, since it needs Minecraft's block registry.
+ */
+public class SkylightBenchmark {
+
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 20000;
+
+	private static class BenchmarkWorld extends World {
+		private static final WorldProvider PROVIDER = new WorldProvider() {
+			public DimensionType getDimensionType() { return null; }
+			public net.minecraft.world.border.WorldBorder createWorldBorder() { return null; };
+			public boolean hasSkyLight() { return true; }
+		};
+
+		BenchmarkWorld() {
+			super(null, null, PROVIDER, null, false);
+		}
+
+		@Override
+		protected IChunkProvider createChunkProvider() {
+			return null;
+		}
+
+		@Override
+		protected boolean isChunkLoaded(int x, int z, boolean allowEmpty) {
+			return false;
+		}
+	}
+
+	public static void main(String[] args) {
+		Bootstrap.register();
+		final World world = new BenchmarkWorld();
+
+		run(world, "empty sky (one small island high up)", createSparseChunk());
+		run(world, "island heavy (stacked islands, trees, water)", createIslandChunk());
+	}
+
+	private static void run(World world, String name, ChunkPrimerExt blocks) {
+		check(world, name, blocks);
+
+		for (int i = 0; i < WARMUP; i++) {
+			completeVanilla(world, blocks);
+			completePrimer(world, blocks);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) completeVanilla(world, blocks);
+		final long vanilla = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) completePrimer(world, blocks);
+		final long primer = System.nanoTime() - start;
+
+		System.out.println(name);
+		System.out.println(String.format("   generateSkylightMap: %8.2f us per chunk", vanilla / 1000.0 / ITERATIONS));
+		System.out.println(String.format("   PrimerSkylight:      %8.2f us per chunk", primer / 1000.0 / ITERATIONS));
+	}
+
+	private static Chunk completeVanilla(World world, ChunkPrimerExt blocks) {
+		final Chunk chunk = new Chunk(world, blocks.toChunkPrimer(), 0, 0);
+		chunk.generateSkylightMap();
+		return chunk;
+	}
+
+	private static Chunk completePrimer(World world, ChunkPrimerExt blocks) {
+		final Chunk chunk = new Chunk(world, blocks.toChunkPrimer(), 0, 0);
+		PrimerSkylight.generateSkylightMap(chunk, blocks);
+		return chunk;
+	}
+
+	private static void check(World world, String name, ChunkPrimerExt blocks) {
+		final Chunk expected = completeVanilla(world, blocks);
+		final Chunk actual = completePrimer(world, blocks);
+
+		if (!Arrays.equals(expected.getHeightMap(), actual.getHeightMap())) {
+			throw new AssertionError(name+": height maps differ");
+		}
+		if (expected.getLowestHeight() != actual.getLowestHeight()) {
+			throw new AssertionError(name+": lowest heights differ");
+		}
+
+		final ExtendedBlockStorage[] expectedStorage = expected.getBlockStorageArray();
+		final ExtendedBlockStorage[] actualStorage = actual.getBlockStorageArray();
+		for (int i = 0; i < 16; i++) {
+			if (expectedStorage[i] == Chunk.NULL_BLOCK_STORAGE) continue;
+			if (!Arrays.equals(expectedStorage[i].getSkyLight().getData(), actualStorage[i].getSkyLight().getData())) {
+				throw new AssertionError(name+": sky light differs in section "+i);
+			}
+		}
+	}
+
+	private static ChunkPrimerExt createSparseChunk() {
+		final ChunkPrimerExt blocks = new ChunkPrimerExt();
+		fillDisc(blocks, 8, 8, 3, 200, 203, Blocks.STONE.getDefaultState());
+		return blocks;
+	}
+
+	private static ChunkPrimerExt createIslandChunk() {
+		final ChunkPrimerExt blocks = new ChunkPrimerExt();
+		final Random random = new Random(1);
+
+		// Three stacked islands of different sizes
+		final int[][] islands = { {8, 8, 9, 60}, {4, 11, 6, 110}, {12, 5, 7, 170} };
+		for (int[] island : islands) {
+			final int x = island[0], z = island[1], radius = island[2], top = island[3];
+			for (int depth = 0; depth < radius * 2; depth++) {
+				fillDisc(blocks, x, z, radius - depth / 2, top - depth, top - depth, Blocks.STONE.getDefaultState());
+			}
+			fillDisc(blocks, x, z, radius, top, top, Blocks.DIRT.getDefaultState());
+			fillDisc(blocks, x, z, radius, top + 1, top + 1, Blocks.GRASS.getDefaultState());
+
+			// A pond and a few trees
+			fillDisc(blocks, x, z, 2, top + 1, top + 1, Blocks.WATER.getDefaultState());
+			for (int tree = 0; tree < 3; tree++) {
+				final int treeX = x + random.nextInt(radius) - radius / 2;
+				final int treeZ = z + random.nextInt(radius) - radius / 2;
+				fillDisc(blocks, treeX, treeZ, 2, top + 5, top + 7, Blocks.LEAVES.getDefaultState());
+				for (int y = top + 2; y < top + 7; y++) {
+					if (treeX >= 0 && treeX < 16 && treeZ >= 0 && treeZ < 16) {
+						blocks.setBlockState(treeX, y, treeZ, Blocks.LOG.getDefaultState());
+					}
+				}
+			}
+		}
+		return blocks;
+	}
+
+	private static void fillDisc(ChunkPrimerExt blocks, int centerX, int centerZ, int radius, int minY, int maxY, IBlockState state) {
+		for (int x = Math.max(0, centerX - radius); x <= Math.min(15, centerX + radius); x++) {
+			for (int z = Math.max(0, centerZ - radius); z <= Math.min(15, centerZ + radius); z++) {
+				final int dx = x - centerX, dz = z - centerZ;
+				if (dx*dx + dz*dz > radius*radius) continue;
+				for (int y = minY; y <= maxY; y++) {
+					blocks.setBlockState(x, y, z, state);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,252 @@
+package com.gpergrossi.util.geom.ranges;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.gpergrossi.util.geom.shapes.Convex;
+import com.gpergrossi.util.geom.shapes.Rect;
+import com.gpergrossi.util.geom.vectors.Double2D;
+
+/**
+ * <p>A set of integer tiles stored as horizontal spans, row by row. Each row holds sorted, disjoint, inclusive
+ * [minX, maxX] spans that do not touch. Spans make it cheap to fill the tiles of a shape into an array: a span
+ * is one {@link Arrays#fill} no matter how long it is.</p>
+ *
+ * <p>Instances are immutable. Rows are numbered by their y coordinate.</p>
+ */
+public final class Int2DSpans {
+
+	public static final Int2DSpans EMPTY = new Int2DSpans(0, new int[] { 0 }, new int[0]);
+
+	/** Smallest row with an entry in rowStart */
+	private final int minY;
+
+	/** Spans of row minY+i are spans[rowStart[i]] to spans[rowStart[i+1]], as pairs of minX, maxX */
+	private final int[] rowStart;
+	private final int[] spans;
+
+	private Int2DSpans(int minY, int[] rowStart, int[] spans) {
+		this.minY = minY;
+		this.rowStart = rowStart;
+		this.spans = spans;
+	}
+
+	/**
+	 * <p>Rasterizes a convex polygon. A tile is in the result exactly when {@link Convex#contains(double, double)}
+	 * would return true for its coordinates.</p>
+	 *
+	 * <p>Each row's span is solved from the polygon's edges and then checked at its ends with the same arithmetic
+	 * as Convex.contains, so rounding can never make the two disagree.</p>
+	 */
+	public static Int2DSpans fromConvex(Convex polygon) {
+		final int numSides = polygon.getNumSides();
+		final double[] edges = new double[numSides * 4]; // { x0, y0, dx, dy } with a unit length direction
+		for (int i = 0; i < numSides; i++) {
+			final Double2D pt0 = polygon.getVertex(i);
+			final Double2D pt1 = polygon.getVertex((i+1) % numSides);
+			final double dx = pt1.x() - pt0.x();
+			final double dy = pt1.y() - pt0.y();
+			final double length = Double2D.distance(0, 0, dx, dy);
+			edges[i*4] = pt0.x();
+			edges[i*4+1] = pt0.y();
+			edges[i*4+2] = dx / length;
+			edges[i*4+3] = dy / length;
+		}
+
+		final Rect bounds = polygon.getBounds();
+		final int boundsMinX = (int) Math.floor(bounds.minX()), boundsMaxX = (int) Math.ceil(bounds.maxX());
+		final int boundsMinY = (int) Math.floor(bounds.minY()), boundsMaxY = (int) Math.ceil(bounds.maxY());
+
+		final Builder builder = new Builder(boundsMinY, boundsMaxY);
+		for (int y = boundsMinY; y <= boundsMaxY; y++) {
+			double lo = Double.NEGATIVE_INFINITY, hi = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < edges.length; i += 4) {
+				// Inside when dx*(y-y0) - dy*(x-x0) >= 0
+				final double dx = edges[i+2], dy = edges[i+3];
+				final double across = dx * (y - edges[i+1]);
+				if (dy > 0) hi = Math.min(hi, edges[i] + across / dy);
+				else if (dy < 0) lo = Math.max(lo, edges[i] + across / dy);
+				else if (across < 0) lo = Double.POSITIVE_INFINITY;
+			}
+			if (lo > hi + 2) continue;
+
+			int minX = (int) Math.max(boundsMinX, Math.ceil(lo) - 1);
+			int maxX = (int) Math.min(boundsMaxX, Math.floor(hi) + 1);
+			while (minX <= maxX && !contains(edges, minX, y)) minX++;
+			while (maxX >= minX && !contains(edges, maxX, y)) maxX--;
+			if (minX <= maxX) builder.add(y, minX, maxX);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Same test as {@link Convex#contains(Double2D)}, which measures the cross product against each side as a
+	 * {@link com.gpergrossi.util.geom.shapes.Line Line} with a unit length direction.
+	 */
+	private static boolean contains(double[] edges, double x, double y) {
+		for (int i = 0; i < edges.length; i += 4) {
+			final double cross = Double2D.cross(edges[i+2], edges[i+3], x - edges[i], y - edges[i+1]);
+			if (cross < 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the tiles of the given range whose values are greater than the threshold.
+	 */
+	public static Int2DSpans fromFloats(Int2DRange.Floats values, float threshold) {
+		if (values.isEmpty()) return EMPTY;
+		final Builder builder = new Builder(values.minY, values.maxY);
+		for (int y = values.minY; y <= values.maxY; y++) {
+			int start = Integer.MIN_VALUE;
+			for (int x = values.minX; x <= values.maxX; x++) {
+				final boolean inside = values.get(x, y) > threshold;
+				if (inside && start == Integer.MIN_VALUE) start = x;
+				if (!inside && start != Integer.MIN_VALUE) {
+					builder.add(y, start, x-1);
+					start = Integer.MIN_VALUE;
+				}
+			}
+			if (start != Integer.MIN_VALUE) builder.add(y, start, values.maxX);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns every tile that is in at least one of the given span sets.
+	 */
+	public static Int2DSpans union(List<Int2DSpans> parts) {
+		int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+		for (Int2DSpans part : parts) {
+			if (part.isEmpty()) continue;
+			minY = Math.min(minY, part.minY);
+			maxY = Math.max(maxY, part.maxY());
+		}
+		if (minY > maxY) return EMPTY;
+
+		final Builder builder = new Builder(minY, maxY);
+		long[] row = new long[16];
+		for (int y = minY; y <= maxY; y++) {
+			// Gather this row's spans from every part, sorted by minX
+			int count = 0;
+			for (Int2DSpans part : parts) {
+				if (y < part.minY || y > part.maxY()) continue;
+				final int r = y - part.minY;
+				for (int i = part.rowStart[r]; i < part.rowStart[r+1]; i += 2) {
+					if (count == row.length) row = Arrays.copyOf(row, count * 2);
+					row[count++] = ((long) part.spans[i] << 32) | (part.spans[i+1] & 0xFFFFFFFFL);
+				}
+			}
+			Arrays.sort(row, 0, count);
+
+			for (int i = 0; i < count; ) {
+				final int start = (int) (row[i] >> 32);
+				int end = (int) row[i];
+				for (i++; i < count && (int) (row[i] >> 32) <= end + 1; i++) {
+					end = Math.max(end, (int) row[i]);
+				}
+				builder.add(y, start, end);
+			}
+		}
+		return builder.build();
+	}
+
+	public boolean isEmpty() {
+		return spans.length == 0;
+	}
+
+	private int maxY() {
+		return minY + rowStart.length - 2;
+	}
+
+	public int getSpanCount() {
+		return spans.length / 2;
+	}
+
+	public boolean contains(int x, int y) {
+		if (y < minY || y > maxY()) return false;
+		final int r = y - minY;
+		for (int i = rowStart[r]; i < rowStart[r+1]; i += 2) {
+			if (x < spans[i]) return false;
+			if (x <= spans[i+1]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if any tile of the given range is in this set.
+	 */
+	public boolean intersects(Int2DRange range) {
+		final int fromY = Math.max(range.minY, minY), toY = Math.min(range.maxY, maxY());
+		for (int y = fromY; y <= toY; y++) {
+			final int r = y - minY;
+			for (int i = rowStart[r]; i < rowStart[r+1]; i += 2) {
+				if (spans[i] > range.maxX) break;
+				if (spans[i+1] >= range.minX) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets every tile of this set that lies in arrayRange to the given value, in an array indexed by
+	 * {@link Int2DRange#indexFor(int, int) arrayRange.indexFor(x, y)}.
+	 */
+	public void fill(byte[] array, Int2DRange arrayRange, byte value) {
+		final int fromY = Math.max(arrayRange.minY, minY), toY = Math.min(arrayRange.maxY, maxY());
+		for (int y = fromY; y <= toY; y++) {
+			final int r = y - minY;
+			final int rowIndex = arrayRange.indexFor(0, y);
+			for (int i = rowStart[r]; i < rowStart[r+1]; i += 2) {
+				final int minX = Math.max(spans[i], arrayRange.minX);
+				final int maxX = Math.min(spans[i+1], arrayRange.maxX);
+				if (minX > maxX) continue;
+				Arrays.fill(array, rowIndex + minX, rowIndex + maxX + 1, value);
+			}
+		}
+	}
+
+	/**
+	 * Returns a rough estimate of the number of bytes of heap used by this set.
+	 */
+	public long estimateMemoryUsage() {
+		return 48 + rowStart.length * 4L + spans.length * 4L;
+	}
+
+	@Override
+	public String toString() {
+		return "Int2DSpans[rows="+(rowStart.length-1)+", spans="+getSpanCount()+"]";
+	}
+
+	/**
+	 * Collects spans row by row. Rows must be added in increasing order, and the spans of a row in increasing
+	 * order without touching.
+	 */
+	private static class Builder {
+		private final int minY;
+		private final int[] rowStart;
+		private int[] spans = new int[32];
+		private int count;
+		private int lastY;
+
+		Builder(int minY, int maxY) {
+			this.minY = minY;
+			this.rowStart = new int[maxY - minY + 2];
+			this.lastY = minY - 1;
+		}
+
+		void add(int y, int minX, int maxX) {
+			while (lastY < y) rowStart[++lastY - minY] = count;
+			if (count + 2 > spans.length) spans = Arrays.copyOf(spans, spans.length * 2);
+			spans[count++] = minX;
+			spans[count++] = maxX;
+		}
+
+		Int2DSpans build() {
+			while (lastY < minY + rowStart.length - 1) rowStart[++lastY - minY] = count;
+			if (count == 0) return EMPTY;
+			return new Int2DSpans(minY, rowStart, Arrays.copyOf(spans, count));
+		}
+	}
+
+}
@@ -1,17 +1,26 @@
 package com.gpergrossi.util.io.ndmf;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public interface CompressionMethod {
-	
+
 	public static Map<Byte, CompressionMethod> METHODS = new HashMap<>();
+	public static CompressionMethod STORED = Stored.INSTANCE;
 	public static CompressionMethod ZLIB = Zlib.INSTANCE;
-	
+	public static CompressionMethod LZ4 = LZ4BlockCompression.INSTANCE;
+
 	public static CompressionMethod fromID(byte id) {
 		return METHODS.get(id);
 	}
@@ -27,25 +36,101 @@ public interface CompressionMethod {
 		METHODS.put(method.getCompressionID(), method);
 		return true;
 	}
-	
+
 	/**
 	 * The unique ID that identifies a compression method
 	 * @return
 	 */
 	public byte getCompressionID();
-	
+
 	public OutputStream getCompressionStream(OutputStream os);
 	public InputStream getDecompressionStream(InputStream is);
-	
-	
-	
+
+	/**
+	 * Compresses a whole array to the output. Methods that work on whole blocks
+	 * rather than streams should override this.
+	 */
+	public default void compress(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+		try (OutputStream compressed = getCompressionStream(new NonClosingOutputStream(out))) {
+			compressed.write(bytes, offset, length);
+		}
+	}
+
+	/**
+	 * Decompresses data written by {@link #compress}. Methods that work on whole blocks
+	 * rather than streams should override this.
+	 */
+	public default byte[] decompress(byte[] bytes, int offset, int length) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+		try (InputStream decompressed = getDecompressionStream(new ByteArrayInputStream(bytes, offset, length))) {
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = decompressed.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompresses data written by {@link #compress}, appending it to the given buffer, so that a caller
+	 * reusing its buffer does not allocate. Methods that can decompress in place should override this.
+	 */
+	public default void decompress(byte[] bytes, int offset, int length, DataBuffer out) throws IOException {
+		final byte[] decompressed = decompress(bytes, offset, length);
+		out.write(decompressed, 0, decompressed.length);
+	}
+
+	/**
+	 * No compression at all. Worth it for data that is too small or too random to compress.
+	 */
+	public static class Stored implements CompressionMethod {
+		public static Stored INSTANCE = new Stored();
+
+		private Stored() {
+			register(this);
+		}
+
+		@Override
+		public byte getCompressionID() {
+			return 0;
+		}
+
+		@Override
+		public OutputStream getCompressionStream(OutputStream os) {
+			return os;
+		}
+
+		@Override
+		public InputStream getDecompressionStream(InputStream is) {
+			return is;
+		}
+
+		@Override
+		public void compress(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+			out.write(bytes, offset, length);
+		}
+
+		@Override
+		public byte[] decompress(byte[] bytes, int offset, int length) {
+			final byte[] copy = new byte[length];
+			System.arraycopy(bytes, offset, copy, 0, length);
+			return copy;
+		}
+
+		@Override
+		public void decompress(byte[] bytes, int offset, int length, DataBuffer out) {
+			out.write(bytes, offset, length);
+		}
+	}
+
 	public static class Zlib implements CompressionMethod {
 		public static Zlib INSTANCE = new Zlib();
 
 		private Zlib() {
 			register(this);
 		}
-		
+
 		@Override
 		public byte getCompressionID() {
 			return 1;
@@ -60,7 +145,149 @@ public interface CompressionMethod {
 		public InputStream getDecompressionStream(InputStream is) {
 			return new InflaterInputStream(is);
 		}
-		
+
+		@Override
+		public void compress(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+			DeflateCodec.deflate(bytes, offset, length, null, out);
+		}
+
+		@Override
+		public byte[] decompress(byte[] bytes, int offset, int length) throws IOException {
+			final DataBuffer out = new DataBuffer(length * 4);
+			DeflateCodec.inflate(bytes, offset, length, null, out);
+			return out.toByteArray();
+		}
+
+		@Override
+		public void decompress(byte[] bytes, int offset, int length, DataBuffer out) throws IOException {
+			DeflateCodec.inflate(bytes, offset, length, null, out);
+		}
+	}
+
+	/**
+	 * Base for methods that compress a whole array at once. The streams buffer all of the data
+	 * and call {@link #compress} or {@link #decompress} on it.
+	 */
+	public static abstract class Block implements CompressionMethod {
+
+		@Override
+		public OutputStream getCompressionStream(OutputStream os) {
+			return new FilterOutputStream(os) {
+				private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+				@Override
+				public void write(int b) {
+					buffer.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					buffer.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					final byte[] bytes = buffer.toByteArray();
+					compress(bytes, 0, bytes.length, out);
+					super.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getDecompressionStream(InputStream is) {
+			try {
+				final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+				final byte[] buffer = new byte[8192];
+				int read;
+				while ((read = is.read(buffer)) >= 0) {
+					compressed.write(buffer, 0, read);
+				}
+				final byte[] bytes = compressed.toByteArray();
+				return new ByteArrayInputStream(decompress(bytes, 0, bytes.length));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public abstract void compress(byte[] bytes, int offset, int length, OutputStream out) throws IOException;
+
+		@Override
+		public abstract byte[] decompress(byte[] bytes, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * Whole-array deflate and inflate with a Deflater and an Inflater kept per thread,
+	 * rather than a new one (and its native memory) for every stream.
+	 */
+	static class DeflateCodec {
+		private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+		private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+		private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+		static void deflate(byte[] bytes, int offset, int length, byte[] dictionary, OutputStream out) throws IOException {
+			final Deflater deflater = DEFLATER.get();
+			final byte[] buffer = BUFFER.get();
+			deflater.reset();
+			try {
+				if (dictionary != null) deflater.setDictionary(dictionary);
+				deflater.setInput(bytes, offset, length);
+				deflater.finish();
+				while (!deflater.finished()) {
+					final int count = deflater.deflate(buffer);
+					out.write(buffer, 0, count);
+				}
+			} finally {
+				deflater.reset();
+			}
+		}
+
+		/**
+		 * Inflates straight into the output buffer's array, growing it as needed.
+		 */
+		static void inflate(byte[] bytes, int offset, int length, byte[] dictionary, DataBuffer out) throws IOException {
+			final Inflater inflater = INFLATER.get();
+			inflater.reset();
+			try {
+				inflater.setInput(bytes, offset, length);
+				while (!inflater.finished()) {
+					out.ensureRemaining(Math.max(length * 2, 256));
+					final int count = inflater.inflate(out.array(), out.size(), out.array().length - out.size());
+					if (count == 0 && !inflater.finished()) {
+						if (inflater.needsDictionary() && dictionary != null) {
+							inflater.setDictionary(dictionary);
+						} else if (inflater.needsInput() || inflater.needsDictionary()) {
+							throw new IOException("Truncated or corrupt deflate data");
+						}
+					}
+					out.setSize(out.size() + count);
+				}
+			} catch (DataFormatException | IllegalArgumentException e) {
+				throw new IOException(e);
+			} finally {
+				inflater.reset();
+			}
+		}
+	}
+
+	/**
+	 * Keeps {@link #compress}'s default implementation from closing the caller's stream.
+	 */
+	static class NonClosingOutputStream extends FilterOutputStream {
+		NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
 	}
 
 }
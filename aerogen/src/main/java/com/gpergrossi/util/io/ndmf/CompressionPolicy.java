@@ -0,0 +1,26 @@
+package com.gpergrossi.util.io.ndmf;
+
+/**
+ * Chooses the {@link CompressionMethod} for each record a {@link NamedDataMapFile} writes. Each record is stored
+ * with the ID of its method, so a file can mix methods and the policy can be changed between opens.
+ */
+public interface CompressionPolicy {
+
+	/**
+	 * Returns the method to compress a record of the given uncompressed size with.
+	 */
+	public CompressionMethod select(int rawSize);
+
+	public static CompressionPolicy always(CompressionMethod method) {
+		return rawSize -> method;
+	}
+
+	/**
+	 * Uses one method for records smaller than the threshold and another for the rest. For example,
+	 * records of a few bytes are not worth compressing at all.
+	 */
+	public static CompressionPolicy bySize(int threshold, CompressionMethod small, CompressionMethod large) {
+		return rawSize -> (rawSize < threshold) ? small : large;
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * <p>A ByteArrayOutputStream whose array can be used directly, so data can be read or decompressed into it and
+ * handed to a reader without copying it out with toByteArray(). {@link NamedDataMapFile} keeps a few of these per
+ * thread and reuses them for every record, so reading and writing records does not allocate buffers once the
+ * buffers have grown to the size of the largest record.</p>
+ *
+ * <p>The contents are only valid until the buffer is reset, which is the next time the same thread reads or
+ * writes a record of the same file.</p>
+ */
+public class DataBuffer extends ByteArrayOutputStream {
+
+	private final Input input = new Input();
+
+	public DataBuffer(int capacity) {
+		super(capacity);
+	}
+
+	/**
+	 * The backing array. The contents are the first {@link #size()} bytes.
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * Makes room for at least the given number of bytes after the current contents.
+	 */
+	public void ensureRemaining(int count) {
+		if (count > buf.length - this.count) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, this.count + count));
+		}
+	}
+
+	/**
+	 * Sets the size of the contents, after bytes have been put into {@link #array()} directly.
+	 */
+	public void setSize(int size) {
+		if (size < 0 || size > buf.length) throw new IllegalArgumentException("Size "+size+" out of range!");
+		this.count = size;
+	}
+
+	/**
+	 * Returns a stream reading the current contents. The same stream is returned every time.
+	 */
+	public InputStream inputStream() {
+		input.reset(buf, 0, count);
+		return input;
+	}
+
+	/**
+	 * A ByteArrayInputStream that can be pointed at another array.
+	 */
+	public static class Input extends ByteArrayInputStream {
+		public Input() {
+			super(new byte[0]);
+		}
+
+		public void reset(byte[] bytes, int offset, int length) {
+			this.buf = bytes;
+			this.pos = offset;
+			this.count = Math.min(offset + length, bytes.length);
+			this.mark = offset;
+		}
+	}
+
+}
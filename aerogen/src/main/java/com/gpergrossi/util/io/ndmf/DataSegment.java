@@ -6,6 +6,12 @@ public class DataSegment<Name, Data> extends Segment<Name, Data> {
 
 	protected Data dataObject;
 	
+	/** Epoch of the read of this segment in progress outside the file's lock, or -1 */
+	protected long readEpoch = -1;
+	
+	/** The name being read, in a batch read by {@link NamedDataMapFile#getAll} */
+	protected Name name;
+	
 	public DataSegment(NamedDataMapFile<Name, Data> ndmFile, int blockIDStart) {
 		super(ndmFile, blockIDStart);
 		this.copyOnResize = false;
@@ -15,31 +21,73 @@ public class DataSegment<Name, Data> extends Segment<Name, Data> {
 		try {
 			if (dataObject == null) throw new RuntimeException("Cannot write null data!");
 			
-			final CompressionMethod compression = CompressionMethod.ZLIB;
-			final byte[] bytes = ndmFile.getDataArray(dataObject, compression);
-			
+			final DataBuffer encoded = ndmFile.getDataBuffer(dataObject);
+			writeEncoded(encoded.array(), encoded.size());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Writes data that has already been serialized and compressed by {@link NamedDataMapFile#encode},
+	 * which starts with the data header (the ID of its compression method).
+	 */
+	public void writeEncoded(byte[] encoded) {
+		writeEncoded(encoded, encoded.length);
+	}
+	
+	public void writeEncoded(byte[] encoded, int length) {
+		try {
 			// Reallocate if necessary
-			final int newSize = bytes.length + ndmFile.SIZE_SEGMENT_HEADER + ndmFile.SIZE_DATA_HEADER;
+			final int newSize = length + ndmFile.SIZE_SEGMENT_HEADER;
 			this.resize(newSize, true);
 			
 			// Write data
 			ndmFile.seekBlock(this.blockIDStart, 0);
 			ndmFile.writeSegmentHeader(newSize);
-			ndmFile.writeDataHeader(compression.getCompressionID());
-			ndmFile.writeDataArray(bytes);
+			ndmFile.writeDataArray(encoded, length);
 			
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Reads the segment without the file's lock, with positional reads of its size and then its data body.
+	 * The segment's blocks must not be freed until the read is finished.
+	 */
+	public void readDataConcurrently() {
+		readSegmentConcurrently();
+		try {
+			final long position = ndmFile.blockOffset(blockIDStart) + ndmFile.SIZE_SEGMENT_HEADER;
+			this.dataObject = ndmFile.readDataAt(position, this.size - ndmFile.SIZE_SEGMENT_HEADER);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Writes encoded data to this segment's start block, which the caller has already claimed
+	 * along with enough blocks after it to hold the data.
+	 */
+	public void writeEncodedClaimed(byte[] encoded, int length) {
+		try {
+			this.size = length + ndmFile.SIZE_SEGMENT_HEADER;
+			ndmFile.seekBlock(this.blockIDStart, 0);
+			ndmFile.writeSegmentHeader(this.size);
+			ndmFile.writeDataArray(encoded, length);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public void readData() {
 		try {
 			
 			ndmFile.seekBlock(this.blockIDStart, 0);
 			this.size = ndmFile.readSegmentHeader();
 			final byte compressionID = ndmFile.readDataHeader();
-			final CompressionMethod compression = CompressionMethod.fromID(compressionID);
+			final CompressionMethod compression = ndmFile.getCompressionMethod(compressionID);
 			
 			final int readSize = this.size - ndmFile.SIZE_SEGMENT_HEADER - ndmFile.SIZE_DATA_HEADER;
 			this.dataObject = ndmFile.readData(readSize, compression);
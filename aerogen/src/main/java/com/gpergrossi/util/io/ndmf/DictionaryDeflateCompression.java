@@ -0,0 +1,141 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Deflate with a preset dictionary. Deflate can refer back to the dictionary as if it came before the data, so
+ * strings that every record shares (tag names, headers, common runs) cost a short back reference even in the
+ * first record of a file. This helps most with small records, which otherwise have no history to refer back to.</p>
+ *
+ * <p>Methods are not registered automatically. Whoever creates one must {@link CompressionMethod#register register}
+ * it under an ID of its own before a file using it is opened. Data compressed with a dictionary can only be
+ * decompressed with the same dictionary, so a changed dictionary needs a new ID.</p>
+ */
+public class DictionaryDeflateCompression extends CompressionMethod.Block {
+
+	private static final int DMER_LENGTH = 8;
+	private static final int SEGMENT_LENGTH = 64;
+	private static final int SEGMENT_STEP = 4;
+
+	private final byte id;
+	private final byte[] dictionary;
+
+	public DictionaryDeflateCompression(byte id, byte[] dictionary) {
+		this.id = id;
+		this.dictionary = dictionary.clone();
+	}
+
+	@Override
+	public byte getCompressionID() {
+		return id;
+	}
+
+	public byte[] getDictionary() {
+		return dictionary.clone();
+	}
+
+	@Override
+	public void compress(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+		CompressionMethod.DeflateCodec.deflate(bytes, offset, length, dictionary, out);
+	}
+
+	@Override
+	public byte[] decompress(byte[] bytes, int offset, int length) throws IOException {
+		final DataBuffer out = new DataBuffer(length * 4);
+		CompressionMethod.DeflateCodec.inflate(bytes, offset, length, dictionary, out);
+		return out.toByteArray();
+	}
+
+	@Override
+	public void decompress(byte[] bytes, int offset, int length, DataBuffer out) throws IOException {
+		CompressionMethod.DeflateCodec.inflate(bytes, offset, length, dictionary, out);
+	}
+
+	/**
+	 * <p>Builds a dictionary of at most the given size from sample records, after the COVER algorithm of zstd's
+	 * dictionary builder.</p>
+	 *
+	 * <p>Every 8-byte string (d-mer) is counted once per sample it appears in. The samples are split into as many
+	 * epochs as the dictionary has 64-byte segments, and from each epoch the segment whose d-mers appear in the
+	 * most samples is picked. D-mers are only counted for the first segment that contains them, so later picks
+	 * favour strings that are not already covered. The best segments go last, where deflate's back references
+	 * to them are shortest.</p>
+	 */
+	public static byte[] train(List<byte[]> samples, int size) {
+		final Map<Long, Integer> frequencies = new HashMap<>();
+		int totalLength = 0;
+		for (byte[] sample : samples) {
+			final Set<Long> seen = new HashSet<>();
+			for (int i = 0; i + DMER_LENGTH <= sample.length; i++) {
+				if (seen.add(dmer(sample, i))) frequencies.merge(dmer(sample, i), 1, Integer::sum);
+			}
+			totalLength += sample.length;
+		}
+
+		final byte[] all = new byte[totalLength];
+		int pos = 0;
+		for (byte[] sample : samples) {
+			System.arraycopy(sample, 0, all, pos, sample.length);
+			pos += sample.length;
+		}
+
+		final int epochs = Math.max(1, size / SEGMENT_LENGTH);
+		final int epochLength = Math.max(SEGMENT_LENGTH, totalLength / epochs);
+
+		final List<long[]> segments = new ArrayList<>(); // { score, start }
+		for (int epochStart = 0; epochStart + SEGMENT_LENGTH <= totalLength; epochStart += epochLength) {
+			final int epochEnd = Math.min(totalLength, epochStart + epochLength);
+
+			long bestScore = 0;
+			int bestStart = -1;
+			for (int start = epochStart; start + SEGMENT_LENGTH <= epochEnd; start += SEGMENT_STEP) {
+				final long score = score(all, start, frequencies, false);
+				if (score > bestScore) {
+					bestScore = score;
+					bestStart = start;
+				}
+			}
+			if (bestStart < 0) continue;
+
+			// Rescore while removing the covered d-mers from later segments
+			segments.add(new long[] { score(all, bestStart, frequencies, true), bestStart });
+		}
+
+		segments.sort((a, b) -> Long.compare(a[0], b[0]));
+		final int count = Math.min(segments.size(), size / SEGMENT_LENGTH);
+		final byte[] dictionary = new byte[count * SEGMENT_LENGTH];
+		for (int i = 0; i < count; i++) {
+			final int start = (int) segments.get(segments.size() - count + i)[1];
+			System.arraycopy(all, start, dictionary, i * SEGMENT_LENGTH, SEGMENT_LENGTH);
+		}
+		return dictionary;
+	}
+
+	private static long score(byte[] bytes, int start, Map<Long, Integer> frequencies, boolean remove) {
+		long score = 0;
+		final Set<Long> counted = new HashSet<>();
+		for (int i = start; i + DMER_LENGTH <= start + SEGMENT_LENGTH; i++) {
+			final Long dmer = dmer(bytes, i);
+			if (!counted.add(dmer)) continue;
+			final Integer frequency = remove ? frequencies.remove(dmer) : frequencies.get(dmer);
+			if (frequency != null && frequency > 1) score += frequency;
+		}
+		return score;
+	}
+
+	private static long dmer(byte[] bytes, int i) {
+		long value = 0;
+		for (int j = 0; j < DMER_LENGTH; j++) {
+			value = value << 8 | (bytes[i+j] & 0xFF);
+		}
+		return value;
+	}
+
+}
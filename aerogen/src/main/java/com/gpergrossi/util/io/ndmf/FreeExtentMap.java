@@ -0,0 +1,356 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>The free blocks of a {@link NamedDataMapFile}, kept as extents: runs of consecutive free blocks, each a
+ * (start, length) pair. Extents are indexed by start, to coalesce neighbours when blocks are freed and to claim
+ * specific blocks, and by length, so that an allocation finds the smallest extent that fits (best fit). They are
+ * also kept in a {@link FitIndex}, ordered by start, which finds the lowest extent that fits (first fit). Every
+ * operation is O(log n) in the number of extents (expected, for the fit index).</p>
+ *
+ * <p>The map can be saved to a sidecar file when the NamedDataMapFile is closed, so that the next open does not
+ * need to scan every block header of the file. The sidecar records the length of the file it describes and is
+ * deleted as soon as it is loaded, so a file that was not closed cleanly is always scanned.</p>
+ */
+public class FreeExtentMap {
+
+	private static final int MAGIC = 0x4E444645; // "NDFE"
+	private static final int VERSION = 1;
+
+	/** Extent length by extent start */
+	private final TreeMap<Integer, Integer> byStart = new TreeMap<>();
+
+	/** Extents as (length << 32 | start), ordered by length, then start */
+	private final TreeSet<Long> byLength = new TreeSet<>();
+
+	private final FitIndex byFirstFit = new FitIndex();
+
+	private long freeBlocks;
+
+	private static long lengthKey(int start, int length) {
+		return ((long) length << 32) | (start & 0xFFFFFFFFL);
+	}
+
+	private void addExtent(int start, int length) {
+		byStart.put(start, length);
+		byLength.add(lengthKey(start, length));
+		byFirstFit.add(start, length);
+		freeBlocks += length;
+	}
+
+	private void removeExtent(int start, int length) {
+		byStart.remove(start);
+		byLength.remove(lengthKey(start, length));
+		byFirstFit.remove(start);
+		freeBlocks -= length;
+	}
+
+	/**
+	 * Marks the given blocks free, merging them with the extents before and after them.
+	 * The blocks must not already be free.
+	 */
+	public void free(int start, int length) {
+		if (length <= 0) return;
+		int end = start + length;
+
+		final Entry<Integer, Integer> before = byStart.lowerEntry(start);
+		if (before != null) {
+			final int beforeEnd = before.getKey() + before.getValue();
+			if (beforeEnd > start) throw new IllegalStateException("Blocks "+start+"-"+(end-1)+" are already partly free!");
+			if (beforeEnd == start) {
+				removeExtent(before.getKey(), before.getValue());
+				start = before.getKey();
+			}
+		}
+
+		final Entry<Integer, Integer> after = byStart.ceilingEntry(start);
+		if (after != null) {
+			if (after.getKey() < end) throw new IllegalStateException("Blocks "+start+"-"+(end-1)+" are already partly free!");
+			if (after.getKey() == end) {
+				removeExtent(after.getKey(), after.getValue());
+				end += after.getValue();
+			}
+		}
+
+		addExtent(start, end - start);
+	}
+
+	/**
+	 * Claims the given blocks if all of them are free. Returns false, and makes no changes, otherwise.
+	 */
+	public boolean claim(int start, int length) {
+		if (length <= 0) return true;
+
+		final Entry<Integer, Integer> extent = byStart.floorEntry(start);
+		if (extent == null) return false;
+
+		final int extentStart = extent.getKey();
+		final int extentEnd = extentStart + extent.getValue();
+		if (start + length > extentEnd) return false;
+
+		removeExtent(extentStart, extent.getValue());
+		if (start > extentStart) addExtent(extentStart, start - extentStart);
+		if (start + length < extentEnd) addExtent(start + length, extentEnd - (start + length));
+		return true;
+	}
+
+	/**
+	 * Claims the smallest extent (lowest start among equals) with at least the given number of blocks, and returns
+	 * the first claimed block. Returns -1 if no extent is large enough.
+	 */
+	public int allocate(int length) {
+		final Long key = byLength.ceiling(lengthKey(0, length));
+		if (key == null) return -1;
+
+		final int start = (int) (key & 0xFFFFFFFFL);
+		final int extentLength = (int) (key >>> 32);
+		removeExtent(start, extentLength);
+		if (extentLength > length) addExtent(start + length, extentLength - length);
+		return start;
+	}
+
+	/**
+	 * Claims the given number of blocks from the start of the lowest extent that fits them entirely before the
+	 * given block, and returns the first claimed block. Returns -1 if there is no such extent. Used to move
+	 * segments toward the front of the file.
+	 */
+	public int allocateFirstFit(int length, int before) {
+		final int start = byFirstFit.lowestFit(length);
+		if (start < 0 || start + length > before) return -1;
+
+		final int extentLength = byStart.get(start);
+		removeExtent(start, extentLength);
+		if (extentLength > length) addExtent(start + length, extentLength - length);
+		return start;
+	}
+
+	/**
+	 * Returns the first free block, or -1 if no block is free.
+	 */
+	public int firstFree() {
+		return byStart.isEmpty() ? -1 : byStart.firstKey();
+	}
+
+	/**
+	 * Removes the extent that ends exactly at the given block, if there is one, and returns its start.
+	 * Otherwise returns the given block. Used when the end of the file is truncated.
+	 */
+	public int removeExtentEndingAt(int end) {
+		final int start = extentEndingAt(end);
+		if (start < 0) return end;
+		removeExtent(start, end - start);
+		return start;
+	}
+
+	/**
+	 * Returns the start of the extent that ends exactly at the given block, or -1 if there is none.
+	 * Used to place allocations that do not fit anywhere so they overlap free blocks at the end of the file.
+	 */
+	public int extentEndingAt(int end) {
+		final Entry<Integer, Integer> last = byStart.lowerEntry(end);
+		if (last == null || last.getKey() + last.getValue() != end) return -1;
+		return last.getKey();
+	}
+
+	public boolean isFree(int block) {
+		final Entry<Integer, Integer> extent = byStart.floorEntry(block);
+		return extent != null && block < extent.getKey() + extent.getValue();
+	}
+
+	public long getFreeBlockCount() {
+		return freeBlocks;
+	}
+
+	public int getExtentCount() {
+		return byStart.size();
+	}
+
+	/**
+	 * Writes this map to a sidecar file describing a file of the given length.
+	 */
+	public void save(File sidecar, long fileLength) throws IOException {
+		final CRC32 crc = new CRC32();
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(new FileOutputStream(sidecar), crc)))) {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(fileLength);
+			dos.writeInt(byStart.size());
+			for (Entry<Integer, Integer> extent : byStart.entrySet()) {
+				dos.writeInt(extent.getKey());
+				dos.writeInt(extent.getValue());
+			}
+			dos.flush();
+			dos.writeInt((int) crc.getValue());
+		}
+	}
+
+	/**
+	 * Reads a sidecar file written by {@link #save} and deletes it. Returns null if the file does not exist,
+	 * is damaged, or describes a file of a different length.
+	 */
+	public static FreeExtentMap load(File sidecar, long fileLength) {
+		if (!sidecar.exists()) return null;
+
+		FreeExtentMap map = null;
+		try {
+			final byte[] bytes = Files.readAllBytes(sidecar.toPath());
+			final CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 4);
+
+			final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (dis.readInt() == MAGIC && dis.readInt() == VERSION && dis.readLong() == fileLength) {
+				final FreeExtentMap read = new FreeExtentMap();
+				final int count = dis.readInt();
+				for (int i = 0; i < count; i++) {
+					read.addExtent(dis.readInt(), dis.readInt());
+				}
+				if (dis.readInt() == (int) crc.getValue()) map = read;
+			}
+		} catch (IOException | RuntimeException e) {
+			map = null;
+		}
+
+		// Stale as soon as the file is changed
+		sidecar.delete();
+		return map;
+	}
+
+	/**
+	 * Extents by start in a treap whose nodes also hold the length of the longest extent below them, so that the
+	 * lowest extent of at least a given length is found by one walk down the tree. Priorities are a hash of the
+	 * start, so the shape of the tree only depends on the extents in it.
+	 */
+	private static final class FitIndex {
+
+		private static final class Node {
+			final int start;
+			final int length;
+			final int priority;
+			int maxLength;
+			Node left, right;
+
+			Node(int start, int length) {
+				this.start = start;
+				this.length = length;
+				this.priority = mix(start);
+				this.maxLength = length;
+			}
+		}
+
+		private Node root;
+
+		private static int mix(int value) {
+			int h = value * 0x9E3779B9;
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			return h;
+		}
+
+		void add(int start, int length) {
+			root = insert(root, new Node(start, length));
+		}
+
+		void remove(int start) {
+			root = remove(root, start);
+		}
+
+		/**
+		 * Returns the start of the lowest extent with at least the given length, or -1 if there is none.
+		 */
+		int lowestFit(int length) {
+			Node node = root;
+			if (node == null || node.maxLength < length) return -1;
+			while (true) {
+				if (node.left != null && node.left.maxLength >= length) {
+					node = node.left;
+				} else if (node.length >= length) {
+					return node.start;
+				} else {
+					node = node.right; // Holds the fit, since neither the left nor this node does
+				}
+			}
+		}
+
+		private static Node insert(Node node, Node added) {
+			if (node == null) return added;
+			if (added.start < node.start) {
+				node.left = insert(node.left, added);
+				if (node.left.priority > node.priority) node = rotateRight(node);
+			} else {
+				node.right = insert(node.right, added);
+				if (node.right.priority > node.priority) node = rotateLeft(node);
+			}
+			update(node);
+			return node;
+		}
+
+		private static Node remove(Node node, int start) {
+			if (node == null) return null;
+			if (start < node.start) {
+				node.left = remove(node.left, start);
+			} else if (start > node.start) {
+				node.right = remove(node.right, start);
+			} else {
+				return merge(node.left, node.right);
+			}
+			update(node);
+			return node;
+		}
+
+		/**
+		 * Joins two treaps, all of whose starts in the first are lower than those in the second.
+		 */
+		private static Node merge(Node low, Node high) {
+			if (low == null) return high;
+			if (high == null) return low;
+			if (low.priority > high.priority) {
+				low.right = merge(low.right, high);
+				update(low);
+				return low;
+			} else {
+				high.left = merge(low, high.left);
+				update(high);
+				return high;
+			}
+		}
+
+		private static Node rotateRight(Node node) {
+			final Node left = node.left;
+			node.left = left.right;
+			left.right = node;
+			update(node);
+			return left;
+		}
+
+		private static Node rotateLeft(Node node) {
+			final Node right = node.right;
+			node.right = right.left;
+			right.left = node;
+			update(node);
+			return right;
+		}
+
+		private static void update(Node node) {
+			int max = node.length;
+			if (node.left != null && node.left.maxLength > max) max = node.left.maxLength;
+			if (node.right != null && node.right.maxLength > max) max = node.right.maxLength;
+			node.maxLength = max;
+		}
+
+	}
+
+}
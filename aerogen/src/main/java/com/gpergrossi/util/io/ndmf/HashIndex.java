@@ -0,0 +1,788 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>An on-disk extendible hash index from names to data block IDs. Unlike the chain of {@link IndexSegment}s,
+ * which is read completely when the file is opened, only the directory is read at open. Buckets are read when a
+ * lookup needs them and kept in a small LRU cache of {@link NamedDataMapFile#indexCacheBuckets} buckets, so open
+ * time and memory depend on the number of buckets rather than the number of names. A lookup reads at most one
+ * bucket.</p>
+ *
+ * <p><b>Format:</b> Block 0 holds the header segment: {@link #MAGIC}, {@link #VERSION}, the block ID of the
+ * directory segment and the number of names, so that {@link #size()} does not have to read every bucket. The count
+ * is rewritten after each bucket write that adds or removes a name. Version 1 headers have no count; the names of
+ * such a file are counted the first time the size is needed and the header is rewritten as version 2. The directory segment holds the global depth d followed by 2^d bucket block IDs. Each bucket
+ * is a segment of SIZE_INDEX_SEGMENT bytes holding an entry count followed by that many index entries, in the same
+ * layout as an index segment's entries. A name belongs in the bucket found at the lowest d bits of the hash of its
+ * encoded bytes.</p>
+ *
+ * <p>When a bucket is full it is split in two by the next bit of the hash, doubling the directory first if the
+ * bucket is already as deep as the directory. The local depth of a bucket is not stored: it follows from the number
+ * of directory entries that point at the bucket. The new bucket is written before the directory, and the old bucket
+ * after it, so a split cut short leaves the old bucket with entries that no longer route to it. Such entries are
+ * ignored when the bucket is read and removed when it is next changed. A doubled directory is written to new blocks before the header
+ * is pointed at it. Buckets are never merged.</p>
+ *
+ * <p><b>Concurrency:</b> Lookups may run on any number of threads, and changes on one thread at a time, which holds
+ * the file's lock. The directory and the buckets in memory are never changed once other threads can see them. A
+ * change writes copies to the file and publishes them under {@link NamedDataMapFile}'s index lock, which is held
+ * only to look at or replace them, never for file I/O. A lookup whose bucket is not in memory reads it without the
+ * lock and caches it, unless a change to the bucket started in the meantime, since changes write buckets in place.
+ * A bucket being changed stays in memory until the change is published, so a lookup never has to read it.</p>
+ */
+public class HashIndex<Name, Data> extends AbstractMap<Name, Integer> {
+
+	/** Marks block 0 as a hash index header. Negative, so a chained index never starts with it */
+	public static final int MAGIC = 0x8E444849;
+	public static final int VERSION = 2;
+
+	private static final int SIZE_HEADER_V1 = 16;
+	private static final int SIZE_HEADER = 20;
+	private static final int MAX_DEPTH = 24;
+
+	private final NamedDataMapFile<Name, Data> ndmFile;
+	private final int bucketCapacity;
+
+	/** The file's index lock. Guards {@link #directory}, {@link #cache}, {@link #changing} and {@link #changedAt} */
+	private final Object lock;
+
+	/** Encoded name of the lookup or change in progress on each thread */
+	private final ThreadLocal<byte[]> keys;
+
+	/** Only used by changes, like {@link #depths} */
+	private int directoryBlockID;
+	private int globalDepth;
+
+	/** Replaced, never changed, once published */
+	private int[] directory;
+
+	/** Local depth by bucket block ID */
+	private final Map<Integer, Integer> depths = new HashMap<>();
+
+	private final LinkedHashMap<Integer, Bucket> cache;
+
+	/** Buckets being changed, as they were before the change, by block ID */
+	private final Map<Integer, Bucket> changing = new HashMap<>();
+
+	/** Number of the last change to each bucket that has been changed since the file was opened, by block ID */
+	private final Map<Integer, Long> changedAt = new HashMap<>();
+	private long changes;
+
+	/** Number of names, or -1 until it is first needed for a version 1 file */
+	private volatile int count = -1;
+
+	private static class Bucket {
+		final int blockID;
+		int count;
+		final int[] dataBlockIDs;
+		final int[] hashes;
+		final byte[] names;
+
+		/** Entries that no longer route to this bucket were dropped when it was read, and it was not written back */
+		boolean stale;
+
+		Bucket(int blockID, int capacity, int nameSize) {
+			this.blockID = blockID;
+			this.dataBlockIDs = new int[capacity];
+			this.hashes = new int[capacity];
+			this.names = new byte[capacity * nameSize];
+		}
+
+		/**
+		 * Returns a copy to change, since a bucket that has been published is never changed.
+		 */
+		Bucket copy() {
+			final int nameSize = names.length / dataBlockIDs.length;
+			final Bucket copy = new Bucket(blockID, dataBlockIDs.length, nameSize);
+			copy.count = count;
+			System.arraycopy(dataBlockIDs, 0, copy.dataBlockIDs, 0, count);
+			System.arraycopy(hashes, 0, copy.hashes, 0, count);
+			System.arraycopy(names, 0, copy.names, 0, count * nameSize);
+			return copy;
+		}
+	}
+
+	/**
+	 * A read of a bucket from the file without the lock. Prepared under the lock, which records the directory and
+	 * the number of changes so far, and only used if the bucket has not been changed since.
+	 */
+	private final class BucketRead {
+		final int blockID;
+		final int[] directory = HashIndex.this.directory;
+		final long since = changes;
+		Bucket bucket;
+
+		BucketRead(int blockID) {
+			this.blockID = blockID;
+		}
+	}
+
+	private HashIndex(NamedDataMapFile<Name, Data> ndmFile, int cacheBuckets) {
+		this.ndmFile = ndmFile;
+		this.bucketCapacity = (ndmFile.SIZE_INDEX_SEGMENT - ndmFile.SIZE_SEGMENT_HEADER - 4) / ndmFile.SIZE_INDEX_ENTRY;
+		this.lock = ndmFile.getIndexLock();
+		this.keys = ThreadLocal.withInitial(() -> new byte[ndmFile.SIZE_NAME]);
+		this.cache = new LinkedHashMap<Integer, Bucket>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Bucket> eldest) {
+				return size() > cacheBuckets;
+			}
+		};
+		if (bucketCapacity < 2) throw new RuntimeException("SIZE_INDEX_SEGMENT is too small for a hash index!");
+	}
+
+	/**
+	 * Returns true if block 0 of the file holds a hash index header.
+	 */
+	public static boolean isHashIndex(NamedDataMapFile<?, ?> ndmFile) throws IOException {
+		ndmFile.seekBlock(0, 0);
+		final int size = ndmFile.readSegmentHeader();
+		return size >= SIZE_HEADER_V1 && ndmFile.readBlockID() == MAGIC;
+	}
+
+	/**
+	 * Writes an empty hash index to a new file, replacing its empty index segment at block 0.
+	 */
+	public static <Name, Data> HashIndex<Name, Data> create(NamedDataMapFile<Name, Data> ndmFile, int cacheBuckets) throws IOException {
+		final HashIndex<Name, Data> index = new HashIndex<>(ndmFile, cacheBuckets);
+		index.globalDepth = 0;
+		index.directory = new int[] { index.allocateBucket().blockID };
+		index.depths.put(index.directory[0], 0);
+		index.directoryBlockID = index.writeNewDirectory(index.directory);
+		index.count = 0;
+		index.writeHeader();
+		return index;
+	}
+
+	/**
+	 * Reads the header and the directory of an existing hash index.
+	 */
+	public static <Name, Data> HashIndex<Name, Data> open(NamedDataMapFile<Name, Data> ndmFile, int cacheBuckets) throws IOException {
+		final HashIndex<Name, Data> index = new HashIndex<>(ndmFile, cacheBuckets);
+		ndmFile.seekBlock(0, ndmFile.SIZE_SEGMENT_HEADER);
+		if (ndmFile.readBlockID() != MAGIC) throw new IOException("Block 0 is not a hash index header!");
+		final int version = ndmFile.readBlockID();
+		if (version != 1 && version != VERSION) throw new IOException("Unsupported hash index version: "+version);
+		index.directoryBlockID = ndmFile.readBlockID();
+		if (version >= 2) index.count = ndmFile.readBlockID();
+
+		index.directory = readDirectory(ndmFile, index.directoryBlockID);
+		index.globalDepth = Integer.numberOfTrailingZeros(index.directory.length);
+
+		final Map<Integer, Integer> pointers = new HashMap<>();
+		for (int bucket : index.directory) pointers.merge(bucket, 1, Integer::sum);
+		for (Map.Entry<Integer, Integer> entry : pointers.entrySet()) {
+			index.depths.put(entry.getKey(), index.globalDepth - Integer.numberOfTrailingZeros(entry.getValue()));
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the directory of the hash index whose header is at block 0. Used by {@link NDMFVerifier} too.
+	 */
+	static int[] readDirectory(NamedDataMapFile<?, ?> ndmFile, int directoryBlockID) throws IOException {
+		ndmFile.seekBlock(directoryBlockID, 0);
+		final int size = ndmFile.readSegmentHeader();
+		final int depth = ndmFile.readBlockID();
+		if (depth < 0 || depth > MAX_DEPTH || size != directorySize(depth)) {
+			throw new IOException("Bad hash index directory at block "+directoryBlockID+" (depth "+depth+", size "+size+")");
+		}
+		final int[] directory = new int[1 << depth];
+		for (int i = 0; i < directory.length; i++) {
+			directory[i] = ndmFile.readBlockID();
+		}
+		return directory;
+	}
+
+	static int directorySize(int depth) {
+		return 4 + 4 + 4 * (1 << depth);
+	}
+
+	/**
+	 * The hash of an encoded name: FNV-1a followed by a murmur3 finalizer, so that the low bits are well mixed.
+	 */
+	static int hash(byte[] bytes, int offset, int length) {
+		int h = 0x811C9DC5;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int bucketFor(int[] directory, int hash) {
+		return directory[hash & (directory.length - 1)];
+	}
+
+	private int bucketFor(int hash) {
+		return bucketFor(directory, hash);
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean encodeKey(Object name, byte[] key) {
+		try {
+			ndmFile.encodeNameInto((Name) name, key);
+			return true;
+		} catch (ClassCastException e) {
+			return false;
+		}
+	}
+
+	private int find(Bucket bucket, byte[] key, int hash) {
+		final int nameSize = ndmFile.SIZE_NAME;
+		search: for (int i = 0; i < bucket.count; i++) {
+			if (bucket.hashes[i] != hash) continue;
+			final int offset = i * nameSize;
+			for (int j = 0; j < nameSize; j++) {
+				if (bucket.names[offset + j] != key[j]) continue search;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Looks a name up. Does not need the file's lock, and does not hold the index lock while it reads a bucket.
+	 */
+	@Override
+	public Integer get(Object name) {
+		final byte[] key = keys.get();
+		if (!encodeKey(name, key)) return null;
+		final int hash = hash(key, 0, key.length);
+		final Bucket bucket = loadBucket(hash);
+		final int i = find(bucket, key, hash);
+		return (i < 0) ? null : bucket.dataBlockIDs[i];
+	}
+
+	/**
+	 * Looks a name up without reading the file, for a caller that holds the index lock. Returns the name's data
+	 * block ID, 0 if it is not stored, or -1 if its bucket is not in memory.
+	 */
+	int peek(Object name) {
+		final byte[] key = keys.get();
+		if (!encodeKey(name, key)) return 0;
+		final int hash = hash(key, 0, key.length);
+		synchronized (lock) {
+			final Bucket bucket = loaded(bucketFor(hash), null, false);
+			if (bucket == null) return -1;
+			final int i = find(bucket, key, hash);
+			return (i < 0) ? 0 : bucket.dataBlockIDs[i];
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object name) {
+		return get(name) != null;
+	}
+
+	/**
+	 * Points a name at a data block. Called by changes, which hold the file's lock.
+	 */
+	@Override
+	public Integer put(Name name, Integer value) {
+		if (value == null || value == 0) return remove(name);
+		if (value < 0) throw new IllegalArgumentException("Cannot set a negative offset!");
+
+		final byte[] key = keys.get();
+		encodeKey(name, key);
+		final int hash = hash(key, 0, key.length);
+		while (true) {
+			final Bucket bucket = loadBucket(hash);
+			final int i = find(bucket, key, hash);
+			if (i >= 0) {
+				final int oldValue = bucket.dataBlockIDs[i];
+				if (oldValue == value) return oldValue;
+
+				final Bucket changed = beginChange(bucket);
+				changed.dataBlockIDs[i] = value;
+				writeEntry(changed, i);
+				endChange(changed);
+				return oldValue;
+			}
+
+			if (bucket.count < bucketCapacity) {
+				final Bucket changed = beginChange(bucket);
+				final int j = changed.count++;
+				changed.dataBlockIDs[j] = value;
+				changed.hashes[j] = hash;
+				System.arraycopy(key, 0, changed.names, j * ndmFile.SIZE_NAME, ndmFile.SIZE_NAME);
+				writeEntry(changed, j);
+				writeCount(changed);
+				if (count >= 0) writeNameCount(count + 1);
+				endChange(changed);
+				return null;
+			}
+
+			split(beginChange(bucket));
+		}
+	}
+
+	/**
+	 * Removes a name. Called by changes, which hold the file's lock.
+	 */
+	@Override
+	public Integer remove(Object name) {
+		final byte[] key = keys.get();
+		if (!encodeKey(name, key)) return null;
+		final int hash = hash(key, 0, key.length);
+		final Bucket bucket = loadBucket(hash);
+		final int i = find(bucket, key, hash);
+		if (i < 0) return null;
+
+		final Bucket changed = beginChange(bucket);
+		final int oldValue = changed.dataBlockIDs[i];
+		final int last = --changed.count;
+		if (i != last) {
+			moveEntry(changed, last, changed, i);
+			writeEntry(changed, i);
+		}
+		writeCount(changed);
+		clearEntry(changed, last);
+		if (count >= 0) writeNameCount(count - 1);
+		endChange(changed);
+		return oldValue;
+	}
+
+	/**
+	 * Returns the number of names, as stored in the header. Only a version 1 file has its buckets read, once, to
+	 * count them.
+	 */
+	@Override
+	public int size() {
+		if (count < 0) {
+			int total = 0;
+			for (int bucket : distinctBuckets()) {
+				total += loadBucketAt(bucket).count;
+			}
+			count = total;
+			writeHeader();
+		}
+		return count;
+	}
+
+	/**
+	 * Adds the entries of the first bucket found at or after the given directory position to the output, keyed by
+	 * data block ID, and returns the position to continue from, or -1 once the directory has been read. Lets a name
+	 * listing be spread over several calls. Names moved by a split between calls may be missed or listed twice.
+	 * Called with the file's lock held.
+	 */
+	public int scanBucket(int position, Map<Integer, Name> output) {
+		while (position < directory.length) {
+			final int blockID = directory[position++];
+
+			// A bucket of local depth d is first pointed at by one of the first 2^d directory entries
+			if (position - 1 >= (1 << depths.get(blockID))) continue;
+			for (Map.Entry<Name, Integer> entry : readEntries(loadBucketAt(blockID))) {
+				output.put(entry.getValue(), entry.getKey());
+			}
+			break;
+		}
+		return (position < directory.length) ? position : -1;
+	}
+
+	private Set<Integer> distinctBuckets() {
+		final Set<Integer> buckets = new LinkedHashSet<>();
+		for (int bucket : directory) buckets.add(bucket);
+		return buckets;
+	}
+
+	public int getBucketCount() {
+		return depths.size();
+	}
+
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * Returns the bucket the hash routes to, reading it if it is not in memory.
+	 */
+	private Bucket loadBucket(int hash) {
+		BucketRead read = null;
+		while (true) {
+			synchronized (lock) {
+				final int blockID = bucketFor(hash);
+				final Bucket bucket = loaded(blockID, read, true);
+				if (bucket != null) return bucket;
+				read = new BucketRead(blockID);
+			}
+			read(read);
+		}
+	}
+
+	/**
+	 * Returns the bucket at the given block, reading it if it is not in memory. A bucket that is read is not cached,
+	 * since this is used to list names.
+	 */
+	private Bucket loadBucketAt(int blockID) {
+		BucketRead read = null;
+		while (true) {
+			synchronized (lock) {
+				final Bucket bucket = loaded(blockID, read, false);
+				if (bucket != null) return bucket;
+				read = new BucketRead(blockID);
+			}
+			read(read);
+		}
+	}
+
+	/**
+	 * Returns the bucket at the given block if it is being changed, is cached, or was read by the given read and
+	 * has not been changed since the read was prepared. Returns null if it has to be read. The caller holds the
+	 * lock.
+	 */
+	private Bucket loaded(int blockID, BucketRead read, boolean cacheResult) {
+		Bucket bucket = changing.get(blockID);
+		if (bucket != null) return bucket;
+		bucket = cache.get(blockID);
+		if (bucket != null) return bucket;
+
+		if (read == null || read.blockID != blockID || read.bucket == null) return null;
+		if (changedAt.getOrDefault(blockID, 0L) > read.since) return null;
+		if (cacheResult) cache.put(blockID, read.bucket);
+		return read.bucket;
+	}
+
+	/**
+	 * Reads a bucket without the lock. A read that fails is only an error if the bucket was not changed while it
+	 * was being read; otherwise it is discarded and read again.
+	 */
+	private void read(BucketRead read) {
+		try {
+			read.bucket = readBucket(read.blockID, read.directory);
+		} catch (RuntimeException e) {
+			synchronized (lock) {
+				if (changedAt.getOrDefault(read.blockID, 0L) <= read.since) throw e;
+			}
+		}
+	}
+
+	/**
+	 * Reads the bucket at the given block with positional reads, which do not need the file's lock. Entries that do
+	 * not route to the bucket in the given directory, left by a split that was cut short, are dropped, and the
+	 * bucket is marked to be written back without them by the next change to it.
+	 */
+	private Bucket readBucket(int blockID, int[] directory) {
+		final Bucket bucket = new Bucket(blockID, bucketCapacity, ndmFile.SIZE_NAME);
+		try {
+			final long position = ndmFile.blockOffset(blockID) + ndmFile.SIZE_SEGMENT_HEADER;
+			final int stored = ndmFile.readIntAt(position);
+			if (stored < 0 || stored > bucketCapacity) throw new RuntimeException("Bad hash index bucket at block "+blockID+" (count "+stored+")");
+
+			final int entrySize = ndmFile.SIZE_INDEX_ENTRY;
+			final byte[] entries = new byte[stored * entrySize];
+			ndmFile.readAt(position + 4, entries, 0, entries.length);
+			for (int i = 0; i < stored; i++) {
+				final int offset = i * entrySize;
+				final int dataBlockID = ((entries[offset] & 0xFF) << 24) | ((entries[offset+1] & 0xFF) << 16)
+						| ((entries[offset+2] & 0xFF) << 8) | (entries[offset+3] & 0xFF);
+				final int hash = hash(entries, offset + 4, ndmFile.SIZE_NAME);
+				if (dataBlockID <= 0 || bucketFor(directory, hash) != blockID) {
+					bucket.stale = true;
+					continue;
+				}
+				final int j = bucket.count++;
+				bucket.dataBlockIDs[j] = dataBlockID;
+				bucket.hashes[j] = hash;
+				System.arraycopy(entries, offset + 4, bucket.names, j * ndmFile.SIZE_NAME, ndmFile.SIZE_NAME);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Starts a change to a bucket and returns a copy of it to change. Until {@link #endChange}, lookups keep using
+	 * the bucket as it was, and reads of it from the file that are in progress are discarded, since the change
+	 * writes to it in place. A bucket whose dropped entries were never written back is written back first, so that
+	 * its entries on disk are where the change expects them.
+	 */
+	private Bucket beginChange(Bucket bucket) {
+		synchronized (lock) {
+			changing.put(bucket.blockID, bucket);
+			changedAt.put(bucket.blockID, ++changes);
+		}
+		final Bucket changed = bucket.copy();
+		if (bucket.stale) writeBucket(changed, bucket.count);
+		return changed;
+	}
+
+	/**
+	 * Publishes a changed bucket once it has been written.
+	 */
+	private void endChange(Bucket changed) {
+		synchronized (lock) {
+			changing.remove(changed.blockID);
+			cache.put(changed.blockID, changed);
+		}
+	}
+
+	/**
+	 * Splits a full bucket, returned by {@link #beginChange}, in two by the next bit of the hash, and ends the
+	 * change.
+	 */
+	private void split(Bucket bucket) {
+		final int depth = depths.get(bucket.blockID);
+		if (depth == globalDepth) doubleDirectory();
+
+		final Bucket sibling = allocateBucket();
+		final Bucket kept = new Bucket(bucket.blockID, bucketCapacity, ndmFile.SIZE_NAME);
+		final int bit = 1 << depth;
+		for (int i = 0; i < bucket.count; i++) {
+			if ((bucket.hashes[i] & bit) != 0) {
+				moveEntry(bucket, i, sibling, sibling.count++);
+			} else {
+				moveEntry(bucket, i, kept, kept.count++);
+			}
+		}
+		final int[] splitDirectory = directory.clone();
+		for (int i = 0; i < splitDirectory.length; i++) {
+			if (splitDirectory[i] == bucket.blockID && (i & bit) != 0) splitDirectory[i] = sibling.blockID;
+		}
+
+		// New bucket, then the directory, then the old bucket
+		writeBucket(sibling);
+		writeDirectory(directoryBlockID, splitDirectory);
+		writeBucket(kept, bucket.count);
+
+		depths.put(bucket.blockID, depth + 1);
+		depths.put(sibling.blockID, depth + 1);
+		synchronized (lock) {
+			directory = splitDirectory;
+			cache.put(sibling.blockID, sibling);
+		}
+		endChange(kept);
+	}
+
+	/**
+	 * Allocates and writes an empty bucket.
+	 */
+	private Bucket allocateBucket() {
+		try {
+			final int blockID = ndmFile.getClaim(ndmFile.numBlocks(ndmFile.SIZE_INDEX_SEGMENT));
+			final Bucket bucket = new Bucket(blockID, bucketCapacity, ndmFile.SIZE_NAME);
+			writeBucket(bucket, bucketCapacity);
+			return bucket;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void doubleDirectory() {
+		if (globalDepth >= MAX_DEPTH) throw new RuntimeException("Hash index directory cannot grow past depth "+MAX_DEPTH+"!");
+
+		final int[] doubled = new int[directory.length * 2];
+		System.arraycopy(directory, 0, doubled, 0, directory.length);
+		System.arraycopy(directory, 0, doubled, directory.length, directory.length);
+		globalDepth++;
+
+		// Written to new blocks and only then linked, so the header always points at a complete directory
+		final int oldDirectoryBlockID = directoryBlockID;
+		final int oldSize = directorySize(globalDepth - 1);
+		directoryBlockID = writeNewDirectory(doubled);
+		writeHeader();
+		try {
+			ndmFile.markBlocksFree(oldDirectoryBlockID, oldDirectoryBlockID + ndmFile.numBlocks(oldSize) - 1);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Routes every hash to the same bucket as before
+		synchronized (lock) {
+			directory = doubled;
+		}
+	}
+
+	private int writeNewDirectory(int[] newDirectory) {
+		try {
+			final int blockID = ndmFile.getClaim(ndmFile.numBlocks(directorySize(Integer.numberOfTrailingZeros(newDirectory.length))));
+			writeDirectory(blockID, newDirectory);
+			return blockID;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeDirectory(int blockID, int[] directory) {
+		final int depth = Integer.numberOfTrailingZeros(directory.length);
+		try {
+			ndmFile.seekBlock(blockID, 0);
+			ndmFile.writeSegmentHeader(directorySize(depth));
+			ndmFile.writeBlockID(depth);
+			for (int bucket : directory) {
+				ndmFile.writeBlockID(bucket);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeHeader() {
+		try {
+			// A version 1 file keeps its version 1 header until its names have been counted
+			final boolean counted = count >= 0;
+			ndmFile.seekBlock(0, 0);
+			ndmFile.writeSegmentHeader(counted ? SIZE_HEADER : SIZE_HEADER_V1);
+			ndmFile.writeBlockID(MAGIC);
+			ndmFile.writeBlockID(counted ? VERSION : 1);
+			ndmFile.writeBlockID(directoryBlockID);
+			if (counted) ndmFile.writeBlockID(count);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeNameCount(int newCount) {
+		count = newCount;
+		try {
+			ndmFile.seekBlock(0, ndmFile.SIZE_SEGMENT_HEADER + 12);
+			ndmFile.writeBlockID(count);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void moveEntry(Bucket from, int i, Bucket to, int j) {
+		if (from == to && i == j) return;
+		to.dataBlockIDs[j] = from.dataBlockIDs[i];
+		to.hashes[j] = from.hashes[i];
+		System.arraycopy(from.names, i * ndmFile.SIZE_NAME, to.names, j * ndmFile.SIZE_NAME, ndmFile.SIZE_NAME);
+	}
+
+	private void seekEntry(Bucket bucket, int i) throws IOException {
+		ndmFile.seekBlock(bucket.blockID, ndmFile.SIZE_SEGMENT_HEADER + 4 + i * ndmFile.SIZE_INDEX_ENTRY);
+	}
+
+	private void writeEntry(Bucket bucket, int i) {
+		try {
+			seekEntry(bucket, i);
+			ndmFile.writeBlockID(bucket.dataBlockIDs[i]);
+			ndmFile.writeNameBytes(bucket.names, i * ndmFile.SIZE_NAME);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void clearEntry(Bucket bucket, int i) {
+		try {
+			seekEntry(bucket, i);
+			ndmFile.writeBlockID(0);
+			ndmFile.writeBlankName();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeCount(Bucket bucket) {
+		try {
+			ndmFile.seekBlock(bucket.blockID, ndmFile.SIZE_SEGMENT_HEADER);
+			ndmFile.writeBlockID(bucket.count);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeBucket(Bucket bucket) {
+		writeBucket(bucket, bucket.count);
+	}
+
+	/**
+	 * Writes the whole bucket, clearing entries past its count up to the given number of entries.
+	 */
+	private void writeBucket(Bucket bucket, int clearUpTo) {
+		try {
+			ndmFile.seekBlock(bucket.blockID, 0);
+			ndmFile.writeSegmentHeader(ndmFile.SIZE_INDEX_SEGMENT);
+			ndmFile.writeBlockID(bucket.count);
+			for (int i = 0; i < bucket.count; i++) {
+				ndmFile.writeBlockID(bucket.dataBlockIDs[i]);
+				ndmFile.writeNameBytes(bucket.names, i * ndmFile.SIZE_NAME);
+			}
+			for (int i = bucket.count; i < clearUpTo; i++) {
+				ndmFile.writeBlockID(0);
+				ndmFile.writeBlankName();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<Name, Integer>> entrySet() {
+		return new AbstractSet<Map.Entry<Name, Integer>>() {
+			@Override
+			public int size() {
+				return HashIndex.this.size();
+			}
+
+			@Override
+			public Iterator<Map.Entry<Name, Integer>> iterator() {
+				return new Iterator<Map.Entry<Name, Integer>>() {
+					final Iterator<Integer> buckets = distinctBuckets().iterator();
+					Iterator<Map.Entry<Name, Integer>> entries = null;
+					Map.Entry<Name, Integer> last = null;
+
+					@Override
+					public boolean hasNext() {
+						while (entries == null || !entries.hasNext()) {
+							if (!buckets.hasNext()) return false;
+							entries = readEntries(loadBucketAt(buckets.next())).iterator();
+						}
+						return true;
+					}
+
+					@Override
+					public Map.Entry<Name, Integer> next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						last = entries.next();
+						return last;
+					}
+
+					@Override
+					public void remove() {
+						if (last == null) throw new IllegalStateException();
+						HashIndex.this.remove(last.getKey());
+						last = null;
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Decodes a snapshot of a bucket's entries.
+	 */
+	private List<Map.Entry<Name, Integer>> readEntries(Bucket bucket) {
+		final List<Map.Entry<Name, Integer>> entries = new ArrayList<>(bucket.count);
+		final byte[] name = new byte[ndmFile.SIZE_NAME];
+		try {
+			for (int i = 0; i < bucket.count; i++) {
+				System.arraycopy(bucket.names, i * name.length, name, 0, name.length);
+				entries.add(new SimpleImmutableEntry<>(ndmFile.decodeName(name), bucket.dataBlockIDs[i]));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return entries;
+	}
+
+}
@@ -207,6 +207,20 @@ public class IndexSegment<Name, Data> extends Segment<Name, Data> implements Map
 		else return null;
 	}
 
+	/**
+	 * Finds the slot holding a name without changing the index. Unlike {@link #getSlot}, it never moves the name to
+	 * an earlier segment or allocates a new segment, so lookups, which do not hold the file's lock, never write.
+	 */
+	private IndexEntrySlot<Name> findSlot(Object name) {
+		IndexSegment<Name, Data> segment = this;
+		while (segment != null) {
+			final IndexEntrySlot<Name> slot = segment.usedSlots.get(name);
+			if (slot != null) return slot;
+			segment = segment.nextSegment;
+		}
+		return null;
+	}
+
 	protected void printSlots() {
 		if (!ndmFile.debug) return;
 		if (ndmFile.debugVerbosity >= 3) {
@@ -240,9 +254,8 @@ public class IndexSegment<Name, Data> extends Segment<Name, Data> implements Map
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
 	public boolean containsKey(Object key) {
-		return getSlot((Name) key, false) != null;
+		return findSlot(key) != null;
 	}
 
 	@Override
@@ -251,10 +264,8 @@ public class IndexSegment<Name, Data> extends Segment<Name, Data> implements Map
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
 	public Integer get(Object key) {
-		Name name = (Name) key;
-		IndexEntrySlot<Name> slot = getSlot(name, false);
+		IndexEntrySlot<Name> slot = findSlot(key);
 		if (slot == null) return null;
 		return slot.getDataBlockID();
 	}
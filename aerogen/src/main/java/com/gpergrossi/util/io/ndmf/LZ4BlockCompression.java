@@ -0,0 +1,214 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>A pure Java implementation of the LZ4 block format. Compresses less than deflate but several times faster,
+ * and decompresses faster still. The output is the uncompressed length (a big-endian int) followed by one LZ4
+ * block.</p>
+ *
+ * <p>The block is a series of sequences. Each sequence is a token (the high nibble is the literal count, the low
+ * nibble the match length minus 4; 15 means more length bytes follow), the literals, a little-endian 2-byte offset
+ * back into the output, and the match. The last sequence has only literals. Matches are found with a single
+ * hash table of 4-byte prefixes, as in LZ4's fast mode.</p>
+ */
+public class LZ4BlockCompression extends CompressionMethod.Block {
+
+	public static LZ4BlockCompression INSTANCE = new LZ4BlockCompression();
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_LOG = 12;
+	private static final int SKIP_STRENGTH = 6;
+
+	private static final ThreadLocal<int[]> HASH_TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+	private static final ThreadLocal<DataBuffer> OUTPUT = ThreadLocal.withInitial(() -> new DataBuffer(8192));
+
+	private LZ4BlockCompression() {
+		CompressionMethod.register(this);
+	}
+
+	@Override
+	public byte getCompressionID() {
+		return 2;
+	}
+
+	private static int readInt(byte[] bytes, int i) {
+		return (bytes[i] & 0xFF) | (bytes[i+1] & 0xFF) << 8 | (bytes[i+2] & 0xFF) << 16 | (bytes[i+3] & 0xFF) << 24;
+	}
+
+	private static int hash(int value) {
+		return (value * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	@Override
+	public void compress(byte[] src, int offset, int length, OutputStream out) throws IOException {
+		final DataBuffer output = OUTPUT.get();
+		output.reset();
+		output.ensureRemaining(4 + length + length / 255 + 16);
+		final byte[] dst = output.array();
+		dst[0] = (byte) (length >>> 24);
+		dst[1] = (byte) (length >>> 16);
+		dst[2] = (byte) (length >>> 8);
+		dst[3] = (byte) length;
+		int op = 4;
+
+		final int end = offset + length;
+		int anchor = offset;
+
+		if (length >= MF_LIMIT + 1) {
+			final int[] table = HASH_TABLE.get();
+			Arrays.fill(table, -1);
+
+			final int matchLimit = end - LAST_LITERALS;
+			final int limit = end - MF_LIMIT;
+
+			int ip = offset;
+			int searches = 1 << SKIP_STRENGTH;
+			while (ip < limit) {
+				final int sequence = readInt(src, ip);
+				final int h = hash(sequence);
+				int ref = table[h];
+				table[h] = ip;
+
+				if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					// Skip ahead faster the longer nothing matches
+					ip += searches++ >>> SKIP_STRENGTH;
+					continue;
+				}
+				searches = 1 << SKIP_STRENGTH;
+
+				// Extend the match backwards over pending literals, then forwards
+				while (ip > anchor && ref > offset && src[ip-1] == src[ref-1]) {
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+					matchLength++;
+				}
+
+				op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+				ip += matchLength;
+				anchor = ip;
+
+				if (ip < limit) table[hash(readInt(src, ip - 2))] = ip - 2;
+			}
+		}
+
+		op = writeLiterals(src, anchor, end - anchor, 0, dst, op);
+		out.write(dst, 0, op);
+	}
+
+	private static int writeLiterals(byte[] src, int start, int count, int matchToken, byte[] dst, int op) {
+		final int tokenPos = op++;
+		if (count >= 15) {
+			dst[tokenPos] = (byte) (0xF0 | matchToken);
+			int remaining = count - 15;
+			while (remaining >= 255) {
+				dst[op++] = (byte) 255;
+				remaining -= 255;
+			}
+			dst[op++] = (byte) remaining;
+		} else {
+			dst[tokenPos] = (byte) (count << 4 | matchToken);
+		}
+		System.arraycopy(src, start, dst, op, count);
+		return op + count;
+	}
+
+	private static int writeSequence(byte[] src, int literalStart, int literalCount, int matchOffset, int matchLength, byte[] dst, int op) {
+		final int extraLength = matchLength - MIN_MATCH;
+		op = writeLiterals(src, literalStart, literalCount, Math.min(extraLength, 15), dst, op);
+
+		dst[op++] = (byte) matchOffset;
+		dst[op++] = (byte) (matchOffset >>> 8);
+
+		if (extraLength >= 15) {
+			int remaining = extraLength - 15;
+			while (remaining >= 255) {
+				dst[op++] = (byte) 255;
+				remaining -= 255;
+			}
+			dst[op++] = (byte) remaining;
+		}
+		return op;
+	}
+
+	@Override
+	public byte[] decompress(byte[] src, int offset, int length) throws IOException {
+		final DataBuffer out = new DataBuffer(0);
+		decompress(src, offset, length, out);
+		return out.array();
+	}
+
+	@Override
+	public void decompress(byte[] src, int offset, int length, DataBuffer out) throws IOException {
+		if (length < 4) throw new IOException("Truncated LZ4 block");
+		final int size = (src[offset] & 0xFF) << 24 | (src[offset+1] & 0xFF) << 16 | (src[offset+2] & 0xFF) << 8 | (src[offset+3] & 0xFF);
+		if (size < 0) throw new IOException("Corrupt LZ4 block");
+
+		out.ensureRemaining(size);
+		final byte[] dst = out.array();
+		final int start = out.size();
+		final int limit = start + size;
+		final int end = offset + length;
+		int ip = offset + 4;
+		int op = start;
+
+		try {
+			while (true) {
+				final int token = src[ip++] & 0xFF;
+
+				int literalCount = token >>> 4;
+				if (literalCount == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literalCount += b;
+					} while (b == 255);
+				}
+				if (ip + literalCount > end || op + literalCount > limit) throw new IOException("Corrupt LZ4 block");
+				System.arraycopy(src, ip, dst, op, literalCount);
+				ip += literalCount;
+				op += literalCount;
+
+				if (ip == end) break; // The last sequence has no match
+
+				final int matchOffset = (src[ip] & 0xFF) | (src[ip+1] & 0xFF) << 8;
+				ip += 2;
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				int ref = op - matchOffset;
+				if (matchOffset == 0 || ref < start || op + matchLength > limit) throw new IOException("Corrupt LZ4 block");
+				if (matchOffset >= matchLength) {
+					System.arraycopy(dst, ref, dst, op, matchLength);
+					op += matchLength;
+				} else {
+					// Overlapping match, repeats the last matchOffset bytes
+					for (int i = 0; i < matchLength; i++) {
+						dst[op++] = dst[ref++];
+					}
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated LZ4 block", e);
+		}
+
+		if (op != limit) throw new IOException("Corrupt LZ4 block");
+		out.setSize(limit);
+	}
+
+}
@@ -0,0 +1,234 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * <p>An {@link NDMFStorage} that maps the file into memory in windows of {@link #WINDOW_SIZE} bytes. Reads and
+ * writes are plain gets and puts on the mapped buffers, so writing a segment header or an index entry does not
+ * cost a system call. Nothing is guaranteed to reach the device until {@link #force()} is called.</p>
+ *
+ * <p>Windows are mapped when first used and cover the file only up to its current length, so the file on disk
+ * keeps its exact length. The last window is mapped again when the file grows past its end.</p>
+ *
+ * <p>{@link #readAt} reads from a duplicate of the window, so that it does not disturb the window's position.
+ * Looking up and mapping windows is synchronized, since readers may do it from any thread.</p>
+ *
+ * <p>Java 8 cannot unmap a buffer explicitly. Mapped windows are released when they are garbage collected,
+ * which on some platforms prevents the file from being deleted or truncated until then.</p>
+ */
+public class MappedFileStorage implements NDMFStorage {
+
+	public static final int WINDOW_SHIFT = 22;
+	public static final int WINDOW_SIZE = 1 << WINDOW_SHIFT; // 4 MB
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	private MappedByteBuffer[] windows;
+	private boolean[] dirty;
+	private boolean lengthChanged;
+
+	private volatile long length;
+	private long position;
+
+	public MappedFileStorage(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.length = channel.size();
+		this.windows = new MappedByteBuffer[0];
+		this.dirty = new boolean[0];
+	}
+
+	/**
+	 * Returns the window containing the byte at the given position, mapping it if needed.
+	 * The position must be less than the length of the file.
+	 */
+	private synchronized MappedByteBuffer window(long pos) throws IOException {
+		final int index = (int) (pos >>> WINDOW_SHIFT);
+		if (index >= windows.length) {
+			final int newLength = Math.max(index + 1, windows.length * 2);
+			windows = Arrays.copyOf(windows, newLength);
+			dirty = Arrays.copyOf(dirty, newLength);
+		}
+
+		final long start = (long) index << WINDOW_SHIFT;
+		final int size = (int) Math.min(WINDOW_SIZE, length - start);
+
+		MappedByteBuffer window = windows[index];
+		if (window == null || window.capacity() < size) {
+			// Mappings of the same file share memory, so nothing written to the old window is lost
+			window = channel.map(MapMode.READ_WRITE, start, size);
+			windows[index] = window;
+		}
+		return window;
+	}
+
+	private void checkRead(int count) throws IOException {
+		if (position + count > length) throw new EOFException();
+	}
+
+	private void prepareWrite(int count) throws IOException {
+		if (position + count > length) setLength(position + count);
+	}
+
+	private synchronized void markDirty(long pos) {
+		dirty[(int) (pos >>> WINDOW_SHIFT)] = true;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public synchronized void setLength(long newLength) throws IOException {
+		if (newLength == length) return;
+		if (newLength < length) {
+			// Drop windows that would extend past the new end. They are remapped on demand.
+			for (int i = (int) (newLength >>> WINDOW_SHIFT); i < windows.length; i++) {
+				if (windows[i] != null && dirty[i]) windows[i].force();
+				windows[i] = null;
+				dirty[i] = false;
+			}
+		}
+		file.setLength(newLength);
+		length = newLength;
+		lengthChanged = true;
+	}
+
+	@Override
+	public long getPosition() {
+		return position;
+	}
+
+	@Override
+	public void seek(long position) {
+		this.position = position;
+	}
+
+	@Override
+	public void skipBytes(int count) {
+		this.position += count;
+	}
+
+	@Override
+	public void read(byte[] bytes, int offset, int count) throws IOException {
+		checkRead(count);
+		while (count > 0) {
+			final MappedByteBuffer window = window(position);
+			final int windowOffset = (int) (position & WINDOW_MASK);
+			final int chunk = Math.min(count, window.capacity() - windowOffset);
+			window.position(windowOffset);
+			window.get(bytes, offset, chunk);
+			position += chunk;
+			offset += chunk;
+			count -= chunk;
+		}
+	}
+
+	@Override
+	public void readAt(long pos, byte[] bytes, int offset, int count) throws IOException {
+		if (pos + count > length) throw new EOFException();
+		while (count > 0) {
+			final ByteBuffer window = window(pos).duplicate();
+			final int windowOffset = (int) (pos & WINDOW_MASK);
+			final int chunk = Math.min(count, window.capacity() - windowOffset);
+			window.position(windowOffset);
+			window.get(bytes, offset, chunk);
+			pos += chunk;
+			offset += chunk;
+			count -= chunk;
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		checkRead(1);
+		final byte value = window(position).get((int) (position & WINDOW_MASK));
+		position++;
+		return value;
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		checkRead(4);
+		final int windowOffset = (int) (position & WINDOW_MASK);
+		if (windowOffset <= WINDOW_SIZE - 4) {
+			final int value = window(position).getInt(windowOffset);
+			position += 4;
+			return value;
+		}
+		return (readByte() & 0xFF) << 24 | (readByte() & 0xFF) << 16 | (readByte() & 0xFF) << 8 | (readByte() & 0xFF);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int count) throws IOException {
+		prepareWrite(count);
+		while (count > 0) {
+			final MappedByteBuffer window = window(position);
+			final int windowOffset = (int) (position & WINDOW_MASK);
+			final int chunk = Math.min(count, window.capacity() - windowOffset);
+			window.position(windowOffset);
+			window.put(bytes, offset, chunk);
+			markDirty(position);
+			position += chunk;
+			offset += chunk;
+			count -= chunk;
+		}
+	}
+
+	@Override
+	public void writeByte(int value) throws IOException {
+		prepareWrite(1);
+		window(position).put((int) (position & WINDOW_MASK), (byte) value);
+		markDirty(position);
+		position++;
+	}
+
+	@Override
+	public void writeInt(int value) throws IOException {
+		final int windowOffset = (int) (position & WINDOW_MASK);
+		if (windowOffset <= WINDOW_SIZE - 4) {
+			prepareWrite(4);
+			window(position).putInt(windowOffset, value);
+			markDirty(position);
+			position += 4;
+			return;
+		}
+		writeByte(value >>> 24);
+		writeByte(value >>> 16);
+		writeByte(value >>> 8);
+		writeByte(value);
+	}
+
+	@Override
+	public synchronized void force() throws IOException {
+		for (int i = 0; i < windows.length; i++) {
+			if (!dirty[i]) continue;
+			windows[i].force();
+			dirty[i] = false;
+		}
+		if (lengthChanged) {
+			channel.force(true);
+			lengthChanged = false;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		force();
+		windows = new MappedByteBuffer[0];
+		dirty = new boolean[0];
+		file.close();
+	}
+
+}
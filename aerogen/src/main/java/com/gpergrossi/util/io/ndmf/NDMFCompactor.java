@@ -0,0 +1,222 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Compacts a {@link NamedDataMapFile} while it is in use. Segments are freed and reallocated as records change
+ * size, and the file is never shrunk by normal use, so a long-lived file collects free blocks. Each {@link #step}
+ * moves data segments from the end of the file into the lowest free blocks that fit them, then truncates any free
+ * blocks left at the end of the file.</p>
+ *
+ * <p>A step holds the file's lock for about the time it is given, so the file can be written between steps. Reads
+ * do not take the file's lock and are not held up by a step. A pass over the file starts by listing every data
+ * segment by its start block, a hash index bucket at a time, with each step resuming the listing where the last
+ * one stopped. It then moves the segments one at a time from the highest. Segments that were rewritten or removed
+ * since they were listed are skipped.</p>
+ *
+ * <p>A step copies all of its segments, forces the file, points the index at the copies, and forces the file again
+ * before the old blocks are freed. A crash at any point leaves every name pointing at a complete copy of its data.
+ * A crash between the two forces can leave copies that nothing points to, which are reported as orphans by
+ * {@link NDMFVerifier} and are not reclaimed.</p>
+ *
+ * <p>Index segments are never moved, so blocks below the last index segment are not truncated.</p>
+ */
+public class NDMFCompactor<Name, Data> {
+
+	private final NamedDataMapFile<Name, Data> ndmFile;
+
+	/**
+	 * A new pass is only started when at least this fraction of the file's blocks are free.
+	 */
+	public double minFragmentation = 0.1;
+
+	/** Data segments left to move in the current pass, by start block */
+	private TreeMap<Integer, Name> pass;
+
+	/** Where the listing of the current pass continues, or -1 once it is complete */
+	private int listPosition = -1;
+
+	private long passes;
+	private long segmentsMoved;
+	private long bytesMoved;
+	private long blocksReclaimed;
+	private long maxStepNanos;
+
+	private volatile Thread thread;
+
+	public NDMFCompactor(NamedDataMapFile<Name, Data> ndmFile) {
+		this.ndmFile = ndmFile;
+	}
+
+	/**
+	 * Lists or moves segments toward the front of the file for about the given number of nanoseconds, always
+	 * listing one bucket or moving one segment if any can be moved, and truncates the free blocks at the end of
+	 * the file. Returns true if the current pass has more segments to list or move.
+	 */
+	public boolean step(long maxNanos) throws IOException {
+		synchronized (ndmFile) {
+			if (!ndmFile.isOpen()) {
+				pass = null;
+				return false;
+			}
+			final long startNanos = System.nanoTime();
+			final FreeExtentMap freeSpace = ndmFile.getFreeSpace();
+
+			if (pass == null) {
+				if (getFragmentation() < minFragmentation) {
+					blocksReclaimed += ndmFile.truncateFreeTail();
+					return false;
+				}
+				pass = new TreeMap<>();
+				listPosition = 0;
+				passes++;
+			}
+
+			boolean progressed = false;
+			while (listPosition >= 0 && (!progressed || System.nanoTime() - startNanos < maxNanos)) {
+				listPosition = ndmFile.getStoredNamesByBlock(pass, listPosition);
+				progressed = true;
+			}
+
+			final List<Name> names = new ArrayList<>();
+			final List<int[]> moves = new ArrayList<>(); // { from, to, size }
+			while (listPosition < 0 && !pass.isEmpty() && (!progressed || System.nanoTime() - startNanos < maxNanos)) {
+				final Map.Entry<Integer, Name> highest = pass.pollLastEntry();
+				final int from = highest.getKey();
+				final Name name = highest.getValue();
+
+				// Nothing free below this segment or any before it
+				final int firstFree = freeSpace.firstFree();
+				if (firstFree < 0 || firstFree > from) {
+					pass.clear();
+					break;
+				}
+
+				final Integer current = ndmFile.getStoredBlockID(name);
+				if (current == null || current != from) continue;
+
+				ndmFile.seekBlock(from, 0);
+				final int size = ndmFile.readSegmentHeader();
+				final int to = freeSpace.allocateFirstFit(ndmFile.numBlocks(size), from);
+				if (to < 0) continue;
+
+				ndmFile.copyBlock(from, to, size);
+				names.add(name);
+				moves.add(new int[] { from, to, size });
+				progressed = true;
+			}
+			if (listPosition < 0 && pass.isEmpty()) pass = null;
+
+			if (!moves.isEmpty()) {
+				ndmFile.force();
+				for (int i = 0; i < moves.size(); i++) {
+					ndmFile.relocate(names.get(i), moves.get(i)[1]);
+				}
+				ndmFile.force();
+				for (int[] move : moves) {
+					ndmFile.markBlocksFree(move[0], move[0] + ndmFile.numBlocks(move[2]) - 1);
+					bytesMoved += move[2];
+				}
+				ndmFile.freePendingBlocks();
+				segmentsMoved += moves.size();
+			}
+			blocksReclaimed += ndmFile.truncateFreeTail();
+
+			maxStepNanos = Math.max(maxStepNanos, System.nanoTime() - startNanos);
+			return pass != null;
+		}
+	}
+
+	/**
+	 * Runs steps until the current pass is finished, or a new one if none is in progress.
+	 */
+	public void compact() throws IOException {
+		while (step(Long.MAX_VALUE));
+	}
+
+	/**
+	 * The fraction of the file's blocks that are free.
+	 */
+	public double getFragmentation() throws IOException {
+		synchronized (ndmFile) {
+			if (!ndmFile.isOpen()) return 0;
+			final long totalBlocks = ndmFile.numBlocks(ndmFile.getFileLength());
+			return (double) ndmFile.getFreeSpace().getFreeBlockCount() / totalBlocks;
+		}
+	}
+
+	public long getBytesReclaimed() {
+		synchronized (ndmFile) {
+			return blocksReclaimed * ndmFile.SIZE_BLOCK;
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that runs a step of stepMillis milliseconds every intervalMillis milliseconds,
+	 * until {@link #stop} is called or the file is closed.
+	 */
+	public synchronized void start(String name, int stepMillis, int intervalMillis) {
+		if (thread != null) throw new IllegalStateException("Compactor is already running!");
+		final Thread compactor = new Thread(() -> run(stepMillis * 1000000L, intervalMillis), "NDMF Compactor ("+name+")");
+		compactor.setDaemon(true);
+		compactor.setPriority(Thread.MIN_PRIORITY);
+		this.thread = compactor;
+		compactor.start();
+	}
+
+	private void run(long stepNanos, int intervalMillis) {
+		try {
+			while (thread == Thread.currentThread()) {
+				step(stepNanos);
+				synchronized (this) {
+					if (thread == Thread.currentThread()) wait(intervalMillis);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the thread started by {@link #start} and waits for its current step to finish.
+	 */
+	public void stop() {
+		final Thread compactor;
+		synchronized (this) {
+			compactor = thread;
+			thread = null;
+			notifyAll();
+		}
+		if (compactor == null) return;
+		
+		// Not interrupted, since an interrupt during a FileChannel operation closes the channel
+		try {
+			compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void appendStatistics(List<String> output) {
+		synchronized (ndmFile) {
+			try {
+				output.add(String.format(Locale.ROOT, "Compaction: %d passes, %d segments moved (%d KB), %d KB reclaimed, longest step: %.1f ms",
+						passes, segmentsMoved, bytesMoved / 1024, blocksReclaimed * ndmFile.SIZE_BLOCK / 1024, maxStepNanos / 1000000.0));
+				if (ndmFile.isOpen()) {
+					output.add(String.format(Locale.ROOT, "  fragmentation: %.1f%% of %d KB free in %d extents",
+							getFragmentation() * 100.0, ndmFile.getFileLength() / 1024, ndmFile.getFreeSpace().getExtentCount()));
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,338 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Append-only write-ahead journal of a {@link NamedDataMapFile}. Changes are appended to an in-memory buffer and
+ * written to the journal file in groups: one write and one force() make every change in the group durable. Only
+ * after that are the changes applied to the block file, which then never needs to be forced on its own. The journal
+ * is truncated at checkpoints, once everything in it has been applied and the block file has been forced.</p>
+ *
+ * <p>Each record is an int payload length, the CRC32 of the payload, and the payload. A payload is a record type
+ * followed by either a name and its encoded data (a set or a removal), or a group number (a commit). When the
+ * journal is read back, only records followed by a commit are returned. A torn or corrupt tail is ignored.</p>
+ *
+ * <p>All writes to the journal file are made by a single committer thread, which calls {@link #commitNext}.</p>
+ */
+public class NDMFJournal<Name> {
+
+	private static final byte RECORD_SET = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final byte RECORD_COMMIT = 3;
+
+	private static final int MAX_PAYLOAD = 1 << 28;
+
+	/**
+	 * A single set or removal. Records appended in this session also keep the name object.
+	 */
+	public static class Record<Name> {
+		public final Name name;
+		public final byte[] nameBytes;
+
+		/** Encoded data as returned by {@link NamedDataMapFile#encode}, or null for a removal */
+		public final byte[] encoded;
+
+		public Record(Name name, byte[] nameBytes, byte[] encoded) {
+			this.name = name;
+			this.nameBytes = nameBytes;
+			this.encoded = encoded;
+		}
+	}
+
+	/**
+	 * The committed contents of a journal file.
+	 */
+	public static class Contents {
+		public final List<Record<Void>> records = new ArrayList<>();
+		public int groups;
+
+		/** Records at the end of the file that were never committed */
+		public int uncommittedRecords;
+
+		/** True if the file ends in an incomplete or corrupt record */
+		public boolean tornTail;
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private List<Record<Name>> bufferedRecords = new ArrayList<>();
+	private long bufferedSinceNanos;
+
+	/** The group that buffered records will be committed in */
+	private long nextGroup = 1;
+	private long durableGroup = 0;
+	private boolean commitRequested;
+	private boolean closing;
+	private IOException failure;
+
+	private final long openedNanos = System.nanoTime();
+	private long groupsCommitted;
+	private long recordsCommitted;
+	private long bytesCommitted;
+	private long totalWindowNanos;
+	private long maxWindowNanos;
+	private long totalForceNanos;
+
+	/**
+	 * Creates an empty journal, replacing the file if it exists.
+	 */
+	public NDMFJournal(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+	}
+
+	/**
+	 * Buffers a record to be written in the next group commit, and returns the number of that group.
+	 * Callers can pass it to {@link #awaitDurable}.
+	 */
+	public synchronized long append(Record<Name> record) throws IOException {
+		if (failure != null) throw new IOException("Journal failed", failure);
+		if (closing) throw new IllegalStateException("Journal is closed!");
+
+		if (bufferedRecords.isEmpty()) {
+			bufferedSinceNanos = System.nanoTime();
+			notifyAll();
+		}
+		bufferedRecords.add(record);
+		writeRecord(buffer, record.encoded == null ? RECORD_REMOVE : RECORD_SET, record.nameBytes, record.encoded, 0);
+		return nextGroup;
+	}
+
+	/**
+	 * Asks the committer to commit buffered records without waiting for the rest of the commit window.
+	 * Returns the number of the last group that has been appended to.
+	 */
+	public synchronized long requestCommit() {
+		commitRequested = true;
+		notifyAll();
+		return bufferedRecords.isEmpty() ? nextGroup - 1 : nextGroup;
+	}
+
+	/**
+	 * Waits until the given group has been written and forced to the journal file.
+	 */
+	public synchronized void awaitDurable(long group) throws IOException {
+		while (durableGroup < group) {
+			if (failure != null) throw new IOException("Journal failed", failure);
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * Called by the committer thread. Waits for buffered records, then for the commit window to pass (or for a
+	 * commit to be requested), and writes and forces the buffered records as one group. Returns the records of
+	 * the group, which the caller should apply to the block file. Returns null once the journal is closing and
+	 * every record has been committed.
+	 */
+	public List<Record<Name>> commitNext(long windowNanos) throws IOException {
+		final byte[] bytes;
+		final List<Record<Name>> records;
+		final long group, sinceNanos;
+
+		synchronized (this) {
+			try {
+				while (bufferedRecords.isEmpty()) {
+					if (closing) return null;
+					wait();
+				}
+				while (!commitRequested && !closing) {
+					final long remaining = bufferedSinceNanos + windowNanos - System.nanoTime();
+					if (remaining <= 0) break;
+					wait(remaining / 1000000L, (int) (remaining % 1000000L));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+
+			group = nextGroup++;
+			writeRecord(buffer, RECORD_COMMIT, null, null, group);
+			bytes = buffer.toByteArray();
+			records = bufferedRecords;
+			sinceNanos = bufferedSinceNanos;
+
+			buffer = new ByteArrayOutputStream();
+			bufferedRecords = new ArrayList<>();
+			commitRequested = false;
+		}
+
+		final long forceStart = System.nanoTime();
+		try {
+			final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+			while (byteBuffer.hasRemaining()) channel.write(byteBuffer);
+			channel.force(false); // The length change is forced with the data
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+		final long now = System.nanoTime();
+
+		synchronized (this) {
+			durableGroup = group;
+			groupsCommitted++;
+			recordsCommitted += records.size();
+			bytesCommitted += bytes.length;
+			totalWindowNanos += now - sinceNanos;
+			maxWindowNanos = Math.max(maxWindowNanos, now - sinceNanos);
+			totalForceNanos += now - forceStart;
+			notifyAll();
+		}
+		return records;
+	}
+
+	/**
+	 * Called by the committer thread once everything committed so far has been applied to the block file
+	 * and the block file has been forced.
+	 */
+	public void checkpoint() throws IOException {
+		file.setLength(0);
+		channel.position(0);
+	}
+
+	public long length() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Called by the committer thread if it cannot continue. Waiting and later writers get an IOException.
+	 */
+	public synchronized void fail(Exception cause) {
+		if (failure == null) failure = (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+		notifyAll();
+	}
+
+	public synchronized boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Makes {@link #commitNext} commit every buffered record and then return null.
+	 */
+	public synchronized void shutdown() {
+		closing = true;
+		notifyAll();
+	}
+
+	public void close() throws IOException {
+		shutdown();
+		file.close();
+	}
+
+	public synchronized void appendStatistics(List<String> output) {
+		final double seconds = (System.nanoTime() - openedNanos) / 1000000000.0;
+		output.add(String.format(Locale.ROOT, "Journal group commits: %d, records: %d (%.1f per group, %.1f per second), %d KB",
+				groupsCommitted, recordsCommitted, groupsCommitted == 0 ? 0.0 : (double) recordsCommitted / groupsCommitted,
+				recordsCommitted / seconds, bytesCommitted / 1024));
+		if (groupsCommitted > 0) {
+			output.add(String.format(Locale.ROOT, "  commit latency: %.1f ms average, %.1f ms max, force: %.1f ms average",
+					totalWindowNanos / 1000000.0 / groupsCommitted, maxWindowNanos / 1000000.0, totalForceNanos / 1000000.0 / groupsCommitted));
+		}
+	}
+
+	private static void writeRecord(ByteArrayOutputStream out, byte type, byte[] nameBytes, byte[] encoded, long group) {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		final DataOutputStream dos = new DataOutputStream(payload);
+		try {
+			dos.writeByte(type);
+			if (type == RECORD_COMMIT) {
+				dos.writeLong(group);
+			} else {
+				dos.writeInt(nameBytes.length);
+				dos.write(nameBytes);
+				if (encoded != null) dos.write(encoded);
+			}
+
+			final byte[] bytes = payload.toByteArray();
+			final CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+
+			final DataOutputStream header = new DataOutputStream(out);
+			header.writeInt(bytes.length);
+			header.writeInt((int) crc.getValue());
+			out.write(bytes);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // Not thrown by byte array streams
+		}
+	}
+
+	/**
+	 * Reads the committed records of a journal file, in the order they were appended.
+	 */
+	public static Contents read(File journalFile) throws IOException {
+		final Contents contents = new Contents();
+		if (!journalFile.exists()) return contents;
+
+		final List<Record<Void>> group = new ArrayList<>();
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+			final CRC32 crc = new CRC32();
+			while (true) {
+				final int length;
+				try {
+					length = dis.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+
+				final byte[] payload;
+				try {
+					final int checksum = dis.readInt();
+					if (length <= 0 || length > MAX_PAYLOAD) throw new EOFException();
+					payload = new byte[length];
+					dis.readFully(payload);
+
+					crc.reset();
+					crc.update(payload, 0, length);
+					if ((int) crc.getValue() != checksum) throw new EOFException();
+				} catch (EOFException e) {
+					contents.tornTail = true;
+					break;
+				}
+
+				final DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				final byte type = record.readByte();
+				if (type == RECORD_COMMIT) {
+					contents.records.addAll(group);
+					contents.groups++;
+					group.clear();
+					continue;
+				}
+
+				final byte[] nameBytes = new byte[record.readInt()];
+				record.readFully(nameBytes);
+				byte[] encoded = null;
+				if (type == RECORD_SET) {
+					encoded = new byte[length - 1 - 4 - nameBytes.length];
+					record.readFully(encoded);
+				}
+				group.add(new Record<>(null, nameBytes, encoded));
+			}
+		}
+		contents.uncommittedRecords = group.size();
+		return contents;
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>The file underneath a {@link NamedDataMapFile}. A storage has a length and a position, like a
+ * RandomAccessFile, and reads and writes at its position advance it. Writing past the end extends it.</p>
+ *
+ * <p>Apart from {@link #readAt}, a storage is used by one thread at a time.</p>
+ *
+ * <p>Writes are not necessarily durable until {@link #force()} is called. NamedDataMapFile calls it at the
+ * end of every change if {@link NamedDataMapFile#synchronousWrites} is set, and from {@link NamedDataMapFile#sync()}.</p>
+ */
+public interface NDMFStorage extends Closeable {
+
+	public static enum Backend {
+		/** Every read and write is a call to a RandomAccessFile */
+		RANDOM_ACCESS_FILE {
+			@Override
+			public NDMFStorage open(File file, boolean synchronousWrites) throws IOException {
+				return new RandomAccessFileStorage(file, synchronousWrites);
+			}
+		},
+
+		/** Reads and writes are buffer gets and puts on memory mapped windows of the file */
+		MEMORY_MAPPED {
+			@Override
+			public NDMFStorage open(File file, boolean synchronousWrites) throws IOException {
+				return new MappedFileStorage(file);
+			}
+		};
+
+		/**
+		 * Opens the given file, which must exist.
+		 */
+		public abstract NDMFStorage open(File file, boolean synchronousWrites) throws IOException;
+	}
+
+	public long length() throws IOException;
+
+	public void setLength(long length) throws IOException;
+
+	public long getPosition() throws IOException;
+
+	public void seek(long position) throws IOException;
+
+	public void skipBytes(int count) throws IOException;
+
+	/**
+	 * Reads exactly length bytes, or throws an EOFException.
+	 */
+	public void read(byte[] bytes, int offset, int length) throws IOException;
+
+	/**
+	 * Reads exactly length bytes starting at the given position, or throws an EOFException. Does not use or move
+	 * the storage's position, and may be called by any number of threads at once, concurrently with the thread
+	 * that uses the other methods.
+	 */
+	public void readAt(long position, byte[] bytes, int offset, int length) throws IOException;
+
+	public byte readByte() throws IOException;
+
+	public int readInt() throws IOException;
+
+	public void write(byte[] bytes, int offset, int length) throws IOException;
+
+	public void writeByte(int value) throws IOException;
+
+	public void writeInt(int value) throws IOException;
+
+	/**
+	 * Makes all writes so far durable.
+	 */
+	public void force() throws IOException;
+
+}
@@ -1,7 +1,9 @@
 package com.gpergrossi.util.io.ndmf;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -15,9 +17,77 @@ import com.gpergrossi.util.geom.vectors.Int2D;
 
 public class NDMFVerifier {
 
+	/**
+	 * Collects the segments of a {@link HashIndex} and the data segments it references, in the same form as
+	 * the chained index walk of {@link #verifyFormat}. Returns { number of index blocks, highest expected block }.
+	 */
+	private static int[] verifyHashIndex(NamedDataMapFile<?, ?> ndmf, Map<Integer, Integer> indexSegments, Map<Integer, Int2D> dataSegments,
+			Map<Integer, String> blockMessages, Map<Integer, String> blockErrors) throws IOException {
+		
+		ndmf.seekBlock(0, ndmf.SIZE_SEGMENT_HEADER + 4);
+		final int version = ndmf.readBlockID();
+		final int directoryBlockID = ndmf.readBlockID();
+		final int storedCount = (version >= 2) ? ndmf.readBlockID() : -1;
+		blockMessages.put(0, "Block  0: Hash index header. Directory: "+directoryBlockID+(storedCount >= 0 ? ", "+storedCount+" names" : ""));
+		
+		final int[] directory = HashIndex.readDirectory(ndmf, directoryBlockID);
+		final int directorySize = HashIndex.directorySize(Integer.numberOfTrailingZeros(directory.length));
+		indexSegments.put(directoryBlockID, 0);
+		blockMessages.put(directoryBlockID, "Block  "+directoryBlockID+": Hash index directory. "+directory.length+" entries");
+		int numIndexBlocks = 1 + ndmf.numBlocks(directorySize);
+		int highestExpected = directoryBlockID + ndmf.numBlocks(directorySize) - 1;
+		
+		final int mask = directory.length - 1;
+		final byte[] name = new byte[ndmf.SIZE_NAME];
+		final Set<Integer> buckets = new TreeSet<>();
+		for (int bucket : directory) buckets.add(bucket);
+		int numNames = 0;
+		for (int bucket : buckets) {
+			indexSegments.put(bucket, directoryBlockID);
+			numIndexBlocks += ndmf.numBlocks(ndmf.SIZE_INDEX_SEGMENT);
+			highestExpected = Math.max(highestExpected, bucket);
+			
+			ndmf.seekBlock(bucket, 0);
+			final int size = ndmf.readSegmentHeader();
+			final int count = ndmf.readBlockID();
+			if (size != ndmf.SIZE_INDEX_SEGMENT || count < 0 || count > (size - ndmf.SIZE_SEGMENT_HEADER - 4) / ndmf.SIZE_INDEX_ENTRY) {
+				blockErrors.put(bucket, "Bad Bucket! Block "+bucket+" has a size of "+size+" and "+count+" entries");
+				continue;
+			}
+			
+			int numStale = 0;
+			for (int slot = 0; slot < count; slot++) {
+				final int blockReference = ndmf.readBlockID();
+				ndmf.readNameBytes(name);
+				if (directory[HashIndex.hash(name, 0, name.length) & mask] != bucket) {
+					numStale++;
+					continue;
+				}
+				if (blockReference <= 0) {
+					String error = "Bad Index Entry! Bucket "+bucket+" slot "+slot+" references block "+blockReference;
+					String previousError = blockErrors.get(bucket);
+					error = (previousError == null) ? error : previousError+"\n"+error; 
+					blockErrors.put(bucket, error);
+					continue;
+				}
+				dataSegments.put(blockReference, new Int2D(bucket, slot));
+				highestExpected = Math.max(highestExpected, blockReference);
+			}
+			blockMessages.put(bucket, "Block  "+bucket+": Hash index bucket. "+count+" entries"+(numStale > 0 ? ", "+numStale+" left by an unfinished split" : ""));
+			numNames += count - numStale;
+		}
+		if (storedCount >= 0 && storedCount != numNames) {
+			blockErrors.put(0, "Bad Name Count! The header counts "+storedCount+" names but the buckets hold "+numNames);
+		}
+		return new int[] { numIndexBlocks, highestExpected };
+	}
+
 	public static <Name, Data> boolean verifyFormat(NamedDataMapFile<Name, Data> ndmf, boolean verbose) throws IOException {
 		System.out.println("----- VERIFYING FORMAT -----");
 		
+		// Blocks kept for reads that have finished would be reported as orphans
+		ndmf.freeDeferredBlocks();
+		
 		Map<Integer, String> blockMessages = new TreeMap<>();
 		Map<Integer, String> blockErrors = new TreeMap<>();
 		
@@ -32,6 +102,12 @@ public class NDMFVerifier {
 		int numDataBlocks = 0;
 
 		Integer blockOn = 0, previousBlock = null;
+		if (HashIndex.isHashIndex(ndmf)) {
+			int[] counts = verifyHashIndex(ndmf, indexSegments, dataSegments, blockMessages, blockErrors);
+			numIndexBlocks = counts[0];
+			highestExpected = counts[1];
+			blockOn = null;
+		}
 		while (blockOn != null) {
 
 			final long offset = ndmf.blockOffset(blockOn);
@@ -221,6 +297,18 @@ public class NDMFVerifier {
 			blockErrors.put(entry.getKey(), error);
 		}
 
+		// The free space map, if loaded, must agree with the free blocks found on disk
+		final FreeExtentMap freeSpace = ndmf.getFreeSpace();
+		if (freeSpace != null) {
+			for (int block = 0; block < blockOn; block++) {
+				if (freeSpace.isFree(block) == freeBlocks.contains(block)) continue;
+				String error = "Free Space Mismatch! Block "+block+" is "+(freeSpace.isFree(block) ? "free" : "used")+" in the free space map but not on disk";
+				String previousError = blockErrors.get(block);
+				error = (previousError == null) ? error : previousError+"\n"+error; 
+				blockErrors.put(block, error);
+			}
+		}
+
 		int totalBlocks = freeBlocks.size() + numDataBlocks + numIndexBlocks;
 		double percentFree = ((double) freeBlocks.size() * 100.0) / totalBlocks;
 		String percent = String.format("%.2f", percentFree);
@@ -292,7 +380,58 @@ public class NDMFVerifier {
 		System.out.println("----- END VERIFICATION -----");
 		System.out.println();
 		
-		return blockErrors.size() == 0;
+		// The journal can only be compared once the index has been loaded
+		boolean journalAgrees = true;
+		if (ndmf.debugGetStoredNames() != null && ndmf.getJournalFile() != null && ndmf.getJournalFile().exists()) {
+			journalAgrees = verifyJournal(ndmf, verbose);
+		}
+		
+		return blockErrors.size() == 0 && journalAgrees;
+	}
+	
+	/**
+	 * Reads the committed records of the file's journal and compares the final value of each name with the block
+	 * file. Before the journal is replayed, names that differ are changes that have not been applied yet. They are
+	 * reported but are not errors. Names in the journal that cannot be read are errors.
+	 */
+	public static <Name, Data> boolean verifyJournal(NamedDataMapFile<Name, Data> ndmf, boolean verbose) throws IOException {
+		System.out.println("----- VERIFYING JOURNAL -----");
+		
+		final NDMFJournal.Contents contents = NDMFJournal.read(ndmf.getJournalFile());
+		
+		// Only the last record for each name matters
+		final Map<Name, byte[]> finalValues = new LinkedHashMap<>();
+		int numErrors = 0;
+		for (NDMFJournal.Record<Void> record : contents.records) {
+			try {
+				finalValues.put(ndmf.decodeName(record.nameBytes), record.encoded);
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Unreadable name in journal: "+Arrays.toString(record.nameBytes));
+				numErrors++;
+			}
+		}
+		
+		int numApplied = 0, numPending = 0;
+		for (Entry<Name, byte[]> entry : finalValues.entrySet()) {
+			final byte[] stored = ndmf.readEncoded(entry.getKey());
+			if (Arrays.equals(stored, entry.getValue())) {
+				numApplied++;
+				continue;
+			}
+			numPending++;
+			if (verbose) {
+				System.out.println("Not applied: "+entry.getKey()+" ("+(entry.getValue() == null ? "removal" : entry.getValue().length+" bytes")+")");
+			}
+		}
+		
+		System.out.println(contents.groups+" committed groups, "+contents.records.size()+" records, "+finalValues.size()+" names");
+		System.out.println(numApplied+" names agree with the block file, "+numPending+" not applied yet");
+		System.out.println(contents.uncommittedRecords+" uncommitted records"+(contents.tornTail ? ", torn tail" : ""));
+		System.out.println(numErrors+" total errors");
+		System.out.println("----- END VERIFICATION -----");
+		System.out.println();
+		
+		return numErrors == 0;
 	}
 	
 }
@@ -1,22 +1,19 @@
 package com.gpergrossi.util.io.ndmf;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.gpergrossi.util.io.IStreamHandler;
 import com.gpergrossi.util.io.IStreamHandlerFixedSize;
@@ -67,7 +64,23 @@ import com.gpergrossi.util.io.IStreamHandler.Writer;
  * at the abs(offset) block index is the start of the next index segment. The first block (index 0) of the save 
  * file will always be the start of the first index segment.</p>
  * 
- * <p>The body of a 'data' segment is written directly by the Data IStreamHandler's Writer.<p>
+ * <p>Files created with {@link #hashIndex} set are indexed by a {@link HashIndex} instead, whose header takes the
+ * place of the first index segment at block 0. Its segments are index segments as far as block allocation is
+ * concerned.</p>
+ * 
+ * <p>The body of a 'data' segment is a one-byte {@link CompressionMethod} ID followed by the output of the Data 
+ * IStreamHandler's Writer, compressed by that method.<p>
+ * 
+ * <p><b>Concurrency:</b> Changes are serialized by the file's lock, which they hold while they write and force
+ * the file. The index, the cache and the reads in progress are guarded by a separate index lock, which a change
+ * only takes to look a name up and to publish its new location once its data is written. Reads never take the
+ * file's lock: {@link #get} holds the index lock to check the cache and register the read, looks the name up, then
+ * reads the segment with positional {@link NDMFStorage#readAt reads} and decodes it without any lock, so any number
+ * of reads can run at once, alongside a change, and a read never waits for a write or a force. A {@link HashIndex}
+ * also reads and writes its buckets without the index lock, and only holds it to publish them. A chained index is
+ * in memory, but a change still writes its index entry under the index lock. A read returns the data the name had
+ * when it was looked up. A change writes its data to new blocks and frees the old ones after it is published, and
+ * blocks freed while reads are in progress are only reused once those reads have finished.</p>
  * 
  * @param <Name> - This type parameter will be used as the key in a TreeMap. The class used for this type parameter 
  * 		should implement hashCode() and all objects intended to equal should return the same hashCode().
@@ -96,10 +109,34 @@ public class NamedDataMapFile<Name, Data> {
 	protected final int SIZE_DATA_HEADER = 1;
 	protected final int SIZE_BLOCK_ID = 4;
 	protected final int BUFFER_SIZE = 8192;
+	
+	/** Segments in a {@link #getAll} batch separated by up to this many blocks are read with one read */
+	protected final int BATCH_READ_GAP = 4;
 	protected final int SIZE_INDEX_ENTRY;
 	protected final int MAX_INDEX_ENTRY_SLOTS;
 
 	private byte[] buffer;
+	private byte[] blankName;
+	
+	/**
+	 * Buffers reused by every read and write of a record on a thread, so that reading and writing records
+	 * does not allocate once the buffers have grown to the largest record.
+	 */
+	private static class Buffers {
+		/** Serialized, uncompressed data */
+		final DataBuffer raw = new DataBuffer(8192);
+		
+		/** Compressed data, as stored in a data segment */
+		final DataBuffer encoded = new DataBuffer(8192);
+		
+		final DataBuffer name = new DataBuffer(64);
+		final DataBuffer.Input nameInput = new DataBuffer.Input();
+		
+		/** A block ID or segment header read with a positional read */
+		final byte[] intBytes = new byte[4];
+	}
+	
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
 	
 	private Reader<Name> nameReader;
 	private Writer<Name> nameWriter;
@@ -107,12 +144,93 @@ public class NamedDataMapFile<Name, Data> {
 	private Writer<Data> dataWriter;
 	
 	private Map<Name, Integer> storedNames;
-	private Map<Name, DataSegment<Name, Data>> storedData;
-	private TreeSet<Integer> freeBlocks;
+	private SegmentCache<Name, DataSegment<Name, Data>> storedData;
+	private FreeExtentMap freeSpace;
+	private File freeSpaceFile;
+	
+	/**
+	 * Guards {@link #storedData}, the reads in progress, the deferred frees and a chained index. Taken after the
+	 * file's lock by changes, and on its own by reads, which never take the file's lock. A {@link HashIndex} guards
+	 * its own state with this lock and reads and writes the file without holding it.
+	 */
+	private final Object indexLock = new Object();
+	
+	/** Number of reads in progress outside the lock, by the epoch they started in */
+	private final TreeMap<Long, Integer> activeReads = new TreeMap<>();
 	
-	private RandomAccessFile randomAccessFile;
+	/** Blocks freed while reads were in progress, as { epoch, start, end } */
+	private final ArrayDeque<long[]> deferredFrees = new ArrayDeque<>();
+	private long readEpoch;
+	
+	/** Blocks freed by the change in progress, as { start, end }, freed once the change is published */
+	private final List<int[]> pendingFrees = new ArrayList<>();
+	
+	private NDMFStorage storage;
 	private boolean isOpen;
+	
+	private File journalFile;
+	private volatile NDMFJournal<Name> journal;
+	private Thread journalCommitter;
+	
+	/** Journaled changes that have not been applied to the block file yet */
+	private final Map<Name, NDMFJournal.Record<Name>> journalPending = new ConcurrentHashMap<>();
+	
+	/** 
+	 * Held while a change is appended to the journal and added to journalPending, so changes are recorded in the
+	 * same order in both. A put also looks up the value it replaces under it.
+	 */
+	private final Object journalLock = new Object();
+
+	/**
+	 * If true (the default), every change to the file reaches the storage device before returning.
+	 * If false, {@link #sync()} must be called to make changes durable. Must be set before the file is opened.
+	 */
+	public boolean synchronousWrites = true;
 
+	/**
+	 * How the file is read and written. Must be set before the file is opened.
+	 */
+	public NDMFStorage.Backend storageBackend = NDMFStorage.Backend.RANDOM_ACCESS_FILE;
+
+	/**
+	 * Data read from the file is cached, weighted by its size in the file. The cache holds up to
+	 * cacheCapacity bytes' worth of data segments. Must be set before the file is opened.
+	 */
+	public SegmentCache.Policy cachePolicy = SegmentCache.Policy.LRU;
+	public long cacheCapacity = 4L << 20;
+
+	/**
+	 * <p>If true, changes are recorded in a write-ahead journal (the file's path plus ".journal") and made durable
+	 * by group commits: changes made within {@link #groupCommitMillis} of each other are written and forced to the
+	 * journal together, then applied to the block file by a committer thread. The block file is only forced at
+	 * checkpoints, when the journal grows past {@link #journalCheckpointBytes}, and on close.</p>
+	 * 
+	 * <p>With {@link #synchronousWrites} set, changes return once their group is durable. Otherwise they return
+	 * immediately and are durable within the commit window, or once {@link #sync()} returns.</p>
+	 * 
+	 * <p>A journal left behind by a crash is replayed when the file is opened, whether or not this is set.
+	 * Must be set before the file is opened.</p>
+	 */
+	public boolean journaled = false;
+	public int groupCommitMillis = 10;
+	public long journalCheckpointBytes = 16L << 20;
+	
+	/**
+	 * Chooses how each record is compressed. Records are read with whatever method they were written with,
+	 * so this can be changed at any time.
+	 */
+	public CompressionPolicy compression = CompressionPolicy.always(CompressionMethod.ZLIB);
+	
+	/**
+	 * <p>If true, new files are indexed by a {@link HashIndex}, whose buckets are read as they are needed,
+	 * rather than by a chain of index segments that is read whole when the file is opened. Files that already
+	 * exist keep the index they were created with. Must be set before the file is opened.</p>
+	 * 
+	 * <p>Up to indexCacheBuckets buckets of a hash index are kept in memory.</p>
+	 */
+	public boolean hashIndex = false;
+	public int indexCacheBuckets = 256;
+	
 	public boolean debug = false;
 	public int debugVerbosity = 1; // Currently goes up to 3
 	public boolean debugVerifyOnLoad = false;
@@ -131,6 +249,7 @@ public class NamedDataMapFile<Name, Data> {
 		this.MAX_INDEX_ENTRY_SLOTS = (SIZE_INDEX_SEGMENT - SIZE_SEGMENT_HEADER) / SIZE_INDEX_ENTRY;
 
 		this.buffer = new byte[BUFFER_SIZE];
+		this.blankName = new byte[SIZE_NAME];
 	}
 
 	public boolean isOpen() {
@@ -140,16 +259,27 @@ public class NamedDataMapFile<Name, Data> {
 	public synchronized void open(File file) throws IOException {
 		if (isOpen) throw new IllegalStateException("NamedDataMapFile is already open!");
 		
+		this.freeSpaceFile = new File(file.getPath()+".free");
 		if (!file.exists()) {
+			freeSpaceFile.delete(); // Left behind by a deleted file
 			DataOutputStream dos = new DataOutputStream(new FileOutputStream(file));
 			dos.writeInt(SIZE_BLOCK);
 			dos.close();
-			randomAccessFile = new RandomAccessFile(file, "rws");
-			randomAccessFile.setLength(SIZE_BLOCK);
+			storage = storageBackend.open(file, synchronousWrites && !journaled);
+			storage.setLength(SIZE_BLOCK);
 		} else {
-			randomAccessFile = new RandomAccessFile(file, "rws");
+			storage = storageBackend.open(file, synchronousWrites && !journaled);
 		}
 		load();
+		
+		this.journalFile = new File(file.getPath()+".journal");
+		if (debugVerifyOnLoad && journalFile.exists()) {
+			boolean success = NDMFVerifier.verifyJournal(this, false);
+			if (!success) throw new IOException("Bad journal!");
+		}
+		replayJournal();
+		if (journaled) startJournal(file);
+		
 		this.isOpen = true;
 	}
 	
@@ -159,53 +289,263 @@ public class NamedDataMapFile<Name, Data> {
 			if (!success) throw new IOException("Bad format!");
 		}
 		
-		IndexSegment<Name, Data> indexSegment = new IndexSegment<>(this, 0);
-		indexSegment.readIndex();
+		// Saved by the last clean close, otherwise found by scanning every block header
+		this.freeSpace = FreeExtentMap.load(freeSpaceFile, storage.length());
+		if (freeSpace == null) freeSpace = scanFreeSpace();
 		
-		this.storedNames = indexSegment;
+		if (HashIndex.isHashIndex(this)) {
+			this.storedNames = HashIndex.open(this, indexCacheBuckets);
+		} else if (hashIndex && isEmptyIndex()) {
+			this.storedNames = HashIndex.create(this, indexCacheBuckets);
+		} else {
+			IndexSegment<Name, Data> indexSegment = new IndexSegment<>(this, 0);
+			indexSegment.readIndex();
+			this.storedNames = indexSegment;
+		}
 		
-		this.freeBlocks = new TreeSet<>();
-		int block = 0;
+		this.storedData = cachePolicy.create(cacheCapacity);
+	}
+	
+	/**
+	 * True for a new file, whose only block is an index segment with no entries.
+	 */
+	private boolean isEmptyIndex() throws IOException {
+		if (storage.length() != SIZE_BLOCK) return false;
+		seekBlock(0, SIZE_SEGMENT_HEADER);
+		return readBlockID() == 0;
+	}
+	
+	private FreeExtentMap scanFreeSpace() throws IOException {
+		final FreeExtentMap scanned = new FreeExtentMap();
+		int block = 0, runStart = 0, runLength = 0;
 		while (true) {
 			final long pos = blockOffset(block);
 			
-			if (pos >= randomAccessFile.length()) break;
-			randomAccessFile.seek(pos);
+			if (pos >= storage.length()) break;
+			storage.seek(pos);
 			
-			final int size = randomAccessFile.readInt();
+			final int size = storage.readInt();
 			if (size >= SIZE_SEGMENT_HEADER) {
+				scanned.free(runStart, runLength);
+				runLength = 0;
 				block += numBlocks(size);
 			} else if (size <= 0) {
-				freeBlocks.add(block);
+				if (runLength == 0) runStart = block;
+				runLength++;
 				block++;
 			} else {
 				throw new RuntimeException("Invalid block size: "+size);
 			}
 		}
+		scanned.free(runStart, runLength);
+		return scanned;
+	}
+	
+	/**
+	 * Applies the committed records of a journal left behind by a crash, then deletes it.
+	 */
+	private void replayJournal() throws IOException {
+		if (!journalFile.exists()) return;
+		
+		final NDMFJournal.Contents contents = NDMFJournal.read(journalFile);
+		for (NDMFJournal.Record<Void> record : contents.records) {
+			applyEncoded(decodeName(record.nameBytes), record.encoded);
+		}
+		storage.force();
+		if (!journalFile.delete()) throw new IOException("Could not delete replayed journal "+journalFile);
 		
-		this.storedData = new HashMap<>();
+		if (debug) {
+			System.out.println("Replayed "+contents.records.size()+" journal records in "+contents.groups+" groups "
+					+ "("+contents.uncommittedRecords+" uncommitted records discarded)");
+		}
+	}
+	
+	private void startJournal(File file) throws IOException {
+		this.journal = new NDMFJournal<>(journalFile);
+		this.journalCommitter = new Thread(this::runJournalCommitter, "NDMF Journal Committer ("+file.getName()+")");
+		this.journalCommitter.setDaemon(true);
+		this.journalCommitter.start();
 	}
 	
-	public synchronized void close() throws IOException {
-		this.storedNames = null;
-		this.storedData = null;
-		this.freeBlocks = null;
-		if (randomAccessFile != null) randomAccessFile.close();
-		randomAccessFile = null;
-		this.isOpen = false;
+	private void runJournalCommitter() {
+		final NDMFJournal<Name> journal = this.journal;
+		try {
+			while (true) {
+				final List<NDMFJournal.Record<Name>> records = journal.commitNext(groupCommitMillis * 1000000L);
+				if (records == null) break;
+				
+				synchronized (this) {
+					for (NDMFJournal.Record<Name> record : records) {
+						applyEncoded(record.name, record.encoded);
+					}
+					if (journal.length() >= journalCheckpointBytes) {
+						storage.force();
+						journal.checkpoint();
+					}
+				}
+				for (NDMFJournal.Record<Name> record : records) {
+					journalPending.remove(record.name, record);
+				}
+			}
+		} catch (Exception e) {
+			// Committed records stay in the journal and are replayed when the file is next opened
+			journal.fail(e);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Records several changes in the journal, in the same commit group unless a commit starts between them.
+	 * If {@link #synchronousWrites} is set, waits for all of them to be durable.
+	 */
+	private void journalWriteAll(NDMFJournal<Name> journal, List<Name> names, byte[][] encoded) {
+		try {
+			long group = -1;
+			synchronized (journalLock) {
+				for (int i = 0; i < names.size(); i++) {
+					final Name name = names.get(i);
+					final NDMFJournal.Record<Name> record = new NDMFJournal.Record<>(name, encodeName(name), encoded[i]);
+					group = journal.append(record);
+					journalPending.put(name, record);
+				}
+			}
+			if (synchronousWrites && group >= 0) journal.awaitDurable(group);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Records a change in the journal. If {@link #synchronousWrites} is set, waits for it to be durable.
+	 * 
+	 * <p>If returnOldValue is set, returns the value the change replaced. It is looked up under the journal lock,
+	 * so no other change to the name can be recorded in between. A record stays pending until it has been applied
+	 * to the block file, so if the name has no pending record the block file already has its latest value.</p>
+	 */
+	private Data journalWrite(NDMFJournal<Name> journal, Name name, byte[] encoded, boolean returnOldValue) {
+		final NDMFJournal.Record<Name> record = new NDMFJournal.Record<>(name, encodeName(name), encoded);
+		try {
+			final long group;
+			NDMFJournal.Record<Name> previous = null;
+			Data oldData = null;
+			synchronized (journalLock) {
+				if (returnOldValue) {
+					previous = journalPending.get(name);
+					if (previous == null) oldData = get(name);
+				}
+				group = journal.append(record);
+				journalPending.put(name, record);
+			}
+			if (previous != null && previous.encoded != null) oldData = decodeUnchecked(previous.encoded);
+			if (synchronousWrites) journal.awaitDurable(group);
+			return oldData;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Applies a set (or a removal, if encoded is null) to the block file.
+	 */
+	private synchronized void applyEncoded(Name name, byte[] encoded) {
+		if (encoded == null) {
+			internalPut(name, null, false);
+		} else {
+			internalSetEncoded(name, encoded);
+		}
+	}
+	
+	/**
+	 * Forces all writes so far to the storage device. Only needed if {@link #synchronousWrites} is false.
+	 * If the file is journaled, commits the journal and returns once it is durable. Also frees the blocks that
+	 * were kept for reads that have finished since the last change.
+	 */
+	public void sync() throws IOException {
+		final NDMFJournal<Name> journal = this.journal;
+		if (journal != null) {
+			journal.awaitDurable(journal.requestCommit());
+			freeDeferredBlocks();
+			return;
+		}
+		synchronized (this) {
+			if (storage != null) {
+				releaseDeferredFrees();
+				storage.force();
+			}
+		}
+	}
+	
+	/**
+	 * Called at the end of every change, once it is published to the index. Frees the blocks the change replaced
+	 * and makes the change durable if {@link #synchronousWrites} is set. Journaled changes are already durable in
+	 * the journal.
+	 */
+	private void commit() {
+		try {
+			freePendingBlocks();
+			if (synchronousWrites && !journaled) storage.force();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void close() throws IOException {
+		// Drain the journal first. The committer needs this file's lock to apply the last groups.
+		final NDMFJournal<Name> journal = this.journal;
+		if (journal != null) {
+			journal.shutdown();
+			try {
+				journalCommitter.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		synchronized (this) {
+			if (journal != null) {
+				journal.close();
+				if (!journal.hasFailed()) journalFile.delete();
+				this.journal = null;
+				this.journalCommitter = null;
+				this.journalPending.clear();
+			}
+			// Reads still in progress will fail anyway once the storage is closed
+			synchronized (indexLock) {
+				activeReads.clear();
+			}
+			if (storage != null) releaseDeferredFrees();
+			
+			// Not saved if the journal failed, since the file may not match the free space map
+			if (storage != null && (journal == null || !journal.hasFailed())) {
+				storage.force();
+				freeSpace.save(freeSpaceFile, storage.length());
+			}
+			
+			synchronized (indexLock) {
+				this.storedNames = null;
+				this.storedData = null;
+			}
+			this.freeSpace = null;
+			if (storage != null) storage.close();
+			storage = null;
+			this.isOpen = false;
+		}
 	}
 
+	/**
+	 * Looks up the segment a change replaces. Used by changes, which hold the file's lock.
+	 */
 	private synchronized DataSegment<Name, Data> internalGetDataSegment(Name name, boolean readDataBody) {		
-		DataSegment<Name, Data> stored = storedData.get(name);
-		if (stored != null) return stored;
-	
-		Integer blockID = storedNames.get(name);
+		synchronized (indexLock) {
+			DataSegment<Name, Data> stored = readDataBody ? storedData.get(name) : storedData.peek(name);
+			if (stored != null) return stored;
+		}
+		final Integer blockID = getStoredName(name);
 		if (blockID == null) return null;
 		
 		DataSegment<Name, Data> newSeg = new DataSegment<>(this, blockID);
 		if (readDataBody) {
 			newSeg.readData(); // Read full data body
-			storedData.put(name, newSeg);
 		} else {
 			newSeg.readSegment(); // Read only size information
 		}
@@ -218,54 +558,574 @@ public class NamedDataMapFile<Name, Data> {
 		// No action needed: null->null
 		if (seg == null && data == null) return null;
 		
-		// Create new
-		if (seg == null) {
-			seg = new DataSegment<>(this, Segment.UNALLOCATED);
-			seg.dataObject = data;
-			seg.writeData(); // Will assign a new block ID
-			storedNames.put(name, seg.blockIDStart);
-			storedData.put(name, seg);
-			return null;
+		final Data oldData = (seg == null) ? null : seg.dataObject;
+		
+		// Written to new blocks, so that reads of the old data can finish
+		DataSegment<Name, Data> newSeg = null;
+		if (data != null) {
+			newSeg = new DataSegment<>(this, Segment.UNALLOCATED);
+			newSeg.dataObject = data;
+			newSeg.writeData(); // Will assign a new block ID
 		}
+		if (seg != null) seg.free();
 		
-		Data oldData = seg.dataObject;
-
-		if (data == null) {
-			// Remove existing
-			seg.free();
-			storedNames.remove(name);
-			storedData.remove(name);
-		} else {
-			// Edit existing
-			seg.dataObject = data;
-			seg.writeData();
-			storedNames.put(name, seg.blockIDStart);
-			storedData.put(name, seg);
+		putStoredName(name, (newSeg == null) ? 0 : newSeg.blockIDStart);
+		synchronized (indexLock) {
+			if (newSeg == null) {
+				storedData.remove(name);
+			} else {
+				storedData.put(name, newSeg, newSeg.size);
+			}
 		}
+		commit();
 		
 		if (returnOldValue)	return oldData;
 		else return null;
 	}
 	
 	public boolean has(Name name) {
-		DataSegment<Name, Data> seg = internalGetDataSegment(name, false);
-		return seg != null;
+		final NDMFJournal.Record<Name> pending = journalPending.get(name);
+		if (pending != null) return pending.encoded != null;
+		
+		synchronized (indexLock) {
+			if (storedData.peek(name) != null) return true;
+		}
+		return getStoredName(name) != null;
 	}
 	
 	public Data get(Name name) {
-		DataSegment<Name, Data> seg = internalGetDataSegment(name, true);
+		final NDMFJournal.Record<Name> pending = journalPending.get(name);
+		if (pending != null) return pending.encoded == null ? null : decodeUnchecked(pending.encoded);
+		
+		final DataSegment<Name, Data> seg = beginRead(name);
 		if (seg == null) return null;
+		if (seg.readEpoch < 0) return seg.dataObject; // Cached
+		
+		try {
+			seg.readDataConcurrently();
+		} finally {
+			endRead(name, seg);
+		}
 		return seg.dataObject;
 	}
 	
+	/**
+	 * Looks up a name for {@link #get}. Returns its cached segment, or a segment that has not been read,
+	 * registered as a read in progress. The caller reads it without any lock and then calls {@link #endRead}.
+	 * The read is registered before the name is looked up, so the blocks the lookup finds are not freed until
+	 * the read is finished.
+	 */
+	private DataSegment<Name, Data> beginRead(Name name) {
+		final long epoch;
+		synchronized (indexLock) {
+			final DataSegment<Name, Data> cached = storedData.get(name);
+			if (cached != null) return cached;
+			epoch = startRead();
+		}
+		
+		Integer blockID = null;
+		try {
+			blockID = getStoredName(name);
+		} finally {
+			if (blockID == null) {
+				synchronized (indexLock) {
+					finishRead(epoch);
+				}
+			}
+		}
+		if (blockID == null) return null;
+		final DataSegment<Name, Data> seg = new DataSegment<>(this, blockID);
+		seg.readEpoch = epoch;
+		return seg;
+	}
+	
+	/**
+	 * Registers a read in progress and returns its epoch. The caller holds the index lock.
+	 */
+	private long startRead() {
+		activeReads.merge(readEpoch, 1, Integer::sum);
+		return readEpoch;
+	}
+	
+	/**
+	 * Ends a read registered by {@link #startRead}. The caller holds the index lock.
+	 */
+	private void finishRead(long epoch) {
+		activeReads.computeIfPresent(epoch, (e, count) -> (count == 1) ? null : count - 1);
+	}
+	
+	/**
+	 * Finishes a read started by {@link #beginRead}. Blocks whose freeing was deferred for the read are freed by
+	 * the next change, since freeing them writes to the file.
+	 */
+	private void endRead(Name name, DataSegment<Name, Data> seg) {
+		synchronized (indexLock) {
+			final long epoch = seg.readEpoch;
+			seg.readEpoch = -1;
+			
+			// Not cached if the name was changed while it was being read
+			if (seg.dataObject != null && storedData.peek(name) == null && peekStoredName(name) == seg.blockIDStart) {
+				storedData.put(name, seg, seg.size);
+			}
+			
+			finishRead(epoch);
+		}
+	}
+	
 	public Data put(Name name, Data data) {
+		final NDMFJournal<Name> journal = this.journal;
+		if (journal != null) {
+			return journalWrite(journal, name, data == null ? null : encodeUnchecked(data), true);
+		}
 		return internalPut(name, data, true);
 	}
 	
 	public void set(Name name, Data data) {
+		final NDMFJournal<Name> journal = this.journal;
+		if (journal != null) {
+			journalWrite(journal, name, data == null ? null : encodeUnchecked(data), false);
+			return;
+		}
 		internalPut(name, data, false);
 	}
 	
+	/**
+	 * Serializes and compresses a data object the same way {@link #set} would, without touching the file.
+	 * Thread safe and not synchronized, so that the expensive part of a write can be done on any thread
+	 * before the result is passed to {@link #setEncoded}.
+	 */
+	public byte[] encode(Data data) throws IOException {
+		return getDataArray(data);
+	}
+	
+	private byte[] encodeUnchecked(Data data) {
+		try {
+			return encode(data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * The inverse of {@link #encode}.
+	 */
+	public Data decode(byte[] encoded) throws IOException {
+		if (encoded.length < SIZE_DATA_HEADER) throw new IOException("Encoded data is missing its compression method");
+		return decodeData(encoded, SIZE_DATA_HEADER, encoded.length - SIZE_DATA_HEADER, getCompressionMethod(encoded[0]));
+	}
+	
+	private Data decodeUnchecked(byte[] encoded) {
+		try {
+			return decode(encoded);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Stores data previously returned by {@link #encode} under the given name. Unlike {@link #set},
+	 * the data object is not kept in memory; a later {@link #get} reads it back from the file.
+	 */
+	public void setEncoded(Name name, byte[] encoded) {
+		final NDMFJournal<Name> journal = this.journal;
+		if (journal != null) {
+			journalWrite(journal, name, encoded, false);
+			return;
+		}
+		internalSetEncoded(name, encoded);
+	}
+	
+	private synchronized void internalSetEncoded(Name name, byte[] encoded) {
+		final DataSegment<Name, Data> old = internalGetDataSegment(name, false);
+		final DataSegment<Name, Data> seg = new DataSegment<>(this, Segment.UNALLOCATED);
+		seg.writeEncoded(encoded);
+		if (old != null) old.free();
+		
+		putStoredName(name, seg.blockIDStart);
+		synchronized (indexLock) {
+			storedData.remove(name);
+		}
+		commit();
+	}
+	
+	/**
+	 * <p>Gets the data of several names at once. Names with no data are left out of the result.</p>
+	 * 
+	 * <p>Names whose data is not cached are looked up together, then read in order of their position in the file
+	 * without holding the lock. Segments that are adjacent, or separated by no more than {@link #BATCH_READ_GAP}
+	 * blocks, are read with a single read. The data is then decoded in parallel.</p>
+	 */
+	public Map<Name, Data> getAll(Collection<Name> names) {
+		final Map<Name, Data> result = new HashMap<>();
+		final List<Name> unread = new ArrayList<>(names.size());
+		for (Name name : names) {
+			final NDMFJournal.Record<Name> pending = journalPending.get(name);
+			if (pending == null) {
+				unread.add(name);
+			} else if (pending.encoded != null) {
+				result.put(name, decodeUnchecked(pending.encoded));
+			}
+		}
+		if (unread.isEmpty()) return result;
+		
+		final List<DataSegment<Name, Data>> segments = beginReadAll(unread, result);
+		if (segments.isEmpty()) return result;
+		
+		try {
+			for (DataSegment<Name, Data> seg : segments) seg.readSegmentConcurrently();
+			segments.sort((a, b) -> Integer.compare(a.blockIDStart, b.blockIDStart));
+			final List<byte[]> runs = new ArrayList<>();
+			final int[] runOf = new int[segments.size()];
+			final int[] offsetInRun = new int[segments.size()];
+			readRuns(segments, runs, runOf, offsetInRun);
+			
+			final List<Integer> indices = new ArrayList<>(segments.size());
+			for (int i = 0; i < segments.size(); i++) indices.add(i);
+			indices.parallelStream().forEach(i -> {
+				final DataSegment<Name, Data> seg = segments.get(i);
+				final byte[] run = runs.get(runOf[i]);
+				final int offset = offsetInRun[i] + SIZE_SEGMENT_HEADER;
+				final int length = seg.size - SIZE_SEGMENT_HEADER;
+				try {
+					if (length < SIZE_DATA_HEADER) throw new IOException("Data segment is missing its compression method");
+					seg.dataObject = decodeData(run, offset + SIZE_DATA_HEADER, length - SIZE_DATA_HEADER, getCompressionMethod(run[offset]));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			endReadAll(unread, segments);
+		}
+		
+		for (int i = 0; i < segments.size(); i++) {
+			result.put(segments.get(i).name, segments.get(i).dataObject);
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads sorted segments, merging neighbouring ones into runs. For each segment, records the run it is in and
+	 * where the segment starts within the run.
+	 */
+	private void readRuns(List<DataSegment<Name, Data>> segments, List<byte[]> runs, int[] runOf, int[] offsetInRun) throws IOException {
+		int first = 0;
+		while (first < segments.size()) {
+			final int runStart = segments.get(first).blockIDStart;
+			int last = first;
+			int runEnd = runStart + numBlocks(segments.get(first).size);
+			while (last + 1 < segments.size()) {
+				final DataSegment<Name, Data> next = segments.get(last + 1);
+				if (next.blockIDStart - runEnd > BATCH_READ_GAP) break;
+				last++;
+				runEnd = next.blockIDStart + numBlocks(next.size);
+			}
+			
+			// Up to the end of the last segment, not of its last block
+			final DataSegment<Name, Data> lastSegment = segments.get(last);
+			final long runLength = blockOffset(lastSegment.blockIDStart) + lastSegment.size - blockOffset(runStart);
+			final byte[] run = new byte[(int) runLength];
+			storage.readAt(blockOffset(runStart), run, 0, run.length);
+			
+			for (int i = first; i <= last; i++) {
+				runOf[i] = runs.size();
+				offsetInRun[i] = (int) (blockOffset(segments.get(i).blockIDStart) - blockOffset(runStart));
+			}
+			runs.add(run);
+			first = last + 1;
+		}
+	}
+	
+	/**
+	 * Looks up names for {@link #getAll}. Cached data is put in the result. Returns the segments that have to be
+	 * read, registered together as one read in progress before the names are looked up.
+	 */
+	private List<DataSegment<Name, Data>> beginReadAll(List<Name> names, Map<Name, Data> result) {
+		final List<Name> uncached = new ArrayList<>(names.size());
+		final long epoch;
+		synchronized (indexLock) {
+			for (Name name : names) {
+				final DataSegment<Name, Data> cached = storedData.get(name);
+				if (cached != null) {
+					result.put(name, cached.dataObject);
+				} else {
+					uncached.add(name);
+				}
+			}
+			if (uncached.isEmpty()) return Collections.emptyList();
+			epoch = startRead();
+		}
+		
+		final List<DataSegment<Name, Data>> segments = new ArrayList<>(uncached.size());
+		try {
+			for (Name name : uncached) {
+				final Integer blockID = getStoredName(name);
+				if (blockID == null) continue;
+				final DataSegment<Name, Data> seg = new DataSegment<>(this, blockID);
+				seg.name = name;
+				seg.readEpoch = epoch;
+				segments.add(seg);
+			}
+		} finally {
+			if (segments.isEmpty()) {
+				synchronized (indexLock) {
+					finishRead(epoch);
+				}
+			}
+		}
+		return segments;
+	}
+	
+	private void endReadAll(List<Name> names, List<DataSegment<Name, Data>> segments) {
+		synchronized (indexLock) {
+			final long epoch = segments.get(0).readEpoch;
+			for (DataSegment<Name, Data> seg : segments) {
+				seg.readEpoch = -1;
+				if (seg.dataObject == null || storedData.peek(seg.name) != null) continue;
+				if (peekStoredName(seg.name) == seg.blockIDStart) storedData.put(seg.name, seg, seg.size);
+			}
+			
+			finishRead(epoch);
+		}
+	}
+	
+	/**
+	 * <p>Sets the data of several names at once. A null value removes a name.</p>
+	 * 
+	 * <p>The data is encoded in parallel before the lock is taken. Then one run of blocks large enough for all of
+	 * it is claimed, and the segments are written one after another into it, so the batch is written sequentially
+	 * and later read back with few reads by {@link #getAll}.</p>
+	 */
+	public void putAll(Map<Name, Data> map) {
+		final List<Name> names = new ArrayList<>(map.keySet());
+		final byte[][] encoded = new byte[names.size()][];
+		final List<Integer> indices = new ArrayList<>(names.size());
+		for (int i = 0; i < names.size(); i++) indices.add(i);
+		indices.parallelStream().forEach(i -> {
+			final Data data = map.get(names.get(i));
+			if (data != null) encoded[i] = encodeUnchecked(data);
+		});
+		
+		final NDMFJournal<Name> journal = this.journal;
+		if (journal != null) {
+			journalWriteAll(journal, names, encoded);
+			return;
+		}
+		internalPutAllEncoded(names, encoded);
+	}
+	
+	private synchronized void internalPutAllEncoded(List<Name> names, byte[][] encoded) {
+		try {
+			int totalBlocks = 0;
+			for (int i = 0; i < names.size(); i++) {
+				if (encoded[i] == null) {
+					internalPut(names.get(i), null, false);
+					continue;
+				}
+				totalBlocks += numBlocks(encoded[i].length + SIZE_SEGMENT_HEADER);
+			}
+			if (totalBlocks == 0) return;
+			
+			int blockID = getClaim(totalBlocks);
+			final int claimEnd = blockID + totalBlocks;
+			try {
+				for (int i = 0; i < names.size(); i++) {
+					if (encoded[i] == null) continue;
+					final Name name = names.get(i);
+					final DataSegment<Name, Data> old = internalGetDataSegment(name, false);
+					
+					final DataSegment<Name, Data> seg = new DataSegment<>(this, blockID);
+					seg.writeEncodedClaimed(encoded[i], encoded[i].length);
+					putStoredName(name, blockID);
+					synchronized (indexLock) {
+						storedData.remove(name);
+					}
+					if (old != null) old.free();
+					blockID += numBlocks(seg.size);
+				}
+			} catch (RuntimeException e) {
+				// Give back the part of the claim that was not written, or it would be lost to the free space map.
+				// Segments already in the index stay, so the blocks they replaced are freed as usual.
+				try {
+					freeBlocks(blockID, claimEnd-1);
+					commit();
+				} catch (IOException | RuntimeException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		commit();
+	}
+	
+	/**
+	 * Reads the encoded data stored in the block file under the given name, ignoring the journal.
+	 * Returns null if there is none.
+	 */
+	protected synchronized byte[] readEncoded(Name name) throws IOException {
+		final Integer blockID = getStoredBlockID(name);
+		if (blockID == null) return null;
+		
+		seekBlock(blockID, 0);
+		final int size = readSegmentHeader();
+		return readDataArray(size - SIZE_SEGMENT_HEADER);
+	}
+	
+	/**
+	 * Points the name at a copy of its data segment starting at another block. Used by {@link NDMFCompactor},
+	 * which has already written the copy and frees the old blocks itself.
+	 */
+	protected synchronized void relocate(Name name, int blockTo) {
+		putStoredName(name, blockTo);
+		synchronized (indexLock) {
+			final DataSegment<Name, Data> cached = storedData.peek(name);
+			if (cached != null) cached.blockIDStart = blockTo;
+		}
+	}
+	
+	/**
+	 * Adds names stored in the block file to the output, keyed by the block their data segment starts at, starting
+	 * from a position returned by an earlier call, or 0. Returns the position to continue from, or -1 once every
+	 * name has been listed. A hash index is listed one bucket per call. A chained index, which is in memory, is
+	 * listed at once.
+	 */
+	@SuppressWarnings("unchecked")
+	protected synchronized int getStoredNamesByBlock(Map<Integer, Name> output, int position) {
+		if (storedNames instanceof HashIndex) {
+			return ((HashIndex<Name, Data>) storedNames).scanBucket(position, output);
+		}
+		synchronized (indexLock) {
+			for (Map.Entry<Name, Integer> entry : storedNames.entrySet()) {
+				output.put(entry.getValue(), entry.getKey());
+			}
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns the block the name's data segment starts at in the block file, or null if it has none.
+	 */
+	protected Integer getStoredBlockID(Name name) {
+		return getStoredName(name);
+	}
+	
+	/**
+	 * Looks a name up in the index. Must not be called with the index lock held: a hash index takes the lock itself
+	 * and reads a bucket it does not have in memory without it. A chained index is in memory and is read under the
+	 * lock.
+	 */
+	private Integer getStoredName(Name name) {
+		final Map<Name, Integer> names = this.storedNames;
+		if (names instanceof HashIndex) return names.get(name);
+		synchronized (indexLock) {
+			return names.get(name);
+		}
+	}
+	
+	/**
+	 * Looks a name up in the index without reading the file, with the index lock held. Returns the block the name's
+	 * data segment starts at, 0 if it has none, or -1 if a hash index would have to read a bucket to tell.
+	 */
+	@SuppressWarnings("unchecked")
+	private int peekStoredName(Name name) {
+		if (storedNames instanceof HashIndex) return ((HashIndex<Name, Data>) storedNames).peek(name);
+		final Integer blockID = storedNames.get(name);
+		return (blockID == null) ? 0 : blockID;
+	}
+	
+	/**
+	 * Points a name at the block its new data segment starts at, or removes it if the block is 0. Called by changes,
+	 * which hold the file's lock. A hash index writes the change and then publishes it under the index lock, so
+	 * reads are not held up by the writes. A chained index is changed under the index lock.
+	 */
+	private void putStoredName(Name name, int blockID) {
+		if (storedNames instanceof HashIndex) {
+			storedNames.put(name, blockID);
+			return;
+		}
+		synchronized (indexLock) {
+			storedNames.put(name, blockID);
+		}
+	}
+	
+	/**
+	 * The lock that guards the index and the cache. See {@link #indexLock}.
+	 */
+	protected Object getIndexLock() {
+		return indexLock;
+	}
+	
+	/**
+	 * Truncates the free blocks at the end of the file. Returns the number of blocks removed.
+	 */
+	protected synchronized int truncateFreeTail() throws IOException {
+		final int endBlock = numBlocks(storage.length());
+		final int newEndBlock = freeSpace.removeExtentEndingAt(endBlock);
+		if (newEndBlock == endBlock) return 0;
+		storage.setLength(blockOffset(newEndBlock));
+		return endBlock - newEndBlock;
+	}
+	
+	protected synchronized void force() throws IOException {
+		storage.force();
+	}
+	
+	protected FreeExtentMap getFreeSpace() {
+		return freeSpace;
+	}
+	
+	protected File getJournalFile() {
+		return journalFile;
+	}
+	
+	public void appendCacheStatistics(List<String> output) {
+		synchronized (indexLock) {
+			if (storedData != null) storedData.appendStatistics(output);
+		}
+	}
+	
+	/**
+	 * Bytes of data segments held in the cache, which never exceeds {@link #cacheCapacity} once a change or a
+	 * read has returned. Zero while the file is closed.
+	 */
+	public long getCacheWeight() {
+		synchronized (indexLock) {
+			return (storedData == null) ? 0 : storedData.getWeight();
+		}
+	}
+	
+	/**
+	 * Number of reads by {@link #get} or {@link #getAll} since the file was opened that found their name's data
+	 * in the cache. Zero while the file is closed.
+	 */
+	public long getCacheHits() {
+		synchronized (indexLock) {
+			return (storedData == null) ? 0 : storedData.getHits();
+		}
+	}
+	
+	/**
+	 * Number of reads by {@link #get} or {@link #getAll} since the file was opened that did not find their name's
+	 * data in the cache. Zero while the file is closed.
+	 */
+	public long getCacheMisses() {
+		synchronized (indexLock) {
+			return (storedData == null) ? 0 : storedData.getMisses();
+		}
+	}
+	
+	public void appendJournalStatistics(List<String> output) {
+		final NDMFJournal<Name> journal = this.journal;
+		if (journal != null) journal.appendStatistics(output);
+	}
+	
+	/**
+	 * Names stored in the block file. Journaled changes that have not been applied yet are not included.
+	 * Not guarded by any lock, so it must not be used while the file is being read or changed.
+	 */
 	public Map<Name, Integer> debugGetStoredNames() {
 		return storedNames;
 	}
@@ -274,10 +1134,10 @@ public class NamedDataMapFile<Name, Data> {
 		final long pos = blockOffset(blockID) + offset;
 	
 		// No seek needed
-		final long old = randomAccessFile.getFilePointer();
+		final long old = storage.getPosition();
 		if (pos == old) return old;
 
-		if (pos > randomAccessFile.length()) {
+		if (pos > storage.length()) {
 			throw new RuntimeException("WARNING: seek beyond file length!");
 //			System.out.println("WARNING: seek beyond file length!");
 //			StackTraceElement[] elements = Thread.currentThread().getStackTrace();
@@ -288,7 +1148,7 @@ public class NamedDataMapFile<Name, Data> {
 		//System.out.println("Seek "+pos+"["+Long.toHexString(pos)+"] (block="+blockID+" offset="+offset+")");
 		
 		// Regular seek
-		randomAccessFile.seek(pos);
+		storage.seek(pos);
 		return old;
 	}
 	
@@ -322,113 +1182,289 @@ public class NamedDataMapFile<Name, Data> {
 	}
 	
 	protected Name readName() throws IOException {
-		randomAccessFile.read(buffer, 0, SIZE_NAME);
-		return nameReader.read(new ByteArrayInputStream(buffer));
+		storage.read(buffer, 0, SIZE_NAME);
+		final DataBuffer.Input input = BUFFERS.get().nameInput;
+		input.reset(buffer, 0, SIZE_NAME);
+		return nameReader.read(input);
+	}
+
+	/**
+	 * Reads the SIZE_NAME bytes of an encoded name without decoding it.
+	 */
+	protected void readNameBytes(byte[] bytes) throws IOException {
+		storage.read(bytes, 0, SIZE_NAME);
+	}
+
+	protected void writeNameBytes(byte[] bytes, int offset) throws IOException {
+		storage.write(bytes, offset, SIZE_NAME);
 	}
 
 	protected void skipName() throws IOException {
-		randomAccessFile.skipBytes(SIZE_NAME);
+		storage.skipBytes(SIZE_NAME);
 	}
 	
 	protected void writeName(Name name) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(SIZE_NAME);
-		nameWriter.write(baos, name);
+		final DataBuffer bytes = encodeNameToBuffer(name);
+		storage.write(bytes.array(), 0, bytes.size());
+	}
+	
+	protected byte[] encodeName(Name name) {
+		return encodeNameToBuffer(name).toByteArray();
+	}
+	
+	/**
+	 * Encodes the name into the first SIZE_NAME bytes of the array, padded with zeros.
+	 */
+	protected void encodeNameInto(Name name, byte[] bytes) {
+		final DataBuffer encoded = encodeNameToBuffer(name);
+		System.arraycopy(encoded.array(), 0, bytes, 0, encoded.size());
+		Arrays.fill(bytes, encoded.size(), SIZE_NAME, (byte) 0);
+	}
+	
+	/**
+	 * Writes the name to this thread's name buffer, which is valid until the next name is encoded.
+	 */
+	private DataBuffer encodeNameToBuffer(Name name) {
+		final DataBuffer baos = BUFFERS.get().name;
+		baos.reset();
+		try {
+			nameWriter.write(baos, name);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 		if (baos.size() > SIZE_NAME) throw new RuntimeException("nameWriter wrote name that is larger than SIZE_NAME! ("+name+" -> "+Arrays.toString(baos.toByteArray())+")");
-		randomAccessFile.write(baos.toByteArray(), 0, baos.size());
+		return baos;
+	}
+	
+	protected Name decodeName(byte[] bytes) throws IOException {
+		final DataBuffer.Input input = BUFFERS.get().nameInput;
+		input.reset(bytes, 0, bytes.length);
+		return nameReader.read(input);
 	}
 
 	protected void writeBlankName() throws IOException {
-		for (int i = 0; i < SIZE_NAME; i++) {
-			randomAccessFile.write(0);
-		}
+		storage.write(blankName, 0, SIZE_NAME);
 	}
 
 	protected int readSegmentHeader() throws IOException {
-		return randomAccessFile.readInt();
+		return storage.readInt();
 	}
 	
 	protected void writeSegmentHeader(int size) throws IOException {
-		randomAccessFile.writeInt(size);
+		storage.writeInt(size);
 	}
 
 	protected int readBlockID() throws IOException {
-		return randomAccessFile.readInt();
+		return storage.readInt();
 	}
 	
 	protected void writeBlockID(int size) throws IOException {
-		randomAccessFile.writeInt(size);
+		storage.writeInt(size);
 	}
 	
 	protected void writeDataHeader(byte b) throws IOException {
-		randomAccessFile.writeByte(b);
+		storage.writeByte(b);
 	}
 
 	public byte readDataHeader() throws IOException {
-		return randomAccessFile.readByte();
+		return storage.readByte();
 	}
 
-	protected byte[] getDataArray(Data data, CompressionMethod compression) throws IOException {
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream(SIZE_BLOCK);
-		final OutputStream compressed = compression.getCompressionStream(baos);
-		final BufferedOutputStream bos = new BufferedOutputStream(compressed);
+	protected byte[] getDataArray(Data data) throws IOException {
+		return getDataBuffer(data).toByteArray();
+	}
+	
+	/**
+	 * Serializes the data and compresses it with the method chosen by the {@link #compression} policy. The result
+	 * starts with the method's ID (SIZE_DATA_HEADER bytes), as in a data segment. Data that does not get smaller
+	 * is stored uncompressed. The result is in this thread's encoded buffer, and is valid until the thread reads
+	 * or writes another record.
+	 */
+	protected DataBuffer getDataBuffer(Data data) throws IOException {
+		final Buffers buffers = BUFFERS.get();
+		final DataBuffer raw = buffers.raw;
+		raw.reset();
+		dataWriter.write(raw, data);
+		
+		CompressionMethod method = compression.select(raw.size());
+		final DataBuffer encoded = buffers.encoded;
+		encoded.reset();
+		encoded.write(method.getCompressionID());
+		method.compress(raw.array(), 0, raw.size(), encoded);
 		
-		dataWriter.write(bos, data);
-		bos.close();
+		if (encoded.size() > raw.size() + SIZE_DATA_HEADER && method != CompressionMethod.STORED) {
+			method = CompressionMethod.STORED;
+			encoded.reset();
+			encoded.write(method.getCompressionID());
+			method.compress(raw.array(), 0, raw.size(), encoded);
+		}
 		
-		final byte[] bytes = baos.toByteArray();
 		if (debug && debugVerbosity >= 2) {
-			final String md5 = MD5Hash.hash(bytes);
-			System.out.println("Wrote "+bytes.length+" bytes of data (MD5="+md5+")");
+			final String md5 = MD5Hash.hash(encoded.toByteArray());
+			System.out.println("Wrote "+encoded.size()+" bytes of data (MD5="+md5+")");
 		}
 		
-		return bytes;
+		return encoded;
 	}
 
 	public void writeDataArray(byte[] bytes) throws IOException {
-		randomAccessFile.write(bytes, 0, bytes.length);
+		writeDataArray(bytes, bytes.length);
+	}
+	
+	public void writeDataArray(byte[] bytes, int length) throws IOException {
+		storage.write(bytes, 0, length);
 	}
 
+	/**
+	 * Reads the body of a data segment into this thread's encoded buffer and decodes it from there.
+	 */
 	protected Data readData(int size, CompressionMethod compression) throws IOException {
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+		final DataBuffer encoded = BUFFERS.get().encoded;
+		encoded.reset();
+		encoded.ensureRemaining(size);
+		storage.read(encoded.array(), 0, size);
+		encoded.setSize(size);
 		
-		int copied = 0;
-		while (copied < size) {
-			int copySize = Math.min(BUFFER_SIZE, size - copied);
-			randomAccessFile.read(buffer, 0, copySize);
-			baos.write(buffer, 0, copySize);
-			copied += copySize;
+		if (debug && debugVerbosity >= 2) {
+			final String md5 = MD5Hash.hash(encoded.toByteArray());
+			System.out.println("Read "+size+" bytes of data (MD5="+md5+")");
 		}
-
-		final byte[] bytes = baos.toByteArray();
+		return decodeData(encoded.array(), 0, size, compression);
+	}
+	
+	/**
+	 * Reads and decodes the body of a data segment, starting with its data header, like {@link #readData} but with
+	 * a positional read that does not need the lock.
+	 */
+	protected Data readDataAt(long position, int size) throws IOException {
+		if (size < SIZE_DATA_HEADER) throw new IOException("Data segment is missing its compression method");
+		final DataBuffer encoded = BUFFERS.get().encoded;
+		encoded.reset();
+		encoded.ensureRemaining(size);
+		storage.readAt(position, encoded.array(), 0, size);
+		encoded.setSize(size);
+		
+		final CompressionMethod compression = getCompressionMethod(encoded.array()[0]);
+		return decodeData(encoded.array(), SIZE_DATA_HEADER, size - SIZE_DATA_HEADER, compression);
+	}
+	
+	/**
+	 * Reads bytes with a positional read that does not need the file's lock.
+	 */
+	protected void readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+		storage.readAt(position, bytes, offset, length);
+	}
+	
+	/**
+	 * Reads a big-endian int, such as a segment header or a block ID, with a positional read that does not need
+	 * the file's lock.
+	 */
+	protected int readIntAt(long position) throws IOException {
+		final byte[] bytes = BUFFERS.get().intBytes;
+		storage.readAt(position, bytes, 0, 4);
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+	
+	protected byte[] readDataArray(int size) throws IOException {
+		final byte[] bytes = new byte[size];
+		storage.read(bytes, 0, size);
+		
 		if (debug && debugVerbosity >= 2) {
 			final String md5 = MD5Hash.hash(bytes);
 			System.out.println("Read "+bytes.length+" bytes of data (MD5="+md5+")");
 		}
-		
-		final ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-		final InputStream decompressed = compression.getDecompressionStream(bais);
-		final BufferedInputStream bis = new BufferedInputStream(decompressed);
-		
-		return dataReader.read(bis);
+		return bytes;
+	}
+	
+	/**
+	 * Decompresses into this thread's raw buffer and reads the data object from there. The reader
+	 * must not keep the stream it is given.
+	 */
+	protected Data decodeData(byte[] bytes, int offset, int length, CompressionMethod compression) throws IOException {
+		final DataBuffer raw = BUFFERS.get().raw;
+		raw.reset();
+		compression.decompress(bytes, offset, length, raw);
+		return dataReader.read(raw.inputStream());
+	}
+	
+	protected CompressionMethod getCompressionMethod(byte id) throws IOException {
+		final CompressionMethod method = CompressionMethod.fromID(id);
+		if (method == null) throw new IOException("Unknown compression method ID: "+id);
+		return method;
 	}
 
+	/**
+	 * Marks the given blocks to be freed by {@link #freePendingBlocks}, once the change in progress has been
+	 * published to the index. Until then, a read can still look the blocks up.
+	 */
 	protected void markBlocksFree(int startBlocksFreed, int endBlocksFreed) throws IOException {
+		pendingFrees.add(new int[] { startBlocksFreed, endBlocksFreed });
+	}
+	
+	/**
+	 * Frees the blocks marked by the change just published, unless a read outside the lock is in progress, which
+	 * might be reading them. Then they are freed once every read that started before now has finished, so they
+	 * cannot be reused under a reader. Also frees any earlier blocks whose reads have finished since.
+	 */
+	protected void freePendingBlocks() throws IOException {
+		if (!pendingFrees.isEmpty()) {
+			final boolean deferred;
+			synchronized (indexLock) {
+				deferred = !activeReads.isEmpty();
+				if (deferred) {
+					for (int[] free : pendingFrees) {
+						deferredFrees.add(new long[] { readEpoch, free[0], free[1] });
+					}
+					readEpoch++;
+				}
+			}
+			if (!deferred) {
+				for (int[] free : pendingFrees) freeBlocks(free[0], free[1]);
+			}
+			pendingFrees.clear();
+		}
+		releaseDeferredFrees();
+	}
+	
+	/**
+	 * Frees the blocks that were kept for reads that have finished since the last change. Changes do this as they
+	 * commit, since a finished read does not write to the file, so this is only needed to settle an idle file.
+	 */
+	protected synchronized void freeDeferredBlocks() throws IOException {
+		if (storage != null) releaseDeferredFrees();
+	}
+	
+	private void releaseDeferredFrees() throws IOException {
+		while (true) {
+			final long[] free;
+			synchronized (indexLock) {
+				free = deferredFrees.peek();
+				if (free == null) return;
+				if (!activeReads.isEmpty() && activeReads.firstKey() <= free[0]) return;
+				deferredFrees.poll();
+			}
+			freeBlocks((int) free[1], (int) free[2]);
+		}
+	}
+	
+	private void freeBlocks(int startBlocksFreed, int endBlocksFreed) throws IOException {
 		if (debug) {
 			System.out.println("Freed blocks "+startBlocksFreed+"-"+endBlocksFreed);
 		}
 		
+		// Every free block is marked on disk, so the free space can be found by scanning when there is no saved map
 		for (int block = startBlocksFreed; block <= endBlocksFreed; block++) {
 			seekBlock(block, 0);
-			randomAccessFile.writeInt(0);
-			freeBlocks.add(block);
+			storage.writeInt(0);
 		}
+		freeSpace.free(startBlocksFreed, endBlocksFreed - startBlocksFreed + 1);
 	}
 	
 	/**
 	 * <p>Attempts to claim the blocks from start to end (inclusive).</p>
 	 * <p>If successful, true is returned and it is assumed that these
 	 * blocks will be immediately consumed. They will be removed from
-	 * the free blocks set.</p>
+	 * the free space map.</p>
 	 * <p>If unsuccessful, false is returned and no changes are made.</p>
 	 * @param start
 	 * @param end
@@ -436,13 +1472,13 @@ public class NamedDataMapFile<Name, Data> {
 	 * @throws IOException 
 	 */
 	protected boolean tryClaim(int start, int end) throws IOException {
-		if (freeBlocks == null) {
+		if (freeSpace == null) {
 			grow(blockOffset(end) + SIZE_BLOCK);
 			if (debug && debugVerbosity >= 0) System.out.println("Claimed blocks "+start+"-"+end);
 			return true;
 		}
 		
-		final int lastBlock = numBlocks(randomAccessFile.length()) - 1;
+		final int lastBlock = numBlocks(storage.length()) - 1;
 		
 		// We do not really need to claim block past the end
 		if (start > lastBlock) {
@@ -452,58 +1488,47 @@ public class NamedDataMapFile<Name, Data> {
 			return true; // Padding will allow writing starting at block 'start'
 		}
 
-		// Regular claim: remove blocks from free block set
+		// Regular claim: remove blocks from the free space map
 		int searchEnd = (end > lastBlock) ? lastBlock : end;
-		NavigableSet<Integer> subset = freeBlocks.subSet(start, true, searchEnd, true);
-		if (subset.size() < searchEnd-start+1) return false;
-		subset.clear();
+		if (!freeSpace.claim(start, searchEnd-start+1)) return false;
 		grow(blockOffset(end) + SIZE_BLOCK);
 		if (debug && debugVerbosity >= 0) System.out.println("Claimed blocks "+start+"-"+end);
 		return true;
 	}
 
 	private void grow(long minSize) throws IOException {
-		if (randomAccessFile.length() >= minSize) return;
-		randomAccessFile.setLength(minSize);
+		if (storage.length() >= minSize) return;
+		storage.setLength(minSize);
 	}
 
 	/**
 	 * Searches for and returns the block index at which a new claim
 	 * of {@link blockCount} blocks can be made. All blocks included
-	 * in the claim will be removed from the free blocks set.
+	 * in the claim will be removed from the free space map. The smallest
+	 * run of free blocks that fits is used. If none fits, the claim is
+	 * placed at the end of the file, overlapping any free blocks there.
 	 * @throws IOException 
 	 */
 	protected int getClaim(int blockCount) throws IOException {
 		if (debug && debugVerbosity >= 0) System.out.println("Asking for claim of "+blockCount+" blocks");
 		
-		if (freeBlocks == null) {
+		if (freeSpace == null) {
 			tryClaim(0, blockCount-1);
 			return 0;
 		}
 		
-		// Find a range that's big enough
-		Iterator<Integer> iter = freeBlocks.iterator();
-		int rangeStart = 0, rangeLength = -1, expected = 0;
-		while (iter.hasNext()) {
-			final int freeBlock = iter.next();
-			if (freeBlock == expected) {
-				rangeLength++;
-				expected++;
-			} else {
-				rangeStart = freeBlock;
-				rangeLength = 1;
-				expected = freeBlock+1;
-			}
-			
-			// Big enough range found?
-			if (rangeLength >= blockCount) break;
+		// Best fit
+		int rangeStart = freeSpace.allocate(blockCount);
+		if (rangeStart >= 0) {
+			if (debug && debugVerbosity >= 0) System.out.println("Claimed blocks "+rangeStart+"-"+(rangeStart+blockCount-1));
+			return rangeStart;
 		}
 		
-		if (rangeLength < blockCount) {
-			// If there were no free blocks, rangeStart is at end of file
-			rangeStart = numBlocks(randomAccessFile.length());
-			if (debug && debugVerbosity >= 0) System.out.println("Allocated at end of file");
-		}
+		// Nothing fits, allocate at the end of the file
+		final int endBlock = numBlocks(storage.length());
+		rangeStart = freeSpace.extentEndingAt(endBlock);
+		if (rangeStart < 0) rangeStart = endBlock;
+		if (debug && debugVerbosity >= 0) System.out.println("Allocated at end of file");
 
 		boolean success = tryClaim(rangeStart, rangeStart+blockCount-1);
 		if (!success) throw new RuntimeException("Could not claim allocated region: "+rangeStart+"-"+(rangeStart+blockCount-1));
@@ -522,15 +1547,15 @@ public class NamedDataMapFile<Name, Data> {
 		while (copied < size) {
 			final int copySize = Math.min(BUFFER_SIZE, size-copied);
 			seekBlock(blockFrom, copied);
-			randomAccessFile.read(buffer, 0, copySize);
+			storage.read(buffer, 0, copySize);
 			seekBlock(blockTo, copied);
-			randomAccessFile.write(buffer, 0, copySize);
+			storage.write(buffer, 0, copySize);
 			copied += copySize;
 		}
 	}
 
 	public long getFileLength() throws IOException {
-		return randomAccessFile.length();
+		return storage.length();
 	}
 	
 }
@@ -0,0 +1,120 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>An {@link NDMFStorage} that passes every call on to a RandomAccessFile. If opened with synchronous
+ * writes, the file is opened in "rws" mode and each write reaches the device before returning.</p>
+ *
+ * <p>{@link #readAt} uses read-only RandomAccessFiles of its own, borrowed from a pool that grows to the number
+ * of threads reading at once. They are used instead of positional reads on a FileChannel because a thread
+ * interrupted during a FileChannel operation closes the channel, and the file with it.</p>
+ */
+public class RandomAccessFileStorage implements NDMFStorage {
+
+	private final RandomAccessFile file;
+	private final boolean synchronousWrites;
+
+	private final File path;
+	private final ConcurrentLinkedQueue<RandomAccessFile> readers = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+
+	public RandomAccessFileStorage(File file, boolean synchronousWrites) throws IOException {
+		this.file = new RandomAccessFile(file, synchronousWrites ? "rws" : "rw");
+		this.synchronousWrites = synchronousWrites;
+		this.path = file;
+	}
+
+	@Override
+	public long length() throws IOException {
+		return file.length();
+	}
+
+	@Override
+	public void setLength(long length) throws IOException {
+		file.setLength(length);
+	}
+
+	@Override
+	public long getPosition() throws IOException {
+		return file.getFilePointer();
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		file.seek(position);
+	}
+
+	@Override
+	public void skipBytes(int count) throws IOException {
+		file.seek(file.getFilePointer() + count);
+	}
+
+	@Override
+	public void read(byte[] bytes, int offset, int length) throws IOException {
+		file.readFully(bytes, offset, length);
+	}
+
+	@Override
+	public void readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+		if (closed) throw new IOException("Storage is closed");
+		RandomAccessFile reader = readers.poll();
+		if (reader == null) reader = new RandomAccessFile(path, "r");
+		try {
+			reader.seek(position);
+			reader.readFully(bytes, offset, length);
+		} finally {
+			readers.offer(reader);
+			if (closed) closeReaders();
+		}
+	}
+
+	private void closeReaders() throws IOException {
+		RandomAccessFile reader;
+		while ((reader = readers.poll()) != null) {
+			reader.close();
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		return file.readByte();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return file.readInt();
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		file.write(bytes, offset, length);
+	}
+
+	@Override
+	public void writeByte(int value) throws IOException {
+		file.writeByte(value);
+	}
+
+	@Override
+	public void writeInt(int value) throws IOException {
+		file.writeInt(value);
+	}
+
+	@Override
+	public void force() throws IOException {
+		if (synchronousWrites) return; // Already durable
+		file.getFD().sync();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		closeReaders();
+		file.close();
+	}
+
+}
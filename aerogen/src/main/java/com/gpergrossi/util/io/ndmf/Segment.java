@@ -26,6 +26,17 @@ public class Segment<Name, Data> {
 		}
 	}
 	
+	/**
+	 * Reads the size like {@link #readSegment}, with a positional read that does not need the file's lock.
+	 */
+	protected final void readSegmentConcurrently() {
+		try {
+			this.size = ndmFile.readIntAt(ndmFile.blockOffset(blockIDStart));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	protected final void writeSegment() {
 		try {
 			ndmFile.seekBlock(blockIDStart, 0);
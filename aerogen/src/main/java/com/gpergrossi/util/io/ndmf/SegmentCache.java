@@ -0,0 +1,364 @@
+package com.gpergrossi.util.io.ndmf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>A cache with a capacity in bytes, in which every value has a weight. {@link NamedDataMapFile} uses it to keep
+ * recently read data segments in memory, weighted by their size in the file (their compressed size).</p>
+ *
+ * <p>Two policies are available. {@link Policy#LRU} evicts the least recently used entries. {@link Policy#TINY_LFU}
+ * is modeled on W-TinyLFU: new entries go into a small LRU window, and an entry leaving the window only replaces an
+ * entry of the main cache if it has been requested more often recently, according to a frequency sketch. This keeps
+ * a scan of entries that are read once from flushing out entries that are read again and again.</p>
+ *
+ * <p>Not thread safe. NamedDataMapFile only uses it while holding its index lock.</p>
+ */
+public abstract class SegmentCache<K, V> {
+
+	public static enum Policy {
+		LRU {
+			@Override
+			public <K, V> SegmentCache<K, V> create(long capacity) {
+				return new Lru<>(capacity);
+			}
+		},
+		TINY_LFU {
+			@Override
+			public <K, V> SegmentCache<K, V> create(long capacity) {
+				return new TinyLfu<>(capacity);
+			}
+		};
+
+		public abstract <K, V> SegmentCache<K, V> create(long capacity);
+	}
+
+	protected static class Entry<V> {
+		V value;
+		long weight;
+
+		Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	protected final long capacity;
+	protected long weight;
+
+	protected long hits;
+	protected long misses;
+	protected long evictions;
+
+	protected SegmentCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the cached value, counting a hit or a miss, and records the use for eviction.
+	 */
+	public abstract V get(K key);
+
+	/**
+	 * Returns the cached value without counting a hit or a miss.
+	 */
+	public abstract V peek(K key);
+
+	/**
+	 * Adds or replaces a value. The value may be evicted at once, for example if it weighs more than the capacity.
+	 */
+	public abstract void put(K key, V value, long weight);
+
+	public abstract void remove(K key);
+
+	public abstract int size();
+
+	public long getWeight() {
+		return weight;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Number of {@link #get} calls that found their key.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Number of {@link #get} calls that did not find their key.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public void appendStatistics(List<String> output) {
+		final long requests = hits + misses;
+		output.add(String.format(Locale.ROOT, "Cache: %d entries, %d / %d KB, hits: %d, misses: %d (%.1f%% hit rate), evictions: %d",
+				size(), weight / 1024, capacity / 1024, hits, misses, requests == 0 ? 0.0 : hits * 100.0 / requests, evictions));
+	}
+
+	private static <K, V> LinkedHashMap<K, Entry<V>> accessOrderMap() {
+		return new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Evicts least recently used entries.
+	 */
+	private static class Lru<K, V> extends SegmentCache<K, V> {
+		private final LinkedHashMap<K, Entry<V>> entries = accessOrderMap();
+
+		Lru(long capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public V get(K key) {
+			final Entry<V> entry = entries.get(key);
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return entry.value;
+		}
+
+		@Override
+		public V peek(K key) {
+			final Entry<V> entry = entries.get(key);
+			return entry == null ? null : entry.value;
+		}
+
+		@Override
+		public void put(K key, V value, long weight) {
+			final Entry<V> old = entries.put(key, new Entry<>(value, weight));
+			if (old != null) this.weight -= old.weight;
+			this.weight += weight;
+
+			final Iterator<Entry<V>> iter = entries.values().iterator();
+			while (this.weight > capacity && iter.hasNext()) {
+				this.weight -= iter.next().weight;
+				iter.remove();
+				evictions++;
+			}
+		}
+
+		@Override
+		public void remove(K key) {
+			final Entry<V> old = entries.remove(key);
+			if (old != null) weight -= old.weight;
+		}
+
+		@Override
+		public int size() {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * A window LRU of 1% of the capacity in front of a segmented LRU (probation and protected) guarded by
+	 * TinyLFU admission.
+	 */
+	private static class TinyLfu<K, V> extends SegmentCache<K, V> {
+		private final LinkedHashMap<K, Entry<V>> window = accessOrderMap();
+		private final LinkedHashMap<K, Entry<V>> probation = accessOrderMap();
+		private final LinkedHashMap<K, Entry<V>> protectedEntries = accessOrderMap();
+
+		private final long windowCapacity;
+		private final long protectedCapacity;
+		private long windowWeight, probationWeight, protectedWeight;
+
+		private final FrequencySketch sketch;
+
+		TinyLfu(long capacity) {
+			super(capacity);
+			this.windowCapacity = Math.max(1, capacity / 100);
+			this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+
+			// Sized for entries of about 1 KB on average
+			this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, capacity / 1024)));
+		}
+
+		@Override
+		public V get(K key) {
+			sketch.increment(key.hashCode());
+
+			Entry<V> entry = window.get(key);
+			if (entry == null) {
+				entry = protectedEntries.get(key);
+			}
+			if (entry == null) {
+				entry = probation.remove(key);
+				if (entry != null) {
+					// Promote to protected, demoting protected entries past its capacity
+					probationWeight -= entry.weight;
+					protectedEntries.put(key, entry);
+					protectedWeight += entry.weight;
+					demoteProtected();
+				}
+			}
+
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return entry.value;
+		}
+
+		@Override
+		public V peek(K key) {
+			Entry<V> entry = window.get(key);
+			if (entry == null) entry = probation.get(key);
+			if (entry == null) entry = protectedEntries.get(key);
+			return entry == null ? null : entry.value;
+		}
+
+		@Override
+		public void put(K key, V value, long weight) {
+			remove(key);
+			sketch.increment(key.hashCode());
+
+			window.put(key, new Entry<>(value, weight));
+			windowWeight += weight;
+			this.weight += weight;
+
+			// Candidates leaving the window must win admission to the main cache
+			final Iterator<Map.Entry<K, Entry<V>>> iter = window.entrySet().iterator();
+			while (windowWeight > windowCapacity && iter.hasNext()) {
+				final Map.Entry<K, Entry<V>> candidate = iter.next();
+				iter.remove();
+				windowWeight -= candidate.getValue().weight;
+				this.weight -= candidate.getValue().weight;
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		}
+
+		private void admit(K key, Entry<V> candidate) {
+			final long mainCapacity = capacity - windowCapacity;
+			if (candidate.weight > mainCapacity) {
+				evictions++;
+				return;
+			}
+
+			boolean admitted = false;
+			while (probationWeight + protectedWeight + candidate.weight > mainCapacity) {
+				final LinkedHashMap<K, Entry<V>> victims = probation.isEmpty() ? protectedEntries : probation;
+				final Map.Entry<K, Entry<V>> victim = victims.entrySet().iterator().next();
+
+				// The candidate is rejected unless it is used more often than the entry it would replace first
+				if (!admitted) {
+					if (sketch.frequency(victim.getKey().hashCode()) >= sketch.frequency(key.hashCode())) {
+						evictions++;
+						return;
+					}
+					admitted = true;
+				}
+
+				victims.remove(victim.getKey());
+				if (victims == probation) probationWeight -= victim.getValue().weight;
+				else protectedWeight -= victim.getValue().weight;
+				this.weight -= victim.getValue().weight;
+				evictions++;
+			}
+
+			probation.put(key, candidate);
+			probationWeight += candidate.weight;
+			this.weight += candidate.weight;
+		}
+
+		private void demoteProtected() {
+			final Iterator<Map.Entry<K, Entry<V>>> iter = protectedEntries.entrySet().iterator();
+			while (protectedWeight > protectedCapacity && iter.hasNext()) {
+				final Map.Entry<K, Entry<V>> demoted = iter.next();
+				iter.remove();
+				protectedWeight -= demoted.getValue().weight;
+				probation.put(demoted.getKey(), demoted.getValue());
+				probationWeight += demoted.getValue().weight;
+			}
+		}
+
+		@Override
+		public void remove(K key) {
+			Entry<V> old = window.remove(key);
+			if (old != null) {
+				windowWeight -= old.weight;
+			} else if ((old = probation.remove(key)) != null) {
+				probationWeight -= old.weight;
+			} else if ((old = protectedEntries.remove(key)) != null) {
+				protectedWeight -= old.weight;
+			}
+			if (old != null) weight -= old.weight;
+		}
+
+		@Override
+		public int size() {
+			return window.size() + probation.size() + protectedEntries.size();
+		}
+	}
+
+	/**
+	 * Approximate recent use counts: a count-min sketch of 4 rows of saturating 4-bit counters. All counters
+	 * are halved after every 10 increments per counter in a row, so old uses age out.
+	 */
+	private static class FrequencySketch {
+		private static final int[] SEEDS = { 0x97CB3127, 0xB3E8D1F5, 0x6C2D9A4B, 0xD35A2D97 };
+
+		private final byte[][] rows;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int expectedEntries) {
+			final int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+			this.rows = new byte[SEEDS.length][width];
+			this.mask = width - 1;
+			this.sampleSize = 10 * width;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		void increment(int hash) {
+			boolean incremented = false;
+			for (int row = 0; row < rows.length; row++) {
+				final int i = index(hash, row);
+				if (rows[row][i] < 15) {
+					rows[row][i]++;
+					incremented = true;
+				}
+			}
+			if (incremented && ++additions >= sampleSize) age();
+		}
+
+		int frequency(int hash) {
+			int min = 15;
+			for (int row = 0; row < rows.length; row++) {
+				min = Math.min(min, rows[row][index(hash, row)]);
+			}
+			return min;
+		}
+
+		private void age() {
+			for (byte[] row : rows) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+
+}
@@ -1,8 +1,11 @@
 package com.gpergrossi.voronoi.infinite;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 
 import com.gpergrossi.util.geom.ranges.Int2DRange;
@@ -42,8 +45,11 @@ public class InfiniteVoronoi {
 		
 		Rect bounds = new Rect(range.minX, range.minY, range.maxX-range.minX+1, range.maxY-range.minY+1);
 		
+		final Set<InfiniteCell> added = Collections.newSetFromMap(new IdentityHashMap<>());
+		added.addAll(output);
 		for (InfiniteCell cell : cells) {
-			if (!output.contains(cell) && cell.getPolygon().intersects(bounds)) {
+			if (!added.contains(cell) && cell.getPolygon().intersects(bounds)) {
+				added.add(cell);
 				output.add(cell);
 			} else {
 				cell.release();
@@ -122,6 +128,18 @@ public class InfiniteVoronoi {
 		int height = maxCellY - minCellY + 1;
 		InfiniteCell[] results = new InfiniteCell[width * height];
 		
+		// Reserve the cells first, the diagram is only needed if some of them are not initialized yet
+		boolean needBuild = false;
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				InfiniteCell cell = peakCell(minCellX+i, minCellY+j);
+				cell.reserve();
+				results[j*width+i] = cell;
+				if (!cell.initialized) needBuild = true;
+			}
+		}
+		if (!needBuild) return results;
+		
 		final int padding = 2; // # of cells (in all directions) around the outside of the ones we care about
 
 		int workWidth = width + padding*2;
@@ -136,7 +154,6 @@ public class InfiniteVoronoi {
 		final double boundsHeight = workHeight * gridSize;
 		builder.setBounds(new Rect(boundsX, boundsY, boundsWidth, boundsHeight));
 		
-		boolean needBuild = false;
 		for (int j = 0; j < workHeight; j++) {
 			final boolean jIsPadding = (j < padding || j >= workHeight-padding);
 			for (int i = 0; i < workWidth; i++) {
@@ -145,14 +162,10 @@ public class InfiniteVoronoi {
 				workCellMap.put(cellIndex, cell);
 				
 				if (!jIsPadding && i >= padding && i < workWidth-padding) {
-					results[(j-padding)*width+(i-padding)] = cell;
 					workIDs[(j-padding)*width+(i-padding)] = cellIndex;
-					cell.reserve();
-					if (!cell.initialized) needBuild = true;
 				}
 			}
 		}
-		if (!needBuild) return results;
 		
 		Voronoi voronoi = builder.build();
 		